@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+/**
+ * {@link OperationEvents.Sink} that commits each operation as an {@link OperationEvent}.  This class is loaded
+ * reflectively by {@link OperationEvents}, so that the classes compiled for Java 8 never link against the JDK
+ * Flight Recorder API.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see OperationEvent
+ */
+final class FlightRecorderSink implements OperationEvents.Sink {
+
+	@Override
+	public boolean isEnabled() {
+		return OperationEvent.isTypeEnabled();
+	}
+
+	@Override
+	public void commit(final OperationSource source, final Operation operation, final String path, final String code, final long latencyNanos,
+			final long sessionId, final int payloadSize) {
+		OperationEvent.commit(source, operation, path, code, latencyNanos, sessionId, payloadSize);
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder event that describes a ZooKeeper operation whose latency reached the threshold of the
+ * {@link OperationEvents}.  The event is committed when the operation completes, and its {@code latency} field
+ * holds the duration of the operation.  This class belongs to the {@code jfr} source set, which is compiled for
+ * Java 11, and is only reached through the {@link FlightRecorderSink} that {@link OperationEvents} loads
+ * reflectively when the running JVM supports JDK Flight Recorder.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see OperationEvents
+ */
+@Name(OperationEvents.EVENT_NAME)
+@Label("ZooKeeper Operation")
+@Category({ "Curator", "ZooKeeper" })
+@Description("A ZooKeeper operation whose latency reached the configured threshold.")
+@StackTrace(false)
+final class OperationEvent extends Event {
+
+	/**
+	 * The type of this event, whose enabled state is checked before an event is created.
+	 */
+	private static final EventType TYPE = EventType.getEventType(OperationEvent.class);
+
+	@Label("Source")
+	@Description("The layer at which the operation was measured.")
+	String source;
+
+	@Label("Operation")
+	String operation;
+
+	@Label("Path")
+	@Description("The path of the operation, normalized to its template.")
+	String path;
+
+	@Label("Latency")
+	@Timespan(Timespan.NANOSECONDS)
+	long latency;
+
+	@Label("Result Code")
+	String resultCode;
+
+	@Label("Session Id")
+	@Description("The ZooKeeper session that executed the operation, or 0 if it is unknown.")
+	long sessionId;
+
+	@Label("Payload Size")
+	@Description("The size of the data written or read by the operation, or -1 if it has no payload.")
+	@DataAmount
+	int payloadSize;
+
+	/**
+	 * Determines whether or not a recording is collecting this event.
+	 * @return {@code true} if the event is enabled.
+	 */
+	static boolean isTypeEnabled() {
+		return TYPE.isEnabled();
+	}
+
+	/**
+	 * Commits an event.
+	 * @param source The layer at which the operation was measured.
+	 * @param operation The operation.
+	 * @param path The normalized path of the operation or {@code null}.
+	 * @param code The result code of the operation.
+	 * @param latencyNanos The latency of the operation in nanoseconds.
+	 * @param sessionId The ZooKeeper session that executed the operation, or {@code 0} if it is unknown.
+	 * @param payloadSize The size of the payload of the operation, or {@code -1} if it has none.
+	 */
+	static void commit(final OperationSource source, final Operation operation, final String path, final String code, final long latencyNanos,
+			final long sessionId, final int payloadSize) {
+		final OperationEvent event = new OperationEvent();
+		event.source = source.name();
+		event.operation = operation.getOperationName();
+		event.path = path;
+		event.latency = latencyNanos;
+		event.resultCode = code;
+		event.sessionId = sessionId;
+		event.payloadSize = payloadSize;
+		event.commit();
+	}
+}
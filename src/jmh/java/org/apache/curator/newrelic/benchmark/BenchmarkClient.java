@@ -0,0 +1,225 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.newrelic.framework.InstrumentationPolicy;
+import org.apache.curator.newrelic.framework.NewRelicClientFrameworkFactory;
+import org.apache.curator.newrelic.metrics.TraceSampler;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.apache.zookeeper.newrelic.NewRelicWrappedZookeeper;
+
+/**
+ * Executes the benchmarked operations against one of the {@link ClientMode clients} under test.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ */
+public abstract class BenchmarkClient implements Closeable {
+
+	/**
+	 * Session and connection timeout used by every client.
+	 */
+	private static final int TIMEOUT_MS = 30 * 1000;
+
+	/**
+	 * Sampling interval of the {@link ClientMode#NEWRELIC_FRAMEWORK_SAMPLED} client.
+	 */
+	private static final long SAMPLING_INTERVAL = 100;
+
+	/**
+	 * Slow call threshold of the {@link ClientMode#NEWRELIC_FRAMEWORK_SAMPLED} client.
+	 */
+	private static final long SLOW_THRESHOLD_MS = 1000;
+
+	/**
+	 * Creates a connected client.
+	 * @param mode The {@link ClientMode} of the client.
+	 * @param connectString The list of servers to connect to.
+	 * @return The connected client.
+	 * @throws Exception if unable to connect.
+	 */
+	public static BenchmarkClient connect(final ClientMode mode, final String connectString) throws Exception {
+		switch(mode) {
+			case CURATOR:
+				return new FrameworkClient(CuratorFrameworkFactory.newClient(connectString, TIMEOUT_MS, TIMEOUT_MS, new RetryOneTime(0)));
+			case NEWRELIC_FRAMEWORK:
+				return new FrameworkClient(NewRelicClientFrameworkFactory.newClient(connectString, TIMEOUT_MS, TIMEOUT_MS, new RetryOneTime(0)));
+			case NEWRELIC_FRAMEWORK_SAMPLED:
+				return new FrameworkClient(NewRelicClientFrameworkFactory.newClient(connectString, TIMEOUT_MS, TIMEOUT_MS, new RetryOneTime(0),
+						InstrumentationPolicy.builder().sampler(TraceSampler.oneIn(SAMPLING_INTERVAL, SLOW_THRESHOLD_MS)).build()));
+			case NEWRELIC_ZOOKEEPER:
+				return new ZookeeperClient(connectString);
+			default:
+				throw new IllegalArgumentException("Unsupported client mode " + mode + ".");
+		}
+	}
+
+	/**
+	 * Reads the data of the provided path.
+	 * @param path The path.
+	 * @return The data of the node.
+	 * @throws Exception if the operation fails.
+	 */
+	public abstract byte[] getData(String path) throws Exception;
+
+	/**
+	 * Writes the data of the provided path.
+	 * @param path The path.
+	 * @param data The data to write.
+	 * @return The {@link Stat} of the node.
+	 * @throws Exception if the operation fails.
+	 */
+	public abstract Stat setData(String path, byte[] data) throws Exception;
+
+	/**
+	 * Creates a node.
+	 * @param path The path.
+	 * @param data The data of the node.
+	 * @param mode The {@link CreateMode} of the node.
+	 * @return The path of the created node.
+	 * @throws Exception if the operation fails.
+	 */
+	public abstract String create(String path, byte[] data, CreateMode mode) throws Exception;
+
+	/**
+	 * Deletes a node.
+	 * @param path The path.
+	 * @throws Exception if the operation fails.
+	 */
+	public abstract void delete(String path) throws Exception;
+
+	/**
+	 * Checks whether or not a node exists.
+	 * @param path The path.
+	 * @return The {@link Stat} of the node or {@code null} if it does not exist.
+	 * @throws Exception if the operation fails.
+	 */
+	public abstract Stat exists(String path) throws Exception;
+
+	/**
+	 * {@link BenchmarkClient} backed by a {@link CuratorFramework}.
+	 */
+	private static final class FrameworkClient extends BenchmarkClient {
+
+		private final CuratorFramework framework;
+
+		private FrameworkClient(final CuratorFramework framework) throws InterruptedException {
+			this.framework = framework;
+			framework.start();
+			framework.getZookeeperClient().blockUntilConnectedOrTimedOut();
+		}
+
+		@Override
+		public byte[] getData(final String path) throws Exception {
+			return framework.getData().forPath(path);
+		}
+
+		@Override
+		public Stat setData(final String path, final byte[] data) throws Exception {
+			return framework.setData().forPath(path, data);
+		}
+
+		@Override
+		public String create(final String path, final byte[] data, final CreateMode mode) throws Exception {
+			return framework.create().withMode(mode).forPath(path, data);
+		}
+
+		@Override
+		public void delete(final String path) throws Exception {
+			framework.delete().forPath(path);
+		}
+
+		@Override
+		public Stat exists(final String path) throws Exception {
+			return framework.checkExists().forPath(path);
+		}
+
+		@Override
+		public void close() {
+			framework.close();
+		}
+	}
+
+	/**
+	 * {@link BenchmarkClient} backed by a {@link NewRelicWrappedZookeeper}.
+	 */
+	private static final class ZookeeperClient extends BenchmarkClient {
+
+		private final ZooKeeper zooKeeper;
+
+		private ZookeeperClient(final String connectString) throws IOException, InterruptedException {
+			final CountDownLatch connected = new CountDownLatch(1);
+			zooKeeper = new NewRelicWrappedZookeeper(connectString, TIMEOUT_MS, new Watcher() {
+				@Override
+				public void process(final WatchedEvent event) {
+					if(event.getState() == Event.KeeperState.SyncConnected) {
+						connected.countDown();
+					}
+				}
+			}, false);
+			if(!connected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				throw new IOException("Timed out connecting to " + connectString + ".");
+			}
+		}
+
+		@Override
+		public byte[] getData(final String path) throws Exception {
+			return zooKeeper.getData(path, false, null);
+		}
+
+		@Override
+		public Stat setData(final String path, final byte[] data) throws Exception {
+			return zooKeeper.setData(path, data, -1);
+		}
+
+		@Override
+		public String create(final String path, final byte[] data, final CreateMode mode) throws Exception {
+			return zooKeeper.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, mode);
+		}
+
+		@Override
+		public void delete(final String path) throws Exception {
+			zooKeeper.delete(path, -1);
+		}
+
+		@Override
+		public Stat exists(final String path) throws Exception {
+			return zooKeeper.exists(path, false);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				zooKeeper.close();
+			} catch(final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
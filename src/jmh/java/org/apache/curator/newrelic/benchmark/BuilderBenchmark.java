@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.newrelic.framework.InstrumentationPolicy;
+import org.apache.curator.newrelic.framework.imps.NewRelicWrappedCuratorFrameworkImpl;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the per-call cost of the instrumented operation builders without a ZooKeeper round-trip.  The
+ * {@code build*} benchmarks build an operation without executing it, and their {@code baseline*} counterparts
+ * build the same operation with the delegate {@link CuratorFramework}.  The {@code cachedGetData} benchmark executes
+ * a read that is served from the node cache, which exercises the whole instrumented path up to and including
+ * {@code forPath()}.  Attach the New Relic agent to the forked JVM to include the cost of the agent itself.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BuilderBenchmark {
+
+	/**
+	 * Node that is read by the benchmarks.
+	 */
+	private static final String DATA_PATH = "/benchmark";
+
+	/**
+	 * Maximum number of nodes held by the node cache.
+	 */
+	private static final int CACHE_ENTRIES = 16;
+
+	/**
+	 * Maximum number of bytes held by the node cache.
+	 */
+	private static final long CACHE_BYTES = 1024 * 1024;
+
+	/**
+	 * Callback of the background operations, which are never executed.
+	 */
+	private static final BackgroundCallback CALLBACK = new BackgroundCallback() {
+		@Override
+		public void processResult(final CuratorFramework client, final CuratorEvent event) {
+		}
+	};
+
+	/**
+	 * The in-process ZooKeeper server.
+	 */
+	private TestingServer server;
+
+	/**
+	 * The delegate {@link CuratorFramework}.
+	 */
+	private CuratorFramework delegate;
+
+	/**
+	 * The instrumented {@link CuratorFramework}.
+	 */
+	private CuratorFramework framework;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new TestingServer();
+		delegate = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(0));
+		delegate.start();
+		delegate.create().forPath(DATA_PATH, new byte[128]);
+		framework = new NewRelicWrappedCuratorFrameworkImpl(delegate, InstrumentationPolicy.builder().nodeCache(CACHE_ENTRIES, CACHE_BYTES).build());
+		framework.getData().forPath(DATA_PATH);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		delegate.close();
+		server.close();
+	}
+
+	@Benchmark
+	public Object baselineBuildCreate() {
+		return delegate.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL).withACL(ZooDefs.Ids.OPEN_ACL_UNSAFE);
+	}
+
+	@Benchmark
+	public Object buildCreate() {
+		return framework.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL).withACL(ZooDefs.Ids.OPEN_ACL_UNSAFE);
+	}
+
+	@Benchmark
+	public Object baselineBuildBackgroundGetData() {
+		return delegate.getData().watched().inBackground(CALLBACK);
+	}
+
+	@Benchmark
+	public Object buildBackgroundGetData() {
+		return framework.getData().watched().inBackground(CALLBACK);
+	}
+
+	@Benchmark
+	public byte[] cachedGetData() throws Exception {
+		return framework.getData().forPath(DATA_PATH);
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.benchmark;
+
+/**
+ * The clients that are compared by the benchmarks.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ */
+public enum ClientMode {
+
+	/**
+	 * A plain {@link org.apache.curator.framework.CuratorFramework} created by
+	 * {@link org.apache.curator.framework.CuratorFrameworkFactory}.
+	 */
+	CURATOR,
+
+	/**
+	 * An instrumented {@link org.apache.curator.framework.CuratorFramework} created by
+	 * {@link org.apache.curator.newrelic.framework.NewRelicClientFrameworkFactory}.
+	 */
+	NEWRELIC_FRAMEWORK,
+
+	/**
+	 * An instrumented {@link org.apache.curator.framework.CuratorFramework} created by
+	 * {@link org.apache.curator.newrelic.framework.NewRelicClientFrameworkFactory} that traces
+	 * one operation in every hundred.
+	 */
+	NEWRELIC_FRAMEWORK_SAMPLED,
+
+	/**
+	 * A raw {@link org.apache.zookeeper.newrelic.NewRelicWrappedZookeeper}.
+	 */
+	NEWRELIC_ZOOKEEPER
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.benchmark;
+
+import org.apache.zookeeper.CreateMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-thread benchmark state that creates the node deleted by each invocation of a delete benchmark.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ */
+@State(Scope.Thread)
+public class DeleteState {
+
+	/**
+	 * The path of the node to delete.
+	 */
+	public String path;
+
+	@Setup(Level.Invocation)
+	public void setUp() throws Exception {
+		path = ZookeeperServerState.current.client.create(ZookeeperServerState.DELETE_PATH + "/node-", ZookeeperServerState.PAYLOAD, CreateMode.PERSISTENT_SEQUENTIAL);
+	}
+}
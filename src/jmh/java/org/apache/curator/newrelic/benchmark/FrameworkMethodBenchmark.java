@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.api.GetDataBuilder;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.newrelic.framework.InstrumentationPolicy;
+import org.apache.curator.newrelic.framework.TraceMode;
+import org.apache.curator.newrelic.framework.imps.NewRelicWrappedCuratorFrameworkImpl;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the per-call cost of the instrumented {@link CuratorFramework} methods that do not
+ * perform a ZooKeeper round-trip, for each {@link TraceMode}.  {@link TraceMode#DISPATCHER} matches
+ * the behaviour prior to the introduction of {@link InstrumentationPolicy}.  Attach the New Relic agent
+ * to the forked JVM (e.g. {@code -jvmArgsAppend -javaagent:/path/to/newrelic.jar}) to include the cost
+ * of the agent itself.  The {@code getDataBuilder} benchmark measures the cost of the instrumented
+ * operation builders.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FrameworkMethodBenchmark {
+
+	@Param
+	public TraceMode traceMode;
+
+	/**
+	 * The in-process ZooKeeper server.
+	 */
+	private TestingServer server;
+
+	/**
+	 * The delegate {@link CuratorFramework}.
+	 */
+	private CuratorFramework delegate;
+
+	/**
+	 * The instrumented {@link CuratorFramework}.
+	 */
+	private CuratorFramework framework;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new TestingServer();
+		delegate = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(0));
+		delegate.start();
+		framework = new NewRelicWrappedCuratorFrameworkImpl(delegate, InstrumentationPolicy.builder().traceAll(traceMode).build());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		delegate.close();
+		server.close();
+	}
+
+	@Benchmark
+	public CuratorFrameworkState baselineGetState() {
+		return delegate.getState();
+	}
+
+	@Benchmark
+	public CuratorFrameworkState getState() {
+		return framework.getState();
+	}
+
+	@Benchmark
+	public String getNamespace() {
+		return framework.getNamespace();
+	}
+
+	@Benchmark
+	public Object baselineGetDataBuilder() {
+		return delegate.getData().watched();
+	}
+
+	@Benchmark
+	public Object getDataBuilder() {
+		final GetDataBuilder builder = framework.getData();
+		return builder.watched();
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.newrelic.framework.FrameworkMethod;
+import org.apache.curator.newrelic.framework.InstrumentationPolicy;
+import org.apache.curator.newrelic.framework.TraceMode;
+import org.apache.curator.newrelic.framework.imps.NewRelicWrappedCuratorFrameworkImpl;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the cost of the accessors that Curator recipes call in tight loops on an instrumented
+ * {@link CuratorFramework}, under the {@link InstrumentationPolicy#defaultPolicy() default policy} and under a
+ * policy that starts a transaction for every method, as every method did before the introduction of
+ * {@link InstrumentationPolicy}.  The {@code baseline} benchmark makes the same calls on the delegate framework.
+ * Attach the New Relic agent to the forked JVM to include the cost of the transactions themselves.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InstrumentationPolicyBenchmark {
+
+	/**
+	 * Name of the default policy.
+	 */
+	private static final String DEFAULT_POLICY = "DEFAULT";
+
+	/**
+	 * The policy of the instrumented framework:  {@value #DEFAULT_POLICY}, or the {@link TraceMode} of every method.
+	 */
+	@Param({DEFAULT_POLICY, "DISPATCHER", "SEGMENT", "NONE"})
+	public String policy;
+
+	/**
+	 * The in-process ZooKeeper server.
+	 */
+	private TestingServer server;
+
+	/**
+	 * The delegate {@link CuratorFramework}.
+	 */
+	private CuratorFramework delegate;
+
+	/**
+	 * The instrumented {@link CuratorFramework}.
+	 */
+	private CuratorFramework framework;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new TestingServer();
+		delegate = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryOneTime(0));
+		delegate.start();
+		framework = new NewRelicWrappedCuratorFrameworkImpl(delegate, DEFAULT_POLICY.equals(policy)
+				? InstrumentationPolicy.defaultPolicy() : InstrumentationPolicy.builder().traceAll(TraceMode.valueOf(policy)).build());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		delegate.close();
+		server.close();
+	}
+
+	@Benchmark
+	public void baseline(final Blackhole blackhole) {
+		accessors(delegate, blackhole);
+	}
+
+	@Benchmark
+	public void instrumented(final Blackhole blackhole) {
+		accessors(framework, blackhole);
+	}
+
+	/**
+	 * Calls the accessors of the provided framework whose {@link FrameworkMethod#getDefaultTraceMode() default}
+	 * is not to be traced.
+	 * @param client The framework.
+	 * @param blackhole The {@link Blackhole} that consumes the results.
+	 */
+	private static void accessors(final CuratorFramework client, final Blackhole blackhole) {
+		blackhole.consume(client.getState());
+		blackhole.consume(client.getNamespace());
+		blackhole.consume(client.getConnectionStateListenable());
+		blackhole.consume(client.getCuratorListenable());
+		blackhole.consume(client.getZookeeperClient());
+	}
+}
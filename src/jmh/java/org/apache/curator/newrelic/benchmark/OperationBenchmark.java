@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.data.Stat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput and latency of single-threaded ZooKeeper operations for each {@link ClientMode}.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class OperationBenchmark {
+
+	@Benchmark
+	public byte[] getData(final ZookeeperServerState state) throws Exception {
+		return state.client.getData(ZookeeperServerState.DATA_PATH);
+	}
+
+	@Benchmark
+	public Stat setData(final ZookeeperServerState state) throws Exception {
+		return state.client.setData(ZookeeperServerState.DATA_PATH, ZookeeperServerState.PAYLOAD);
+	}
+
+	@Benchmark
+	public String create(final ZookeeperServerState state) throws Exception {
+		return state.client.create(ZookeeperServerState.CREATE_PATH + "/node-", ZookeeperServerState.PAYLOAD, CreateMode.EPHEMERAL_SEQUENTIAL);
+	}
+
+	@Benchmark
+	public void delete(final ZookeeperServerState state, final DeleteState deleteState) throws Exception {
+		state.client.delete(deleteState.path);
+	}
+
+	@Benchmark
+	public Stat exists(final ZookeeperServerState state) throws Exception {
+		return state.client.exists(ZookeeperServerState.DATA_PATH);
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.benchmark;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmark state that runs an in-process ZooKeeper server and connects one client of
+ * the {@link ClientMode} under test to it.  The New Relic API classes are no-ops unless the
+ * New Relic agent is attached to the forked JVM, so by default the benchmarks measure the
+ * overhead of the wrappers themselves.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ */
+@State(Scope.Benchmark)
+public class ZookeeperServerState {
+
+	/**
+	 * Root of the nodes used by the benchmarks.
+	 */
+	public static final String ROOT_PATH = "/benchmark";
+
+	/**
+	 * Node that is read and written by the benchmarks.
+	 */
+	public static final String DATA_PATH = ROOT_PATH + "/data";
+
+	/**
+	 * Parent of the nodes that are created by the benchmarks.
+	 */
+	public static final String CREATE_PATH = ROOT_PATH + "/create";
+
+	/**
+	 * Parent of the nodes that are deleted by the benchmarks.
+	 */
+	public static final String DELETE_PATH = ROOT_PATH + "/delete";
+
+	/**
+	 * Payload written by the benchmarks.
+	 */
+	public static final byte[] PAYLOAD = new byte[128];
+
+	@Param
+	public ClientMode mode;
+
+	/**
+	 * The state of the running trial, for use by per-thread states that cannot declare a dependency
+	 * on this state.
+	 */
+	static volatile ZookeeperServerState current;
+
+	/**
+	 * The in-process ZooKeeper server.
+	 */
+	private TestingServer server;
+
+	/**
+	 * The client under test.
+	 */
+	public BenchmarkClient client;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		server = new TestingServer();
+		client = BenchmarkClient.connect(mode, server.getConnectString());
+		client.create(ROOT_PATH, PAYLOAD, CreateMode.PERSISTENT);
+		client.create(DATA_PATH, PAYLOAD, CreateMode.PERSISTENT);
+		client.create(CREATE_PATH, PAYLOAD, CreateMode.PERSISTENT);
+		client.create(DELETE_PATH, PAYLOAD, CreateMode.PERSISTENT);
+		current = this;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		current = null;
+		client.close();
+		server.close();
+	}
+}
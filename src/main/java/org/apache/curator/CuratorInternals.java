@@ -0,0 +1,210 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.util.Queue;
+
+import org.apache.curator.ensemble.EnsembleProvider;
+import org.apache.curator.utils.ZookeeperFactory;
+import org.apache.zookeeper.Watcher;
+
+/**
+ * Accessors for the internal state of a {@link CuratorZookeeperClient} that is required in order to
+ * clone it, but which is not exposed outside of the client.  The underlying fields are resolved
+ * exactly once, when this class is initialized, and are held in {@code static final} {@link MethodHandle}s
+ * so that each access is a plain field read once compiled.  If the fields cannot be resolved (for instance,
+ * because the Curator internals have changed), initialization of this class fails with an
+ * {@link IllegalStateException} that identifies the missing field.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see CuratorZookeeperClient
+ */
+final class CuratorInternals {
+
+	/**
+	 * Reads {@code CuratorZookeeperClient.state}.
+	 */
+	private static final MethodHandle CONNECTION_STATE;
+
+	/**
+	 * Reads {@code CuratorZookeeperClient.state.zooKeeper}.
+	 */
+	private static final MethodHandle HANDLE_HOLDER;
+
+	/**
+	 * Reads {@code ConnectionState.sessionTimeoutMs}.
+	 */
+	private static final MethodHandle SESSION_TIMEOUT_MS;
+
+	/**
+	 * Reads {@code ConnectionState.ensembleProvider}.
+	 */
+	private static final MethodHandle ENSEMBLE_PROVIDER;
+
+	/**
+	 * Reads {@code ConnectionState.parentWatchers}.
+	 */
+	private static final MethodHandle PARENT_WATCHERS;
+
+	/**
+	 * Reads {@code HandleHolder.zookeeperFactory}.
+	 */
+	private static final MethodHandle ZOOKEEPER_FACTORY;
+
+	/**
+	 * Reads {@code HandleHolder.canBeReadOnly}.
+	 */
+	private static final MethodHandle CAN_BE_READ_ONLY;
+
+	static {
+		CONNECTION_STATE = getter(CuratorZookeeperClient.class, "state");
+		HANDLE_HOLDER = MethodHandles.filterReturnValue(CONNECTION_STATE, getter(ConnectionState.class, "zooKeeper"));
+		SESSION_TIMEOUT_MS = getter(ConnectionState.class, "sessionTimeoutMs");
+		ENSEMBLE_PROVIDER = getter(ConnectionState.class, "ensembleProvider");
+		PARENT_WATCHERS = getter(ConnectionState.class, "parentWatchers");
+		ZOOKEEPER_FACTORY = getter(HandleHolder.class, "zookeeperFactory");
+		CAN_BE_READ_ONLY = getter(HandleHolder.class, "canBeReadOnly");
+	}
+
+	private CuratorInternals() {}
+
+	/**
+	 * Retrieves the {@link ConnectionState} of the provided {@link CuratorZookeeperClient}.
+	 * @param client The {@link CuratorZookeeperClient}.
+	 * @return The {@link ConnectionState} of the client.
+	 */
+	static ConnectionState getConnectionState(final CuratorZookeeperClient client) {
+		try {
+			return (ConnectionState)CONNECTION_STATE.invokeExact(client);
+		} catch(final Throwable t) {
+			throw propagate(t);
+		}
+	}
+
+	/**
+	 * Retrieves the {@link HandleHolder} of the provided {@link CuratorZookeeperClient}.
+	 * @param client The {@link CuratorZookeeperClient}.
+	 * @return The {@link HandleHolder} of the client.
+	 */
+	static HandleHolder getHandleHolder(final CuratorZookeeperClient client) {
+		try {
+			return (HandleHolder)HANDLE_HOLDER.invokeExact(client);
+		} catch(final Throwable t) {
+			throw propagate(t);
+		}
+	}
+
+	/**
+	 * Retrieves the session timeout of the provided {@link CuratorZookeeperClient}.
+	 * @param client The {@link CuratorZookeeperClient}.
+	 * @return The session timeout in milliseconds.
+	 */
+	static int getSessionTimeoutMs(final CuratorZookeeperClient client) {
+		try {
+			return (int)SESSION_TIMEOUT_MS.invokeExact(getConnectionState(client));
+		} catch(final Throwable t) {
+			throw propagate(t);
+		}
+	}
+
+	/**
+	 * Retrieves the {@link EnsembleProvider} of the provided {@link CuratorZookeeperClient}.
+	 * @param client The {@link CuratorZookeeperClient}.
+	 * @return The {@link EnsembleProvider} of the client.
+	 */
+	static EnsembleProvider getEnsembleProvider(final CuratorZookeeperClient client) {
+		try {
+			return (EnsembleProvider)ENSEMBLE_PROVIDER.invokeExact(getConnectionState(client));
+		} catch(final Throwable t) {
+			throw propagate(t);
+		}
+	}
+
+	/**
+	 * Retrieves the default {@link Watcher} of the provided {@link CuratorZookeeperClient}.
+	 * @param client The {@link CuratorZookeeperClient}.
+	 * @return The default {@link Watcher} of the client or {@code null} if none is registered.
+	 */
+	@SuppressWarnings("unchecked")
+	static Watcher getWatcher(final CuratorZookeeperClient client) {
+		try {
+			return ((Queue<Watcher>)PARENT_WATCHERS.invokeExact(getConnectionState(client))).peek();
+		} catch(final Throwable t) {
+			throw propagate(t);
+		}
+	}
+
+	/**
+	 * Retrieves the {@link ZookeeperFactory} of the provided {@link CuratorZookeeperClient}.
+	 * @param client The {@link CuratorZookeeperClient}.
+	 * @return The {@link ZookeeperFactory} of the client.
+	 */
+	static ZookeeperFactory getZookeeperFactory(final CuratorZookeeperClient client) {
+		try {
+			return (ZookeeperFactory)ZOOKEEPER_FACTORY.invokeExact(getHandleHolder(client));
+		} catch(final Throwable t) {
+			throw propagate(t);
+		}
+	}
+
+	/**
+	 * Retrieves the read only flag of the provided {@link CuratorZookeeperClient}.
+	 * @param client The {@link CuratorZookeeperClient}.
+	 * @return The read only flag of the client.
+	 */
+	static boolean getCanBeReadOnly(final CuratorZookeeperClient client) {
+		try {
+			return (boolean)CAN_BE_READ_ONLY.invokeExact(getHandleHolder(client));
+		} catch(final Throwable t) {
+			throw propagate(t);
+		}
+	}
+
+	/**
+	 * Resolves a getter {@link MethodHandle} for the named declared field of the provided class.
+	 * @param type The class that declares the field.
+	 * @param name The name of the field.
+	 * @return A {@link MethodHandle} that reads the field.
+	 * @throws IllegalStateException if the field cannot be resolved.
+	 */
+	private static MethodHandle getter(final Class<?> type, final String name) {
+		try {
+			final Field field = type.getDeclaredField(name);
+			field.setAccessible(true);
+			return MethodHandles.lookup().unreflectGetter(field);
+		} catch(final NoSuchFieldException | IllegalAccessException | SecurityException e) {
+			throw new IllegalStateException("Unable to resolve " + type.getName() + "." + name + ".  The installed version of Curator is not supported by the New Relic instrumentation.", e);
+		}
+	}
+
+	/**
+	 * Rethrows the provided {@link Throwable} raised by a {@link MethodHandle} invocation.
+	 * @param t The {@link Throwable} to rethrow.
+	 * @return Never returns normally; declared so that callers can {@code throw} the result.
+	 */
+	private static RuntimeException propagate(final Throwable t) {
+		if(t instanceof RuntimeException) {
+			throw (RuntimeException)t;
+		} else if(t instanceof Error) {
+			throw (Error)t;
+		}
+		throw new IllegalStateException(t);
+	}
+}
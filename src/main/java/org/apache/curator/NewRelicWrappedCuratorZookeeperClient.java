@@ -15,14 +15,19 @@
  */
 package org.apache.curator;
 
-import java.lang.reflect.Field;
-import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.curator.drivers.TracerDriver;
 import org.apache.curator.ensemble.EnsembleProvider;
+import org.apache.curator.ensemble.fixed.FixedEnsembleProvider;
+import org.apache.curator.newrelic.utils.NewRelicZookeeperFactory;
+import org.apache.curator.utils.DefaultZookeeperFactory;
 import org.apache.curator.utils.ZookeeperFactory;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.newrelic.NewRelicWrappedZookeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.newrelic.api.agent.Trace;
 
@@ -30,7 +35,14 @@ import com.newrelic.api.agent.Trace;
  * Wrapped version of the {@link CuratorZookeeperClient} that produces a
  * wrapped version of the underlying {@link ZooKeeper} instance.  The
  * {@link ZooKeeper} instance is instrumented to take part in <a href="http://newrelic.com">New Relic</a>
- * transaction traces.
+ * transaction traces.  The handles are instrumented by a {@link NewRelicZookeeperFactory} when they are
+ * created, so that each session uses exactly one connection.  Handles created by any other
+ * {@link ZookeeperFactory} cannot be instrumented without opening a second connection and are
+ * therefore returned as-is, in which case a warning is logged.
+ * <p>
+ * When created from a delegate {@link CuratorZookeeperClient}, this client forwards to the
+ * delegate rather than opening a connection of its own, so that the delegate (and any
+ * {@link org.apache.curator.framework.CuratorFramework} that owns it) keeps working.
  *
  * @author Jonathan Pearlin
  * @since 1.0.0
@@ -39,21 +51,36 @@ import com.newrelic.api.agent.Trace;
  */
 public class NewRelicWrappedCuratorZookeeperClient extends CuratorZookeeperClient {
 
+	/**
+	 * Logger for handles that are not instrumented.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(NewRelicWrappedCuratorZookeeperClient.class);
+
+	/**
+	 * Whether or not a warning has been logged for a handle that is not instrumented.
+	 */
+	private final AtomicBoolean warned = new AtomicBoolean();
+
+	/**
+	 * The delegate {@link CuratorZookeeperClient} that owns the connection, or {@code null}
+	 * if this client owns its own connection.
+	 */
+	private final CuratorZookeeperClient delegate;
+
 	/**
 	 * Constructs a new, wrapped {@link CuratorZookeeperClient} that takes part
-	 * in <a href="http://newrelic.com">New Relic</a> transaction traces.
+	 * in <a href="http://newrelic.com">New Relic</a> transaction traces.  The
+	 * wrapped client shares the delegate's connection:  it never opens a connection
+	 * of its own, and closing it leaves the delegate open.
 	 * @param delegate The delegate {@link CuratorZookeeperClient} from which this
 	 * 	wrapped version will be created.
-	 * @throws NoSuchFieldException if unable to clone data from the delegate.
-	 * @throws SecurityException if unable to clone data from the delegate.
-	 * @throws IllegalArgumentException if unable to clone data from the delegate.
-	 * @throws IllegalAccessException if unable to clone data from the delegate.
+	 * @throws ExceptionInInitializerError if the Curator internals required to clone
+	 * 	the delegate cannot be resolved.
 	 */
-	public NewRelicWrappedCuratorZookeeperClient(final CuratorZookeeperClient delegate) throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
-		super(getZookeeperFactoryFromDelegate(delegate), getEnsembleProviderFromDelegate(delegate), getSessionTimeoutMsFromDelegate(delegate),
-				delegate.getConnectionTimeoutMs(), getWatcherFromDelegate(delegate), delegate.getRetryPolicy(), getCanBeReadOnlyFromDelegate(delegate));
-		// Close the delegate so that we don't have duplicate open connections.
-		delegate.close();
+	public NewRelicWrappedCuratorZookeeperClient(final CuratorZookeeperClient delegate) {
+		super(CuratorInternals.getZookeeperFactory(delegate), CuratorInternals.getEnsembleProvider(delegate), CuratorInternals.getSessionTimeoutMs(delegate),
+				delegate.getConnectionTimeoutMs(), CuratorInternals.getWatcher(delegate), delegate.getRetryPolicy(), CuratorInternals.getCanBeReadOnly(delegate));
+		this.delegate = delegate;
 	}
 
 	/**
@@ -65,9 +92,10 @@ public class NewRelicWrappedCuratorZookeeperClient extends CuratorZookeeperClien
 	 * @param watcher Default {@link Watcher} or {@code null}.
 	 * @param retryPolicy The {@link RetryPolicy}.
 	 * @see CuratorZookeeperClient#CuratorZookeeperClient(EnsembleProvider, int, int, Watcher, RetryPolicy)
+	 * @see NewRelicZookeeperFactory
 	 */
 	public NewRelicWrappedCuratorZookeeperClient(final EnsembleProvider ensembleProvider, final int sessionTimeoutMs, final int connectionTimeoutMs, final Watcher watcher, final RetryPolicy retryPolicy) {
-		super(ensembleProvider, sessionTimeoutMs, connectionTimeoutMs, watcher, retryPolicy);
+		this(new NewRelicZookeeperFactory(), ensembleProvider, sessionTimeoutMs, connectionTimeoutMs, watcher, retryPolicy, false);
 	}
 
 	/**
@@ -79,9 +107,10 @@ public class NewRelicWrappedCuratorZookeeperClient extends CuratorZookeeperClien
 	 * @param watcher Default {@link Watcher} or {@code null}.
 	 * @param retryPolicy The {@link RetryPolicy}.
 	 * @see CuratorZookeeperClient#CuratorZookeeperClient(String, int, int, Watcher, RetryPolicy)
+	 * @see NewRelicZookeeperFactory
 	 */
 	public NewRelicWrappedCuratorZookeeperClient(final String connectString, final int sessionTimeoutMs, final int connectionTimeoutMs, final Watcher watcher, final RetryPolicy retryPolicy) {
-		super(connectString, sessionTimeoutMs, connectionTimeoutMs, watcher, retryPolicy);
+		this(new FixedEnsembleProvider(connectString), sessionTimeoutMs, connectionTimeoutMs, watcher, retryPolicy);
 	}
 
 	/**
@@ -95,141 +124,144 @@ public class NewRelicWrappedCuratorZookeeperClient extends CuratorZookeeperClien
 	 * @param retryPolicy The {@link RetryPolicy}.
 	 * @param canBeReadOnly {@code true} to allow the ZooKeeper client to enter read only mode in case of a network partition. See
 	 *  {@link ZooKeeper#ZooKeeper(String, int, Watcher, long, byte[], boolean)} for details.
+	 *  A {@link DefaultZookeeperFactory} is replaced by a {@link NewRelicZookeeperFactory}, while any other custom factory is used as-is.
 	 *  @see CuratorZookeeperClient#CuratorZookeeperClient(ZookeeperFactory, EnsembleProvider, int, int, Watcher, RetryPolicy, boolean)
 	 */
 	public NewRelicWrappedCuratorZookeeperClient(final ZookeeperFactory zookeeperFactory, final EnsembleProvider ensembleProvider, final int sessionTimeoutMs, final int connectionTimeoutMs, final Watcher watcher, final RetryPolicy retryPolicy, final boolean canBeReadOnly) {
-		super(zookeeperFactory, ensembleProvider, sessionTimeoutMs, connectionTimeoutMs, watcher, retryPolicy, canBeReadOnly);
+		super(zookeeperFactory == null || zookeeperFactory instanceof DefaultZookeeperFactory ? new NewRelicZookeeperFactory() : zookeeperFactory, ensembleProvider, sessionTimeoutMs, connectionTimeoutMs, watcher, retryPolicy, canBeReadOnly);
+		this.delegate = null;
 	}
 
 	@Override
 	@Trace
 	public ZooKeeper getZooKeeper() throws Exception {
-		return new NewRelicWrappedZookeeper(super.getZooKeeper(), getCurrentConnectionString());
+		// Re-attaching a wrapper to the delegate's session would disconnect the delegate's
+		// handle, which its owner is still using, so the delegate's handle is returned as-is.
+		return checkInstrumented(delegate != null ? delegate.getZooKeeper() : super.getZooKeeper());
 	}
 
-	/**
-	 * Retrieves the session timeout from the delegate {@link CuratorZookeeperClient} using
-	 * reflection.  This is because the fields that need to be cloned are not accessible outside
-	 * of the {@link CuratorZookeeperClient} instance.
-	 * @param delegate The delegate {@link CuratorZookeeperClient} that is being cloned.
-	 * @return The session timeout value extracted from the {@link CuratorZookeeperClient}.
-	 * @throws NoSuchFieldException if unable to extract the session timeout from the delegate.
-	 * @throws SecurityException if unable to extract the session timeout from the delegate.
-	 * @throws IllegalArgumentException if unable to extract the session timeout from the delegate.
-	 * @throws IllegalAccessException if unable to extract the session timeout from the delegate.
-	 */
-	private static int getSessionTimeoutMsFromDelegate(final CuratorZookeeperClient delegate) throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
-		final ConnectionState state = getConnectionStateFromDelegate(delegate);
-		final Field sessionTimeoutMs = ConnectionState.class.getDeclaredField("sessionTimeoutMs");
-		sessionTimeoutMs.setAccessible(true);
-		return (int)sessionTimeoutMs.get(state);
+	@Override
+	public RetryLoop newRetryLoop() {
+		return delegate != null ? delegate.newRetryLoop() : super.newRetryLoop();
 	}
 
-	/**
-	 * Retrieves the {@link EnsembleProvider} from the delegate {@link CuratorZookeeperClient} using
-	 * reflection.  This is because the fields that need to be cloned are not accessible outside of
-	 * the {@link CuratorZookeeperClient} instance.
-	 * @param delegate The delegate {@link CuratorZookeeperClient} that is being cloned.
-	 * @return The {@link EnsembleProvider} extracted from the {@link CuratorZookeeperClient}.
-	 * @throws NoSuchFieldException if unable to extract the ensemble provider from the delegate.
-	 * @throws SecurityException if unable to extract the ensemble provider from the delegate.
-	 * @throws IllegalArgumentException if unable to extract the ensemble provider from the delegate.
-	 * @throws IllegalAccessException if unable to extract the ensemble provider from the delegate.
-	 */
-	private static EnsembleProvider getEnsembleProviderFromDelegate(final CuratorZookeeperClient delegate) throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
-		final ConnectionState state = getConnectionStateFromDelegate(delegate);
-		final Field ensembleProvider = ConnectionState.class.getDeclaredField("ensembleProvider");
-		ensembleProvider.setAccessible(true);
-		return (EnsembleProvider)ensembleProvider.get(state);
+	@Override
+	public SessionFailRetryLoop newSessionFailRetryLoop(final SessionFailRetryLoop.Mode mode) {
+		return delegate != null ? delegate.newSessionFailRetryLoop(mode) : super.newSessionFailRetryLoop(mode);
 	}
 
-	/**
-	 * Retrieves the {@link Watcher} from the delegate {@link CuratorZookeeperClient} using
-	 * reflection.  This is because the fields that need to be cloned are not accessible outside
-	 * of the {@link CuratorZookeeperClient} instance.
-	 * @param delegate The delegate {@link CuratorZookeeperClient} that is being cloned.
-	 * @return The {@link Watcher} extracted from the {@link CuratorZookeeperClient}.
-	 * @throws NoSuchFieldException if unable to extract the watcher from the delegate.
-	 * @throws SecurityException if unable to extract the watcher from the delegate.
-	 * @throws IllegalArgumentException if unable to extract the watcher from the delegate.
-	 * @throws IllegalAccessException if unable to extract the watcher from the delegate.
-	 */
-	@SuppressWarnings("unchecked")
-	private static Watcher getWatcherFromDelegate(final CuratorZookeeperClient delegate) throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
-		final ConnectionState state = getConnectionStateFromDelegate(delegate);
-		final Field parentWatchers = ConnectionState.class.getDeclaredField("parentWatchers");
-		parentWatchers.setAccessible(true);
-		return ((Queue<Watcher>)parentWatchers.get(state)).peek();
+	@Override
+	public boolean isConnected() {
+		return delegate != null ? delegate.isConnected() : super.isConnected();
 	}
 
-	/**
-	 * Retrieves the {@link ZookeeperFactory} from the delegate {@link CuratorZookeeperClient} using
-	 * reflection.  This is because the fields that need to be cloned are not accessible outside of
-	 * the {@link CuratorZookeeperClient} instance.
-	 * @param delegate The delegate {@link CuratorZookeeperClient} that is being cloned.
-	 * @return The {@link ZookeeperFactory} extracted from the {@link CuratorZookeeperClient}.
-	 * @throws NoSuchFieldException if unable to extract the ZooKeeper factory from the delegate.
-	 * @throws SecurityException if unable to extract the ZooKeeper factory from the delegate.
-	 * @throws IllegalArgumentException if unable to extract the ZooKeeper factory from the delegate.
-	 * @throws IllegalAccessException if unable to extract the ZooKeeper factory from the delegate.
-	 */
-	private static ZookeeperFactory getZookeeperFactoryFromDelegate(final CuratorZookeeperClient delegate) throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
-		final HandleHolder holder = getHandleHolderFromDelegate(delegate);
-		final Field zookeeperFactory = HandleHolder.class.getDeclaredField("zookeeperFactory");
-		zookeeperFactory.setAccessible(true);
-		return (ZookeeperFactory)zookeeperFactory.get(holder);
+	@Override
+	public boolean blockUntilConnectedOrTimedOut() throws InterruptedException {
+		return delegate != null ? delegate.blockUntilConnectedOrTimedOut() : super.blockUntilConnectedOrTimedOut();
 	}
 
-	/**
-	 * Retrieves the read only status from the delegate {@link CuratorZookeeperClient} using
-	 * reflection.  This is because the fields that need to be cloned are not accessible outside of
-	 * the {@link CuratorZookeeperClient} instance.
-	 * @param delegate The delegate {@link CuratorZookeeperClient} that is being cloned.
-	 * @return The read only status flag extracted from the {@link CuratorZookeeperClient}.
-	 * @throws NoSuchFieldException if unable to extract the read only flag from the delegate.
-	 * @throws SecurityException if unable to extract the read only flag from the delegate.
-	 * @throws IllegalArgumentException if unable to extract the read only flag from the delegate.
-	 * @throws IllegalAccessException if unable to extract the read only flag from the delegate.
-	 */
-	private static boolean getCanBeReadOnlyFromDelegate(final CuratorZookeeperClient delegate) throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
-		final HandleHolder holder = getHandleHolderFromDelegate(delegate);
-		final Field canBeReadOnly = HandleHolder.class.getDeclaredField("canBeReadOnly");
-		canBeReadOnly.setAccessible(true);
-		return (Boolean)canBeReadOnly.get(holder);
+	@Override
+	public void start() throws Exception {
+		if(delegate != null) {
+			delegate.start();
+		} else {
+			super.start();
+		}
 	}
 
-	/**
-	 * Retrieves the {@link ConnectionState} instance from the delegate {@link CuratorZookeeperClient} using
-	 * reflection.  This is because the fields that need to be cloned are not accessible outside of the
-	 * {@link CuratorZookeeperClient} instance.
-	 * @param delegate The delegate {@link CuratorZookeeperClient} that is being cloned.
-	 * @return The {@link ConnectionState} instance extracted from the {@link CuratorZookeeperClient}.
-	 * @throws NoSuchFieldException if unable to extract the connection state from the delegate.
-	 * @throws SecurityException if unable to extract the connection state from the delegate.
-	 * @throws IllegalArgumentException if unable to extract the connection state from the delegate.
-	 * @throws IllegalAccessException if unable to extract the connection state from the delegate.
-	 */
-	private static ConnectionState getConnectionStateFromDelegate(final CuratorZookeeperClient delegate) throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
-		final Field state = CuratorZookeeperClient.class.getDeclaredField("state");
-		state.setAccessible(true);
-		return (ConnectionState)state.get(delegate);
+	@Override
+	public void close() {
+		// The connection and the ensemble provider of a delegate belong to its owner, which closes them.
+		if(delegate == null) {
+			super.close();
+		}
+	}
+
+	@Override
+	public void setRetryPolicy(final RetryPolicy policy) {
+		if(delegate != null) {
+			delegate.setRetryPolicy(policy);
+		} else {
+			super.setRetryPolicy(policy);
+		}
+	}
+
+	@Override
+	public RetryPolicy getRetryPolicy() {
+		return delegate != null ? delegate.getRetryPolicy() : super.getRetryPolicy();
+	}
+
+	@Override
+	public TimeTrace startTracer(final String name) {
+		return delegate != null ? delegate.startTracer(name) : super.startTracer(name);
+	}
+
+	@Override
+	public TracerDriver getTracerDriver() {
+		return delegate != null ? delegate.getTracerDriver() : super.getTracerDriver();
+	}
+
+	@Override
+	public void setTracerDriver(final TracerDriver tracer) {
+		if(delegate != null) {
+			delegate.setTracerDriver(tracer);
+		} else {
+			super.setTracerDriver(tracer);
+		}
+	}
+
+	@Override
+	public String getCurrentConnectionString() {
+		return delegate != null ? delegate.getCurrentConnectionString() : super.getCurrentConnectionString();
+	}
+
+	@Override
+	public int getConnectionTimeoutMs() {
+		return delegate != null ? delegate.getConnectionTimeoutMs() : super.getConnectionTimeoutMs();
+	}
+
+	@Override
+	public long getInstanceIndex() {
+		return delegate != null ? delegate.getInstanceIndex() : super.getInstanceIndex();
+	}
+
+	@Override
+	void addParentWatcher(final Watcher watcher) {
+		if(delegate != null) {
+			delegate.addParentWatcher(watcher);
+		} else {
+			super.addParentWatcher(watcher);
+		}
+	}
+
+	@Override
+	void removeParentWatcher(final Watcher watcher) {
+		if(delegate != null) {
+			delegate.removeParentWatcher(watcher);
+		} else {
+			super.removeParentWatcher(watcher);
+		}
+	}
+
+	@Override
+	void internalBlockUntilConnectedOrTimedOut() throws InterruptedException {
+		if(delegate != null) {
+			delegate.internalBlockUntilConnectedOrTimedOut();
+		} else {
+			super.internalBlockUntilConnectedOrTimedOut();
+		}
 	}
 
 	/**
-	 * Retrieves the {@link HandleHolder} from the delegate {@link CuratorZookeeperClient} using
-	 * reflection.  This is because the fields that need to be cloned are not accessible outside of the
-	 * {@link CuratorZookeeperClient} instance.
-	 * @param delegate The delegate {@link CuratorZookeeperClient} that is being cloned.
-	 * @return The {@link HandleHolder} instance extracted from the {@link CuratorZookeeperClient}.
-	 * @throws NoSuchFieldException if unable to extract the handle holder from the delegate.
-	 * @throws SecurityException if unable to extract the handle holder from the delegate.
-	 * @throws IllegalArgumentException if unable to extract the handle holder from the delegate.
-	 * @throws IllegalAccessException if unable to extract the handle holder from the delegate.
+	 * Logs a warning, once per client, if the provided handle is not instrumented.
+	 * @param zooKeeper The {@link ZooKeeper} handle.
+	 * @return The provided handle.
 	 */
-	private static HandleHolder getHandleHolderFromDelegate(final CuratorZookeeperClient delegate) throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
-		final ConnectionState state = getConnectionStateFromDelegate(delegate);
-		final Field zooKeeper = ConnectionState.class.getDeclaredField("zooKeeper");
-		zooKeeper.setAccessible(true);
-		return (HandleHolder)zooKeeper.get(state);
+	private ZooKeeper checkInstrumented(final ZooKeeper zooKeeper) {
+		if(zooKeeper != null && !(zooKeeper instanceof NewRelicWrappedZookeeper) && warned.compareAndSet(false, true)) {
+			logger.warn("The ZooKeeper handles of the client ({}) are not instrumented.  Create them with a {} to instrument them.",
+					zooKeeper.getClass().getName(), NewRelicZookeeperFactory.class.getSimpleName());
+		}
+		return zooKeeper;
 	}
 }
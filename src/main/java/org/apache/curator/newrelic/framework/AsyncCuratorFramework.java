@@ -0,0 +1,353 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.newrelic.framework.imps.NewRelicWrappedCuratorFrameworkImpl;
+import org.apache.curator.newrelic.metrics.Operation;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.data.Stat;
+
+import com.newrelic.api.agent.Trace;
+
+/**
+ * Asynchronous facade of a {@link CuratorFramework} whose operations return {@link CompletionStage} values.  Each
+ * operation is submitted in the background through the client, so that the submission is traced as part of the
+ * caller's <a href="http://newrelic.com">New Relic</a> transaction and the latency of the operation is recorded
+ * when the client was created by the {@link NewRelicClientFrameworkFactory}.  The returned stages are completed
+ * directly on the ZooKeeper event thread, or on the executor provided to the facade so that dependent stages
+ * never block the event thread.  A stage fails with the {@link KeeperException} that matches the result code of
+ * a failed operation.
+ * <p>
+ * The version of the New Relic API in use has no means of linking work on another thread to the caller's
+ * transaction, so completions are instead traced as transactions of their own.  A client created by the
+ * {@link NewRelicClientFrameworkFactory} already traces each completion as a transaction named after the
+ * callback, according to the sampler of its {@link InstrumentationPolicy}, so the facade delivers the result
+ * within that transaction rather than opening another.  The completions of any other client are traced as
+ * transactions named after the operation.  Stages that depend on a completed stage without an executor of
+ * their own run within the transaction of the completion, unless the stage is completed on the executor
+ * provided to the facade.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see CuratorFramework
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public final class AsyncCuratorFramework {
+
+	/**
+	 * The client that executes the operations.
+	 */
+	private final CuratorFramework client;
+
+	/**
+	 * The executor that completes the stages, or {@code null} to complete them on the ZooKeeper event thread.
+	 */
+	private final Executor executor;
+
+	/**
+	 * Whether or not the facade traces completions, which is the case unless the client already traces its callbacks.
+	 */
+	private final boolean traceCompletions;
+
+	/**
+	 * Creates a new {@code AsyncCuratorFramework} whose stages are completed on the ZooKeeper event thread.
+	 * @param client The client that executes the operations.
+	 * @throws IllegalArgumentException if the client is {@code null}.
+	 */
+	public AsyncCuratorFramework(final CuratorFramework client) {
+		this(client, null);
+	}
+
+	/**
+	 * Creates a new {@code AsyncCuratorFramework}.
+	 * @param client The client that executes the operations.
+	 * @param executor The executor that completes the stages, or {@code null} to complete them on the ZooKeeper event thread.
+	 * @throws IllegalArgumentException if the client is {@code null}.
+	 */
+	public AsyncCuratorFramework(final CuratorFramework client, final Executor executor) {
+		if(client == null) {
+			throw new IllegalArgumentException("Curator framework may not be null.");
+		}
+		this.client = client;
+		this.executor = executor;
+		this.traceCompletions = !(client instanceof NewRelicWrappedCuratorFrameworkImpl);
+	}
+
+	/**
+	 * Reads the data of a node.
+	 * @param path The path of the node.
+	 * @return A stage completed with the data of the node.
+	 */
+	public CompletionStage<byte[]> getData(final String path) {
+		final Completion<byte[]> completion = new Completion<byte[]>(Operation.GET_DATA, path, CuratorEvent::getData);
+		return completion.submit(() -> client.getData().inBackground(completion).forPath(path));
+	}
+
+	/**
+	 * Sets the data of a node.
+	 * @param path The path of the node.
+	 * @param data The data.
+	 * @return A stage completed with the {@link Stat} of the node.
+	 */
+	public CompletionStage<Stat> setData(final String path, final byte[] data) {
+		return setData(path, data, -1);
+	}
+
+	/**
+	 * Sets the data of a node if it has the provided version.
+	 * @param path The path of the node.
+	 * @param data The data.
+	 * @param version The expected version of the node, or {@code -1} to match any version.
+	 * @return A stage completed with the {@link Stat} of the node.
+	 */
+	public CompletionStage<Stat> setData(final String path, final byte[] data, final int version) {
+		final Completion<Stat> completion = new Completion<Stat>(Operation.SET_DATA, path, CuratorEvent::getStat);
+		return completion.submit(() -> client.setData().withVersion(version).inBackground(completion).forPath(path, data));
+	}
+
+	/**
+	 * Creates a persistent node.
+	 * @param path The path of the node.
+	 * @param data The data of the node.
+	 * @return A stage completed with the path of the created node.
+	 */
+	public CompletionStage<String> create(final String path, final byte[] data) {
+		return create(path, data, CreateMode.PERSISTENT);
+	}
+
+	/**
+	 * Creates a node.
+	 * @param path The path of the node.
+	 * @param data The data of the node.
+	 * @param mode The {@link CreateMode} of the node.
+	 * @return A stage completed with the path of the created node.
+	 */
+	public CompletionStage<String> create(final String path, final byte[] data, final CreateMode mode) {
+		final Completion<String> completion = new Completion<String>(Operation.CREATE, path, CuratorEvent::getName);
+		return completion.submit(() -> client.create().withMode(mode).inBackground(completion).forPath(path, data));
+	}
+
+	/**
+	 * Deletes a node.
+	 * @param path The path of the node.
+	 * @return A stage completed once the node is deleted.
+	 */
+	public CompletionStage<Void> delete(final String path) {
+		return delete(path, -1);
+	}
+
+	/**
+	 * Deletes a node if it has the provided version.
+	 * @param path The path of the node.
+	 * @param version The expected version of the node, or {@code -1} to match any version.
+	 * @return A stage completed once the node is deleted.
+	 */
+	public CompletionStage<Void> delete(final String path, final int version) {
+		final Completion<Void> completion = new Completion<Void>(Operation.DELETE, path, event -> null);
+		return completion.submit(() -> client.delete().withVersion(version).inBackground(completion).forPath(path));
+	}
+
+	/**
+	 * Checks whether or not a node exists.
+	 * @param path The path of the node.
+	 * @return A stage completed with the {@link Stat} of the node, or with {@code null} if the node does not exist.
+	 */
+	public CompletionStage<Stat> exists(final String path) {
+		final Completion<Stat> completion = new Completion<Stat>(Operation.EXISTS, path, CuratorEvent::getStat);
+		return completion.submit(() -> client.checkExists().inBackground(completion).forPath(path));
+	}
+
+	/**
+	 * Lists the children of a node.
+	 * @param path The path of the node.
+	 * @return A stage completed with the names of the children of the node.
+	 */
+	public CompletionStage<List<String>> getChildren(final String path) {
+		final Completion<List<String>> completion = new Completion<List<String>>(Operation.GET_CHILDREN, path, CuratorEvent::getChildren);
+		return completion.submit(() -> client.getChildren().inBackground(completion).forPath(path));
+	}
+
+	/**
+	 * Submits an operation in the background.
+	 */
+	@FunctionalInterface
+	private interface Submission {
+
+		/**
+		 * Submits the operation.
+		 * @throws Exception if the operation cannot be submitted.
+		 */
+		void submit() throws Exception;
+	}
+
+	/**
+	 * {@link BackgroundCallback} that completes the stage of an operation with its result.
+	 * @param <T> The type of the result.
+	 */
+	private final class Completion<T> implements BackgroundCallback {
+
+		/**
+		 * The operation.
+		 */
+		private final Operation operation;
+
+		/**
+		 * The path of the operation.
+		 */
+		private final String path;
+
+		/**
+		 * Extracts the result from the event of a successful operation.
+		 */
+		private final Function<CuratorEvent, T> result;
+
+		/**
+		 * The stage of the operation.
+		 */
+		private final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		/**
+		 * Creates a new {@code Completion}.
+		 * @param operation The operation.
+		 * @param path The path of the operation.
+		 * @param result Extracts the result from the event of a successful operation.
+		 */
+		Completion(final Operation operation, final String path, final Function<CuratorEvent, T> result) {
+			this.operation = operation;
+			this.path = path;
+			this.result = result;
+		}
+
+		/**
+		 * Submits the operation, failing the stage if it cannot be submitted.
+		 * @param submission Submits the operation.
+		 * @return The stage of the operation.
+		 */
+		CompletionStage<T> submit(final Submission submission) {
+			try {
+				submission.submit();
+			} catch(final Exception e) {
+				future.completeExceptionally(e);
+			}
+			return future;
+		}
+
+		@Override
+		public void processResult(final CuratorFramework client, final CuratorEvent event) {
+			final Code code = Code.get(event.getResultCode());
+			if(executor == null) {
+				complete(code, event);
+			} else {
+				try {
+					executor.execute(() -> complete(code, event));
+				} catch(final RejectedExecutionException e) {
+					complete(code, event);
+				}
+			}
+		}
+
+		/**
+		 * Completes the stage, within a transaction named after the operation unless the client already
+		 * traces the callback.
+		 * @param code The result code of the operation.
+		 * @param event The event of the operation.
+		 */
+		private void complete(final Code code, final CuratorEvent event) {
+			if(!traceCompletions) {
+				deliver(code, event);
+				return;
+			}
+			switch(operation) {
+				case CREATE:
+					traceCreate(code, event);
+					break;
+				case DELETE:
+					traceDelete(code, event);
+					break;
+				case EXISTS:
+					traceExists(code, event);
+					break;
+				case GET_DATA:
+					traceGetData(code, event);
+					break;
+				case SET_DATA:
+					traceSetData(code, event);
+					break;
+				default:
+					traceGetChildren(code, event);
+					break;
+			}
+		}
+
+		@Trace(dispatcher=true, metricName="Curator/Async/create")
+		private void traceCreate(final Code code, final CuratorEvent event) {
+			deliver(code, event);
+		}
+
+		@Trace(dispatcher=true, metricName="Curator/Async/delete")
+		private void traceDelete(final Code code, final CuratorEvent event) {
+			deliver(code, event);
+		}
+
+		@Trace(dispatcher=true, metricName="Curator/Async/exists")
+		private void traceExists(final Code code, final CuratorEvent event) {
+			deliver(code, event);
+		}
+
+		@Trace(dispatcher=true, metricName="Curator/Async/getData")
+		private void traceGetData(final Code code, final CuratorEvent event) {
+			deliver(code, event);
+		}
+
+		@Trace(dispatcher=true, metricName="Curator/Async/setData")
+		private void traceSetData(final Code code, final CuratorEvent event) {
+			deliver(code, event);
+		}
+
+		@Trace(dispatcher=true, metricName="Curator/Async/getChildren")
+		private void traceGetChildren(final Code code, final CuratorEvent event) {
+			deliver(code, event);
+		}
+
+		/**
+		 * Completes the stage with the result of the operation, or with the {@link KeeperException} that matches
+		 * its result code.  A node that does not exist is the expected result of {@link Operation#EXISTS}.
+		 * @param code The result code of the operation.
+		 * @param event The event of the operation.
+		 */
+		private void deliver(final Code code, final CuratorEvent event) {
+			if(code == Code.OK) {
+				future.complete(result.apply(event));
+			} else if(code == Code.NONODE && operation == Operation.EXISTS) {
+				future.complete(null);
+			} else {
+				future.completeExceptionally(KeeperException.create(code, path));
+			}
+		}
+	}
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework;
+
+import java.io.Closeable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.newrelic.metrics.PayloadRecorder;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cached, sorted view of the children of a node that may have a very large number of children, such as a queue
+ * or a service discovery node.  The view holds a single sorted copy of the children, which is replaced as a whole
+ * whenever the children change, so that readers never copy it: the listings returned by {@link #getChildren()},
+ * {@link #page(String, int)} and {@link #chunks(int)} are read-only views of the copy that was current when they
+ * were requested, and remain consistent while the view is updated.
+ * <p>
+ * The view sets a child watch on the node and reads the children again in the background when the watch is
+ * triggered, or when the connection is re-established.  ZooKeeper's child watches do not describe which children
+ * changed, so each update reads the full listing once.  Listings are only published if they are not older than the
+ * current copy, so concurrent updates cannot reinstate stale children:  a listing of a node that was created later,
+ * as identified by its creation transaction id, always replaces the current copy, while listings of the same node
+ * are ordered by its child version.  A node that is deleted and created again is therefore listed from scratch.
+ * The size and child count of each listing are recorded with the {@link PayloadRecorder} when the framework is
+ * instrumented.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see PayloadRecorder
+ */
+public final class ChildrenView implements Closeable {
+
+	/**
+	 * Logger for failures to update the view.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(ChildrenView.class);
+
+	/**
+	 * Listing of a node that does not exist.
+	 */
+	private static final Listing EMPTY = new Listing(new String[0], -1L, -1);
+
+	/**
+	 * The framework through which the children are read.
+	 */
+	private final CuratorFramework framework;
+
+	/**
+	 * The path of the parent node.
+	 */
+	private final String path;
+
+	/**
+	 * The current listing.
+	 */
+	private final AtomicReference<Listing> listing = new AtomicReference<Listing>(EMPTY);
+
+	/**
+	 * Reads the children again when they change.
+	 */
+	private final Watcher watcher = new Watcher() {
+		@Override
+		public void process(final WatchedEvent event) {
+			if(event.getType() != EventType.None) {
+				refresh();
+			}
+		}
+	};
+
+	/**
+	 * Reads the children again if the node turns out to exist once the view has been emptied, as a listing of the
+	 * node may have been superseded by the stale result of an earlier read that found no node.
+	 */
+	private final BackgroundCallback existsCallback = new BackgroundCallback() {
+		@Override
+		public void processResult(final CuratorFramework client, final CuratorEvent event) {
+			if(event.getResultCode() == Code.OK.intValue()) {
+				refresh();
+			}
+		}
+	};
+
+	/**
+	 * Publishes the listings read in the background.
+	 */
+	private final BackgroundCallback callback = new BackgroundCallback() {
+		@Override
+		public void processResult(final CuratorFramework client, final CuratorEvent event) {
+			if(event.getResultCode() == Code.OK.intValue()) {
+				publish(event.getChildren(), event.getStat());
+			} else if(event.getResultCode() == Code.NONODE.intValue()) {
+				publishNoNode();
+			}
+		}
+	};
+
+	/**
+	 * Reads the children again once the connection is re-established, as the watch may have been lost with the session.
+	 */
+	private final ConnectionStateListener connectionStateListener = new ConnectionStateListener() {
+		@Override
+		public void stateChanged(final CuratorFramework client, final ConnectionState newState) {
+			if(newState == ConnectionState.RECONNECTED) {
+				refresh();
+			}
+		}
+	};
+
+	/**
+	 * Whether or not the view has been closed.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Creates a new {@code ChildrenView}.
+	 * @param framework The started framework through which the children are read (may not be {@code null}).
+	 * @param path The path of the parent node (may not be {@code null}).
+	 * @throws IllegalArgumentException if the framework or the path is {@code null}.
+	 */
+	public ChildrenView(final CuratorFramework framework, final String path) {
+		if(framework == null || path == null) {
+			throw new IllegalArgumentException("Curator framework and path may not be null.");
+		}
+		this.framework = framework;
+		this.path = path;
+	}
+
+	/**
+	 * Reads the children and sets the watch that keeps them up to date.  The node does not need to exist; the view
+	 * is empty until it is created.
+	 * @throws Exception if the children cannot be read.
+	 */
+	public void start() throws Exception {
+		framework.getConnectionStateListenable().addListener(connectionStateListener);
+		final Stat stat = new Stat();
+		try {
+			publish(framework.getChildren().storingStatIn(stat).usingWatcher(watcher).forPath(path), stat);
+		} catch(final KeeperException.NoNodeException e) {
+			publishNoNode();
+		}
+	}
+
+	/**
+	 * Stops updating the view.  The current children remain readable.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		framework.getConnectionStateListenable().removeListener(connectionStateListener);
+	}
+
+	/**
+	 * Returns the number of children.
+	 * @return The number of children.
+	 */
+	public int size() {
+		return listing.get().children.length;
+	}
+
+	/**
+	 * Returns whether or not the node has the provided child.
+	 * @param child The name of the child.
+	 * @return {@code true} if the node has the child.
+	 */
+	public boolean contains(final String child) {
+		return child != null && Arrays.binarySearch(listing.get().children, child) >= 0;
+	}
+
+	/**
+	 * Returns the children in ascending order.
+	 * @return A read-only view of the children.
+	 */
+	public List<String> getChildren() {
+		final String[] children = listing.get().children;
+		return new Page(children, 0, children.length);
+	}
+
+	/**
+	 * Returns a page of the children in ascending order.  Pages may be requested one after the other by passing
+	 * the last child of a page as the start of the next one, even if the children change in between.
+	 * @param after The child after which the page starts, or {@code null} to start with the first child.
+	 * @param limit The maximum number of children of the page (must be positive).
+	 * @return A read-only view of the children of the page, which is empty if there are no further children.
+	 * @throws IllegalArgumentException if the limit is not positive.
+	 */
+	public List<String> page(final String after, final int limit) {
+		if(limit < 1) {
+			throw new IllegalArgumentException("The page limit must be positive.");
+		}
+		final String[] children = listing.get().children;
+		int from = 0;
+		if(after != null) {
+			final int index = Arrays.binarySearch(children, after);
+			from = index >= 0 ? index + 1 : -index - 1;
+		}
+		return new Page(children, from, (int)Math.min(children.length, (long)from + limit));
+	}
+
+	/**
+	 * Returns the children in ascending order as consecutive chunks.  All chunks are views of the children that
+	 * were current when this method was called.
+	 * @param chunkSize The maximum number of children of each chunk (must be positive).
+	 * @return The chunks.
+	 * @throws IllegalArgumentException if the chunk size is not positive.
+	 */
+	public Iterable<List<String>> chunks(final int chunkSize) {
+		if(chunkSize < 1) {
+			throw new IllegalArgumentException("The chunk size must be positive.");
+		}
+		final String[] children = listing.get().children;
+		return new Iterable<List<String>>() {
+			@Override
+			public Iterator<List<String>> iterator() {
+				return new Iterator<List<String>>() {
+
+					private int from;
+
+					@Override
+					public boolean hasNext() {
+						return from < children.length;
+					}
+
+					@Override
+					public List<String> next() {
+						if(!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						final int to = (int)Math.min(children.length, (long)from + chunkSize);
+						final List<String> chunk = new Page(children, from, to);
+						from = to;
+						return chunk;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Reads the children in the background and sets the watch again.
+	 */
+	private void refresh() {
+		if(closed) {
+			return;
+		}
+		try {
+			framework.getChildren().usingWatcher(watcher).inBackground(callback).forPath(path);
+		} catch(final Exception e) {
+			logger.warn("Unable to read the children of {}.", path, e);
+		}
+	}
+
+	/**
+	 * Publishes a listing unless the current listing is more recent.  A listing without a {@link Stat} is always
+	 * published, and is replaced by the next listing.
+	 * @param children The children.
+	 * @param stat The {@link Stat} of the parent node at the time of the listing, or {@code null} if it is not known.
+	 */
+	private void publish(final List<String> children, final Stat stat) {
+		final String[] sorted = children.toArray(new String[children.size()]);
+		Arrays.sort(sorted);
+		final Listing update = stat == null ? new Listing(sorted, -1L, -1) : new Listing(sorted, stat.getCzxid(), stat.getCversion());
+		Listing current;
+		do {
+			current = listing.get();
+			if(update.isOlderThan(current)) {
+				return;
+			}
+		} while(!listing.compareAndSet(current, update));
+	}
+
+	/**
+	 * Empties the view because the node does not exist, and watches for its creation.  The node is read again if
+	 * it already exists, in case the read that found no node completed after a listing of the current node.
+	 */
+	private void publishNoNode() {
+		listing.set(EMPTY);
+		if(!closed) {
+			try {
+				framework.checkExists().usingWatcher(watcher).inBackground(existsCallback).forPath(path);
+			} catch(final Exception e) {
+				logger.warn("Unable to watch for the creation of {}.", path, e);
+			}
+		}
+	}
+
+	/**
+	 * Sorted children of the node along with the version of the node at which they were read.
+	 */
+	private static final class Listing {
+
+		/**
+		 * The sorted children.
+		 */
+		private final String[] children;
+
+		/**
+		 * The id of the transaction that created the node, or {@code -1} if it is not known.
+		 */
+		private final long czxid;
+
+		/**
+		 * The child version of the node, or {@code -1} if it is not known.
+		 */
+		private final int cversion;
+
+		/**
+		 * Creates a new {@code Listing}.
+		 * @param children The sorted children.
+		 * @param czxid The id of the transaction that created the node, or {@code -1} if it is not known.
+		 * @param cversion The child version of the node, or {@code -1} if it is not known.
+		 */
+		private Listing(final String[] children, final long czxid, final int cversion) {
+			this.children = children;
+			this.czxid = czxid;
+			this.cversion = cversion;
+		}
+
+		/**
+		 * Determines whether or not this listing was read before the provided listing.  Child versions are only
+		 * compared between listings of the same node, as they start again from zero when the node is created again.
+		 * @param other The other listing.
+		 * @return {@code true} if this listing is older, or {@code false} if it is as recent or if its version is not known.
+		 */
+		private boolean isOlderThan(final Listing other) {
+			if(czxid < 0) {
+				return false;
+			}
+			return czxid < other.czxid || czxid == other.czxid && cversion < other.cversion;
+		}
+	}
+
+	/**
+	 * Read-only view of a range of a sorted listing.
+	 */
+	private static final class Page extends AbstractList<String> {
+
+		/**
+		 * The sorted children.
+		 */
+		private final String[] children;
+
+		/**
+		 * The index of the first child of the page.
+		 */
+		private final int from;
+
+		/**
+		 * The index after the last child of the page.
+		 */
+		private final int to;
+
+		/**
+		 * Creates a new {@code Page}.
+		 * @param children The sorted children.
+		 * @param from The index of the first child of the page.
+		 * @param to The index after the last child of the page.
+		 */
+		private Page(final String[] children, final int from, final int to) {
+			this.children = children;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public String get(final int index) {
+			if(index < 0 || index >= to - from) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (to - from));
+			}
+			return children[from + index];
+		}
+
+		@Override
+		public int size() {
+			return to - from;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.CuratorEventType;
+import org.apache.curator.framework.api.CuratorListener;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.newrelic.metrics.ConnectionRecorder;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+
+/**
+ * Listener registered by {@link NewRelicClientFrameworkFactory} with each client that it creates in order to
+ * record the connection state transitions, outages and session expirations of the client with the
+ * {@link ConnectionRecorder}.  An outage begins with the first {@link ConnectionState#SUSPENDED} or
+ * {@link ConnectionState#LOST} and ends when the client is {@link ConnectionState#RECONNECTED},
+ * {@link ConnectionState#READ_ONLY} or closed.  Curator delivers the events of a client one at a time.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see ConnectionRecorder
+ */
+final class ConnectionMetricsListener implements ConnectionStateListener, CuratorListener {
+
+	/**
+	 * The recorder.
+	 */
+	private final ConnectionRecorder recorder;
+
+	/**
+	 * The time at which the current outage began, as reported by {@link System#nanoTime()}.
+	 */
+	private long disconnectedSince;
+
+	/**
+	 * The time at which the session was lost during the current outage, as reported by {@link System#nanoTime()}.
+	 */
+	private long lostSince;
+
+	/**
+	 * Whether or not the client is currently disconnected.
+	 */
+	private boolean disconnected;
+
+	/**
+	 * Whether or not the session was lost during the current outage.
+	 */
+	private boolean lost;
+
+	/**
+	 * Creates a new {@code ConnectionMetricsListener}.
+	 * @param recorder The recorder.
+	 */
+	ConnectionMetricsListener(final ConnectionRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	@Override
+	public synchronized void stateChanged(final CuratorFramework client, final ConnectionState newState) {
+		final long now = System.nanoTime();
+		recorder.recordStateChange(newState);
+		switch(newState) {
+			case SUSPENDED:
+				disconnect(now);
+				break;
+			case LOST:
+				disconnect(now);
+				if(!lost) {
+					lost = true;
+					lostSince = now;
+				}
+				break;
+			case CONNECTED:
+			case RECONNECTED:
+			case READ_ONLY:
+				if(lost) {
+					recorder.recordNewSession(now - lostSince);
+					lost = false;
+				}
+				if(disconnected) {
+					recorder.recordReconnect(now - disconnectedSince);
+					disconnected = false;
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	@Override
+	public synchronized void eventReceived(final CuratorFramework client, final CuratorEvent event) {
+		if(event.getType() == CuratorEventType.WATCHED && event.getWatchedEvent() != null && event.getWatchedEvent().getState() == KeeperState.Expired) {
+			recorder.recordSessionExpiration();
+		} else if(event.getType() == CuratorEventType.CLOSING && disconnected) {
+			recorder.recordReconnect(-1);
+			disconnected = false;
+			lost = false;
+		}
+	}
+
+	/**
+	 * Marks the beginning of an outage, unless one is already in progress.
+	 * @param now The current time, as reported by {@link System#nanoTime()}.
+	 */
+	private void disconnect(final long now) {
+		if(!disconnected) {
+			disconnected = true;
+			disconnectedSince = now;
+			recorder.recordDisconnect();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The methods of an instrumented {@link org.apache.curator.framework.CuratorFramework} whose
+ * {@link TraceMode} can be configured by an {@link InstrumentationPolicy}.  The default
+ * {@link TraceMode} of each method can be overridden with the {@code curator-newrelic-trace-mode.<method name>}
+ * system property (e.g. {@code -Dcurator-newrelic-trace-mode.getState=SEGMENT}).
+ * <p>
+ * By default, only the lifecycle methods start transactions and only {@code sync(String, Object)}
+ * is recorded as a segment.  Accessors are not traced, and neither are the methods that return operation
+ * builders, as the operations themselves are traced when they are executed by {@code forPath()}.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see InstrumentationPolicy
+ */
+public enum FrameworkMethod {
+
+	START("start", TraceMode.DISPATCHER),
+	CLOSE("close", TraceMode.DISPATCHER),
+	GET_STATE("getState", TraceMode.NONE),
+	IS_STARTED("isStarted", TraceMode.NONE),
+	CREATE("create", TraceMode.NONE),
+	DELETE("delete", TraceMode.NONE),
+	CHECK_EXISTS("checkExists", TraceMode.NONE),
+	GET_DATA("getData", TraceMode.NONE),
+	SET_DATA("setData", TraceMode.NONE),
+	GET_CHILDREN("getChildren", TraceMode.NONE),
+	GET_ACL("getACL", TraceMode.NONE),
+	SET_ACL("setACL", TraceMode.NONE),
+	IN_TRANSACTION("inTransaction", TraceMode.NONE),
+	SYNC("sync", TraceMode.SEGMENT),
+	SYNC_BUILDER("syncBuilder", TraceMode.NONE),
+	GET_CONNECTION_STATE_LISTENABLE("getConnectionStateListenable", TraceMode.NONE),
+	GET_CURATOR_LISTENABLE("getCuratorListenable", TraceMode.NONE),
+	GET_UNHANDLED_ERROR_LISTENABLE("getUnhandledErrorListenable", TraceMode.NONE),
+	NON_NAMESPACE_VIEW("nonNamespaceView", TraceMode.NONE),
+	USING_NAMESPACE("usingNamespace", TraceMode.NONE),
+	GET_NAMESPACE("getNamespace", TraceMode.NONE),
+	GET_ZOOKEEPER_CLIENT("getZookeeperClient", TraceMode.NONE),
+	NEW_NAMESPACE_AWARE_ENSURE_PATH("newNamespaceAwareEnsurePath", TraceMode.NONE);
+
+	/**
+	 * Prefix of the system properties that override the default {@link TraceMode} of a method.
+	 */
+	public static final String TRACE_MODE_PROPERTY_PREFIX = "curator-newrelic-trace-mode.";
+
+	/**
+	 * Logger for invalid trace mode overrides.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(FrameworkMethod.class);
+
+	/**
+	 * The invalid overrides that have already been logged, as {@code <property>=<value>}.
+	 */
+	private static final Set<String> reportedOverrides = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The name of the method.
+	 */
+	private final String methodName;
+
+	/**
+	 * The {@link TraceMode} used when none is configured.
+	 */
+	private final TraceMode defaultTraceMode;
+
+	private FrameworkMethod(final String methodName, final TraceMode defaultTraceMode) {
+		this.methodName = methodName;
+		this.defaultTraceMode = defaultTraceMode;
+	}
+
+	/**
+	 * Returns the name of the method.
+	 * @return The name of the method.
+	 */
+	public String getMethodName() {
+		return methodName;
+	}
+
+	/**
+	 * Returns the {@link TraceMode} used for this method when none is configured, taking the
+	 * {@code curator-newrelic-trace-mode.<method name>} system property into account.  A property that does not
+	 * name a {@link TraceMode} is logged once and ignored.
+	 * @return The default {@link TraceMode} of the method.
+	 */
+	public TraceMode getDefaultTraceMode() {
+		final String property = TRACE_MODE_PROPERTY_PREFIX + methodName;
+		final String override = System.getProperty(property);
+		if(override == null) {
+			return defaultTraceMode;
+		}
+		try {
+			return TraceMode.valueOf(override.trim().toUpperCase(Locale.ROOT));
+		} catch(final IllegalArgumentException e) {
+			if(reportedOverrides.add(property + '=' + override)) {
+				logger.warn("Ignoring the invalid trace mode '{}' of the {} system property; using {}.", override, property, defaultTraceMode);
+			}
+			return defaultTraceMode;
+		}
+	}
+}
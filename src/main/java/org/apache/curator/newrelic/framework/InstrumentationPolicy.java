@@ -0,0 +1,224 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.apache.curator.newrelic.metrics.TraceSampler;
+
+/**
+ * Immutable policy that determines the {@link TraceMode} of each {@link FrameworkMethod} of an
+ * instrumented {@link org.apache.curator.framework.CuratorFramework}.  Looking up the {@link TraceMode}
+ * of a method is a single array read, so the policy can be consulted on every call.  The policy also
+ * carries the {@link TraceSampler} that decides which of the ZooKeeper operations executed by the
+ * framework are traced, and whether or not the framework caches the nodes that it reads.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see FrameworkMethod
+ * @see TraceMode
+ */
+public final class InstrumentationPolicy {
+
+	/**
+	 * The {@link TraceMode} of each {@link FrameworkMethod}, indexed by ordinal.
+	 */
+	private final TraceMode[] traceModes;
+
+	/**
+	 * The {@link TraceSampler} that decides which ZooKeeper operations are traced.
+	 */
+	private final TraceSampler sampler;
+
+	/**
+	 * Maximum number of nodes held by the read-through node cache, or {@code 0} if the cache is disabled.
+	 */
+	private final int nodeCacheMaxEntries;
+
+	/**
+	 * Maximum total size in bytes of the data held by the read-through node cache.
+	 */
+	private final long nodeCacheMaxBytes;
+
+	private InstrumentationPolicy(final Map<FrameworkMethod, TraceMode> traceModes, final TraceSampler sampler, final int nodeCacheMaxEntries, final long nodeCacheMaxBytes) {
+		this.sampler = sampler;
+		this.nodeCacheMaxEntries = nodeCacheMaxEntries;
+		this.nodeCacheMaxBytes = nodeCacheMaxBytes;
+		final FrameworkMethod[] methods = FrameworkMethod.values();
+		this.traceModes = new TraceMode[methods.length];
+		for(final FrameworkMethod method : methods) {
+			final TraceMode traceMode = traceModes.get(method);
+			this.traceModes[method.ordinal()] = traceMode != null ? traceMode : method.getDefaultTraceMode();
+		}
+	}
+
+	/**
+	 * Creates a policy that uses the default {@link TraceMode} of every method.
+	 * @return The default policy.
+	 * @see FrameworkMethod#getDefaultTraceMode()
+	 */
+	public static InstrumentationPolicy defaultPolicy() {
+		return builder().build();
+	}
+
+	/**
+	 * Creates a new {@link Builder} used to configure a policy.
+	 * @return A new {@link Builder}.
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Returns the {@link TraceMode} of the provided method.
+	 * @param method The {@link FrameworkMethod}.
+	 * @return The {@link TraceMode} of the method.
+	 */
+	public TraceMode getTraceMode(final FrameworkMethod method) {
+		return traceModes[method.ordinal()];
+	}
+
+	/**
+	 * Returns the {@link TraceSampler} that decides which ZooKeeper operations, whether executed through the
+	 * builders of the framework or directly against its ZooKeeper handle, are traced.
+	 * @return The {@link TraceSampler}.
+	 */
+	public TraceSampler getSampler() {
+		return sampler;
+	}
+
+	/**
+	 * Returns the maximum number of nodes held by the read-through node cache of the framework.
+	 * @return The maximum number of nodes, or {@code 0} if the cache is disabled.
+	 * @see Builder#nodeCache(int, long)
+	 */
+	public int getNodeCacheMaxEntries() {
+		return nodeCacheMaxEntries;
+	}
+
+	/**
+	 * Returns the maximum total size of the data held by the read-through node cache of the framework.
+	 * @return The maximum size in bytes, or {@code 0} if the cache is disabled.
+	 * @see Builder#nodeCache(int, long)
+	 */
+	public long getNodeCacheMaxBytes() {
+		return nodeCacheMaxBytes;
+	}
+
+	/**
+	 * Builder of {@link InstrumentationPolicy} instances.  Methods that are not configured
+	 * use their default {@link TraceMode}.
+	 */
+	public static final class Builder {
+
+		/**
+		 * The configured {@link TraceMode} of each method.
+		 */
+		private final Map<FrameworkMethod, TraceMode> traceModes = new EnumMap<FrameworkMethod, TraceMode>(FrameworkMethod.class);
+
+		/**
+		 * The configured {@link TraceSampler}.
+		 */
+		private TraceSampler sampler = TraceSampler.always();
+
+		/**
+		 * The configured maximum number of cached nodes.
+		 */
+		private int nodeCacheMaxEntries;
+
+		/**
+		 * The configured maximum total size of the cached data.
+		 */
+		private long nodeCacheMaxBytes;
+
+		private Builder() {}
+
+		/**
+		 * Sets the {@link TraceMode} of the provided method.
+		 * @param method The {@link FrameworkMethod}.
+		 * @param traceMode The {@link TraceMode} (may not be {@code null}).
+		 * @return This builder.
+		 * @throws IllegalArgumentException if the method or trace mode is {@code null}.
+		 */
+		public Builder traceMode(final FrameworkMethod method, final TraceMode traceMode) {
+			if(method == null || traceMode == null) {
+				throw new IllegalArgumentException("Method and trace mode may not be null.");
+			}
+			traceModes.put(method, traceMode);
+			return this;
+		}
+
+		/**
+		 * Sets the {@link TraceMode} of every method.
+		 * @param traceMode The {@link TraceMode} (may not be {@code null}).
+		 * @return This builder.
+		 * @throws IllegalArgumentException if the trace mode is {@code null}.
+		 */
+		public Builder traceAll(final TraceMode traceMode) {
+			for(final FrameworkMethod method : FrameworkMethod.values()) {
+				traceMode(method, traceMode);
+			}
+			return this;
+		}
+
+		/**
+		 * Sets the {@link TraceSampler} that decides which ZooKeeper operations are traced.  By default,
+		 * every operation is traced.
+		 * @param sampler The {@link TraceSampler} (may not be {@code null}).
+		 * @return This builder.
+		 * @throws IllegalArgumentException if the sampler is {@code null}.
+		 * @see TraceSampler#oneIn(long, long)
+		 * @see TraceSampler#targetRate(double, long)
+		 */
+		public Builder sampler(final TraceSampler sampler) {
+			if(sampler == null) {
+				throw new IllegalArgumentException("Trace sampler may not be null.");
+			}
+			this.sampler = sampler;
+			return this;
+		}
+
+		/**
+		 * Enables the read-through node cache of the framework.  The data and {@link org.apache.zookeeper.data.Stat}
+		 * of the nodes read with {@code getData().forPath()} or {@code getData().storingStatIn().forPath()} are cached
+		 * and served from memory until a watch reports that the node has changed, the node is written through the
+		 * framework, or the connection is lost.  Reads that set a watch, decompress the data or execute in the
+		 * background always go to the ensemble.  Cached data is shared by every caller and must not be modified.
+		 * By default, the cache is disabled.
+		 * @param maxEntries The maximum number of cached nodes (must be positive).
+		 * @param maxBytes The maximum total size of the cached data in bytes (must be positive).
+		 * @return This builder.
+		 * @throws IllegalArgumentException if either bound is not positive.
+		 */
+		public Builder nodeCache(final int maxEntries, final long maxBytes) {
+			if(maxEntries < 1 || maxBytes < 1) {
+				throw new IllegalArgumentException("Node cache bounds must be positive.");
+			}
+			this.nodeCacheMaxEntries = maxEntries;
+			this.nodeCacheMaxBytes = maxBytes;
+			return this;
+		}
+
+		/**
+		 * Builds the {@link InstrumentationPolicy}.
+		 * @return The {@link InstrumentationPolicy}.
+		 */
+		public InstrumentationPolicy build() {
+			return new InstrumentationPolicy(traceModes, sampler, nodeCacheMaxEntries, nodeCacheMaxBytes);
+		}
+	}
+}
@@ -15,10 +15,27 @@
  */
 package org.apache.curator.newrelic.framework;
 
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.recipes.barriers.DistributedBarrier;
+import org.apache.curator.framework.recipes.leader.LeaderLatch;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
 import org.apache.curator.newrelic.framework.imps.NewRelicWrappedCuratorFrameworkImpl;
+import org.apache.curator.newrelic.framework.imps.SharedCuratorFrameworkImpl;
+import org.apache.curator.newrelic.framework.recipes.NewRelicWrappedDistributedBarrier;
+import org.apache.curator.newrelic.framework.recipes.NewRelicWrappedInterProcessMutex;
+import org.apache.curator.newrelic.framework.recipes.NewRelicWrappedLeaderLatch;
+import org.apache.curator.newrelic.metrics.ConnectionRecorder;
+import org.apache.curator.newrelic.metrics.RecipeRecorder;
+import org.apache.curator.newrelic.utils.NewRelicZookeeperFactory;
+import org.apache.curator.utils.DefaultZookeeperFactory;
+import org.apache.curator.utils.ZookeeperFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * This factory is intended to be used in place of the {@link CuratorFrameworkFactory} to create
@@ -34,6 +51,11 @@ import org.apache.curator.newrelic.framework.imps.NewRelicWrappedCuratorFramewor
  */
 public class NewRelicClientFrameworkFactory {
 
+	/**
+	 * Logger for configurations that cannot be fully instrumented.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(NewRelicClientFrameworkFactory.class);
+
 	/**
 	 * Default session timeout value in milliseconds that can be provided by the {@code curator-default-session-timeout} system property.  Defaults to 60 seconds.
 	 */
@@ -58,7 +80,8 @@ public class NewRelicClientFrameworkFactory {
 	}
 
 	/**
-	 * Creates a new client.
+	 * Creates a new client.  The underlying {@link org.apache.zookeeper.ZooKeeper} handles are created by a
+	 * {@link NewRelicZookeeperFactory} and are therefore instrumented without opening any additional connections.
 	 * @param connectString The list of servers to connect to.
 	 * @param sessionTimeoutMs The session timeout in milliseconds.
 	 * @param connectionTimeoutMs The connection timeout in milliseconds.
@@ -69,6 +92,209 @@ public class NewRelicClientFrameworkFactory {
 	 * @see <a href="http://newrelic.com">New Relic</a>
 	 */
 	public static CuratorFramework newClient(final String connectString, final int sessionTimeoutMs, final int connectionTimeoutMs, final RetryPolicy retryPolicy) {
-		return new NewRelicWrappedCuratorFrameworkImpl(CuratorFrameworkFactory.newClient(connectString, sessionTimeoutMs, connectionTimeoutMs,  retryPolicy));
+		return newClient(connectString, sessionTimeoutMs, connectionTimeoutMs, retryPolicy, InstrumentationPolicy.defaultPolicy());
+	}
+
+	/**
+	 * Creates a new client that traces its methods according to the provided {@link InstrumentationPolicy}.
+	 * The connection state transitions, outages, session expirations and retries of the client are
+	 * recorded with the {@link ConnectionRecorder}.  The ZooKeeper operations of the client, including those
+	 * executed directly against its ZooKeeper handle, are traced according to the {@link InstrumentationPolicy#getSampler() sampler}
+	 * of the policy, so that high-throughput clients can trace a sample of their operations.
+	 * @param connectString The list of servers to connect to.
+	 * @param sessionTimeoutMs The session timeout in milliseconds.
+	 * @param connectionTimeoutMs The connection timeout in milliseconds.
+	 * @param retryPolicy The {@link RetryPolicy} to use.
+	 * @param policy The {@link InstrumentationPolicy} that determines how each method of the client is traced.
+	 * @return client An implementation of the {@link CuratorFramework} interface that has been instrumented for participation in a
+	 * 	<a href="http://newrelic.com">New Relic</a> transaction trace.
+	 * @throws IllegalArgumentException if the policy is {@code null}.
+	 * @see #newClient(String, int, int, RetryPolicy)
+	 * @see <a href="http://newrelic.com">New Relic</a>
+	 */
+	public static CuratorFramework newClient(final String connectString, final int sessionTimeoutMs, final int connectionTimeoutMs, final RetryPolicy retryPolicy, final InstrumentationPolicy policy) {
+		return newClient(CuratorFrameworkFactory.builder()
+				.connectString(connectString)
+				.sessionTimeoutMs(sessionTimeoutMs)
+				.connectionTimeoutMs(connectionTimeoutMs)
+				.retryPolicy(retryPolicy), policy);
+	}
+
+	/**
+	 * Creates a new client from the provided {@link CuratorFrameworkFactory.Builder}, tracing its methods according
+	 * to the default {@link InstrumentationPolicy}.
+	 * @param builder The builder that holds the configuration of the client.
+	 * @return client An implementation of the {@link CuratorFramework} interface that has been instrumented for participation in a
+	 * 	<a href="http://newrelic.com">New Relic</a> transaction trace.
+	 * @throws IllegalArgumentException if the builder is {@code null}.
+	 * @see #newClient(CuratorFrameworkFactory.Builder, InstrumentationPolicy)
+	 * @see <a href="http://newrelic.com">New Relic</a>
+	 */
+	public static CuratorFramework newClient(final CuratorFrameworkFactory.Builder builder) {
+		return newClient(builder, InstrumentationPolicy.defaultPolicy());
+	}
+
+	/**
+	 * Creates a new client from the provided {@link CuratorFrameworkFactory.Builder}, so that any configuration
+	 * supported by the builder (namespace, {@link org.apache.curator.ensemble.EnsembleProvider}, ACL provider,
+	 * compression, read-only mode, etc.) can be instrumented.  The instrumentation is inserted into the builder
+	 * before the client is built:  its {@link ZookeeperFactory} is replaced by a {@link NewRelicZookeeperFactory},
+	 * so that the single connection of the client is instrumented from the start, and its {@link RetryPolicy} is
+	 * wrapped by a {@link NewRelicWrappedRetryPolicy}.  The builder is therefore modified by this method.
+	 * <p>
+	 * A custom {@link ZookeeperFactory} that extends {@link NewRelicZookeeperFactory} is used as-is.  Any other
+	 * custom factory is also used as-is, as the handles that it creates cannot be instrumented without opening a
+	 * second connection, in which case only the methods of the client itself are traced.
+	 * @param builder The builder that holds the configuration of the client.
+	 * @param policy The {@link InstrumentationPolicy} that determines how each method of the client is traced.
+	 * @return client An implementation of the {@link CuratorFramework} interface that has been instrumented for participation in a
+	 * 	<a href="http://newrelic.com">New Relic</a> transaction trace.
+	 * @throws IllegalArgumentException if the builder or the policy is {@code null}.
+	 * @see CuratorFrameworkFactory#builder()
+	 * @see <a href="http://newrelic.com">New Relic</a>
+	 */
+	public static CuratorFramework newClient(final CuratorFrameworkFactory.Builder builder, final InstrumentationPolicy policy) {
+		if(builder == null) {
+			throw new IllegalArgumentException("Builder may not be null.");
+		}
+		if(policy == null) {
+			throw new IllegalArgumentException("Instrumentation policy may not be null.");
+		}
+		return new NewRelicWrappedCuratorFrameworkImpl(build(builder, policy), policy);
+	}
+
+	/**
+	 * Creates a new client that shares one ZooKeeper session with the other shared clients of the same connect string,
+	 * using the default session timeout, default connection timeout and default {@link InstrumentationPolicy}.
+	 * @param connectString The list of servers to connect to.
+	 * @param namespace The namespace of the client or {@code null} for no namespace.
+	 * @param retryPolicy The {@link RetryPolicy} to use.
+	 * @return client An implementation of the {@link CuratorFramework} interface that has been instrumented for participation in a
+	 * 	<a href="http://newrelic.com">New Relic</a> transaction trace.
+	 * @see #newSharedClient(String, String, int, int, RetryPolicy, InstrumentationPolicy)
+	 */
+	public static CuratorFramework newSharedClient(final String connectString, final String namespace, final RetryPolicy retryPolicy) {
+		return newSharedClient(connectString, namespace, DEFAULT_SESSION_TIMEOUT_MS, DEFAULT_CONNECTION_TIMEOUT_MS, retryPolicy, InstrumentationPolicy.defaultPolicy());
+	}
+
+	/**
+	 * Creates a new client that shares one ZooKeeper session with the other shared clients of the same connect string,
+	 * so that many logical clients in one process do not each open a connection with its own threads.  The client
+	 * acquires the shared session when it is started.  The shared session is instrumented once and is closed when the
+	 * last of its clients is closed.  Each client has its own
+	 * namespace, its own lifecycle and its own listeners, and its operations are traced according to its own
+	 * {@link InstrumentationPolicy}.  The timeouts and {@link RetryPolicy} of the client that opens the session apply
+	 * to every client of the session.
+	 * @param connectString The list of servers to connect to.
+	 * @param namespace The namespace of the client or {@code null} for no namespace.
+	 * @param sessionTimeoutMs The session timeout in milliseconds.
+	 * @param connectionTimeoutMs The connection timeout in milliseconds.
+	 * @param retryPolicy The {@link RetryPolicy} to use.
+	 * @param policy The {@link InstrumentationPolicy} that determines how each method of the client is traced.
+	 * @return client An implementation of the {@link CuratorFramework} interface that has been instrumented for participation in a
+	 * 	<a href="http://newrelic.com">New Relic</a> transaction trace.
+	 * @throws IllegalArgumentException if the connect string or the policy is {@code null}, or if the namespace is invalid.
+	 * @see SharedCuratorFrameworkImpl
+	 */
+	public static CuratorFramework newSharedClient(final String connectString, final String namespace, final int sessionTimeoutMs, final int connectionTimeoutMs, final RetryPolicy retryPolicy, final InstrumentationPolicy policy) {
+		return new SharedCuratorFrameworkImpl(connectString, namespace, policy, new Supplier<CuratorFramework>() {
+			@Override
+			public CuratorFramework get() {
+				return build(CuratorFrameworkFactory.builder()
+						.connectString(connectString)
+						.sessionTimeoutMs(sessionTimeoutMs)
+						.connectionTimeoutMs(connectionTimeoutMs)
+						.retryPolicy(retryPolicy), policy);
+			}
+		});
+	}
+
+	/**
+	 * Builds the {@link CuratorFramework} of the provided builder once the instrumentation has been inserted into the builder.
+	 * A {@link NewRelicZookeeperFactory} left in the builder by a previous call is replaced when its sampler is not
+	 * that of the policy, so that a builder reused with another policy does not keep tracing with the first one.
+	 * Subclasses of {@link NewRelicZookeeperFactory} are kept as they are.
+	 * @param builder The builder that holds the configuration of the client.
+	 * @param policy The {@link InstrumentationPolicy} whose sampler traces the ZooKeeper operations of the client.
+	 * @return The instrumented, unwrapped {@link CuratorFramework}.
+	 */
+	private static CuratorFramework build(final CuratorFrameworkFactory.Builder builder, final InstrumentationPolicy policy) {
+		final RetryPolicy retryPolicy = builder.getRetryPolicy();
+		if(retryPolicy != null && !(retryPolicy instanceof NewRelicWrappedRetryPolicy)) {
+			builder.retryPolicy(new NewRelicWrappedRetryPolicy(retryPolicy));
+		}
+		final ZookeeperFactory zookeeperFactory = builder.getZookeeperFactory();
+		if(zookeeperFactory == null || zookeeperFactory instanceof DefaultZookeeperFactory
+				|| zookeeperFactory.getClass() == NewRelicZookeeperFactory.class && ((NewRelicZookeeperFactory)zookeeperFactory).getSampler() != policy.getSampler()) {
+			builder.zookeeperFactory(new NewRelicZookeeperFactory(policy.getSampler()));
+		} else if(!(zookeeperFactory instanceof NewRelicZookeeperFactory)) {
+			logger.warn("The ZooKeeper handles created by {} are not instrumented.  Extend {} to instrument them.",
+					zookeeperFactory.getClass().getName(), NewRelicZookeeperFactory.class.getSimpleName());
+		}
+		final CuratorFramework framework = builder.build();
+		final ConnectionMetricsListener listener = new ConnectionMetricsListener(ConnectionRecorder.getInstance());
+		framework.getConnectionStateListenable().addListener(listener);
+		framework.getCuratorListenable().addListener(listener);
+		return framework;
+	}
+
+	/**
+	 * Creates an asynchronous facade of the provided client whose operations return {@link java.util.concurrent.CompletionStage}
+	 * values that are completed on the ZooKeeper event thread.
+	 * @param client The client, which should have been created by this factory so that its operations are instrumented.
+	 * @return The asynchronous facade.
+	 * @see AsyncCuratorFramework
+	 */
+	public static AsyncCuratorFramework newAsyncFramework(final CuratorFramework client) {
+		return new AsyncCuratorFramework(client);
+	}
+
+	/**
+	 * Creates an asynchronous facade of the provided client whose operations return {@link java.util.concurrent.CompletionStage}
+	 * values that are completed on the provided executor, so that dependent stages never block the ZooKeeper event thread.
+	 * @param client The client, which should have been created by this factory so that its operations are instrumented.
+	 * @param executor The executor that completes the stages.
+	 * @return The asynchronous facade.
+	 * @see AsyncCuratorFramework
+	 */
+	public static AsyncCuratorFramework newAsyncFramework(final CuratorFramework client, final Executor executor) {
+		return new AsyncCuratorFramework(client, executor);
+	}
+
+	/**
+	 * Creates a new {@link InterProcessMutex} whose wait time, hold time, timeouts and queue depth are recorded
+	 * with the {@link RecipeRecorder}, and whose acquisitions and releases are traced.
+	 * @param client The client, which should have been created by this factory so that the ZooKeeper calls of the lock are instrumented as well.
+	 * @param path The path of the lock.
+	 * @return The instrumented lock.
+	 * @see NewRelicWrappedInterProcessMutex
+	 */
+	public static InterProcessMutex newInterProcessMutex(final CuratorFramework client, final String path) {
+		return new NewRelicWrappedInterProcessMutex(client, path);
+	}
+
+	/**
+	 * Creates a new {@link LeaderLatch} whose leadership changes, tenure and wait time are recorded with the
+	 * {@link RecipeRecorder}, and whose waits for leadership are traced.
+	 * @param client The client, which should have been created by this factory so that the ZooKeeper calls of the latch are instrumented as well.
+	 * @param latchPath The path of the latch.
+	 * @param id The identifier of the participant.
+	 * @return The instrumented latch.
+	 * @see NewRelicWrappedLeaderLatch
+	 */
+	public static LeaderLatch newLeaderLatch(final CuratorFramework client, final String latchPath, final String id) {
+		return new NewRelicWrappedLeaderLatch(client, latchPath, id);
+	}
+
+	/**
+	 * Creates a new {@link DistributedBarrier} whose wait time and timeouts are recorded with the
+	 * {@link RecipeRecorder}, and whose operations are traced.
+	 * @param client The client, which should have been created by this factory so that the ZooKeeper calls of the barrier are instrumented as well.
+	 * @param barrierPath The path of the barrier.
+	 * @return The instrumented barrier.
+	 * @see NewRelicWrappedDistributedBarrier
+	 */
+	public static DistributedBarrier newDistributedBarrier(final CuratorFramework client, final String barrierPath) {
+		return new NewRelicWrappedDistributedBarrier(client, barrierPath);
 	}
 }
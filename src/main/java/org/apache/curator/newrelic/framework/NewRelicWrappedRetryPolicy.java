@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework;
+
+import org.apache.curator.RetryLoop;
+import org.apache.curator.RetryPolicy;
+import org.apache.curator.RetrySleeper;
+import org.apache.curator.newrelic.metrics.ConnectionRecorder;
+
+/**
+ * {@link RetryPolicy} that records each decision of the delegate policy, as consulted by
+ * {@link RetryLoop} when an operation fails with a recoverable error, with the {@link ConnectionRecorder}.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see ConnectionRecorder
+ */
+public class NewRelicWrappedRetryPolicy implements RetryPolicy {
+
+	/**
+	 * The delegate {@link RetryPolicy}.
+	 */
+	private final RetryPolicy delegate;
+
+	/**
+	 * Creates a new {@code NewRelicWrappedRetryPolicy}.
+	 * @param delegate The delegate {@link RetryPolicy}.
+	 * @throws IllegalArgumentException if the delegate is {@code null}.
+	 */
+	public NewRelicWrappedRetryPolicy(final RetryPolicy delegate) {
+		if(delegate == null) {
+			throw new IllegalArgumentException("The delegate retry policy may not be null.");
+		}
+		this.delegate = delegate;
+	}
+
+	@Override
+	public boolean allowRetry(final int retryCount, final long elapsedTimeMs, final RetrySleeper sleeper) {
+		final boolean allowed = delegate.allowRetry(retryCount, elapsedTimeMs, sleeper);
+		ConnectionRecorder.getInstance().recordRetry(allowed);
+		return allowed;
+	}
+
+	/**
+	 * Returns the delegate {@link RetryPolicy}.
+	 * @return The delegate {@link RetryPolicy}.
+	 */
+	public RetryPolicy getDelegate() {
+		return delegate;
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework;
+
+/**
+ * Describes how a method of an instrumented {@link org.apache.curator.framework.CuratorFramework}
+ * takes part in <a href="http://newrelic.com">New Relic</a> transaction traces.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see InstrumentationPolicy
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public enum TraceMode {
+
+	/**
+	 * The method starts a new transaction if it is not called from within one, and
+	 * is recorded as a segment of the current transaction otherwise.
+	 */
+	DISPATCHER,
+
+	/**
+	 * The method is recorded as a segment of the current transaction, if any.
+	 */
+	SEGMENT,
+
+	/**
+	 * The method is not traced.
+	 */
+	NONE
+}
@@ -0,0 +1,497 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionBridge;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.framework.api.transaction.CuratorTransactionResult;
+import org.apache.curator.newrelic.metrics.CoalescerRecorder;
+import org.apache.curator.newrelic.metrics.PayloadRecorder;
+import org.apache.curator.utils.ThreadUtils;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.data.Stat;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.newrelic.api.agent.Trace;
+
+/**
+ * Coalesces independent {@code create}, {@code setData} and {@code delete} calls made by any number of threads
+ * into {@code multi()} transactions, so that a burst of writes costs one round-trip to the ensemble rather than
+ * one per write.  A batch is committed once the first write of the batch has waited for the coalescing window,
+ * or as soon as the batch reaches its maximum number of writes or of bytes.  The byte limit keeps each transaction
+ * within ZooKeeper's {@value PayloadRecorder#MAX_BUFFER_PROPERTY} limit, which the ensemble enforces on the whole
+ * {@code multi()} request, and defaults to the value of that system property.  Each caller receives a {@link ListenableFuture} that is
+ * completed with the result of its own write, to which a callback may be attached.
+ * <p>
+ * A transaction is atomic, so if a write fails, ZooKeeper rolls back the other writes of its batch.  The failed
+ * write is completed with its {@link KeeperException}, and the other writes are committed again without it, so
+ * that writes only fail because of their own errors.  Writes must therefore be independent of each other: a
+ * write that fails does not prevent the writes queued after it from being committed.  Failures that are not
+ * caused by a particular write (e.g. a loss of the connection) fail every write of the batch.
+ * <p>
+ * The size of each batch, the time that each write waited and the number of writes committed again are recorded
+ * with the {@link CoalescerRecorder}.  Each batch is committed within a <a href="http://newrelic.com">New Relic</a>
+ * transaction, and the commit itself is traced if the framework is instrumented.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see CoalescerRecorder
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public final class WriteCoalescer implements Closeable {
+
+	/**
+	 * Marks the end of the queue once the coalescer is closed.
+	 */
+	private static final PendingWrite<Void> END_OF_QUEUE = new PendingDelete(null, -1);
+
+	/**
+	 * Estimate of the bytes taken by a write in a {@code multi()} request besides its path and data:  the operation
+	 * header, the lengths, version and flags, and the default ACL of a created node.
+	 */
+	static final int WRITE_OVERHEAD_BYTES = 64;
+
+	/**
+	 * The framework through which the batches are committed.
+	 */
+	private final CuratorFramework framework;
+
+	/**
+	 * Time in nanoseconds that the first write of a batch waits for other writes.
+	 */
+	private final long windowNanos;
+
+	/**
+	 * Maximum number of writes committed by a single transaction.
+	 */
+	private final int maxBatchSize;
+
+	/**
+	 * Maximum number of bytes, as estimated by {@link PendingWrite#size}, committed by a single transaction.
+	 */
+	private final int maxBatchBytes;
+
+	/**
+	 * The writes that have not been committed yet.
+	 */
+	private final BlockingQueue<PendingWrite<?>> queue = new LinkedBlockingQueue<PendingWrite<?>>();
+
+	/**
+	 * Executes the thread that commits the batches.
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Whether or not the coalescer has been closed.  Guarded by {@code this}.
+	 */
+	private boolean closed;
+
+	/**
+	 * Creates a new {@code WriteCoalescer} and starts the thread that commits its batches.
+	 * @param framework The started framework through which the batches are committed (may not be {@code null}).
+	 * @param windowMs The time in milliseconds that the first write of a batch waits for other writes (may not be negative).
+	 * @param maxBatchSize The maximum number of writes committed by a single transaction (must be positive).
+	 * @throws IllegalArgumentException if the framework is {@code null}, the window is negative or the maximum batch size is not positive.
+	 */
+	public WriteCoalescer(final CuratorFramework framework, final long windowMs, final int maxBatchSize) {
+		this(framework, windowMs, maxBatchSize, Integer.getInteger(PayloadRecorder.MAX_BUFFER_PROPERTY, PayloadRecorder.DEFAULT_MAX_BUFFER));
+	}
+
+	/**
+	 * Creates a new {@code WriteCoalescer} and starts the thread that commits its batches.  A write whose size alone
+	 * exceeds the maximum number of bytes is committed in a transaction of its own.
+	 * @param framework The started framework through which the batches are committed (may not be {@code null}).
+	 * @param windowMs The time in milliseconds that the first write of a batch waits for other writes (may not be negative).
+	 * @param maxBatchSize The maximum number of writes committed by a single transaction (must be positive).
+	 * @param maxBatchBytes The maximum number of bytes of paths, data and per-write overhead committed by a single transaction (must be positive).
+	 * @throws IllegalArgumentException if the framework is {@code null}, the window is negative or the maximum batch size or bytes is not positive.
+	 */
+	public WriteCoalescer(final CuratorFramework framework, final long windowMs, final int maxBatchSize, final int maxBatchBytes) {
+		if(framework == null) {
+			throw new IllegalArgumentException("Curator framework may not be null.");
+		}
+		if(windowMs < 0 || maxBatchSize < 1 || maxBatchBytes < 1) {
+			throw new IllegalArgumentException("Coalescing window may not be negative and maximum batch size and bytes must be positive.");
+		}
+		this.framework = framework;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+		this.maxBatchSize = maxBatchSize;
+		this.maxBatchBytes = maxBatchBytes;
+		this.executor = ThreadUtils.newSingleThreadExecutor("CuratorNewRelicWriteCoalescer");
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				coalesce();
+			}
+		});
+	}
+
+	/**
+	 * Queues the creation of a node.
+	 * @param path The path of the node.
+	 * @param data The data of the node.
+	 * @param mode The {@link CreateMode} of the node.
+	 * @return A future completed with the path of the created node.
+	 * @throws IllegalStateException if the coalescer has been closed.
+	 */
+	public ListenableFuture<String> create(final String path, final byte[] data, final CreateMode mode) {
+		return enqueue(new PendingCreate(path, data, mode));
+	}
+
+	/**
+	 * Queues the update of the data of a node.
+	 * @param path The path of the node.
+	 * @param data The new data of the node.
+	 * @param version The expected version of the node, or {@code -1} to match any version.
+	 * @return A future completed with the {@link Stat} of the updated node.
+	 * @throws IllegalStateException if the coalescer has been closed.
+	 */
+	public ListenableFuture<Stat> setData(final String path, final byte[] data, final int version) {
+		return enqueue(new PendingSetData(path, data, version));
+	}
+
+	/**
+	 * Queues the deletion of a node.
+	 * @param path The path of the node.
+	 * @param version The expected version of the node, or {@code -1} to match any version.
+	 * @return A future completed once the node has been deleted.
+	 * @throws IllegalStateException if the coalescer has been closed.
+	 */
+	public ListenableFuture<Void> delete(final String path, final int version) {
+		return enqueue(new PendingDelete(path, version));
+	}
+
+	/**
+	 * Stops accepting writes.  The writes that have already been queued are still committed.
+	 */
+	@Override
+	public void close() {
+		synchronized(this) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			queue.add(END_OF_QUEUE);
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Queues a write.
+	 * @param write The write.
+	 * @return The future of the write.
+	 * @throws IllegalStateException if the coalescer has been closed.
+	 */
+	private synchronized <T> ListenableFuture<T> enqueue(final PendingWrite<T> write) {
+		if(closed) {
+			throw new IllegalStateException("Write coalescer has been closed.");
+		}
+		queue.add(write);
+		return write.future;
+	}
+
+	/**
+	 * Collects the queued writes into batches and commits them until the end of the queue is reached.  A write
+	 * that would take a batch over its maximum number of bytes closes the batch and starts the next one.
+	 */
+	private void coalesce() {
+		final List<PendingWrite<?>> batch = new ArrayList<PendingWrite<?>>(maxBatchSize);
+		PendingWrite<?> next = null;
+		boolean done = false;
+		try {
+			while(!done) {
+				PendingWrite<?> write = next != null ? next : queue.take();
+				next = null;
+				final long deadline = write.enqueuedNanos + windowNanos;
+				long batchBytes = 0;
+				while(true) {
+					if(write == END_OF_QUEUE) {
+						done = true;
+						break;
+					} else if(!batch.isEmpty() && batchBytes + write.size > maxBatchBytes) {
+						next = write;
+						break;
+					}
+					batch.add(write);
+					batchBytes += write.size;
+					final long remaining = deadline - System.nanoTime();
+					if(batch.size() >= maxBatchSize || batchBytes >= maxBatchBytes || (write = queue.poll(Math.max(remaining, 0L), TimeUnit.NANOSECONDS)) == null) {
+						break;
+					}
+				}
+				if(!batch.isEmpty()) {
+					commit(batch);
+					batch.clear();
+				}
+			}
+		} catch(final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			final InterruptedException failure = new InterruptedException("Write coalescer was interrupted.");
+			if(next != null) {
+				batch.add(next);
+			}
+			for(final PendingWrite<?> write : batch) {
+				write.future.setException(failure);
+			}
+		}
+	}
+
+	/**
+	 * Commits a batch of writes, committing the other writes again whenever a write fails.
+	 * @param batch The writes.
+	 */
+	@Trace(dispatcher=true, metricName="Curator/WriteCoalescer/commit")
+	private void commit(final List<PendingWrite<?>> batch) {
+		final long now = System.nanoTime();
+		for(final PendingWrite<?> write : batch) {
+			CoalescerRecorder.getInstance().recordWait(now - write.enqueuedNanos);
+		}
+
+		List<PendingWrite<?>> remaining = batch;
+		while(!remaining.isEmpty()) {
+			CoalescerRecorder.getInstance().recordBatch(remaining.size());
+			remaining = attempt(remaining);
+		}
+	}
+
+	/**
+	 * Commits the provided writes in a single transaction.
+	 * @param writes The writes.
+	 * @return The writes that were rolled back because another write failed, which must be committed again.
+	 */
+	private List<PendingWrite<?>> attempt(final List<PendingWrite<?>> writes) {
+		final List<CuratorTransactionResult> results;
+		try {
+			CuratorTransaction transaction = framework.inTransaction();
+			CuratorTransactionFinal last = null;
+			for(final PendingWrite<?> write : writes) {
+				last = write.addTo(transaction).and();
+				transaction = last;
+			}
+			results = new ArrayList<CuratorTransactionResult>(last.commit());
+		} catch(final KeeperException e) {
+			final int failed = getFailedIndex(e, writes.size());
+			if(failed < 0) {
+				fail(writes, e);
+				return Collections.emptyList();
+			}
+			final PendingWrite<?> write = writes.get(failed);
+			write.future.setException(KeeperException.create(Code.get(((OpResult.ErrorResult)e.getResults().get(failed)).getErr()), write.path));
+			final List<PendingWrite<?>> rolledBack = new ArrayList<PendingWrite<?>>(writes);
+			rolledBack.remove(failed);
+			CoalescerRecorder.getInstance().recordResubmitted(rolledBack.size());
+			return rolledBack;
+		} catch(final Exception e) {
+			fail(writes, e);
+			return Collections.emptyList();
+		}
+
+		for(int i = 0; i < writes.size(); i++) {
+			writes.get(i).complete(results.get(i));
+		}
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Determines which write caused a transaction to fail.
+	 * @param e The exception thrown by the transaction.
+	 * @param count The number of writes in the transaction.
+	 * @return The index of the write that failed, or {@code -1} if the failure was not caused by a particular write.
+	 */
+	private static int getFailedIndex(final KeeperException e, final int count) {
+		final List<OpResult> results = e.getResults();
+		if(results == null || results.size() != count) {
+			return -1;
+		}
+		for(int i = 0; i < count; i++) {
+			final OpResult result = results.get(i);
+			if(result instanceof OpResult.ErrorResult) {
+				final int err = ((OpResult.ErrorResult)result).getErr();
+				if(err != Code.OK.intValue() && err != Code.RUNTIMEINCONSISTENCY.intValue()) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Fails every provided write.
+	 * @param writes The writes.
+	 * @param cause The cause of the failure.
+	 */
+	private static void fail(final List<PendingWrite<?>> writes, final Exception cause) {
+		for(final PendingWrite<?> write : writes) {
+			write.future.setException(cause);
+		}
+	}
+
+	/**
+	 * A write that has not been committed yet.
+	 * @param <T> The type of the result of the write.
+	 */
+	private abstract static class PendingWrite<T> {
+
+		/**
+		 * The path of the node.
+		 */
+		final String path;
+
+		/**
+		 * The future completed with the result of the write.
+		 */
+		final SettableFuture<T> future = SettableFuture.create();
+
+		/**
+		 * The time at which the write was queued, as reported by {@link System#nanoTime()}.
+		 */
+		final long enqueuedNanos = System.nanoTime();
+
+		/**
+		 * Estimate of the bytes taken by the write in a {@code multi()} request.
+		 */
+		final int size;
+
+		/**
+		 * Creates a new {@code PendingWrite}.
+		 * @param path The path of the node.
+		 * @param data The data written to the node or {@code null}.
+		 */
+		PendingWrite(final String path, final byte[] data) {
+			this.path = path;
+			this.size = WRITE_OVERHEAD_BYTES + (path != null ? path.length() : 0) + (data != null ? data.length : 0);
+		}
+
+		/**
+		 * Adds the write to a transaction.
+		 * @param transaction The transaction.
+		 * @return The transaction.
+		 * @throws Exception if the write cannot be added.
+		 */
+		abstract CuratorTransactionBridge addTo(CuratorTransaction transaction) throws Exception;
+
+		/**
+		 * Completes the future of the write.
+		 * @param result The result of the write.
+		 */
+		abstract void complete(CuratorTransactionResult result);
+	}
+
+	/**
+	 * A pending {@code create}.
+	 */
+	private static final class PendingCreate extends PendingWrite<String> {
+
+		/**
+		 * The data of the node.
+		 */
+		private final byte[] data;
+
+		/**
+		 * The {@link CreateMode} of the node.
+		 */
+		private final CreateMode mode;
+
+		private PendingCreate(final String path, final byte[] data, final CreateMode mode) {
+			super(path, data);
+			this.data = data;
+			this.mode = mode;
+		}
+
+		@Override
+		CuratorTransactionBridge addTo(final CuratorTransaction transaction) throws Exception {
+			return transaction.create().withMode(mode).forPath(path, data);
+		}
+
+		@Override
+		void complete(final CuratorTransactionResult result) {
+			future.set(result.getResultPath());
+		}
+	}
+
+	/**
+	 * A pending {@code setData}.
+	 */
+	private static final class PendingSetData extends PendingWrite<Stat> {
+
+		/**
+		 * The new data of the node.
+		 */
+		private final byte[] data;
+
+		/**
+		 * The expected version of the node.
+		 */
+		private final int version;
+
+		private PendingSetData(final String path, final byte[] data, final int version) {
+			super(path, data);
+			this.data = data;
+			this.version = version;
+		}
+
+		@Override
+		CuratorTransactionBridge addTo(final CuratorTransaction transaction) throws Exception {
+			return transaction.setData().withVersion(version).forPath(path, data);
+		}
+
+		@Override
+		void complete(final CuratorTransactionResult result) {
+			future.set(result.getResultStat());
+		}
+	}
+
+	/**
+	 * A pending {@code delete}.
+	 */
+	private static final class PendingDelete extends PendingWrite<Void> {
+
+		/**
+		 * The expected version of the node.
+		 */
+		private final int version;
+
+		private PendingDelete(final String path, final int version) {
+			super(path, null);
+			this.version = version;
+		}
+
+		@Override
+		CuratorTransactionBridge addTo(final CuratorTransaction transaction) throws Exception {
+			return transaction.delete().withVersion(version).forPath(path);
+		}
+
+		@Override
+		void complete(final CuratorTransactionResult result) {
+			future.set(null);
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.imps;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.CuratorEventType;
+import org.apache.curator.framework.api.CuratorListener;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.api.Pathable;
+import org.apache.curator.framework.api.SyncBuilder;
+import org.apache.curator.framework.listen.Listenable;
+import org.apache.curator.framework.listen.ListenerContainer;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers the {@link CuratorEvent}s of the operations of one client to the {@link CuratorListener}s added through that
+ * client, rather than to the listeners of the {@link CuratorFramework} that owns its session.  The builders of the client
+ * use the dispatcher as the {@link BackgroundCallback} of the background operations submitted without one, and as the
+ * {@link CuratorWatcher} of the operations that set a watch with {@code watched()}, as does its {@code sync()}, so that the events of a client are
+ * never delivered to the listeners of another client of the same session.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see SharedCuratorFrameworkImpl
+ */
+final class CuratorEventDispatcher implements Listenable<CuratorListener>, BackgroundCallback, CuratorWatcher {
+
+	/**
+	 * Logger for failures of the listeners.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(CuratorEventDispatcher.class);
+
+	/**
+	 * The client passed to the listeners.
+	 */
+	private final CuratorFramework client;
+
+	/**
+	 * The listeners added through the client.
+	 */
+	private final ListenerContainer<CuratorListener> listeners = new ListenerContainer<CuratorListener>();
+
+	/**
+	 * Creates a new {@code CuratorEventDispatcher}.
+	 * @param client The client passed to the listeners.
+	 */
+	CuratorEventDispatcher(final CuratorFramework client) {
+		this.client = client;
+	}
+
+	@Override
+	public void addListener(final CuratorListener listener) {
+		listeners.addListener(listener);
+	}
+
+	@Override
+	public void addListener(final CuratorListener listener, final Executor executor) {
+		listeners.addListener(listener, executor);
+	}
+
+	@Override
+	public void removeListener(final CuratorListener listener) {
+		listeners.removeListener(listener);
+	}
+
+	@Override
+	public void processResult(final CuratorFramework framework, final CuratorEvent event) {
+		dispatch(event);
+	}
+
+	@Override
+	public void process(final WatchedEvent event) {
+		dispatch(new Event(CuratorEventType.WATCHED, event.getPath(), event));
+	}
+
+	/**
+	 * Submits a {@code sync} of the provided path in the background, delivering its result to the listeners.
+	 * @param framework The framework that performs the {@code sync}.
+	 * @param path The path.
+	 * @param context The background context of the {@code sync} or {@code null}.
+	 */
+	void sync(final CuratorFramework framework, final String path, final Object context) {
+		try {
+			framework.sync().inBackground(this, context).forPath(path);
+		} catch(final Exception e) {
+			logger.error("Unable to sync path {}.", path, e);
+		}
+	}
+
+	/**
+	 * Wraps the provided {@link SyncBuilder} so that a {@code sync} submitted in the background without a
+	 * {@link BackgroundCallback} delivers its result to the listeners.
+	 * @param builder The delegate builder.
+	 * @return The wrapped builder.
+	 */
+	SyncBuilder wrap(final SyncBuilder builder) {
+		return new SyncBuilder() {
+			@Override
+			public Pathable<Void> inBackground() {
+				return builder.inBackground(CuratorEventDispatcher.this);
+			}
+
+			@Override
+			public Pathable<Void> inBackground(final Object context) {
+				return builder.inBackground(CuratorEventDispatcher.this, context);
+			}
+
+			@Override
+			public Pathable<Void> inBackground(final BackgroundCallback callback) {
+				return builder.inBackground(callback);
+			}
+
+			@Override
+			public Pathable<Void> inBackground(final BackgroundCallback callback, final Object context) {
+				return builder.inBackground(callback, context);
+			}
+
+			@Override
+			public Pathable<Void> inBackground(final BackgroundCallback callback, final Executor executor) {
+				return builder.inBackground(callback, executor);
+			}
+
+			@Override
+			public Pathable<Void> inBackground(final BackgroundCallback callback, final Object context, final Executor executor) {
+				return builder.inBackground(callback, context, executor);
+			}
+
+			@Override
+			public Void forPath(final String path) throws Exception {
+				return builder.forPath(path);
+			}
+		};
+	}
+
+	/**
+	 * Delivers a {@link CuratorEventType#CLOSING} event to the listeners, then removes them.
+	 */
+	void close() {
+		dispatch(new Event(CuratorEventType.CLOSING, null, null));
+		listeners.clear();
+	}
+
+	/**
+	 * Delivers the provided event to each listener, logging the exceptions that they throw.
+	 * @param event The event.
+	 */
+	private void dispatch(final CuratorEvent event) {
+		listeners.forEach(listener -> {
+			try {
+				listener.eventReceived(client, event);
+			} catch(final Exception e) {
+				logger.error("Event listener threw exception.", e);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * {@link CuratorEvent} raised by the client itself rather than by the result of an operation.
+	 */
+	private static final class Event implements CuratorEvent {
+
+		/**
+		 * The type of the event.
+		 */
+		private final CuratorEventType type;
+
+		/**
+		 * The path of the event or {@code null}.
+		 */
+		private final String path;
+
+		/**
+		 * The watched event or {@code null}.
+		 */
+		private final WatchedEvent watchedEvent;
+
+		private Event(final CuratorEventType type, final String path, final WatchedEvent watchedEvent) {
+			this.type = type;
+			this.path = path;
+			this.watchedEvent = watchedEvent;
+		}
+
+		@Override
+		public CuratorEventType getType() {
+			return type;
+		}
+
+		@Override
+		public int getResultCode() {
+			return 0;
+		}
+
+		@Override
+		public String getPath() {
+			return path;
+		}
+
+		@Override
+		public Object getContext() {
+			return null;
+		}
+
+		@Override
+		public Stat getStat() {
+			return null;
+		}
+
+		@Override
+		public byte[] getData() {
+			return null;
+		}
+
+		@Override
+		public String getName() {
+			return null;
+		}
+
+		@Override
+		public List<String> getChildren() {
+			return null;
+		}
+
+		@Override
+		public List<ACL> getACLList() {
+			return null;
+		}
+
+		@Override
+		public WatchedEvent getWatchedEvent() {
+			return watchedEvent;
+		}
+	}
+}
@@ -0,0 +1,745 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.imps;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.Backgroundable;
+import org.apache.curator.framework.api.CreateBuilder;
+import org.apache.curator.framework.api.Watchable;
+import org.apache.curator.newrelic.metrics.CacheRecorder.Invalidation;
+import org.apache.curator.newrelic.metrics.LatencyRecorder;
+import org.apache.curator.newrelic.metrics.Operation;
+import org.apache.curator.newrelic.metrics.OperationEvents;
+import org.apache.curator.newrelic.metrics.OperationSource;
+import org.apache.curator.newrelic.metrics.TraceSampler;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.data.Stat;
+
+import com.newrelic.api.agent.Trace;
+
+/**
+ * {@link InvocationHandler} backing the instrumented operation builders (e.g. {@link CreateBuilder})
+ * returned by {@link NewRelicWrappedCuratorFrameworkImpl}.  The Curator builder API is a deep hierarchy of
+ * fluent, generic interfaces, so rather than wrapping each interface by hand, each step of the builder
+ * chain is wrapped in a dynamic proxy of the interface declared by that step.  The terminal {@code forPath()}
+ * call, or the {@code commit()} call of a transaction, which performs the actual ZooKeeper round-trip, is recorded as a <a href="http://newrelic.com">New Relic</a>
+ * transaction segment named after the operation and whether it runs in the foreground or the background (e.g. {@code Curator/create/Foreground}),
+ * and in the latency histograms of the {@link LatencyRecorder}.  Operations executed in the background with a {@link BackgroundCallback}
+ * are measured from {@code forPath()} until the callback is invoked, and the callback is traced by the {@link TimedBackgroundCallback}.
+ * Operations are traced according to the {@link TraceSampler} of the framework.  If the framework has a {@link NodeDataCache}, plain
+ * {@code getData()} reads are served from its view of the cache.  If the framework has a {@link CuratorEventDispatcher}, the
+ * operations executed in the background without a {@link BackgroundCallback}, and the watches set with {@code watched()}, deliver
+ * their events to the dispatcher rather than to the listeners of the delegate framework.
+ * <p>
+ * How each builder method is handled, and the method handle that invokes it on the delegate builder, is resolved once per
+ * {@link Method}.  Like the Curator builders themselves, a handler updates its own state for the steps that return the same
+ * delegate builder and reuses its proxy whenever the proxy implements the interface of the step, so an instrumented builder
+ * must not be shared between threads any more than the builder that it wraps.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+final class NewRelicWrappedBuilder implements InvocationHandler {
+
+	/**
+	 * Name of the terminal builder method that executes the operation.
+	 */
+	private static final String FOR_PATH = "forPath";
+
+	/**
+	 * Name of the terminal transaction method that executes the operations of a transaction.
+	 */
+	private static final String COMMIT = "commit";
+
+	/**
+	 * Name of the builder method that switches the operation to background execution.
+	 */
+	private static final String IN_BACKGROUND = "inBackground";
+
+	/**
+	 * Name of the builder method that sets the {@link Stat} populated by the operation.
+	 */
+	private static final String STORING_STAT_IN = "storingStatIn";
+
+	/**
+	 * Name of the builder method that sets a watch whose events are delivered to the listeners of the framework.
+	 */
+	private static final String WATCHED = "watched";
+
+	/**
+	 * Prefix of the package that contains the builder interfaces that are wrapped.
+	 */
+	private static final String API_PACKAGE = CreateBuilder.class.getName().substring(0, CreateBuilder.class.getName().lastIndexOf('.') + 1);
+
+	/**
+	 * Type of the method handles that invoke a builder method on a delegate builder with an array of arguments.
+	 */
+	private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+
+	/**
+	 * How each builder method is handled, resolved once per {@link Method}.  Proxies pass the same {@link Method}
+	 * instance for every invocation of a method, so lookups are resolved by identity.
+	 */
+	private static final ConcurrentMap<Method, Dispatch> DISPATCHES = new ConcurrentHashMap<Method, Dispatch>();
+
+	/**
+	 * Proxy class constructors, resolved once per builder interface.
+	 */
+	private static final ClassValue<Constructor<?>> INTERFACE_PROXY_CONSTRUCTORS = new ClassValue<Constructor<?>>() {
+		@Override
+		protected Constructor<?> computeValue(final Class<?> type) {
+			return getProxyConstructor(type.getClassLoader(), type);
+		}
+	};
+
+	/**
+	 * Proxy class constructors, resolved once per builder implementation class.  These are used
+	 * for builder steps whose declared return type has been erased (e.g. {@code CreateModable<T>.withMode()}),
+	 * and implement every builder interface implemented by the returned builder.  A {@code null} value
+	 * indicates that the class does not implement any builder interfaces.
+	 */
+	private static final ClassValue<Constructor<?>> IMPLEMENTATION_PROXY_CONSTRUCTORS = new ClassValue<Constructor<?>>() {
+		@Override
+		protected Constructor<?> computeValue(final Class<?> type) {
+			final Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+			for(Class<?> current = type; current != null; current = current.getSuperclass()) {
+				for(final Class<?> candidate : current.getInterfaces()) {
+					if(isBuilderInterface(candidate)) {
+						interfaces.add(candidate);
+					}
+				}
+			}
+			return interfaces.isEmpty() ? null : getProxyConstructor(type.getClassLoader(), interfaces.toArray(new Class<?>[interfaces.size()]));
+		}
+	};
+
+	/**
+	 * The delegate builder.
+	 */
+	private final Object target;
+
+	/**
+	 * The operation performed by the builder.
+	 */
+	private final Operation operation;
+
+	/**
+	 * The {@link TraceSampler} that decides whether or not the operation is traced.
+	 */
+	private final TraceSampler sampler;
+
+	/**
+	 * Whether or not the operation will be executed in the background.
+	 */
+	private boolean background;
+
+	/**
+	 * The timed callback that will be notified of the completion of a background operation, or {@code null}.
+	 */
+	private TimedBackgroundCallback callback;
+
+	/**
+	 * The view of the node cache that serves the reads, or that is invalidated by the writes, performed by the builder, or {@code null}.
+	 */
+	private NodeDataCache.View cache;
+
+	/**
+	 * The {@link Stat} populated by the operation, or {@code null}.
+	 */
+	private Stat stat;
+
+	/**
+	 * The dispatcher to which the events of the operation are delivered in place of the listeners of the delegate framework, or {@code null}.
+	 */
+	private final CuratorEventDispatcher dispatcher;
+
+	private NewRelicWrappedBuilder(final Object target, final Operation operation, final TraceSampler sampler, final NodeDataCache.View cache,
+			final Stat stat, final boolean background, final TimedBackgroundCallback callback, final CuratorEventDispatcher dispatcher) {
+		this.target = target;
+		this.operation = operation;
+		this.sampler = sampler;
+		this.cache = cache;
+		this.stat = stat;
+		this.background = background;
+		this.callback = callback;
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Wraps the provided builder so that the operation that it builds is instrumented.
+	 * @param type The builder interface.
+	 * @param builder The delegate builder (may be {@code null}).
+	 * @param operation The operation performed by the builder.
+	 * @param sampler The {@link TraceSampler} that decides whether or not the operation is traced.
+	 * @param cache The view of the node cache that serves the reads of a {@link Operation#GET_DATA} builder and that is invalidated
+	 * 	by the writes of a {@link Operation#SET_DATA} or {@link Operation#DELETE} builder, or {@code null}.
+	 * @param dispatcher The dispatcher to which the events of the operation are delivered in place of the listeners of the delegate
+	 * 	framework, or {@code null}.
+	 * @return The instrumented builder or {@code null} if the delegate builder is {@code null}.
+	 */
+	static <T> T wrap(final Class<T> type, final T builder, final Operation operation, final TraceSampler sampler, final NodeDataCache.View cache,
+			final CuratorEventDispatcher dispatcher) {
+		if(builder == null) {
+			return null;
+		}
+		return type.cast(newProxy(INTERFACE_PROXY_CONSTRUCTORS.get(type), new NewRelicWrappedBuilder(builder, operation, sampler, cache, null, false, null, dispatcher)));
+	}
+
+	@Override
+	public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+		final Dispatch dispatch = getDispatch(method);
+		if(dispatch.kind == (operation == Operation.MULTI ? Kind.COMMIT : Kind.FOR_PATH)) {
+			return forPath(dispatch, args);
+		} else if(dispatch.kind == Kind.IN_BACKGROUND) {
+			return inBackground(proxy, dispatch, args);
+		} else if(dispatch.kind == Kind.OBJECT) {
+			return dispatch.invoke(target, args);
+		} else if(dispatch.kind == Kind.WATCHED && dispatcher != null) {
+			return watched(proxy, dispatch);
+		}
+
+		final Object result = dispatch.invoke(target, args);
+		if(operation == Operation.GET_DATA && cache != null) {
+			if(dispatch.kind == Kind.STORING_STAT_IN) {
+				stat = (Stat)args[0];
+			} else {
+				// Reads that set a watch or decompress their data are not served from the cache.
+				cache = null;
+			}
+		}
+		return chain(proxy, dispatch, result);
+	}
+
+	/**
+	 * Switches the operation to background execution, replacing any {@link BackgroundCallback}
+	 * with a {@link TimedBackgroundCallback}.  Without a {@link BackgroundCallback}, the result is
+	 * delivered to the {@link CuratorEventDispatcher}, if any.
+	 * @param proxy The proxy on which the method was invoked.
+	 * @param dispatch The {@link Dispatch} of the {@code inBackground} method.
+	 * @param args The method arguments.
+	 * @return The next step of the builder chain.
+	 * @throws Throwable if the delegate builder throws an exception.
+	 */
+	private Object inBackground(final Object proxy, final Dispatch dispatch, final Object[] args) throws Throwable {
+		TimedBackgroundCallback timedCallback = null;
+		final Object result;
+		if(dispatch.callbackArgument && args[0] != null) {
+			timedCallback = new TimedBackgroundCallback((BackgroundCallback)args[0], operation, sampler);
+			args[0] = timedCallback;
+			result = dispatch.invoke(target, args);
+		} else if(!dispatch.callbackArgument && dispatcher != null) {
+			final Backgroundable<?> backgroundable = (Backgroundable<?>)target;
+			result = args == null ? backgroundable.inBackground(dispatcher) : backgroundable.inBackground(dispatcher, args[0]);
+		} else {
+			result = dispatch.invoke(target, args);
+		}
+		background = true;
+		callback = timedCallback;
+		if(operation == Operation.GET_DATA) {
+			cache = null;
+		}
+		return chain(proxy, dispatch, result);
+	}
+
+	/**
+	 * Sets a watch whose events are delivered to the {@link CuratorEventDispatcher} rather than
+	 * to the listeners of the delegate framework.
+	 * @param proxy The proxy on which the method was invoked.
+	 * @param dispatch The {@link Dispatch} of the {@code watched} method.
+	 * @return The next step of the builder chain.
+	 */
+	private Object watched(final Object proxy, final Dispatch dispatch) {
+		final Object result = ((Watchable<?>)target).usingWatcher(dispatcher);
+		if(operation == Operation.GET_DATA) {
+			cache = null;
+		}
+		return chain(proxy, dispatch, result);
+	}
+
+	/**
+	 * Executes the operation, recording a transaction segment for the type of operation if the
+	 * {@link TraceSampler} decides to trace it.  The decision also applies to the calls that the operation
+	 * makes to an instrumented ZooKeeper client.  Reads that are served from the node cache are neither
+	 * traced nor timed.
+	 * @param dispatch The {@link Dispatch} of the {@code forPath} method.
+	 * @param args The method arguments.
+	 * @return The result of the operation.
+	 * @throws Throwable if the operation fails.
+	 */
+	private Object forPath(final Dispatch dispatch, final Object[] args) throws Throwable {
+		if(cache != null && operation == Operation.GET_DATA) {
+			final NodeDataCache.Entry entry = cache.get((String)args[0]);
+			if(entry != null) {
+				NodeDataCache.copy(entry.stat, stat);
+				return entry.data;
+			}
+		}
+
+		final boolean traced = sampler.enter();
+		try {
+			if(!traced) {
+				return timed(dispatch, args, false);
+			}
+			return background ? traceBackground(dispatch, args) : traceForeground(dispatch, args);
+		} finally {
+			sampler.exit();
+		}
+	}
+
+	/**
+	 * Executes the operation in a transaction segment for the type of operation executed in the foreground.
+	 * @param dispatch The {@link Dispatch} of the {@code forPath} method.
+	 * @param args The method arguments.
+	 * @return The result of the operation.
+	 * @throws Throwable if the operation fails.
+	 */
+	private Object traceForeground(final Dispatch dispatch, final Object[] args) throws Throwable {
+		switch(operation) {
+			case CREATE:
+				return traceCreate(dispatch, args);
+			case DELETE:
+				return traceDelete(dispatch, args);
+			case EXISTS:
+				return traceExists(dispatch, args);
+			case GET_DATA:
+				return traceGetData(dispatch, args);
+			case SET_DATA:
+				return traceSetData(dispatch, args);
+			case GET_CHILDREN:
+				return traceGetChildren(dispatch, args);
+			case GET_ACL:
+				return traceGetACL(dispatch, args);
+			case SET_ACL:
+				return traceSetACL(dispatch, args);
+			case MULTI:
+				return traceMulti(dispatch, args);
+			default:
+				return timed(dispatch, args, true);
+		}
+	}
+
+	/**
+	 * Submits the operation in a transaction segment for the type of operation executed in the background.
+	 * @param dispatch The {@link Dispatch} of the {@code forPath} method.
+	 * @param args The method arguments.
+	 * @return The result of the submission.
+	 * @throws Throwable if the submission fails.
+	 */
+	private Object traceBackground(final Dispatch dispatch, final Object[] args) throws Throwable {
+		switch(operation) {
+			case CREATE:
+				return traceBackgroundCreate(dispatch, args);
+			case DELETE:
+				return traceBackgroundDelete(dispatch, args);
+			case EXISTS:
+				return traceBackgroundExists(dispatch, args);
+			case GET_DATA:
+				return traceBackgroundGetData(dispatch, args);
+			case SET_DATA:
+				return traceBackgroundSetData(dispatch, args);
+			case GET_CHILDREN:
+				return traceBackgroundGetChildren(dispatch, args);
+			case GET_ACL:
+				return traceBackgroundGetACL(dispatch, args);
+			case SET_ACL:
+				return traceBackgroundSetACL(dispatch, args);
+			default:
+				return timed(dispatch, args, true);
+		}
+	}
+
+	@Trace(metricName="Curator/create/Foreground")
+	private Object traceCreate(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	@Trace(metricName="Curator/delete/Foreground")
+	private Object traceDelete(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	@Trace(metricName="Curator/exists/Foreground")
+	private Object traceExists(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	@Trace(metricName="Curator/getData/Foreground")
+	private Object traceGetData(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	@Trace(metricName="Curator/setData/Foreground")
+	private Object traceSetData(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	@Trace(metricName="Curator/getChildren/Foreground")
+	private Object traceGetChildren(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	@Trace(metricName="Curator/getACL/Foreground")
+	private Object traceGetACL(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	@Trace(metricName="Curator/setACL/Foreground")
+	private Object traceSetACL(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	@Trace(metricName="Curator/multi/Foreground")
+	private Object traceMulti(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	@Trace(metricName="Curator/create/Background")
+	private Object traceBackgroundCreate(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	@Trace(metricName="Curator/delete/Background")
+	private Object traceBackgroundDelete(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	@Trace(metricName="Curator/exists/Background")
+	private Object traceBackgroundExists(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	@Trace(metricName="Curator/getData/Background")
+	private Object traceBackgroundGetData(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	@Trace(metricName="Curator/setData/Background")
+	private Object traceBackgroundSetData(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	@Trace(metricName="Curator/getChildren/Background")
+	private Object traceBackgroundGetChildren(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	@Trace(metricName="Curator/getACL/Background")
+	private Object traceBackgroundGetACL(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	@Trace(metricName="Curator/setACL/Background")
+	private Object traceBackgroundSetACL(final Dispatch dispatch, final Object[] args) throws Throwable {
+		return timed(dispatch, args, true);
+	}
+
+	/**
+	 * Executes the operation and records its latency and result code with the {@link LatencyRecorder}.
+	 * Background operations with a callback are recorded by the {@link TimedBackgroundCallback} once
+	 * they complete, unless their submission fails; background operations without a callback record the time
+	 * taken to queue the operation.  Failures other than a {@link KeeperException} are recorded as {@link Code#SYSTEMERROR}.
+	 * Operations that are not traced are reported to the {@link TraceSampler} in case they failed or were slow, and operations
+	 * whose latency reaches the threshold of the {@link OperationEvents} are emitted as JDK Flight Recorder events.
+	 * @param dispatch The {@link Dispatch} of the {@code forPath} method.
+	 * @param args The method arguments.
+	 * @param traced Whether or not the operation is traced.
+	 * @return The result of the operation.
+	 * @throws Throwable if the operation fails.
+	 */
+	private Object timed(final Dispatch dispatch, final Object[] args, final boolean traced) throws Throwable {
+		final long start = System.nanoTime();
+		if(callback != null) {
+			callback.start();
+		}
+		Code code = Code.SYSTEMERROR;
+		Object result = null;
+		try {
+			result = execute(dispatch, args);
+			code = Code.OK;
+			return result;
+		} catch(final KeeperException e) {
+			code = e.code();
+			throw e;
+		} finally {
+			if(callback == null || code != Code.OK) {
+				if(callback != null) {
+					// The operation was never submitted, so its callback will not be invoked.
+					callback.abort();
+				}
+				final OperationSource source = background ? OperationSource.BACKGROUND : OperationSource.FOREGROUND;
+				final long latencyNanos = System.nanoTime() - start;
+				final String path = args != null && args.length > 0 && args[0] instanceof String ? (String)args[0] : null;
+				LatencyRecorder.getInstance().record(source, operation, code, latencyNanos);
+				if(!traced) {
+					sampler.recordUntraced(source, operation, path, code, latencyNanos);
+				}
+				if(OperationEvents.isEnabled(latencyNanos)) {
+					OperationEvents.emit(source, operation, path, code, latencyNanos, 0L, getPayloadSize(args, result));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the size of the payload written or read by an operation:  the data passed to {@code forPath},
+	 * or else the data or children that it returned.
+	 * @param args The arguments of {@code forPath}.
+	 * @param result The result of {@code forPath} or {@code null}.
+	 * @return The size of the payload in bytes, or {@value OperationEvents#NO_PAYLOAD} if the operation has none.
+	 */
+	@SuppressWarnings("unchecked")
+	private static int getPayloadSize(final Object[] args, final Object result) {
+		if(args != null && args.length > 1 && args[1] instanceof byte[]) {
+			return OperationEvents.getPayloadSize((byte[])args[1]);
+		} else if(result instanceof byte[]) {
+			return OperationEvents.getPayloadSize((byte[])result);
+		} else if(result instanceof List) {
+			return OperationEvents.getPayloadSize((List<String>)result);
+		}
+		return OperationEvents.NO_PAYLOAD;
+	}
+
+	/**
+	 * Executes the operation.  Reads that may be cached are loaded through the node cache, and writes
+	 * invalidate the cached node whether or not they succeed.
+	 * @param dispatch The {@link Dispatch} of the {@code forPath} method.
+	 * @param args The method arguments.
+	 * @return The result of the operation.
+	 * @throws Throwable if the operation fails.
+	 */
+	private Object execute(final Dispatch dispatch, final Object[] args) throws Throwable {
+		if(cache == null) {
+			return dispatch.invoke(target, args);
+		} else if(operation == Operation.GET_DATA) {
+			return cache.load((String)args[0], stat);
+		}
+
+		try {
+			return dispatch.invoke(target, args);
+		} finally {
+			cache.invalidate((String)args[0], Invalidation.WRITE);
+		}
+	}
+
+	/**
+	 * Wraps the next step of the builder chain.  Steps that return the same delegate builder share this
+	 * handler, and reuse the current proxy when it already implements the step's interface.
+	 * @param proxy The proxy on which the method was invoked.
+	 * @param dispatch The {@link Dispatch} of the builder method.
+	 * @param result The next step of the builder chain returned by the delegate.
+	 * @return The instrumented next step of the builder chain.
+	 */
+	private Object chain(final Object proxy, final Dispatch dispatch, final Object result) {
+		if(result == null) {
+			return null;
+		}
+
+		final Constructor<?> constructor = dispatch.erased ? IMPLEMENTATION_PROXY_CONSTRUCTORS.get(result.getClass()) : dispatch.constructor;
+		if(constructor == null) {
+			return result;
+		} else if(result != target) {
+			return newProxy(constructor, new NewRelicWrappedBuilder(result, operation, sampler, cache, stat, background, callback, dispatcher));
+		} else if(constructor.getDeclaringClass().isInstance(proxy)) {
+			return proxy;
+		}
+		return newProxy(constructor, this);
+	}
+
+	/**
+	 * Returns the {@link Dispatch} of the provided method, resolving it on first use.
+	 * @param method The builder method.
+	 * @return The {@link Dispatch} of the method.
+	 */
+	private static Dispatch getDispatch(final Method method) {
+		Dispatch dispatch = DISPATCHES.get(method);
+		if(dispatch == null) {
+			dispatch = new Dispatch(method);
+			final Dispatch existing = DISPATCHES.putIfAbsent(method, dispatch);
+			if(existing != null) {
+				dispatch = existing;
+			}
+		}
+		return dispatch;
+	}
+
+	/**
+	 * Determines whether or not the provided type is one of the Curator builder interfaces.
+	 * @param type The type to check.
+	 * @return {@code true} if the type is a builder interface.
+	 */
+	private static boolean isBuilderInterface(final Class<?> type) {
+		return type.isInterface() && type.getName().startsWith(API_PACKAGE);
+	}
+
+	/**
+	 * Resolves the constructor of the proxy class for the provided interfaces.
+	 * @param classLoader The class loader that defines the proxy class.
+	 * @param interfaces The interfaces implemented by the proxy class.
+	 * @return The constructor of the proxy class.
+	 * @throws IllegalStateException if the proxy class cannot be created.
+	 */
+	private static Constructor<?> getProxyConstructor(final ClassLoader classLoader, final Class<?>... interfaces) {
+		try {
+			return Proxy.getProxyClass(classLoader, interfaces).getConstructor(InvocationHandler.class);
+		} catch(final NoSuchMethodException | IllegalArgumentException e) {
+			throw new IllegalStateException("Unable to create an instrumented proxy for " + Arrays.toString(interfaces) + ".", e);
+		}
+	}
+
+	/**
+	 * Creates a new proxy instance.
+	 * @param constructor The constructor of the proxy class.
+	 * @param handler The {@link InvocationHandler} for the proxy.
+	 * @return The new proxy.
+	 */
+	private static Object newProxy(final Constructor<?> constructor, final InvocationHandler handler) {
+		try {
+			return constructor.newInstance(handler);
+		} catch(final InstantiationException | IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException("Unable to create an instrumented proxy of type " + constructor.getDeclaringClass().getName() + ".", e);
+		}
+	}
+
+	/**
+	 * The ways in which the invocation of a builder method is handled.
+	 */
+	private enum Kind {
+
+		/**
+		 * A {@code forPath} method, which executes the operation unless the builder builds a transaction.
+		 */
+		FOR_PATH,
+
+		/**
+		 * The {@code commit} method of a transaction.
+		 */
+		COMMIT,
+
+		/**
+		 * An {@code inBackground} method.
+		 */
+		IN_BACKGROUND,
+
+		/**
+		 * The {@code storingStatIn} method.
+		 */
+		STORING_STAT_IN,
+
+		/**
+		 * The {@code watched} method.
+		 */
+		WATCHED,
+
+		/**
+		 * A method declared by {@link Object}, which is passed to the delegate builder.
+		 */
+		OBJECT,
+
+		/**
+		 * Any other step of the builder chain.
+		 */
+		STEP
+	}
+
+	/**
+	 * How the invocation of a builder method is handled, along with the method handle that invokes
+	 * the method on a delegate builder and the proxy class constructor of its declared return type.
+	 */
+	private static final class Dispatch {
+
+		/**
+		 * How the invocation is handled.
+		 */
+		private final Kind kind;
+
+		/**
+		 * Whether or not the first parameter of an {@code inBackground} method is a {@link BackgroundCallback}.
+		 */
+		private final boolean callbackArgument;
+
+		/**
+		 * Whether or not the declared return type has been erased to {@link Object}, in which case the proxy class
+		 * is resolved from the class of the returned builder.
+		 */
+		private final boolean erased;
+
+		/**
+		 * The proxy class constructor of the declared return type, or {@code null} if it is not a builder interface.
+		 */
+		private final Constructor<?> constructor;
+
+		/**
+		 * Invokes the method on a delegate builder with an array of arguments.
+		 */
+		private final MethodHandle invoker;
+
+		private Dispatch(final Method method) {
+			final String name = method.getName();
+			final Class<?>[] parameterTypes = method.getParameterTypes();
+			if(method.getDeclaringClass() == Object.class) {
+				kind = Kind.OBJECT;
+			} else if(FOR_PATH.equals(name)) {
+				kind = Kind.FOR_PATH;
+			} else if(COMMIT.equals(name)) {
+				kind = Kind.COMMIT;
+			} else if(IN_BACKGROUND.equals(name)) {
+				kind = Kind.IN_BACKGROUND;
+			} else if(STORING_STAT_IN.equals(name)) {
+				kind = Kind.STORING_STAT_IN;
+			} else if(WATCHED.equals(name)) {
+				kind = Kind.WATCHED;
+			} else {
+				kind = Kind.STEP;
+			}
+			callbackArgument = parameterTypes.length > 0 && parameterTypes[0] == BackgroundCallback.class;
+			erased = method.getReturnType() == Object.class;
+			constructor = isBuilderInterface(method.getReturnType()) ? INTERFACE_PROXY_CONSTRUCTORS.get(method.getReturnType()) : null;
+			try {
+				invoker = MethodHandles.publicLookup().unreflect(method).asFixedArity().asSpreader(Object[].class, parameterTypes.length).asType(INVOKER_TYPE);
+			} catch(final IllegalAccessException e) {
+				throw new IllegalStateException("Unable to access the builder method " + method + ".", e);
+			}
+		}
+
+		/**
+		 * Invokes the method on the provided delegate builder.
+		 * @param target The delegate builder.
+		 * @param args The method arguments or {@code null} if the method has none.
+		 * @return The result of the invocation.
+		 * @throws Throwable the exception thrown by the delegate builder, if any.
+		 */
+		private Object invoke(final Object target, final Object[] args) throws Throwable {
+			return (Object)invoker.invokeExact(target, args);
+		}
+	}
+}
@@ -15,6 +15,9 @@
  */
 package org.apache.curator.newrelic.framework.imps;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.apache.curator.CuratorZookeeperClient;
 import org.apache.curator.NewRelicWrappedCuratorZookeeperClient;
 import org.apache.curator.RetryPolicy;
@@ -34,13 +37,26 @@ import org.apache.curator.framework.api.transaction.CuratorTransaction;
 import org.apache.curator.framework.imps.CuratorFrameworkState;
 import org.apache.curator.framework.listen.Listenable;
 import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.newrelic.framework.FrameworkMethod;
+import org.apache.curator.newrelic.framework.InstrumentationPolicy;
+import org.apache.curator.newrelic.framework.TraceMode;
+import org.apache.curator.newrelic.metrics.Operation;
 import org.apache.curator.utils.EnsurePath;
 
 import com.newrelic.api.agent.Trace;
 
 /**
  * Wrapped {@link CuratorFramework} implementation that enables participation
- * in a new <a href="http://newrelic.com">New Relic</a> transaction trace.
+ * in a new <a href="http://newrelic.com">New Relic</a> transaction trace.  The
+ * operation builders returned by this implementation are instrumented so that
+ * the ZooKeeper round-trip performed by {@code forPath()} is traced.  Whether each
+ * method of the framework itself starts a transaction, is recorded as a segment or
+ * is not traced at all is determined by an {@link InstrumentationPolicy}, which may also
+ * enable a read-through cache of the nodes read through {@link #getData()}.
+ * <p>
+ * The views returned by {@link #usingNamespace(String)} and {@link #nonNamespaceView()} are
+ * instrumented as well.  They share the connection and policy of the framework that created them,
+ * and are cached so that each namespace is wrapped only once.
  *
  * @author Jonathan Pearlin
  * @since 1.0.0
@@ -49,12 +65,48 @@ import com.newrelic.api.agent.Trace;
  */
 public class NewRelicWrappedCuratorFrameworkImpl implements CuratorFramework {
 
+	/**
+	 * Key of the non-namespaced view in the cache of namespace views.
+	 */
+	private static final String NO_NAMESPACE = "";
+
 	/**
 	 * Delegated {@link CuratorFramework} that will be used to communicate
 	 * with a ZooKeeper server/ensemble.
 	 */
 	private final CuratorFramework delegate;
 
+	/**
+	 * Wrapped {@link CuratorZookeeperClient} that shares the delegate's connection.  It is
+	 * created on first use and reused for the life of this framework.
+	 */
+	private volatile CuratorZookeeperClient zookeeperClient;
+
+	/**
+	 * The {@link InstrumentationPolicy} that determines how each method is traced.
+	 */
+	private final InstrumentationPolicy policy;
+
+	/**
+	 * The view, in the namespace of this framework, of the read-through cache of the nodes read through
+	 * {@link #getData()}, which the root framework shares with its namespace views, or {@code null} if the
+	 * policy does not enable it.
+	 */
+	private final NodeDataCache.View nodeCache;
+
+	/**
+	 * The wrapped framework that owns the connection:  this framework, or the framework of which
+	 * this framework is a namespace view.
+	 */
+	private final NewRelicWrappedCuratorFrameworkImpl root;
+
+	/**
+	 * The instrumented namespace views of the root framework, keyed by namespace, shared by the
+	 * root and all of its views so that each namespace is wrapped only once.  The non-namespaced view
+	 * is keyed by {@value #NO_NAMESPACE}, which Curator treats as no namespace.
+	 */
+	private final ConcurrentMap<String, NewRelicWrappedCuratorFrameworkImpl> views;
+
 	/**
 	 * Constructs a new {@link NewRelicWrappedCuratorFrameworkImpl} instance that
 	 * defers to the provided delegate {@link CuratorFramework}.
@@ -63,155 +115,610 @@ public class NewRelicWrappedCuratorFrameworkImpl implements CuratorFramework {
 	 * 	is {@code null}.
 	 */
 	public NewRelicWrappedCuratorFrameworkImpl(final CuratorFramework curatorFramework) {
+		this(curatorFramework, InstrumentationPolicy.defaultPolicy());
+	}
+
+	/**
+	 * Constructs a new {@link NewRelicWrappedCuratorFrameworkImpl} instance that
+	 * defers to the provided delegate {@link CuratorFramework} and traces each method
+	 * according to the provided {@link InstrumentationPolicy}.
+	 * @param curatorFramework The delegate {@link CuratorFramework} (may not be {@code null}).
+	 * @param policy The {@link InstrumentationPolicy} (may not be {@code null}).
+	 * @throws IllegalArgumentException if the provided delegate {@link CuratorFramework}
+	 * 	or {@link InstrumentationPolicy} is {@code null}.
+	 */
+	public NewRelicWrappedCuratorFrameworkImpl(final CuratorFramework curatorFramework, final InstrumentationPolicy policy) {
+		this(curatorFramework, policy, null);
+	}
+
+	/**
+	 * Constructs a new {@link NewRelicWrappedCuratorFrameworkImpl} instance that
+	 * defers to the provided delegate {@link CuratorFramework}, which is either a framework
+	 * or a namespace view of the framework wrapped by the provided root.
+	 * @param curatorFramework The delegate {@link CuratorFramework} (may not be {@code null}).
+	 * @param policy The {@link InstrumentationPolicy} (may not be {@code null}).
+	 * @param root The wrapped framework of which the delegate is a view, or {@code null} if the
+	 * 	delegate is not a view.
+	 * @throws IllegalArgumentException if the provided delegate {@link CuratorFramework}
+	 * 	or {@link InstrumentationPolicy} is {@code null}.
+	 */
+	private NewRelicWrappedCuratorFrameworkImpl(final CuratorFramework curatorFramework, final InstrumentationPolicy policy, final NewRelicWrappedCuratorFrameworkImpl root) {
 		if(curatorFramework == null) {
 			throw new IllegalArgumentException("Curator framework delegate may not be null.");
 		}
+		if(policy == null) {
+			throw new IllegalArgumentException("Instrumentation policy may not be null.");
+		}
+
+		this.delegate = curatorFramework;
+		this.policy = policy;
+		this.root = root == null ? this : root;
+		this.views = root == null ? new ConcurrentHashMap<String, NewRelicWrappedCuratorFrameworkImpl>() : root.views;
+		if(policy.getNodeCacheMaxEntries() > 0) {
+			final NodeDataCache cache = root == null ? new NodeDataCache(curatorFramework, policy.getNodeCacheMaxEntries(), policy.getNodeCacheMaxBytes()) : root.nodeCache.getCache();
+			this.nodeCache = cache.forNamespace(curatorFramework.getNamespace());
+		} else {
+			this.nodeCache = null;
+		}
+	}
 
-		delegate = curatorFramework;
+	/**
+	 * Returns the {@link InstrumentationPolicy} that determines how each method is traced.
+	 * @return The instrumentation policy.
+	 */
+	public InstrumentationPolicy getInstrumentationPolicy() {
+		return policy;
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public void start() {
+		call(FrameworkMethod.START, (framework, argument) -> {
+			framework.doStart();
+			return null;
+		}, null);
+	}
+
+	/**
+	 * Starts the delegate {@link CuratorFramework}.
+	 */
+	protected void doStart() {
 		delegate.start();
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public void close() {
+		call(FrameworkMethod.CLOSE, (framework, argument) -> {
+			framework.doClose();
+			return null;
+		}, null);
+		if(nodeCache != null && root == this) {
+			nodeCache.getCache().clear();
+		}
+	}
+
+	/**
+	 * Closes the delegate {@link CuratorFramework}.
+	 */
+	protected void doClose() {
 		delegate.close();
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public CuratorFrameworkState getState() {
-		return delegate.getState();
+		return call(FrameworkMethod.GET_STATE, (framework, argument) -> framework.delegate.getState(), null);
 	}
 
 	@SuppressWarnings("deprecation")
 	@Override
-	@Trace(dispatcher=true)
 	public boolean isStarted() {
-		return delegate.isStarted();
+		return call(FrameworkMethod.IS_STARTED, (framework, argument) -> framework.delegate.isStarted(), null);
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public CreateBuilder create() {
-		return delegate.create();
+		return call(FrameworkMethod.CREATE, (framework, argument) -> framework.wrap(CreateBuilder.class, framework.delegate.create(), Operation.CREATE, null), null);
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public DeleteBuilder delete() {
-		return delegate.delete();
+		return call(FrameworkMethod.DELETE, (framework, argument) -> framework.wrap(DeleteBuilder.class, framework.delegate.delete(), Operation.DELETE, framework.nodeCache), null);
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public ExistsBuilder checkExists() {
-		return delegate.checkExists();
+		return call(FrameworkMethod.CHECK_EXISTS, (framework, argument) -> framework.wrap(ExistsBuilder.class, framework.delegate.checkExists(), Operation.EXISTS, null), null);
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public GetDataBuilder getData() {
-		return delegate.getData();
+		return call(FrameworkMethod.GET_DATA, (framework, argument) -> framework.wrap(GetDataBuilder.class, framework.delegate.getData(), Operation.GET_DATA, framework.nodeCache), null);
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public SetDataBuilder setData() {
-		return delegate.setData();
+		return call(FrameworkMethod.SET_DATA, (framework, argument) -> framework.wrap(SetDataBuilder.class, framework.delegate.setData(), Operation.SET_DATA, framework.nodeCache), null);
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public GetChildrenBuilder getChildren() {
-		return delegate.getChildren();
+		return call(FrameworkMethod.GET_CHILDREN, (framework, argument) -> framework.wrap(GetChildrenBuilder.class, framework.delegate.getChildren(), Operation.GET_CHILDREN, null), null);
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public GetACLBuilder getACL() {
-		return delegate.getACL();
+		return call(FrameworkMethod.GET_ACL, (framework, argument) -> framework.wrap(GetACLBuilder.class, framework.delegate.getACL(), Operation.GET_ACL, null), null);
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public SetACLBuilder setACL() {
-		return delegate.setACL();
+		return call(FrameworkMethod.SET_ACL, (framework, argument) -> framework.wrap(SetACLBuilder.class, framework.delegate.setACL(), Operation.SET_ACL, null), null);
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public CuratorTransaction inTransaction() {
-		return delegate.inTransaction();
+		return call(FrameworkMethod.IN_TRANSACTION, (framework, argument) -> framework.wrap(CuratorTransaction.class, framework.delegate.inTransaction(), Operation.MULTI, null), null);
 	}
 
 	@SuppressWarnings("deprecation")
 	@Override
-	@Trace(dispatcher=true)
 	public void sync(final String path, final Object backgroundContextObject) {
-		delegate.sync(path, backgroundContextObject);
+		call(FrameworkMethod.SYNC, (framework, argument) -> {
+			final CuratorEventDispatcher dispatcher = framework.getCuratorEventDispatcher();
+			if(dispatcher == null) {
+				framework.delegate.sync(argument, backgroundContextObject);
+			} else {
+				dispatcher.sync(framework.delegate, argument, backgroundContextObject);
+			}
+			return null;
+		}, path);
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public SyncBuilder sync() {
-		return delegate.sync();
+		return call(FrameworkMethod.SYNC_BUILDER, (framework, argument) -> {
+			final CuratorEventDispatcher dispatcher = framework.getCuratorEventDispatcher();
+			return dispatcher == null ? framework.delegate.sync() : dispatcher.wrap(framework.delegate.sync());
+		}, null);
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public Listenable<ConnectionStateListener> getConnectionStateListenable() {
-		return delegate.getConnectionStateListenable();
+		return call(FrameworkMethod.GET_CONNECTION_STATE_LISTENABLE, (framework, argument) -> framework.delegate.getConnectionStateListenable(), null);
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public Listenable<CuratorListener> getCuratorListenable() {
-		return delegate.getCuratorListenable();
+		return call(FrameworkMethod.GET_CURATOR_LISTENABLE, (framework, argument) -> framework.delegate.getCuratorListenable(), null);
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public Listenable<UnhandledErrorListener> getUnhandledErrorListenable() {
-		return delegate.getUnhandledErrorListenable();
+		return call(FrameworkMethod.GET_UNHANDLED_ERROR_LISTENABLE, (framework, argument) -> framework.delegate.getUnhandledErrorListenable(), null);
 	}
 
 	@SuppressWarnings("deprecation")
 	@Override
-	@Trace(dispatcher=true)
 	public CuratorFramework nonNamespaceView() {
-		return delegate.nonNamespaceView();
+		return call(FrameworkMethod.NON_NAMESPACE_VIEW, (framework, argument) -> framework.doNonNamespaceView(), null);
+	}
+
+	/**
+	 * Returns the instrumented non-namespaced view of the root framework, creating it on first use.
+	 * @return The instrumented non-namespaced view.
+	 */
+	@SuppressWarnings("deprecation")
+	private CuratorFramework doNonNamespaceView() {
+		final NewRelicWrappedCuratorFrameworkImpl view = views.get(NO_NAMESPACE);
+		return view != null ? view : cacheView(NO_NAMESPACE, root.delegate.nonNamespaceView());
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public CuratorFramework usingNamespace(final String newNamespace) {
-		return delegate.usingNamespace(newNamespace);
+		return call(FrameworkMethod.USING_NAMESPACE, (framework, argument) -> framework.doUsingNamespace(argument), newNamespace);
+	}
+
+	/**
+	 * Returns the instrumented view of the root framework for the provided namespace, creating it on first use.
+	 * @param newNamespace The namespace or {@code null} for the non-namespaced view.
+	 * @return The instrumented namespace view.
+	 */
+	private CuratorFramework doUsingNamespace(final String newNamespace) {
+		if(newNamespace == null) {
+			return doNonNamespaceView();
+		}
+		final NewRelicWrappedCuratorFrameworkImpl view = views.get(newNamespace);
+		return view != null ? view : cacheView(newNamespace, root.delegate.usingNamespace(newNamespace));
+	}
+
+	/**
+	 * Wraps and caches a namespace view of the root framework, unless another thread has already done so.
+	 * @param namespace The key of the view.
+	 * @param view The delegate namespace view.
+	 * @return The cached instrumented view.
+	 */
+	private CuratorFramework cacheView(final String namespace, final CuratorFramework view) {
+		final NewRelicWrappedCuratorFrameworkImpl wrapped = new NewRelicWrappedCuratorFrameworkImpl(view, policy, root);
+		final NewRelicWrappedCuratorFrameworkImpl existing = views.putIfAbsent(namespace, wrapped);
+		return existing == null ? wrapped : existing;
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public String getNamespace() {
-		return delegate.getNamespace();
+		return call(FrameworkMethod.GET_NAMESPACE, (framework, argument) -> framework.delegate.getNamespace(), null);
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public CuratorZookeeperClient getZookeeperClient() {
-		try {
-			return new NewRelicWrappedCuratorZookeeperClient(delegate.getZookeeperClient());
-		} catch(final Exception e) {
-			return delegate.getZookeeperClient();
+		return call(FrameworkMethod.GET_ZOOKEEPER_CLIENT, (framework, argument) -> framework.doGetZookeeperClient(), null);
+	}
+
+	/**
+	 * Returns the wrapped {@link CuratorZookeeperClient} of the root framework, creating it on first use.
+	 * @return The wrapped {@link CuratorZookeeperClient}.
+	 */
+	private CuratorZookeeperClient doGetZookeeperClient() {
+		if(root != this) {
+			return root.doGetZookeeperClient();
+		}
+		CuratorZookeeperClient client = zookeeperClient;
+		if(client == null) {
+			synchronized(this) {
+				client = zookeeperClient;
+				if(client == null) {
+					client = new NewRelicWrappedCuratorZookeeperClient(delegate.getZookeeperClient());
+					zookeeperClient = client;
+				}
+			}
 		}
+		return client;
 	}
 
 	@Override
-	@Trace(dispatcher=true)
 	public EnsurePath newNamespaceAwareEnsurePath(final String path) {
-		return delegate.newNamespaceAwareEnsurePath(path);
+		return call(FrameworkMethod.NEW_NAMESPACE_AWARE_ENSURE_PATH, (framework, argument) -> framework.delegate.newNamespaceAwareEnsurePath(argument), path);
+	}
+
+	/**
+	 * Wraps an operation builder of the delegate so that the operation that it builds is instrumented.
+	 * @param type The builder interface.
+	 * @param builder The delegate builder.
+	 * @param operation The operation performed by the builder.
+	 * @param cache The view of the node cache used by the builder or {@code null}.
+	 * @return The instrumented builder.
+	 */
+	private <T> T wrap(final Class<T> type, final T builder, final Operation operation, final NodeDataCache.View cache) {
+		return NewRelicWrappedBuilder.wrap(type, builder, operation, policy.getSampler(), cache, getCuratorEventDispatcher());
+	}
+
+	/**
+	 * Returns the {@link CuratorEventDispatcher} that delivers the events of the operations of the framework to the
+	 * {@link CuratorListener}s added through it, or {@code null} if they are delivered to the listeners of the delegate.
+	 * Namespace views use the dispatcher of their root framework.
+	 * @return The dispatcher or {@code null}.
+	 */
+	CuratorEventDispatcher getCuratorEventDispatcher() {
+		return root == this ? null : root.getCuratorEventDispatcher();
+	}
+
+	/**
+	 * Invokes a method of the framework, starting a transaction or recording a segment named after
+	 * the method according to its {@link TraceMode}.  Methods that are not traced are invoked directly.
+	 * The calls passed by the methods of the framework capture nothing, so untraced methods allocate
+	 * nothing, with the exception of the deprecated {@link #sync(String, Object)}, whose call captures
+	 * its background context and is therefore allocated on each invocation.
+	 * @param method The method.
+	 * @param call The body of the method.
+	 * @param argument The argument passed to the body of the method.
+	 * @return The result of the method.
+	 */
+	private <A, T> T call(final FrameworkMethod method, final Call<A, T> call, final A argument) {
+		final TraceMode traceMode = policy.getTraceMode(method);
+		if(traceMode == TraceMode.NONE) {
+			return call.call(this, argument);
+		}
+		final boolean dispatcher = traceMode == TraceMode.DISPATCHER;
+		switch(method) {
+			case START:
+				return dispatcher ? dispatchStart(call, argument) : traceStart(call, argument);
+			case CLOSE:
+				return dispatcher ? dispatchClose(call, argument) : traceClose(call, argument);
+			case GET_STATE:
+				return dispatcher ? dispatchGetState(call, argument) : traceGetState(call, argument);
+			case IS_STARTED:
+				return dispatcher ? dispatchIsStarted(call, argument) : traceIsStarted(call, argument);
+			case CREATE:
+				return dispatcher ? dispatchCreate(call, argument) : traceCreate(call, argument);
+			case DELETE:
+				return dispatcher ? dispatchDelete(call, argument) : traceDelete(call, argument);
+			case CHECK_EXISTS:
+				return dispatcher ? dispatchCheckExists(call, argument) : traceCheckExists(call, argument);
+			case GET_DATA:
+				return dispatcher ? dispatchGetData(call, argument) : traceGetData(call, argument);
+			case SET_DATA:
+				return dispatcher ? dispatchSetData(call, argument) : traceSetData(call, argument);
+			case GET_CHILDREN:
+				return dispatcher ? dispatchGetChildren(call, argument) : traceGetChildren(call, argument);
+			case GET_ACL:
+				return dispatcher ? dispatchGetACL(call, argument) : traceGetACL(call, argument);
+			case SET_ACL:
+				return dispatcher ? dispatchSetACL(call, argument) : traceSetACL(call, argument);
+			case IN_TRANSACTION:
+				return dispatcher ? dispatchInTransaction(call, argument) : traceInTransaction(call, argument);
+			case SYNC:
+				return dispatcher ? dispatchSync(call, argument) : traceSync(call, argument);
+			case SYNC_BUILDER:
+				return dispatcher ? dispatchSyncBuilder(call, argument) : traceSyncBuilder(call, argument);
+			case GET_CONNECTION_STATE_LISTENABLE:
+				return dispatcher ? dispatchGetConnectionStateListenable(call, argument) : traceGetConnectionStateListenable(call, argument);
+			case GET_CURATOR_LISTENABLE:
+				return dispatcher ? dispatchGetCuratorListenable(call, argument) : traceGetCuratorListenable(call, argument);
+			case GET_UNHANDLED_ERROR_LISTENABLE:
+				return dispatcher ? dispatchGetUnhandledErrorListenable(call, argument) : traceGetUnhandledErrorListenable(call, argument);
+			case NON_NAMESPACE_VIEW:
+				return dispatcher ? dispatchNonNamespaceView(call, argument) : traceNonNamespaceView(call, argument);
+			case USING_NAMESPACE:
+				return dispatcher ? dispatchUsingNamespace(call, argument) : traceUsingNamespace(call, argument);
+			case GET_NAMESPACE:
+				return dispatcher ? dispatchGetNamespace(call, argument) : traceGetNamespace(call, argument);
+			case GET_ZOOKEEPER_CLIENT:
+				return dispatcher ? dispatchGetZookeeperClient(call, argument) : traceGetZookeeperClient(call, argument);
+			case NEW_NAMESPACE_AWARE_ENSURE_PATH:
+				return dispatcher ? dispatchNewNamespaceAwareEnsurePath(call, argument) : traceNewNamespaceAwareEnsurePath(call, argument);
+			default:
+				return call.call(this, argument);
+		}
+	}
+
+	/*
+	 * The New Relic agent only names a transaction or segment after the @Trace annotation of the
+	 * traced method, so each method of the framework needs its own pair of annotated methods below.
+	 * They are selected by the single switch of call(FrameworkMethod, Call, Object).
+	 */
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/start")
+	private <A, T> T dispatchStart(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/close")
+	private <A, T> T dispatchClose(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/getState")
+	private <A, T> T dispatchGetState(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/isStarted")
+	private <A, T> T dispatchIsStarted(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/create")
+	private <A, T> T dispatchCreate(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/delete")
+	private <A, T> T dispatchDelete(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/checkExists")
+	private <A, T> T dispatchCheckExists(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/getData")
+	private <A, T> T dispatchGetData(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/setData")
+	private <A, T> T dispatchSetData(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/getChildren")
+	private <A, T> T dispatchGetChildren(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/getACL")
+	private <A, T> T dispatchGetACL(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/setACL")
+	private <A, T> T dispatchSetACL(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/inTransaction")
+	private <A, T> T dispatchInTransaction(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/sync")
+	private <A, T> T dispatchSync(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/syncBuilder")
+	private <A, T> T dispatchSyncBuilder(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/getConnectionStateListenable")
+	private <A, T> T dispatchGetConnectionStateListenable(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/getCuratorListenable")
+	private <A, T> T dispatchGetCuratorListenable(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/getUnhandledErrorListenable")
+	private <A, T> T dispatchGetUnhandledErrorListenable(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/nonNamespaceView")
+	private <A, T> T dispatchNonNamespaceView(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/usingNamespace")
+	private <A, T> T dispatchUsingNamespace(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/getNamespace")
+	private <A, T> T dispatchGetNamespace(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/getZookeeperClient")
+	private <A, T> T dispatchGetZookeeperClient(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Framework/newNamespaceAwareEnsurePath")
+	private <A, T> T dispatchNewNamespaceAwareEnsurePath(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/start")
+	private <A, T> T traceStart(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/close")
+	private <A, T> T traceClose(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/getState")
+	private <A, T> T traceGetState(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/isStarted")
+	private <A, T> T traceIsStarted(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/create")
+	private <A, T> T traceCreate(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/delete")
+	private <A, T> T traceDelete(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/checkExists")
+	private <A, T> T traceCheckExists(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/getData")
+	private <A, T> T traceGetData(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/setData")
+	private <A, T> T traceSetData(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/getChildren")
+	private <A, T> T traceGetChildren(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/getACL")
+	private <A, T> T traceGetACL(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/setACL")
+	private <A, T> T traceSetACL(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/inTransaction")
+	private <A, T> T traceInTransaction(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/sync")
+	private <A, T> T traceSync(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/syncBuilder")
+	private <A, T> T traceSyncBuilder(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/getConnectionStateListenable")
+	private <A, T> T traceGetConnectionStateListenable(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/getCuratorListenable")
+	private <A, T> T traceGetCuratorListenable(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/getUnhandledErrorListenable")
+	private <A, T> T traceGetUnhandledErrorListenable(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/nonNamespaceView")
+	private <A, T> T traceNonNamespaceView(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/usingNamespace")
+	private <A, T> T traceUsingNamespace(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/getNamespace")
+	private <A, T> T traceGetNamespace(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/getZookeeperClient")
+	private <A, T> T traceGetZookeeperClient(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	@Trace(metricName="Curator/Framework/newNamespaceAwareEnsurePath")
+	private <A, T> T traceNewNamespaceAwareEnsurePath(final Call<A, T> call, final A argument) {
+		return call.call(this, argument);
+	}
+
+	/**
+	 * The body of a method of the framework.  The framework is passed to the body, rather than captured by it,
+	 * so that each body is a constant.
+	 * @param <A> The type of the argument of the body.
+	 * @param <T> The type of the result of the method.
+	 */
+	private interface Call<A, T> {
+
+		/**
+		 * Executes the body of the method.
+		 * @param framework The framework on which the method was invoked.
+		 * @param argument The argument of the body or {@code null} if it has none.
+		 * @return The result of the method.
+		 */
+		T call(NewRelicWrappedCuratorFrameworkImpl framework, A argument);
 	}
-}
\ No newline at end of file
+}
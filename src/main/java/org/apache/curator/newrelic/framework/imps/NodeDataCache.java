@@ -0,0 +1,387 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.imps;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.newrelic.metrics.CacheRecorder;
+import org.apache.curator.newrelic.metrics.CacheRecorder.Invalidation;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Bounded, read-through cache of the data and {@link Stat} of the nodes read through the {@code getData()} builder of
+ * a {@link NewRelicWrappedCuratorFrameworkImpl}.  A node is loaded with a watch the first time it is read, and is then
+ * served from the cache until the watch reports that the node has changed or been deleted, the node is written through
+ * the same client, or the connection to the ensemble is lost.  Looking up a cached node is a single hash lookup that
+ * does not allocate, and the cached data is returned as is, so callers must not modify it.
+ * <p>
+ * A single cache is shared by a framework and all of its namespace views, so that its bounds apply to the framework
+ * as a whole.  Nodes are cached by their full path, regardless of namespace, and each view accesses the cache through
+ * a {@link View} that adds its namespace to the paths that it is given, so that a write through one view invalidates
+ * the node read through any other.
+ * <p>
+ * The cache is bounded by both the number of entries and the total size of their data.  Entries are evicted
+ * in approximately least recently used order using the CLOCK algorithm: a hit only marks the entry as referenced,
+ * and the eviction hand, which only moves when an entry is added, evicts the first unreferenced entry it finds.
+ * The effectiveness of the cache is reported with the {@link CacheRecorder}.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see CacheRecorder
+ */
+final class NodeDataCache implements Watcher {
+
+	/**
+	 * The framework from which nodes are loaded, through its non-namespaced view.
+	 */
+	private final CuratorFramework framework;
+
+	/**
+	 * Maximum number of entries.
+	 */
+	private final int maxEntries;
+
+	/**
+	 * Maximum total size of the data of the entries in bytes.
+	 */
+	private final long maxBytes;
+
+	/**
+	 * The cached entries by path, including the placeholders of entries that are being loaded.
+	 */
+	private final ConcurrentMap<String, Entry> entries;
+
+	/**
+	 * Number of loaded entries.
+	 */
+	private final AtomicLong entryCount = new AtomicLong();
+
+	/**
+	 * Total size of the data of the loaded entries in bytes.
+	 */
+	private final AtomicLong byteCount = new AtomicLong();
+
+	/**
+	 * The eviction hand.  Guarded by {@code this}.
+	 */
+	private Iterator<Map.Entry<String, Entry>> hand;
+
+	/**
+	 * Creates a new {@code NodeDataCache}.
+	 * @param framework The framework from which nodes are loaded, whatever its namespace.
+	 * @param maxEntries The maximum number of entries (must be positive).
+	 * @param maxBytes The maximum total size of the data of the entries in bytes (must be positive).
+	 */
+	NodeDataCache(final CuratorFramework framework, final int maxEntries, final long maxBytes) {
+		this.framework = framework;
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.entries = new ConcurrentHashMap<String, Entry>(Math.min(maxEntries, 1024));
+	}
+
+	/**
+	 * Returns a view of the cache for the provided namespace.
+	 * @param namespace The namespace, or {@code null} or an empty string for no namespace.
+	 * @return The view.
+	 */
+	View forNamespace(final String namespace) {
+		return new View(this, namespace == null || namespace.isEmpty() ? null : namespace);
+	}
+
+	/**
+	 * Returns the cached entry of the provided path, marking it as recently used.
+	 * @param path The full path of the node.
+	 * @return The entry or {@code null} if the node is not cached.
+	 */
+	Entry get(final String path) {
+		final Entry entry = entries.get(path);
+		if(entry == null || !entry.loaded) {
+			CacheRecorder.getInstance().recordMiss();
+			return null;
+		}
+		if(!entry.referenced) {
+			entry.referenced = true;
+		}
+		CacheRecorder.getInstance().recordHit();
+		return entry;
+	}
+
+	/**
+	 * Reads the provided path from the ensemble, setting a watch that invalidates the cached entry, and caches the result.
+	 * The result is not cached if the node is invalidated while it is being read, or if another thread is already
+	 * loading the same node.
+	 * @param path The full path of the node.
+	 * @param stat The {@link Stat} to populate with the {@link Stat} of the node, or {@code null}.
+	 * @return The data of the node.
+	 * @throws Exception if the node cannot be read.
+	 */
+	@SuppressWarnings("deprecation")
+	byte[] load(final String path, final Stat stat) throws Exception {
+		final Entry placeholder = new Entry(null, null);
+		final Entry existing = entries.putIfAbsent(path, placeholder);
+		if(existing != null && existing.loaded) {
+			copy(existing.stat, stat);
+			return existing.data;
+		}
+
+		final Stat loadedStat = new Stat();
+		final byte[] data;
+		try {
+			data = framework.nonNamespaceView().getData().storingStatIn(loadedStat).usingWatcher(this).forPath(path);
+		} catch(final Exception e) {
+			if(existing == null) {
+				entries.remove(path, placeholder);
+			}
+			throw e;
+		}
+
+		if(existing == null) {
+			final Entry entry = new Entry(data, loadedStat);
+			if(entries.replace(path, placeholder, entry)) {
+				entryCount.incrementAndGet();
+				byteCount.addAndGet(entry.size);
+				CacheRecorder.getInstance().recordInsert(entry.size);
+				evict();
+			}
+		}
+		copy(loadedStat, stat);
+		return data;
+	}
+
+	/**
+	 * Invalidates the cached entry of the provided path, if any.
+	 * @param path The full path of the node.
+	 * @param invalidation The reason for which the entry is invalidated.
+	 */
+	void invalidate(final String path, final Invalidation invalidation) {
+		final Entry entry = entries.remove(path);
+		if(entry != null && entry.loaded) {
+			removed(entry);
+			CacheRecorder.getInstance().recordInvalidation(invalidation, entry.size, System.nanoTime() - entry.loadedNanos);
+		}
+	}
+
+	/**
+	 * Invalidates every cached entry.
+	 * @param invalidation The reason for which the entries are invalidated.
+	 */
+	void invalidateAll(final Invalidation invalidation) {
+		for(final String path : entries.keySet()) {
+			invalidate(path, invalidation);
+		}
+	}
+
+	/**
+	 * Removes every cached entry without recording an invalidation, as when the framework is closed.
+	 */
+	void clear() {
+		for(final String path : entries.keySet()) {
+			final Entry entry = entries.remove(path);
+			if(entry != null && entry.loaded) {
+				removed(entry);
+				CacheRecorder.getInstance().recordRemoval(entry.size);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of cached entries.
+	 * @return The number of entries.
+	 */
+	long size() {
+		return entryCount.get();
+	}
+
+	@Override
+	public void process(final WatchedEvent event) {
+		if(event.getType() == Event.EventType.None) {
+			if(event.getState() != Event.KeeperState.SyncConnected) {
+				invalidateAll(Invalidation.CONNECTION);
+			}
+		} else if(event.getPath() != null) {
+			invalidate(event.getPath(), Invalidation.WATCH);
+		}
+	}
+
+	/**
+	 * Evicts entries until the cache is within its bounds.
+	 */
+	private synchronized void evict() {
+		int scanned = 0;
+		final int maxScanned = 2 * entries.size() + 1;
+		while((entryCount.get() > maxEntries || byteCount.get() > maxBytes) && scanned++ < maxScanned) {
+			if(hand == null || !hand.hasNext()) {
+				hand = entries.entrySet().iterator();
+				if(!hand.hasNext()) {
+					return;
+				}
+			}
+			final Map.Entry<String, Entry> candidate = hand.next();
+			final Entry entry = candidate.getValue();
+			if(!entry.loaded) {
+				continue;
+			} else if(entry.referenced) {
+				entry.referenced = false;
+			} else if(entries.remove(candidate.getKey(), entry)) {
+				removed(entry);
+				CacheRecorder.getInstance().recordEviction(entry.size);
+			}
+		}
+	}
+
+	/**
+	 * Accounts for the removal of a loaded entry.
+	 * @param entry The removed entry.
+	 */
+	private void removed(final Entry entry) {
+		entryCount.decrementAndGet();
+		byteCount.addAndGet(-entry.size);
+	}
+
+	/**
+	 * Copies the fields of a {@link Stat}.
+	 * @param from The source {@link Stat}.
+	 * @param to The destination {@link Stat} or {@code null}.
+	 */
+	static void copy(final Stat from, final Stat to) {
+		if(to != null) {
+			to.setCzxid(from.getCzxid());
+			to.setMzxid(from.getMzxid());
+			to.setCtime(from.getCtime());
+			to.setMtime(from.getMtime());
+			to.setVersion(from.getVersion());
+			to.setCversion(from.getCversion());
+			to.setAversion(from.getAversion());
+			to.setEphemeralOwner(from.getEphemeralOwner());
+			to.setDataLength(from.getDataLength());
+			to.setNumChildren(from.getNumChildren());
+			to.setPzxid(from.getPzxid());
+		}
+	}
+
+	/**
+	 * The cache as seen from a namespace, to which the paths given to a framework in that namespace are relative.
+	 */
+	static final class View {
+
+		/**
+		 * The shared cache.
+		 */
+		private final NodeDataCache cache;
+
+		/**
+		 * The namespace or {@code null} for no namespace.
+		 */
+		private final String namespace;
+
+		private View(final NodeDataCache cache, final String namespace) {
+			this.cache = cache;
+			this.namespace = namespace;
+		}
+
+		/**
+		 * Returns the shared cache.
+		 * @return The cache.
+		 */
+		NodeDataCache getCache() {
+			return cache;
+		}
+
+		/**
+		 * Returns the cached entry of the provided path.
+		 * @param path The path of the node within the namespace.
+		 * @return The entry or {@code null} if the node is not cached.
+		 * @see NodeDataCache#get(String)
+		 */
+		Entry get(final String path) {
+			return cache.get(ZKPaths.fixForNamespace(namespace, path));
+		}
+
+		/**
+		 * Reads and caches the provided path.
+		 * @param path The path of the node within the namespace.
+		 * @param stat The {@link Stat} to populate with the {@link Stat} of the node, or {@code null}.
+		 * @return The data of the node.
+		 * @throws Exception if the node cannot be read.
+		 * @see NodeDataCache#load(String, Stat)
+		 */
+		byte[] load(final String path, final Stat stat) throws Exception {
+			return cache.load(ZKPaths.fixForNamespace(namespace, path), stat);
+		}
+
+		/**
+		 * Invalidates the cached entry of the provided path, if any.
+		 * @param path The path of the node within the namespace.
+		 * @param invalidation The reason for which the entry is invalidated.
+		 * @see NodeDataCache#invalidate(String, Invalidation)
+		 */
+		void invalidate(final String path, final Invalidation invalidation) {
+			cache.invalidate(ZKPaths.fixForNamespace(namespace, path), invalidation);
+		}
+	}
+
+	/**
+	 * A cached node, or the placeholder of a node that is being loaded.
+	 */
+	static final class Entry {
+
+		/**
+		 * The data of the node.
+		 */
+		final byte[] data;
+
+		/**
+		 * The {@link Stat} of the node.
+		 */
+		final Stat stat;
+
+		/**
+		 * The size of the data of the node in bytes.
+		 */
+		final int size;
+
+		/**
+		 * The time at which the node was loaded, as reported by {@link System#nanoTime()}.
+		 */
+		final long loadedNanos;
+
+		/**
+		 * Whether or not the node has been loaded, as opposed to being a placeholder.
+		 */
+		final boolean loaded;
+
+		/**
+		 * Whether or not the entry has been read since the eviction hand last passed it.
+		 */
+		volatile boolean referenced;
+
+		private Entry(final byte[] data, final Stat stat) {
+			this.data = data;
+			this.stat = stat;
+			this.size = data == null ? 0 : data.length;
+			this.loadedNanos = System.nanoTime();
+			this.loaded = stat != null;
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.imps;
+
+import java.util.function.Supplier;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorListener;
+import org.apache.curator.framework.api.UnhandledErrorListener;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.listen.Listenable;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.newrelic.framework.InstrumentationPolicy;
+import org.apache.curator.utils.PathUtils;
+
+/**
+ * Instrumented {@link CuratorFramework} that shares the ZooKeeper session of its connect string with the other
+ * {@code SharedCuratorFrameworkImpl} clients of that connect string, rather than opening a session, with its own
+ * threads and socket, of its own.  The shared session is reference-counted:  a client acquires it when it is started,
+ * the session being started when the first client acquires it, and releases it when it is closed, the session being
+ * closed when the last client releases it.  A client must be started before it is used.
+ * <p>
+ * Each client operates within its own namespace and has its own lifecycle, so that starting or closing one client
+ * does not affect the others.  The connection state and unhandled error listeners added through a client are added
+ * to the shared session when the client is started and removed from it when the client is closed.  The
+ * {@link CuratorListener}s added through a client only receive the events of the operations of that client, along
+ * with a {@link org.apache.curator.framework.api.CuratorEventType#CLOSING} event when the client is closed.
+ * ZooKeeper operations are attributed to each client through the paths of its namespace.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see NewRelicWrappedCuratorFrameworkImpl
+ */
+public class SharedCuratorFrameworkImpl extends NewRelicWrappedCuratorFrameworkImpl {
+
+	/**
+	 * The connect string of the shared session.
+	 */
+	private final String connectString;
+
+	/**
+	 * Creates the {@link CuratorFramework} that owns the session, if no client holds the session.
+	 */
+	private final Supplier<CuratorFramework> sessionFactory;
+
+	/**
+	 * The view through which the client operates, which forwards to the shared session once it has been acquired.
+	 */
+	private final SharedSessionView view;
+
+	/**
+	 * Guards the lifecycle of the client.
+	 */
+	private final Object lock = new Object();
+
+	/**
+	 * The state of this client, which is independent of the state of the shared session.  Written while holding
+	 * {@link #lock}.
+	 */
+	private volatile CuratorFrameworkState state = CuratorFrameworkState.LATENT;
+
+	/**
+	 * The shared session, or {@code null} if the client has not acquired it.  Guarded by {@link #lock}.
+	 */
+	private SharedSession session;
+
+	/**
+	 * The connection state listeners added through this client.
+	 */
+	private final TrackingListenable<ConnectionStateListener> connectionStateListenable = new TrackingListenable<ConnectionStateListener>();
+
+	/**
+	 * Delivers the events of the operations of this client to the listeners added through it.
+	 */
+	private final CuratorEventDispatcher curatorEventDispatcher = new CuratorEventDispatcher(this);
+
+	/**
+	 * The unhandled error listeners added through this client.
+	 */
+	private final TrackingListenable<UnhandledErrorListener> unhandledErrorListenable = new TrackingListenable<UnhandledErrorListener>();
+
+	/**
+	 * Creates a new {@code SharedCuratorFrameworkImpl}.  The session of the provided connect string is acquired
+	 * when the client is started.
+	 * @param connectString The connect string of the shared session.
+	 * @param namespace The namespace of the client or {@code null} for no namespace.
+	 * @param policy The {@link InstrumentationPolicy} of the client (may not be {@code null}).
+	 * @param sessionFactory Creates the {@link CuratorFramework} that owns the session, if no client holds the session.
+	 * 	The framework is started when the session is created, and its configuration applies to every client of the session.
+	 * @throws IllegalArgumentException if the connect string, the policy or the session factory is {@code null}, or if
+	 * 	the namespace is invalid.
+	 */
+	public SharedCuratorFrameworkImpl(final String connectString, final String namespace, final InstrumentationPolicy policy, final Supplier<CuratorFramework> sessionFactory) {
+		this(newView(connectString, namespace, sessionFactory), policy, connectString, sessionFactory);
+	}
+
+	/**
+	 * Creates a new {@code SharedCuratorFrameworkImpl}.
+	 * @param view The view through which the client operates.
+	 * @param policy The {@link InstrumentationPolicy} of the client (may not be {@code null}).
+	 * @param connectString The connect string of the shared session.
+	 * @param sessionFactory Creates the {@link CuratorFramework} that owns the session.
+	 */
+	private SharedCuratorFrameworkImpl(final SharedSessionView view, final InstrumentationPolicy policy, final String connectString, final Supplier<CuratorFramework> sessionFactory) {
+		super(view, policy);
+		this.view = view;
+		this.connectString = connectString;
+		this.sessionFactory = sessionFactory;
+	}
+
+	/**
+	 * Returns the number of clients that share the session of the provided connect string.
+	 * @param connectString The connect string.
+	 * @return The number of started clients that have not been closed, or {@code 0} if no session is open for the
+	 * 	connect string.
+	 */
+	public static int getClientCount(final String connectString) {
+		return SharedSession.getReferenceCount(connectString);
+	}
+
+	@Override
+	protected void doStart() {
+		synchronized(lock) {
+			if(state != CuratorFrameworkState.LATENT) {
+				throw new IllegalStateException("Cannot be started more than once.");
+			}
+			final SharedSession acquired = SharedSession.acquire(connectString, sessionFactory);
+			final CuratorFramework framework = view.attach(acquired);
+			connectionStateListenable.attach(framework.getConnectionStateListenable());
+			unhandledErrorListenable.attach(framework.getUnhandledErrorListenable());
+			session = acquired;
+			state = CuratorFrameworkState.STARTED;
+		}
+	}
+
+	@Override
+	protected void doClose() {
+		synchronized(lock) {
+			if(state == CuratorFrameworkState.STOPPED) {
+				return;
+			}
+			state = CuratorFrameworkState.STOPPED;
+			if(session != null) {
+				curatorEventDispatcher.close();
+				connectionStateListenable.removeAll();
+				unhandledErrorListenable.removeAll();
+				session.release();
+			}
+		}
+	}
+
+	@Override
+	public CuratorFrameworkState getState() {
+		return state;
+	}
+
+	@Override
+	public boolean isStarted() {
+		return state == CuratorFrameworkState.STARTED;
+	}
+
+	@Override
+	public Listenable<ConnectionStateListener> getConnectionStateListenable() {
+		return connectionStateListenable;
+	}
+
+	@Override
+	public Listenable<CuratorListener> getCuratorListenable() {
+		return curatorEventDispatcher;
+	}
+
+	@Override
+	public Listenable<UnhandledErrorListener> getUnhandledErrorListenable() {
+		return unhandledErrorListenable;
+	}
+
+	@Override
+	CuratorEventDispatcher getCuratorEventDispatcher() {
+		return curatorEventDispatcher;
+	}
+
+	/**
+	 * Returns the view through which a client of the provided connect string and namespace operates.
+	 * @param connectString The connect string.
+	 * @param namespace The namespace or {@code null} for no namespace.
+	 * @param sessionFactory Creates the {@link CuratorFramework} that owns the session.
+	 * @return The view.
+	 * @throws IllegalArgumentException if the connect string or the session factory is {@code null}, or if the
+	 * 	namespace is invalid.
+	 */
+	private static SharedSessionView newView(final String connectString, final String namespace, final Supplier<CuratorFramework> sessionFactory) {
+		if(connectString == null) {
+			throw new IllegalArgumentException("Connect string may not be null.");
+		}
+		if(sessionFactory == null) {
+			throw new IllegalArgumentException("Session factory may not be null.");
+		}
+		if(namespace != null) {
+			PathUtils.validatePath("/" + namespace);
+		}
+		return new SharedSessionView(namespace);
+	}
+}
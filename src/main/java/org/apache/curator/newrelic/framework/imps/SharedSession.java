@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.imps;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.apache.curator.framework.CuratorFramework;
+
+/**
+ * A started {@link CuratorFramework} that owns the ZooKeeper session shared by the {@link SharedCuratorFrameworkImpl}
+ * clients of a connect string.  The session is reference-counted:  it is created and started when the first client
+ * acquires it, and closed when the last client releases it.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see SharedCuratorFrameworkImpl
+ */
+final class SharedSession {
+
+	/**
+	 * The open sessions, keyed by connect string.  The map also guards the reference counts of the sessions.
+	 */
+	private static final Map<String, SharedSession> SESSIONS = new HashMap<String, SharedSession>();
+
+	/**
+	 * The connect string of the session.
+	 */
+	private final String connectString;
+
+	/**
+	 * The framework that owns the session.
+	 */
+	private final CuratorFramework framework;
+
+	/**
+	 * The number of clients that hold the session.  Guarded by {@link #SESSIONS}.
+	 */
+	private int references;
+
+	/**
+	 * Creates a new {@code SharedSession}.
+	 * @param connectString The connect string of the session.
+	 * @param framework The started framework that owns the session.
+	 */
+	private SharedSession(final String connectString, final CuratorFramework framework) {
+		this.connectString = connectString;
+		this.framework = framework;
+	}
+
+	/**
+	 * Acquires a reference to the session of the provided connect string, creating and starting the session if
+	 * no client holds it.
+	 * @param connectString The connect string.
+	 * @param factory Creates the framework that owns the session.  Only called if the session must be created.
+	 * @return The session.
+	 */
+	static SharedSession acquire(final String connectString, final Supplier<CuratorFramework> factory) {
+		synchronized(SESSIONS) {
+			SharedSession session = SESSIONS.get(connectString);
+			if(session == null) {
+				final CuratorFramework framework = factory.get();
+				framework.start();
+				session = new SharedSession(connectString, framework);
+				SESSIONS.put(connectString, session);
+			}
+			session.references++;
+			return session;
+		}
+	}
+
+	/**
+	 * Returns the number of clients that hold the session of the provided connect string.
+	 * @param connectString The connect string.
+	 * @return The number of clients, or {@code 0} if the session is closed.
+	 */
+	static int getReferenceCount(final String connectString) {
+		synchronized(SESSIONS) {
+			final SharedSession session = SESSIONS.get(connectString);
+			return session == null ? 0 : session.references;
+		}
+	}
+
+	/**
+	 * Returns the framework that owns the session.
+	 * @return The framework.
+	 */
+	CuratorFramework getFramework() {
+		return framework;
+	}
+
+	/**
+	 * Releases a reference to the session, closing the session if it was the last one.
+	 */
+	void release() {
+		synchronized(SESSIONS) {
+			if(--references > 0) {
+				return;
+			}
+			SESSIONS.remove(connectString);
+		}
+		framework.close();
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.imps;
+
+import org.apache.curator.CuratorZookeeperClient;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CreateBuilder;
+import org.apache.curator.framework.api.CuratorListener;
+import org.apache.curator.framework.api.DeleteBuilder;
+import org.apache.curator.framework.api.ExistsBuilder;
+import org.apache.curator.framework.api.GetACLBuilder;
+import org.apache.curator.framework.api.GetChildrenBuilder;
+import org.apache.curator.framework.api.GetDataBuilder;
+import org.apache.curator.framework.api.SetACLBuilder;
+import org.apache.curator.framework.api.SetDataBuilder;
+import org.apache.curator.framework.api.SyncBuilder;
+import org.apache.curator.framework.api.UnhandledErrorListener;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.listen.Listenable;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.EnsurePath;
+
+/**
+ * {@link CuratorFramework} that forwards to the namespace view of a {@link SharedSession} once the
+ * {@link SharedCuratorFrameworkImpl} that owns it has been started and has acquired the session, so that a client
+ * that is never started never holds the session.  Until then, only the namespace of the view is available.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see SharedCuratorFrameworkImpl
+ */
+final class SharedSessionView implements CuratorFramework {
+
+	/**
+	 * The namespace of the view or {@code null} for no namespace.
+	 */
+	private final String namespace;
+
+	/**
+	 * The namespace view of the shared session, or {@code null} if the session has not been acquired.
+	 */
+	private volatile CuratorFramework view;
+
+	/**
+	 * Creates a new {@code SharedSessionView}.
+	 * @param namespace The namespace of the view or {@code null} for no namespace.
+	 */
+	SharedSessionView(final String namespace) {
+		this.namespace = namespace;
+	}
+
+	/**
+	 * Forwards the view to the provided session.
+	 * @param session The acquired session.
+	 * @return The namespace view of the session.
+	 */
+	CuratorFramework attach(final SharedSession session) {
+		final CuratorFramework attached = session.getFramework().usingNamespace(namespace);
+		view = attached;
+		return attached;
+	}
+
+	@Override
+	public void start() {
+		getView().start();
+	}
+
+	@Override
+	public void close() {
+		getView().close();
+	}
+
+	@Override
+	public CuratorFrameworkState getState() {
+		return getView().getState();
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public boolean isStarted() {
+		return getView().isStarted();
+	}
+
+	@Override
+	public CreateBuilder create() {
+		return getView().create();
+	}
+
+	@Override
+	public DeleteBuilder delete() {
+		return getView().delete();
+	}
+
+	@Override
+	public ExistsBuilder checkExists() {
+		return getView().checkExists();
+	}
+
+	@Override
+	public GetDataBuilder getData() {
+		return getView().getData();
+	}
+
+	@Override
+	public SetDataBuilder setData() {
+		return getView().setData();
+	}
+
+	@Override
+	public GetChildrenBuilder getChildren() {
+		return getView().getChildren();
+	}
+
+	@Override
+	public GetACLBuilder getACL() {
+		return getView().getACL();
+	}
+
+	@Override
+	public SetACLBuilder setACL() {
+		return getView().setACL();
+	}
+
+	@Override
+	public CuratorTransaction inTransaction() {
+		return getView().inTransaction();
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public void sync(final String path, final Object backgroundContextObject) {
+		getView().sync(path, backgroundContextObject);
+	}
+
+	@Override
+	public SyncBuilder sync() {
+		return getView().sync();
+	}
+
+	@Override
+	public Listenable<ConnectionStateListener> getConnectionStateListenable() {
+		return getView().getConnectionStateListenable();
+	}
+
+	@Override
+	public Listenable<CuratorListener> getCuratorListenable() {
+		return getView().getCuratorListenable();
+	}
+
+	@Override
+	public Listenable<UnhandledErrorListener> getUnhandledErrorListenable() {
+		return getView().getUnhandledErrorListenable();
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public CuratorFramework nonNamespaceView() {
+		return getView().nonNamespaceView();
+	}
+
+	@Override
+	public CuratorFramework usingNamespace(final String newNamespace) {
+		return getView().usingNamespace(newNamespace);
+	}
+
+	@Override
+	public String getNamespace() {
+		return namespace;
+	}
+
+	@Override
+	public CuratorZookeeperClient getZookeeperClient() {
+		return getView().getZookeeperClient();
+	}
+
+	@Override
+	public EnsurePath newNamespaceAwareEnsurePath(final String path) {
+		return getView().newNamespaceAwareEnsurePath(path);
+	}
+
+	/**
+	 * Returns the namespace view of the shared session.
+	 * @return The view.
+	 * @throws IllegalStateException if the session has not been acquired.
+	 */
+	private CuratorFramework getView() {
+		final CuratorFramework current = view;
+		if(current == null) {
+			throw new IllegalStateException("Shared client must be started before it is used.");
+		}
+		return current;
+	}
+}
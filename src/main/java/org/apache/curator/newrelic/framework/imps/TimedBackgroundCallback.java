@@ -0,0 +1,234 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.imps;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.BackgroundCallback;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.newrelic.metrics.LatencyRecorder;
+import org.apache.curator.newrelic.metrics.Operation;
+import org.apache.curator.newrelic.metrics.OperationEvents;
+import org.apache.curator.newrelic.metrics.OperationSource;
+import org.apache.curator.newrelic.metrics.TraceSampler;
+import org.apache.zookeeper.KeeperException.Code;
+
+import com.newrelic.api.agent.NewRelic;
+import com.newrelic.api.agent.Trace;
+
+/**
+ * {@link BackgroundCallback} that records the time between the submission of a background
+ * operation and the delivery of its result, along with the result code, with the {@link LatencyRecorder}
+ * and the {@link OperationEvents} before handing the result to the delegate callback.  The delegate callback
+ * is invoked inside a <a href="http://newrelic.com">New Relic</a> transaction named after the operation, to
+ * which the latency is attached as the {@value #LATENCY_PARAMETER} parameter, if the {@link TraceSampler}
+ * decides to trace the completion.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see BackgroundCallback
+ */
+final class TimedBackgroundCallback implements BackgroundCallback {
+
+	/**
+	 * Name of the transaction parameter that holds the submission-to-callback latency in milliseconds.
+	 */
+	static final String LATENCY_PARAMETER = "curator.callbackLatencyMs";
+
+	/**
+	 * Number of nanoseconds in a millisecond.
+	 */
+	private static final float NANOS_PER_MILLISECOND = 1000000f;
+
+	/**
+	 * The delegate {@link BackgroundCallback}.
+	 */
+	private final BackgroundCallback delegate;
+
+	/**
+	 * The operation performed in the background.
+	 */
+	private final Operation operation;
+
+	/**
+	 * The {@link TraceSampler} that decides whether or not the completion is traced.
+	 */
+	private final TraceSampler sampler;
+
+	/**
+	 * The time at which the operation was submitted, as reported by {@link System#nanoTime()}.
+	 */
+	private volatile long startNanos;
+
+	/**
+	 * Whether or not the operation has been submitted.
+	 */
+	private volatile boolean started;
+
+	/**
+	 * Creates a new {@code TimedBackgroundCallback}.
+	 * @param delegate The delegate {@link BackgroundCallback}.
+	 * @param operation The operation performed in the background.
+	 * @param sampler The {@link TraceSampler} that decides whether or not the completion is traced.
+	 */
+	TimedBackgroundCallback(final BackgroundCallback delegate, final Operation operation, final TraceSampler sampler) {
+		this.delegate = delegate;
+		this.operation = operation;
+		this.sampler = sampler;
+	}
+
+	/**
+	 * Marks the submission of the background operation.
+	 */
+	void start() {
+		startNanos = System.nanoTime();
+		started = true;
+	}
+
+	/**
+	 * Marks the failure of the submission of the background operation, which has already been recorded
+	 * by the caller.  The result of an operation that failed to submit is not recorded again.
+	 */
+	void abort() {
+		started = false;
+	}
+
+	@Override
+	public void processResult(final CuratorFramework client, final CuratorEvent event) throws Exception {
+		if(!started) {
+			delegate.processResult(client, event);
+			return;
+		}
+
+		final long latencyNanos = System.nanoTime() - startNanos;
+		final Code code = Code.get(event.getResultCode());
+		LatencyRecorder.getInstance().record(OperationSource.BACKGROUND, operation, code, latencyNanos);
+		if(OperationEvents.isEnabled(latencyNanos)) {
+			OperationEvents.emit(OperationSource.BACKGROUND, operation, event.getPath(), code, latencyNanos, 0L, getPayloadSize(event));
+		}
+		final boolean traced = sampler.enter(code, latencyNanos);
+		try {
+			if(traced) {
+				trace(client, event, latencyNanos);
+			} else {
+				delegate.processResult(client, event);
+			}
+		} finally {
+			sampler.exit();
+		}
+	}
+
+	/**
+	 * Invokes the delegate callback within a transaction named after the operation.
+	 * @param client The client that performed the operation.
+	 * @param event The event of the operation.
+	 * @param latencyNanos The submission-to-callback latency in nanoseconds.
+	 * @throws Exception if the delegate callback fails.
+	 */
+	private void trace(final CuratorFramework client, final CuratorEvent event, final long latencyNanos) throws Exception {
+		switch(operation) {
+			case CREATE:
+				traceCreate(client, event, latencyNanos);
+				break;
+			case DELETE:
+				traceDelete(client, event, latencyNanos);
+				break;
+			case EXISTS:
+				traceExists(client, event, latencyNanos);
+				break;
+			case GET_DATA:
+				traceGetData(client, event, latencyNanos);
+				break;
+			case SET_DATA:
+				traceSetData(client, event, latencyNanos);
+				break;
+			case GET_CHILDREN:
+				traceGetChildren(client, event, latencyNanos);
+				break;
+			case GET_ACL:
+				traceGetACL(client, event, latencyNanos);
+				break;
+			case SET_ACL:
+				traceSetACL(client, event, latencyNanos);
+				break;
+			default:
+				delegate.processResult(client, event);
+		}
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Callback/create")
+	private void traceCreate(final CuratorFramework client, final CuratorEvent event, final long latencyNanos) throws Exception {
+		traced(client, event, latencyNanos);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Callback/delete")
+	private void traceDelete(final CuratorFramework client, final CuratorEvent event, final long latencyNanos) throws Exception {
+		traced(client, event, latencyNanos);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Callback/exists")
+	private void traceExists(final CuratorFramework client, final CuratorEvent event, final long latencyNanos) throws Exception {
+		traced(client, event, latencyNanos);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Callback/getData")
+	private void traceGetData(final CuratorFramework client, final CuratorEvent event, final long latencyNanos) throws Exception {
+		traced(client, event, latencyNanos);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Callback/setData")
+	private void traceSetData(final CuratorFramework client, final CuratorEvent event, final long latencyNanos) throws Exception {
+		traced(client, event, latencyNanos);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Callback/getChildren")
+	private void traceGetChildren(final CuratorFramework client, final CuratorEvent event, final long latencyNanos) throws Exception {
+		traced(client, event, latencyNanos);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Callback/getACL")
+	private void traceGetACL(final CuratorFramework client, final CuratorEvent event, final long latencyNanos) throws Exception {
+		traced(client, event, latencyNanos);
+	}
+
+	@Trace(dispatcher=true, metricName="Curator/Callback/setACL")
+	private void traceSetACL(final CuratorFramework client, final CuratorEvent event, final long latencyNanos) throws Exception {
+		traced(client, event, latencyNanos);
+	}
+
+	/**
+	 * Attaches the submission-to-callback latency to the current transaction and invokes the delegate callback.
+	 * @param client The client that performed the operation.
+	 * @param event The event of the operation.
+	 * @param latencyNanos The submission-to-callback latency in nanoseconds.
+	 * @throws Exception if the delegate callback fails.
+	 */
+	private void traced(final CuratorFramework client, final CuratorEvent event, final long latencyNanos) throws Exception {
+		NewRelic.addCustomParameter(LATENCY_PARAMETER, latencyNanos / NANOS_PER_MILLISECOND);
+		delegate.processResult(client, event);
+	}
+
+	/**
+	 * Returns the size of the payload read by the operation.
+	 * @param event The event of the operation.
+	 * @return The size of the payload in bytes, or {@value OperationEvents#NO_PAYLOAD} if the operation reads no payload.
+	 */
+	private static int getPayloadSize(final CuratorEvent event) {
+		if(event.getData() != null) {
+			return OperationEvents.getPayloadSize(event.getData());
+		}
+		return event.getChildren() != null ? OperationEvents.getPayloadSize(event.getChildren()) : OperationEvents.NO_PAYLOAD;
+	}
+}
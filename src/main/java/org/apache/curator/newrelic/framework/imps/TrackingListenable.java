@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.imps;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.apache.curator.framework.listen.Listenable;
+
+/**
+ * {@link Listenable} that remembers the listeners added through it, so that the listeners added before the client
+ * that owns it is started can be added to the delegate {@link Listenable} once the client has acquired it, and so
+ * that they can all be removed from the delegate when the client is closed.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @param <T> The type of the listeners.
+ * @see SharedCuratorFrameworkImpl
+ */
+final class TrackingListenable<T> implements Listenable<T> {
+
+	/**
+	 * The listeners added through this {@link Listenable}, along with their {@link Executor}, or {@code null} for
+	 * listeners added without one.
+	 */
+	private final Map<T, Executor> listeners = new LinkedHashMap<T, Executor>();
+
+	/**
+	 * The delegate {@link Listenable}, or {@code null} if the client has not acquired it.
+	 */
+	private Listenable<T> delegate;
+
+	@Override
+	public synchronized void addListener(final T listener) {
+		listeners.put(listener, null);
+		if(delegate != null) {
+			delegate.addListener(listener);
+		}
+	}
+
+	@Override
+	public synchronized void addListener(final T listener, final Executor executor) {
+		listeners.put(listener, executor);
+		if(delegate != null) {
+			delegate.addListener(listener, executor);
+		}
+	}
+
+	@Override
+	public synchronized void removeListener(final T listener) {
+		listeners.remove(listener);
+		if(delegate != null) {
+			delegate.removeListener(listener);
+		}
+	}
+
+	/**
+	 * Adds the listeners added through this {@link Listenable} to the provided delegate, to which the listeners
+	 * added from now on are also added.
+	 * @param delegate The delegate {@link Listenable}.
+	 */
+	synchronized void attach(final Listenable<T> delegate) {
+		this.delegate = delegate;
+		for(final Map.Entry<T, Executor> entry : listeners.entrySet()) {
+			if(entry.getValue() == null) {
+				delegate.addListener(entry.getKey());
+			} else {
+				delegate.addListener(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Removes all of the listeners added through this {@link Listenable} from the delegate.
+	 */
+	synchronized void removeAll() {
+		if(delegate != null) {
+			for(final T listener : listeners.keySet()) {
+				delegate.removeListener(listener);
+			}
+		}
+		listeners.clear();
+	}
+}
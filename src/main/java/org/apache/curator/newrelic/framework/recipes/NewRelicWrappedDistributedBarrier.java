@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.recipes;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.barriers.DistributedBarrier;
+import org.apache.curator.newrelic.metrics.RecipeRecorder;
+import org.apache.curator.newrelic.metrics.RecipeRecorder.Event;
+import org.apache.curator.newrelic.metrics.RecipeRecorder.Measure;
+
+import com.newrelic.api.agent.Trace;
+
+/**
+ * Instrumented version of the {@link DistributedBarrier} recipe.  Operations on the barrier take part in
+ * <a href="http://newrelic.com">New Relic</a> transaction traces, and the time spent waiting on the barrier and
+ * the number of waits that timed out are recorded with the {@link RecipeRecorder} per barrier path.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see DistributedBarrier
+ * @see RecipeRecorder
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public class NewRelicWrappedDistributedBarrier extends DistributedBarrier {
+
+	/**
+	 * The path of the barrier.
+	 */
+	private final String path;
+
+	/**
+	 * The recorder of the barrier metrics.
+	 */
+	private final RecipeRecorder recorder;
+
+	/**
+	 * Creates a new {@code NewRelicWrappedDistributedBarrier} that records with the shared {@link RecipeRecorder}.
+	 * @param client The client.
+	 * @param barrierPath The path of the barrier.
+	 */
+	public NewRelicWrappedDistributedBarrier(final CuratorFramework client, final String barrierPath) {
+		this(client, barrierPath, RecipeRecorder.getInstance());
+	}
+
+	/**
+	 * Creates a new {@code NewRelicWrappedDistributedBarrier}.
+	 * @param client The client.
+	 * @param barrierPath The path of the barrier.
+	 * @param recorder The recorder of the barrier metrics.
+	 * @throws IllegalArgumentException if the recorder is {@code null}.
+	 */
+	public NewRelicWrappedDistributedBarrier(final CuratorFramework client, final String barrierPath, final RecipeRecorder recorder) {
+		super(client, barrierPath);
+		if(recorder == null) {
+			throw new IllegalArgumentException("Recipe recorder may not be null.");
+		}
+		this.path = barrierPath;
+		this.recorder = recorder;
+	}
+
+	@Override
+	@Trace(metricName="Curator/Recipes/DistributedBarrier/setBarrier")
+	public synchronized void setBarrier() throws Exception {
+		super.setBarrier();
+	}
+
+	@Override
+	@Trace(metricName="Curator/Recipes/DistributedBarrier/removeBarrier")
+	public synchronized void removeBarrier() throws Exception {
+		super.removeBarrier();
+	}
+
+	@Override
+	@Trace(metricName="Curator/Recipes/DistributedBarrier/waitOnBarrier")
+	public synchronized void waitOnBarrier() throws Exception {
+		final long start = System.nanoTime();
+		try {
+			super.waitOnBarrier();
+		} finally {
+			recorder.record(Measure.BARRIER_WAIT, path, System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	@Trace(metricName="Curator/Recipes/DistributedBarrier/waitOnBarrier")
+	public synchronized boolean waitOnBarrier(final long maxWait, final TimeUnit unit) throws Exception {
+		final long start = System.nanoTime();
+		final boolean released;
+		try {
+			released = super.waitOnBarrier(maxWait, unit);
+		} finally {
+			recorder.record(Measure.BARRIER_WAIT, path, System.nanoTime() - start);
+		}
+		if(!released) {
+			recorder.record(Event.BARRIER_TIMEOUT, path);
+		}
+		return released;
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.recipes;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.locks.InterProcessMutex;
+import org.apache.curator.newrelic.metrics.RecipeRecorder;
+import org.apache.curator.newrelic.metrics.RecipeRecorder.Event;
+import org.apache.curator.newrelic.metrics.RecipeRecorder.Measure;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.newrelic.api.agent.Trace;
+
+/**
+ * Instrumented version of the {@link InterProcessMutex} recipe.  Acquisitions and releases take part in
+ * <a href="http://newrelic.com">New Relic</a> transaction traces as single segments rather than as the series of
+ * ZooKeeper calls that implement them, and the following are recorded with the {@link RecipeRecorder} per lock
+ * path:
+ * <ul>
+ * 	<li>the time spent acquiring the lock, whether or not the acquisition succeeded;</li>
+ * 	<li>the time for which the lock was held, from its first acquisition by a thread to its last release;</li>
+ * 	<li>the number of acquisitions that timed out;</li>
+ * 	<li>the number of participants queued under the lock node, sampled after an acquisition at most once per
+ * 		{@value #QUEUE_DEPTH_SAMPLE_INTERVAL_MS} milliseconds, as each sample lists the lock node.</li>
+ * </ul>
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see InterProcessMutex
+ * @see RecipeRecorder
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public class NewRelicWrappedInterProcessMutex extends InterProcessMutex {
+
+	/**
+	 * Minimum interval, in milliseconds, between two samples of the queue depth of a lock.
+	 */
+	public static final long QUEUE_DEPTH_SAMPLE_INTERVAL_MS = 1000;
+
+	/**
+	 * Logger for failures to sample the queue depth.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(NewRelicWrappedInterProcessMutex.class);
+
+	/**
+	 * The path of the lock.
+	 */
+	private final String path;
+
+	/**
+	 * The recorder of the lock metrics.
+	 */
+	private final RecipeRecorder recorder;
+
+	/**
+	 * The thread that holds the lock or {@code null}.
+	 */
+	private volatile Thread owner;
+
+	/**
+	 * The number of times that the owner has acquired the lock without releasing it.  Only accessed by the owner.
+	 */
+	private int holdCount;
+
+	/**
+	 * The time at which the owner first acquired the lock, as reported by {@link System#nanoTime()}.  Only accessed by the owner.
+	 */
+	private long acquiredNanos;
+
+	/**
+	 * The time at which the queue depth was last sampled, as reported by {@link System#nanoTime()}.
+	 */
+	private volatile long sampledNanos = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(QUEUE_DEPTH_SAMPLE_INTERVAL_MS);
+
+	/**
+	 * Creates a new {@code NewRelicWrappedInterProcessMutex} that records with the shared {@link RecipeRecorder}.
+	 * @param client The client.
+	 * @param path The path of the lock.
+	 */
+	public NewRelicWrappedInterProcessMutex(final CuratorFramework client, final String path) {
+		this(client, path, RecipeRecorder.getInstance());
+	}
+
+	/**
+	 * Creates a new {@code NewRelicWrappedInterProcessMutex}.
+	 * @param client The client.
+	 * @param path The path of the lock.
+	 * @param recorder The recorder of the lock metrics.
+	 * @throws IllegalArgumentException if the recorder is {@code null}.
+	 */
+	public NewRelicWrappedInterProcessMutex(final CuratorFramework client, final String path, final RecipeRecorder recorder) {
+		super(client, path);
+		if(recorder == null) {
+			throw new IllegalArgumentException("Recipe recorder may not be null.");
+		}
+		this.path = path;
+		this.recorder = recorder;
+	}
+
+	@Override
+	@Trace(metricName="Curator/Recipes/InterProcessMutex/acquire")
+	public void acquire() throws Exception {
+		final long start = System.nanoTime();
+		try {
+			super.acquire();
+		} finally {
+			recorder.record(Measure.LOCK_WAIT, path, System.nanoTime() - start);
+		}
+		acquired();
+	}
+
+	@Override
+	@Trace(metricName="Curator/Recipes/InterProcessMutex/acquire")
+	public boolean acquire(final long time, final TimeUnit unit) throws Exception {
+		final long start = System.nanoTime();
+		final boolean acquired;
+		try {
+			acquired = super.acquire(time, unit);
+		} finally {
+			recorder.record(Measure.LOCK_WAIT, path, System.nanoTime() - start);
+		}
+		if(acquired) {
+			acquired();
+		} else {
+			recorder.record(Event.LOCK_TIMEOUT, path);
+		}
+		return acquired;
+	}
+
+	@Override
+	@Trace(metricName="Curator/Recipes/InterProcessMutex/release")
+	public void release() throws Exception {
+		if(owner == Thread.currentThread() && --holdCount == 0) {
+			owner = null;
+			recorder.record(Measure.LOCK_HOLD, path, System.nanoTime() - acquiredNanos);
+		}
+		super.release();
+	}
+
+	/**
+	 * Records an acquisition of the lock by the current thread.
+	 */
+	private void acquired() {
+		final long now = System.nanoTime();
+		if(owner != Thread.currentThread()) {
+			owner = Thread.currentThread();
+			holdCount = 0;
+			acquiredNanos = now;
+		}
+		holdCount++;
+
+		final long sampled = sampledNanos;
+		if(now - sampled >= TimeUnit.MILLISECONDS.toNanos(QUEUE_DEPTH_SAMPLE_INTERVAL_MS)) {
+			sampledNanos = now;
+			try {
+				recorder.record(Measure.LOCK_QUEUE_DEPTH, path, getParticipantNodes().size());
+			} catch(final Exception e) {
+				logger.debug("Unable to sample the queue depth of lock {}.", path, e);
+			}
+		}
+	}
+}
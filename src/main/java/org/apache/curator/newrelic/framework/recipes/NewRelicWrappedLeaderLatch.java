@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.recipes;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.leader.LeaderLatch;
+import org.apache.curator.framework.recipes.leader.LeaderLatchListener;
+import org.apache.curator.newrelic.metrics.RecipeRecorder;
+import org.apache.curator.newrelic.metrics.RecipeRecorder.Event;
+import org.apache.curator.newrelic.metrics.RecipeRecorder.Measure;
+
+import com.newrelic.api.agent.Trace;
+
+/**
+ * Instrumented version of the {@link LeaderLatch} recipe.  Waits for leadership take part in
+ * <a href="http://newrelic.com">New Relic</a> transaction traces, and the following are recorded with the
+ * {@link RecipeRecorder} per latch path:
+ * <ul>
+ * 	<li>the time spent awaiting leadership;</li>
+ * 	<li>the number of times that leadership was gained and lost;</li>
+ * 	<li>the time for which leadership was held.</li>
+ * </ul>
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see LeaderLatch
+ * @see RecipeRecorder
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public class NewRelicWrappedLeaderLatch extends LeaderLatch {
+
+	/**
+	 * The path of the latch.
+	 */
+	private final String path;
+
+	/**
+	 * The recorder of the latch metrics.
+	 */
+	private final RecipeRecorder recorder;
+
+	/**
+	 * Whether or not the latch holds leadership, as last recorded.
+	 */
+	private final AtomicBoolean leading = new AtomicBoolean();
+
+	/**
+	 * The time at which leadership was gained, as reported by {@link System#nanoTime()}.
+	 */
+	private volatile long leadershipNanos;
+
+	/**
+	 * Creates a new {@code NewRelicWrappedLeaderLatch} that records with the shared {@link RecipeRecorder}.
+	 * @param client The client.
+	 * @param latchPath The path of the latch.
+	 */
+	public NewRelicWrappedLeaderLatch(final CuratorFramework client, final String latchPath) {
+		this(client, latchPath, "", RecipeRecorder.getInstance());
+	}
+
+	/**
+	 * Creates a new {@code NewRelicWrappedLeaderLatch} that records with the shared {@link RecipeRecorder}.
+	 * @param client The client.
+	 * @param latchPath The path of the latch.
+	 * @param id The identifier of the participant.
+	 */
+	public NewRelicWrappedLeaderLatch(final CuratorFramework client, final String latchPath, final String id) {
+		this(client, latchPath, id, RecipeRecorder.getInstance());
+	}
+
+	/**
+	 * Creates a new {@code NewRelicWrappedLeaderLatch}.
+	 * @param client The client.
+	 * @param latchPath The path of the latch.
+	 * @param id The identifier of the participant.
+	 * @param recorder The recorder of the latch metrics.
+	 * @throws IllegalArgumentException if the recorder is {@code null}.
+	 */
+	public NewRelicWrappedLeaderLatch(final CuratorFramework client, final String latchPath, final String id, final RecipeRecorder recorder) {
+		super(client, latchPath, id);
+		if(recorder == null) {
+			throw new IllegalArgumentException("Recipe recorder may not be null.");
+		}
+		this.path = latchPath;
+		this.recorder = recorder;
+		addListener(new LeaderLatchListener() {
+			@Override
+			public void isLeader() {
+				leadershipGained();
+			}
+
+			@Override
+			public void notLeader() {
+				leadershipLost();
+			}
+		});
+	}
+
+	/**
+	 * Closes the latch, recording the loss of leadership if the latch held it.  The latch does not notify its
+	 * listeners when it is closed, so the loss is recorded here.
+	 * @throws IOException if the latch cannot be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			leadershipLost();
+		}
+	}
+
+	@Override
+	@Trace(metricName="Curator/Recipes/LeaderLatch/await")
+	public void await() throws InterruptedException, EOFException {
+		final long start = System.nanoTime();
+		try {
+			super.await();
+		} finally {
+			recorder.record(Measure.LEADER_AWAIT, path, System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	@Trace(metricName="Curator/Recipes/LeaderLatch/await")
+	public boolean await(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long start = System.nanoTime();
+		try {
+			return super.await(timeout, unit);
+		} finally {
+			recorder.record(Measure.LEADER_AWAIT, path, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Records that leadership was gained.
+	 */
+	private void leadershipGained() {
+		if(leading.compareAndSet(false, true)) {
+			leadershipNanos = System.nanoTime();
+			recorder.record(Event.LEADER_GAINED, path);
+		}
+	}
+
+	/**
+	 * Records that leadership was lost, if it was held.
+	 */
+	private void leadershipLost() {
+		if(leading.compareAndSet(true, false)) {
+			recorder.record(Event.LEADER_LOST, path);
+			recorder.record(Measure.LEADER_TENURE, path, System.nanoTime() - leadershipNanos);
+		}
+	}
+}
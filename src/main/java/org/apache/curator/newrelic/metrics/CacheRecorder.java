@@ -0,0 +1,342 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.newrelic.api.agent.NewRelic;
+
+/**
+ * Records the effectiveness of the read-through node caches of the instrumented Curator clients and periodically
+ * reports it to <a href="http://newrelic.com">New Relic</a> as custom metrics.  The following metrics are reported
+ * beneath {@value #METRIC_PREFIX}:
+ * <ul>
+ * 	<li>{@code Hit} and {@code Miss}: the number of reads served from and missing from the caches.</li>
+ * 	<li>{@code Eviction}: the number of entries evicted to keep the caches within their bounds.</li>
+ * 	<li>{@code Invalidation/watch}, {@code Invalidation/write} and {@code Invalidation/connection}: the number of
+ * 		entries invalidated by a watch event, by a write through the same client, and because the connection was
+ * 		lost, during which changes may have been missed.</li>
+ * 	<li>{@code Staleness}: a histogram ({@code count}, {@code mean}, {@code p50}, {@code p99} and {@code max}, in
+ * 		milliseconds) of the age of entries when they are invalidated by a watch event, which is the time for
+ * 		which a value was served from the cache before it was replaced on the ensemble.</li>
+ * 	<li>{@code Entries} and {@code Bytes}: gauges of the number of entries and the size of the data held by the caches.</li>
+ * </ul>
+ * Hits and misses are counted on the calling thread with striped counters, so that threads reading from the
+ * caches concurrently do not contend with each other, as they would on the buffer shared by the recorders.  The
+ * less frequent changes to the content of the caches are recorded through that buffer.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public final class CacheRecorder extends PeriodicReporter {
+
+	/**
+	 * Prefix of the metric names reported by the recorder.
+	 */
+	public static final String METRIC_PREFIX = "Custom/Curator/Cache/";
+
+	/**
+	 * The reasons for which a cache entry is invalidated.
+	 */
+	public enum Invalidation {
+
+		/**
+		 * The node was changed or deleted, as reported by a watch event.
+		 */
+		WATCH,
+
+		/**
+		 * The node was written through the client that owns the cache.
+		 */
+		WRITE,
+
+		/**
+		 * The connection to the ensemble was lost.
+		 */
+		CONNECTION
+	}
+
+	/**
+	 * Key of the records of inserted entries.  The records of invalidated entries are keyed by the ordinal of the
+	 * {@link Invalidation}, and the records of the other measurements by negative keys.
+	 */
+	private static final int INSERT_KEY = -1;
+
+	/**
+	 * Key of the records of evicted entries.
+	 */
+	private static final int EVICTION_KEY = -2;
+
+	/**
+	 * Key of the records of removed entries.
+	 */
+	private static final int REMOVAL_KEY = -3;
+
+	/**
+	 * Key of the records of the age of entries invalidated by a watch event.
+	 */
+	private static final int STALENESS_KEY = -4;
+
+	/**
+	 * Number of reads served from the caches.
+	 */
+	private final LongAdder hits = new LongAdder();
+
+	/**
+	 * Number of reads missing from the caches.
+	 */
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Number of evicted entries.
+	 */
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Number of invalidated entries by {@link Invalidation}, indexed by ordinal.
+	 */
+	private final LongAdder[] invalidations = new LongAdder[Invalidation.values().length];
+
+	/**
+	 * Number of entries held by the caches.
+	 */
+	private final AtomicLong entries = new AtomicLong();
+
+	/**
+	 * Number of bytes of data held by the caches.
+	 */
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * Age of entries when they are invalidated by a watch event.
+	 */
+	private final HistogramMetric stalenessMetric = new HistogramMetric(METRIC_PREFIX + "Staleness");
+
+	/**
+	 * Snapshot reused by each flush.
+	 */
+	private final LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+
+	/**
+	 * Returns the recorder shared by the instrumented clients.  It reports to New Relic at the interval
+	 * set by the {@value PeriodicReporter#FLUSH_INTERVAL_PROPERTY} system property.
+	 * @return The shared {@code CacheRecorder}.
+	 */
+	public static CacheRecorder getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Creates a new {@code CacheRecorder}.
+	 * @param flushIntervalMs The interval, in milliseconds, at which the recorder reports to New Relic.
+	 * 	If the interval is not positive, the recorder only reports when {@link #flush()} is called.
+	 */
+	public CacheRecorder(final long flushIntervalMs) {
+		super(flushIntervalMs);
+		for(int i = 0; i < invalidations.length; i++) {
+			invalidations[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Records a read served from a cache.
+	 */
+	public void recordHit() {
+		hits.increment();
+	}
+
+	/**
+	 * Records a read missing from a cache.
+	 */
+	public void recordMiss() {
+		misses.increment();
+	}
+
+	/**
+	 * Records that an entry has been added to a cache.
+	 * @param size The size of the data of the entry in bytes.
+	 */
+	public void recordInsert(final int size) {
+		record(INSERT_KEY, size, null);
+	}
+
+	/**
+	 * Records that an entry has been evicted from a cache.
+	 * @param size The size of the data of the entry in bytes.
+	 */
+	public void recordEviction(final int size) {
+		record(EVICTION_KEY, size, null);
+	}
+
+	/**
+	 * Records that an entry has been invalidated.
+	 * @param invalidation The reason for which the entry was invalidated.
+	 * @param size The size of the data of the entry in bytes.
+	 * @param ageNanos The time for which the entry was cached, in nanoseconds.
+	 */
+	public void recordInvalidation(final Invalidation invalidation, final int size, final long ageNanos) {
+		record(invalidation.ordinal(), size, null);
+		if(invalidation == Invalidation.WATCH) {
+			record(STALENESS_KEY, ageNanos, null);
+		}
+	}
+
+	/**
+	 * Records that an entry has been removed from a cache because the cache was closed.
+	 * @param size The size of the data of the entry in bytes.
+	 */
+	public void recordRemoval(final int size) {
+		record(REMOVAL_KEY, size, null);
+	}
+
+	/**
+	 * Returns the number of reads served from the caches since the previous flush.
+	 * @return The number of hits.
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of reads missing from the caches since the previous flush.
+	 * @return The number of misses.
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of entries evicted since the previous flush.
+	 * @return The number of evictions.
+	 */
+	public long getEvictionCount() {
+		drain();
+		return evictions.sum();
+	}
+
+	/**
+	 * Returns the number of entries invalidated for the provided reason since the previous flush.
+	 * @param invalidation The reason for which entries were invalidated.
+	 * @return The number of invalidations.
+	 */
+	public long getInvalidationCount(final Invalidation invalidation) {
+		drain();
+		return invalidations[invalidation.ordinal()].sum();
+	}
+
+	/**
+	 * Returns the number of entries held by the caches.
+	 * @return The number of entries.
+	 */
+	public long getEntryCount() {
+		drain();
+		return entries.get();
+	}
+
+	/**
+	 * Returns the number of bytes of data held by the caches.
+	 * @return The number of bytes.
+	 */
+	public long getByteCount() {
+		drain();
+		return bytes.get();
+	}
+
+	/**
+	 * Returns the histogram of the age of entries when they are invalidated by a watch event.
+	 * @return The histogram.
+	 */
+	public LatencyHistogram getStalenessHistogram() {
+		drain();
+		return stalenessMetric.getHistogram();
+	}
+
+	@Override
+	protected void apply(final int key, final long value, final Object attachment) {
+		switch(key) {
+			case INSERT_KEY:
+				entries.incrementAndGet();
+				bytes.addAndGet(value);
+				break;
+			case EVICTION_KEY:
+				evictions.increment();
+				remove(value);
+				break;
+			case REMOVAL_KEY:
+				remove(value);
+				break;
+			case STALENESS_KEY:
+				stalenessMetric.getHistogram().record(value);
+				break;
+			default:
+				invalidations[key].increment();
+				remove(value);
+				break;
+		}
+	}
+
+	@Override
+	protected void report() {
+		reportCount(METRIC_PREFIX + "Hit", hits);
+		reportCount(METRIC_PREFIX + "Miss", misses);
+		reportCount(METRIC_PREFIX + "Eviction", evictions);
+		for(final Invalidation invalidation : Invalidation.values()) {
+			reportCount(METRIC_PREFIX + "Invalidation/" + invalidation.name().toLowerCase(Locale.ENGLISH), invalidations[invalidation.ordinal()]);
+		}
+		stalenessMetric.report(snapshot);
+		NewRelic.recordMetric(METRIC_PREFIX + "Entries", entries.get());
+		NewRelic.recordMetric(METRIC_PREFIX + "Bytes", bytes.get());
+	}
+
+	/**
+	 * Records that an entry has been removed from a cache.
+	 * @param size The size of the data of the entry in bytes.
+	 */
+	private void remove(final long size) {
+		entries.decrementAndGet();
+		bytes.addAndGet(-size);
+	}
+
+	/**
+	 * Reports and resets a counter if it is not zero.
+	 * @param metricName The name of the metric.
+	 * @param counter The counter.
+	 */
+	private static void reportCount(final String metricName, final LongAdder counter) {
+		final long count = counter.sumThenReset();
+		if(count > 0) {
+			NewRelic.recordMetric(metricName, count);
+		}
+	}
+
+	/**
+	 * Lazily creates the shared recorder.
+	 */
+	private static final class Holder {
+
+		/**
+		 * The shared recorder.
+		 */
+		private static final CacheRecorder INSTANCE = new CacheRecorder(getDefaultFlushIntervalMs());
+
+		static {
+			INSTANCE.start();
+		}
+	}
+}
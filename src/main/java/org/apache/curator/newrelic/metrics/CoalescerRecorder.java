@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.newrelic.api.agent.NewRelic;
+
+/**
+ * Records the batches committed by the write coalescers of the instrumented Curator clients and periodically
+ * reports them to <a href="http://newrelic.com">New Relic</a> as custom metrics.  The following metrics are
+ * reported beneath {@value #METRIC_PREFIX}:
+ * <ul>
+ * 	<li>{@code BatchSize}: a histogram ({@code count}, {@code mean}, {@code p50}, {@code p99} and {@code max})
+ * 		of the number of writes committed by each {@code multi()} transaction.</li>
+ * 	<li>{@code Wait}: a histogram, in milliseconds, of the time that each write waited to be committed.</li>
+ * 	<li>{@code Resubmitted}: the number of writes that were rolled back because another write of the same batch
+ * 		failed, and were therefore committed again without it.</li>
+ * </ul>
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public final class CoalescerRecorder extends PeriodicReporter {
+
+	/**
+	 * Prefix of the metric names reported by the recorder.
+	 */
+	public static final String METRIC_PREFIX = "Custom/Curator/Coalescer/";
+
+	/**
+	 * Key of the records of committed batches.
+	 */
+	private static final int BATCH_KEY = 0;
+
+	/**
+	 * Key of the records of the time that writes waited.
+	 */
+	private static final int WAIT_KEY = 1;
+
+	/**
+	 * Key of the records of resubmitted writes.
+	 */
+	private static final int RESUBMITTED_KEY = 2;
+
+	/**
+	 * Number of writes committed by each transaction.
+	 */
+	private final HistogramMetric batchSizeMetric = new HistogramMetric(METRIC_PREFIX + "BatchSize", 1f);
+
+	/**
+	 * Time that each write waited to be committed.
+	 */
+	private final HistogramMetric waitMetric = new HistogramMetric(METRIC_PREFIX + "Wait");
+
+	/**
+	 * Number of writes committed again after another write of the same batch failed.
+	 */
+	private final AtomicLong resubmitted = new AtomicLong();
+
+	/**
+	 * Snapshot reused by each flush.
+	 */
+	private final LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+
+	/**
+	 * Returns the recorder shared by the write coalescers.  It reports to New Relic at the interval
+	 * set by the {@value PeriodicReporter#FLUSH_INTERVAL_PROPERTY} system property.
+	 * @return The shared {@code CoalescerRecorder}.
+	 */
+	public static CoalescerRecorder getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Creates a new {@code CoalescerRecorder}.
+	 * @param flushIntervalMs The interval, in milliseconds, at which the recorder reports to New Relic.
+	 * 	If the interval is not positive, the recorder only reports when {@link #flush()} is called.
+	 */
+	public CoalescerRecorder(final long flushIntervalMs) {
+		super(flushIntervalMs);
+	}
+
+	/**
+	 * Records the commit of a batch of writes.
+	 * @param size The number of writes in the batch.
+	 */
+	public void recordBatch(final int size) {
+		record(BATCH_KEY, size, null);
+	}
+
+	/**
+	 * Records the time that a write waited to be committed.
+	 * @param nanos The time in nanoseconds.
+	 */
+	public void recordWait(final long nanos) {
+		record(WAIT_KEY, nanos, null);
+	}
+
+	/**
+	 * Records writes that are committed again after another write of the same batch failed.
+	 * @param count The number of writes.
+	 */
+	public void recordResubmitted(final int count) {
+		record(RESUBMITTED_KEY, count, null);
+	}
+
+	/**
+	 * Returns the histogram of the number of writes committed by each transaction.
+	 * @return The histogram.
+	 */
+	public LatencyHistogram getBatchSizeHistogram() {
+		drain();
+		return batchSizeMetric.getHistogram();
+	}
+
+	/**
+	 * Returns the histogram of the time that each write waited to be committed.
+	 * @return The histogram.
+	 */
+	public LatencyHistogram getWaitHistogram() {
+		drain();
+		return waitMetric.getHistogram();
+	}
+
+	/**
+	 * Returns the number of writes committed again since the previous flush.
+	 * @return The number of writes.
+	 */
+	public long getResubmittedCount() {
+		drain();
+		return resubmitted.get();
+	}
+
+	@Override
+	protected void apply(final int key, final long value, final Object attachment) {
+		switch(key) {
+			case BATCH_KEY:
+				batchSizeMetric.getHistogram().record(value);
+				break;
+			case WAIT_KEY:
+				waitMetric.getHistogram().record(value);
+				break;
+			default:
+				resubmitted.addAndGet(value);
+				break;
+		}
+	}
+
+	@Override
+	protected void report() {
+		batchSizeMetric.report(snapshot);
+		waitMetric.report(snapshot);
+		final long count = resubmitted.getAndSet(0);
+		if(count > 0) {
+			NewRelic.recordMetric(METRIC_PREFIX + "Resubmitted", count);
+		}
+	}
+
+	/**
+	 * Lazily creates the shared recorder.
+	 */
+	private static final class Holder {
+
+		/**
+		 * The shared recorder.
+		 */
+		private static final CoalescerRecorder INSTANCE = new CoalescerRecorder(getDefaultFlushIntervalMs());
+
+		static {
+			INSTANCE.start();
+		}
+	}
+}
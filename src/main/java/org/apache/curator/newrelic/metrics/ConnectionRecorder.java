@@ -0,0 +1,322 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.curator.framework.state.ConnectionState;
+
+import com.newrelic.api.agent.NewRelic;
+
+/**
+ * Records the connection and session health of the instrumented Curator clients and periodically reports it to
+ * <a href="http://newrelic.com">New Relic</a> as custom metrics.  The following metrics are reported beneath
+ * {@value #METRIC_PREFIX}:
+ * <ul>
+ * 	<li>{@code State/<connection state>}: the number of transitions to each {@link ConnectionState}.</li>
+ * 	<li>{@code Disconnected}: a histogram ({@code count}, {@code mean}, {@code p50}, {@code p99} and {@code max},
+ * 		in milliseconds) of the time that clients stayed disconnected, from the first {@link ConnectionState#SUSPENDED}
+ * 		or {@link ConnectionState#LOST} until the connection was re-established.</li>
+ * 	<li>{@code Reconnect}: a histogram of the time that clients took to establish a new session after
+ * 		{@link ConnectionState#LOST}.</li>
+ * 	<li>{@code DisconnectedClients}: a gauge of the number of clients that are currently disconnected.</li>
+ * 	<li>{@code SessionExpired}: the number of expired sessions.</li>
+ * 	<li>{@code Retry/allowed} and {@code Retry/exhausted}: the number of retries allowed and refused by the retry policies.</li>
+ * </ul>
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public final class ConnectionRecorder extends PeriodicReporter {
+
+	/**
+	 * Prefix of the metric names reported by the recorder.
+	 */
+	public static final String METRIC_PREFIX = "Custom/Curator/Connection/";
+
+	/**
+	 * The connection states, indexed by ordinal.
+	 */
+	private static final ConnectionState[] STATES = ConnectionState.values();
+
+	/**
+	 * Key of the records of disconnections.  The records of the transitions to each connection state are keyed
+	 * by the ordinal of the state, and the records of the other measurements by negative keys.
+	 */
+	private static final int DISCONNECT_KEY = -1;
+
+	/**
+	 * Key of the records of re-established connections.
+	 */
+	private static final int RECONNECT_KEY = -2;
+
+	/**
+	 * Key of the records of new sessions.
+	 */
+	private static final int NEW_SESSION_KEY = -3;
+
+	/**
+	 * Key of the records of expired sessions.
+	 */
+	private static final int SESSION_EXPIRATION_KEY = -4;
+
+	/**
+	 * Key of the records of allowed retries.
+	 */
+	private static final int RETRY_ALLOWED_KEY = -5;
+
+	/**
+	 * Key of the records of refused retries.
+	 */
+	private static final int RETRY_EXHAUSTED_KEY = -6;
+
+	/**
+	 * Number of transitions to each connection state, indexed by ordinal.
+	 */
+	private final AtomicLongArray transitions = new AtomicLongArray(STATES.length);
+
+	/**
+	 * Time spent disconnected.
+	 */
+	private final HistogramMetric disconnectedMetric = new HistogramMetric(METRIC_PREFIX + "Disconnected");
+
+	/**
+	 * Time taken to establish a new session after the previous one was lost.
+	 */
+	private final HistogramMetric reconnectMetric = new HistogramMetric(METRIC_PREFIX + "Reconnect");
+
+	/**
+	 * Number of clients that are currently disconnected.
+	 */
+	private final AtomicInteger disconnectedClients = new AtomicInteger();
+
+	/**
+	 * Number of expired sessions.
+	 */
+	private final AtomicLong sessionExpirations = new AtomicLong();
+
+	/**
+	 * Number of retries allowed by the retry policies.
+	 */
+	private final AtomicLong retriesAllowed = new AtomicLong();
+
+	/**
+	 * Number of retries refused by the retry policies.
+	 */
+	private final AtomicLong retriesExhausted = new AtomicLong();
+
+	/**
+	 * Snapshot reused by each flush.
+	 */
+	private final LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+
+	/**
+	 * Returns the recorder shared by the instrumented clients.  It reports to New Relic at the interval
+	 * set by the {@value PeriodicReporter#FLUSH_INTERVAL_PROPERTY} system property.
+	 * @return The shared {@code ConnectionRecorder}.
+	 */
+	public static ConnectionRecorder getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Creates a new {@code ConnectionRecorder}.
+	 * @param flushIntervalMs The interval, in milliseconds, at which the recorder reports to New Relic.
+	 * 	If the interval is not positive, the recorder only reports when {@link #flush()} is called.
+	 */
+	public ConnectionRecorder(final long flushIntervalMs) {
+		super(flushIntervalMs);
+	}
+
+	/**
+	 * Records a transition to the provided connection state.
+	 * @param state The new connection state.
+	 */
+	public void recordStateChange(final ConnectionState state) {
+		record(state.ordinal(), 1, null);
+	}
+
+	/**
+	 * Records that a client has lost its connection.
+	 */
+	public void recordDisconnect() {
+		record(DISCONNECT_KEY, 1, null);
+	}
+
+	/**
+	 * Records that a client has re-established its connection or was closed while disconnected.
+	 * @param disconnectedNanos The time that the client stayed disconnected in nanoseconds, or a negative
+	 * 	value if the client was closed while disconnected.
+	 */
+	public void recordReconnect(final long disconnectedNanos) {
+		record(RECONNECT_KEY, disconnectedNanos, null);
+	}
+
+	/**
+	 * Records the time that a client took to establish a new session after its previous session was lost.
+	 * @param nanos The time in nanoseconds.
+	 */
+	public void recordNewSession(final long nanos) {
+		record(NEW_SESSION_KEY, nanos, null);
+	}
+
+	/**
+	 * Records the expiration of a session.
+	 */
+	public void recordSessionExpiration() {
+		record(SESSION_EXPIRATION_KEY, 1, null);
+	}
+
+	/**
+	 * Records the decision of a retry policy.
+	 * @param allowed {@code true} if the retry was allowed.
+	 */
+	public void recordRetry(final boolean allowed) {
+		record(allowed ? RETRY_ALLOWED_KEY : RETRY_EXHAUSTED_KEY, 1, null);
+	}
+
+	/**
+	 * Returns the number of transitions to the provided connection state since the previous flush.
+	 * @param state The connection state.
+	 * @return The number of transitions.
+	 */
+	public long getStateChangeCount(final ConnectionState state) {
+		drain();
+		return transitions.get(state.ordinal());
+	}
+
+	/**
+	 * Returns the number of clients that are currently disconnected.
+	 * @return The number of disconnected clients.
+	 */
+	public int getDisconnectedClientCount() {
+		drain();
+		return disconnectedClients.get();
+	}
+
+	/**
+	 * Returns the histogram of the time that clients stayed disconnected.
+	 * @return The histogram.
+	 */
+	public LatencyHistogram getDisconnectedHistogram() {
+		drain();
+		return disconnectedMetric.getHistogram();
+	}
+
+	/**
+	 * Returns the histogram of the time that clients took to establish a new session.
+	 * @return The histogram.
+	 */
+	public LatencyHistogram getReconnectHistogram() {
+		drain();
+		return reconnectMetric.getHistogram();
+	}
+
+	/**
+	 * Returns the number of expired sessions since the previous flush.
+	 * @return The number of expired sessions.
+	 */
+	public long getSessionExpirationCount() {
+		drain();
+		return sessionExpirations.get();
+	}
+
+	/**
+	 * Returns the number of retries allowed or refused since the previous flush.
+	 * @param allowed {@code true} for the number of allowed retries, {@code false} for the number of refused retries.
+	 * @return The number of retries.
+	 */
+	public long getRetryCount(final boolean allowed) {
+		drain();
+		return (allowed ? retriesAllowed : retriesExhausted).get();
+	}
+
+	@Override
+	protected void apply(final int key, final long value, final Object attachment) {
+		switch(key) {
+			case DISCONNECT_KEY:
+				disconnectedClients.incrementAndGet();
+				break;
+			case RECONNECT_KEY:
+				disconnectedClients.decrementAndGet();
+				if(value >= 0) {
+					disconnectedMetric.getHistogram().record(value);
+				}
+				break;
+			case NEW_SESSION_KEY:
+				reconnectMetric.getHistogram().record(value);
+				break;
+			case SESSION_EXPIRATION_KEY:
+				sessionExpirations.incrementAndGet();
+				break;
+			case RETRY_ALLOWED_KEY:
+				retriesAllowed.incrementAndGet();
+				break;
+			case RETRY_EXHAUSTED_KEY:
+				retriesExhausted.incrementAndGet();
+				break;
+			default:
+				transitions.incrementAndGet(key);
+				break;
+		}
+	}
+
+	@Override
+	protected void report() {
+		for(final ConnectionState state : STATES) {
+			final long count = transitions.getAndSet(state.ordinal(), 0);
+			if(count > 0) {
+				NewRelic.recordMetric(METRIC_PREFIX + "State/" + state.name(), count);
+			}
+		}
+		disconnectedMetric.report(snapshot);
+		reconnectMetric.report(snapshot);
+		NewRelic.recordMetric(METRIC_PREFIX + "DisconnectedClients", disconnectedClients.get());
+		reportCount(METRIC_PREFIX + "SessionExpired", sessionExpirations);
+		reportCount(METRIC_PREFIX + "Retry/allowed", retriesAllowed);
+		reportCount(METRIC_PREFIX + "Retry/exhausted", retriesExhausted);
+	}
+
+	/**
+	 * Reports and resets a counter if it is not zero.
+	 * @param metricName The name of the metric.
+	 * @param counter The counter.
+	 */
+	private static void reportCount(final String metricName, final AtomicLong counter) {
+		final long count = counter.getAndSet(0);
+		if(count > 0) {
+			NewRelic.recordMetric(metricName, count);
+		}
+	}
+
+	/**
+	 * Lazily creates the shared recorder.
+	 */
+	private static final class Holder {
+
+		/**
+		 * The shared recorder.
+		 */
+		private static final ConnectionRecorder INSTANCE = new ConnectionRecorder(getDefaultFlushIntervalMs());
+
+		static {
+			INSTANCE.start();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.newrelic.api.agent.NewRelic;
+
+/**
+ * A {@link LatencyHistogram} and the pre-computed names of the metrics that it reports to
+ * <a href="http://newrelic.com">New Relic</a>: {@code count}, {@code mean}, {@code p50},
+ * {@code p99} and {@code max}, in milliseconds where applicable, beneath a base metric name.  Histograms
+ * of values other than durations in nanoseconds report their values unscaled.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+final class HistogramMetric {
+
+	/**
+	 * Logger for failures to report metrics.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(HistogramMetric.class);
+
+	/**
+	 * Number of nanoseconds in a millisecond.
+	 */
+	private static final float NANOS_PER_MILLISECOND = 1000000f;
+
+	/**
+	 * The histogram.
+	 */
+	private final LatencyHistogram histogram;
+
+	/**
+	 * Divisor that converts the recorded values to the reported unit.
+	 */
+	private final float divisor;
+
+	/**
+	 * Name of the metric that reports the number of recorded values.
+	 */
+	private final String countMetricName;
+
+	/**
+	 * Name of the metric that reports the mean value.
+	 */
+	private final String meanMetricName;
+
+	/**
+	 * Name of the metric that reports the median value.
+	 */
+	private final String p50MetricName;
+
+	/**
+	 * Name of the metric that reports the 99th percentile value.
+	 */
+	private final String p99MetricName;
+
+	/**
+	 * Name of the metric that reports the maximum value.
+	 */
+	private final String maxMetricName;
+
+	/**
+	 * Creates a new {@code HistogramMetric} of durations recorded in nanoseconds and reported in milliseconds.
+	 * @param metricName The base name of the reported metrics.
+	 */
+	HistogramMetric(final String metricName) {
+		this(metricName, NANOS_PER_MILLISECOND);
+	}
+
+	/**
+	 * Creates a new {@code HistogramMetric}.
+	 * @param metricName The base name of the reported metrics.
+	 * @param divisor Divisor that converts the recorded values to the reported unit.
+	 */
+	HistogramMetric(final String metricName, final float divisor) {
+		this.histogram = new LatencyHistogram();
+		this.divisor = divisor;
+		this.countMetricName = metricName + "/count";
+		this.meanMetricName = metricName + "/mean";
+		this.p50MetricName = metricName + "/p50";
+		this.p99MetricName = metricName + "/p99";
+		this.maxMetricName = metricName + "/max";
+	}
+
+	/**
+	 * Returns the histogram.
+	 * @return The histogram.
+	 */
+	LatencyHistogram getHistogram() {
+		return histogram;
+	}
+
+	/**
+	 * Drains the histogram and, if it recorded any values, reports them to New Relic.
+	 * @param snapshot The {@link LatencyHistogram.Snapshot} used to drain the histogram.
+	 */
+	void report(final LatencyHistogram.Snapshot snapshot) {
+		histogram.drainTo(snapshot);
+		if(snapshot.getCount() > 0) {
+			try {
+				NewRelic.recordMetric(countMetricName, snapshot.getCount());
+				NewRelic.recordMetric(meanMetricName, (float)(snapshot.getMean() / divisor));
+				NewRelic.recordMetric(p50MetricName, snapshot.getValueAtPercentile(50) / divisor);
+				NewRelic.recordMetric(p99MetricName, snapshot.getValueAtPercentile(99) / divisor);
+				NewRelic.recordMetric(maxMetricName, snapshot.getMax() / divisor);
+			} catch(final RuntimeException e) {
+				logger.warn("Unable to report the metrics of {}.", countMetricName, e);
+			}
+		}
+	}
+}
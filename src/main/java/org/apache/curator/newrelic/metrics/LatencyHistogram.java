@@ -0,0 +1,233 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+/**
+ * Allocation-free latency histogram.  Latencies are recorded in nanoseconds into log-linear buckets:
+ * each power of two is divided into {@value #SUB_BUCKET_COUNT} linear sub-buckets, which bounds the
+ * relative error of any reported value to 12.5% while keeping the histogram small enough to allocate
+ * one per operation and result code.  The histogram is guarded by its own monitor rather than striped:
+ * the recorders only write to it from the single exporter thread that they share, so the
+ * monitor is only ever contended by a reporter draining it.  The histogram is drained into a reusable
+ * {@link Snapshot} which is then reset.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ */
+public final class LatencyHistogram {
+
+	/**
+	 * Number of bits used to select a linear sub-bucket within a power of two.
+	 */
+	private static final int SUB_BUCKET_BITS = 3;
+
+	/**
+	 * Number of linear sub-buckets within a power of two.
+	 */
+	static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Largest latency, in nanoseconds, that is tracked precisely (approximately 18 minutes).  Larger
+	 * values are counted in the last bucket.
+	 */
+	static final long MAX_TRACKABLE_NANOS = (1L << 40) - 1;
+
+	/**
+	 * Number of buckets of the histogram.
+	 */
+	static final int BUCKET_COUNT = getBucketIndex(MAX_TRACKABLE_NANOS) + 1;
+
+	/**
+	 * Number of values recorded in each bucket.
+	 */
+	private final long[] counts = new long[BUCKET_COUNT];
+
+	/**
+	 * Number of values recorded.
+	 */
+	private long count;
+
+	/**
+	 * Sum of the values recorded.
+	 */
+	private long sum;
+
+	/**
+	 * Largest value recorded.
+	 */
+	private long max;
+
+	/**
+	 * Records a latency.  Negative values are recorded as zero.
+	 * @param nanos The latency in nanoseconds.
+	 */
+	public void record(final long nanos) {
+		final long value = nanos < 0 ? 0 : nanos;
+		final int index = getBucketIndex(Math.min(value, MAX_TRACKABLE_NANOS));
+		synchronized(this) {
+			counts[index]++;
+			count++;
+			sum += value;
+			if(value > max) {
+				max = value;
+			}
+		}
+	}
+
+	/**
+	 * Moves the latencies recorded since the previous call into the provided {@link Snapshot},
+	 * replacing its contents, and resets the histogram.
+	 * @param snapshot The {@link Snapshot} to populate.
+	 * @throws IllegalArgumentException if the snapshot is {@code null}.
+	 */
+	public void drainTo(final Snapshot snapshot) {
+		if(snapshot == null) {
+			throw new IllegalArgumentException("The snapshot may not be null.");
+		}
+		snapshot.reset();
+		synchronized(this) {
+			if(count == 0) {
+				return;
+			}
+			for(int i = 0; i < BUCKET_COUNT; i++) {
+				snapshot.counts[i] = counts[i];
+				counts[i] = 0;
+			}
+			snapshot.count = count;
+			snapshot.sum = sum;
+			snapshot.max = max;
+			count = 0;
+			sum = 0;
+			max = 0;
+		}
+	}
+
+	/**
+	 * Returns the index of the bucket that holds the provided value.
+	 * @param value The value, between zero and {@link #MAX_TRACKABLE_NANOS}.
+	 * @return The index of the bucket.
+	 */
+	static int getBucketIndex(final long value) {
+		if(value < SUB_BUCKET_COUNT) {
+			return (int)value;
+		}
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift << SUB_BUCKET_BITS) + (int)(value >>> shift);
+	}
+
+	/**
+	 * Returns a value representative of the values held by a bucket (the midpoint of the bucket).
+	 * @param index The index of the bucket.
+	 * @return The representative value.
+	 */
+	static long getBucketValue(final int index) {
+		if(index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		final int shift = (index >>> SUB_BUCKET_BITS) - 1;
+		final long lowerBound = (long)(SUB_BUCKET_COUNT + (index & (SUB_BUCKET_COUNT - 1))) << shift;
+		return lowerBound + ((1L << shift) - 1) / 2;
+	}
+
+	/**
+	 * Reusable, single-threaded view of the latencies drained from a {@link LatencyHistogram}.
+	 *
+	 * @author Jonathan Pearlin
+	 * @since 1.0.0
+	 */
+	public static final class Snapshot {
+
+		/**
+		 * Number of values in each bucket.
+		 */
+		private final long[] counts = new long[BUCKET_COUNT];
+
+		/**
+		 * Number of values.
+		 */
+		private long count;
+
+		/**
+		 * Sum of the values.
+		 */
+		private long sum;
+
+		/**
+		 * Largest value.
+		 */
+		private long max;
+
+		/**
+		 * Returns the number of recorded latencies.
+		 * @return The number of recorded latencies.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Returns the mean latency.
+		 * @return The mean latency in nanoseconds or zero if no latencies were recorded.
+		 */
+		public double getMean() {
+			return count == 0 ? 0 : (double)sum / count;
+		}
+
+		/**
+		 * Returns the largest recorded latency.
+		 * @return The largest latency in nanoseconds.
+		 */
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Returns the latency at the provided percentile.  The result is never larger than {@link #getMax()}.
+		 * @param percentile The percentile, between 0 and 100.
+		 * @return The latency at the percentile in nanoseconds or zero if no latencies were recorded.
+		 * @throws IllegalArgumentException if the percentile is out of range.
+		 */
+		public long getValueAtPercentile(final double percentile) {
+			if(percentile < 0 || percentile > 100) {
+				throw new IllegalArgumentException("The percentile must be between 0 and 100.");
+			}
+			if(count == 0) {
+				return 0;
+			}
+			final long rank = Math.max(1, (long)Math.ceil(percentile / 100 * count));
+			long seen = 0;
+			for(int i = 0; i < BUCKET_COUNT; i++) {
+				seen += counts[i];
+				if(seen >= rank) {
+					return Math.min(getBucketValue(i), max);
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * Clears the snapshot.
+		 */
+		private void reset() {
+			for(int i = 0; i < BUCKET_COUNT; i++) {
+				counts[i] = 0;
+			}
+			count = 0;
+			sum = 0;
+			max = 0;
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.zookeeper.KeeperException.Code;
+
+import com.newrelic.api.agent.NewRelic;
+
+/**
+ * Records the latency of ZooKeeper operations in a {@link LatencyHistogram} per {@link OperationSource},
+ * {@link Operation} and result {@link Code}, and periodically reports each histogram to
+ * <a href="http://newrelic.com">New Relic</a> as custom metrics.  For each histogram that recorded at
+ * least one operation during the interval, the following metrics are reported, in milliseconds where
+ * applicable, beneath {@code <source metric name>/<result code>}: {@code count}, {@code mean},
+ * {@code p50}, {@code p99} and {@code max}.
+ * <p>
+ * Like every {@link PeriodicReporter}, recording an operation only writes a fixed-size record to the buffer
+ * shared by the recorders, and the histograms are created and updated on the background thread that drains
+ * it.  A calling thread therefore never allocates, never waits for another thread and never calls the New Relic
+ * agent.  The number of records dropped because the shared buffer was full is reported by this recorder as the
+ * {@value #DROPPED_METRIC_NAME} metric.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public final class LatencyRecorder extends PeriodicReporter {
+
+	/**
+	 * Name of the metric that reports the number of records dropped because the shared buffer was full.
+	 */
+	public static final String DROPPED_METRIC_NAME = "Custom/Curator/Export/Dropped";
+
+	/**
+	 * The result codes, indexed by ordinal.
+	 */
+	private static final Code[] CODES = Code.values();
+
+	/**
+	 * The sources, indexed by ordinal.
+	 */
+	private static final OperationSource[] SOURCES = OperationSource.values();
+
+	/**
+	 * The operations, indexed by ordinal.
+	 */
+	private static final Operation[] OPERATIONS = Operation.values();
+
+	/**
+	 * Number of histograms.  Keys at or above this number identify slow calls that were not traced.
+	 */
+	private static final int HISTOGRAM_COUNT = SOURCES.length * OPERATIONS.length * CODES.length;
+
+	/**
+	 * Number of nanoseconds in a millisecond.
+	 */
+	private static final float NANOS_PER_MILLISECOND = 1000000f;
+
+	/**
+	 * The histograms, indexed by source, operation and result code.  Histograms are created when the first
+	 * record of their key is applied.
+	 */
+	private final AtomicReferenceArray<HistogramMetric> metrics = new AtomicReferenceArray<HistogramMetric>(HISTOGRAM_COUNT);
+
+	/**
+	 * Names of the metrics that record slow calls that were not traced, indexed by source and operation.
+	 */
+	private final String[] slowMetricNames = new String[SOURCES.length * OPERATIONS.length];
+
+	/**
+	 * Number of slow calls that were not traced, indexed by source and operation.
+	 */
+	private final AtomicLongArray slowCounts = new AtomicLongArray(SOURCES.length * OPERATIONS.length);
+
+	/**
+	 * Number of dropped records already reported to New Relic.
+	 */
+	private long reportedDropCount;
+
+	/**
+	 * Snapshot reused by each flush.
+	 */
+	private final LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+
+	/**
+	 * Returns the recorder shared by the instrumented clients.  It reports to New Relic at the interval
+	 * set by the {@value PeriodicReporter#FLUSH_INTERVAL_PROPERTY} system property.
+	 * @return The shared {@code LatencyRecorder}.
+	 */
+	public static LatencyRecorder getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Creates a new {@code LatencyRecorder}.
+	 * @param flushIntervalMs The interval, in milliseconds, at which the recorder reports to New Relic.
+	 * 	If the interval is not positive, the recorder only reports when {@link #flush()} is called.
+	 */
+	public LatencyRecorder(final long flushIntervalMs) {
+		this(flushIntervalMs, MetricsExporter.getInstance());
+	}
+
+	/**
+	 * Creates a new {@code LatencyRecorder}.
+	 * @param flushIntervalMs The interval, in milliseconds, at which the recorder reports to New Relic.
+	 * 	If the interval is not positive, the recorder only reports when {@link #flush()} is called.
+	 * @param exporter The exporter that carries the records of the recorder to the background thread.
+	 */
+	LatencyRecorder(final long flushIntervalMs, final MetricsExporter exporter) {
+		super(flushIntervalMs, exporter);
+		for(final OperationSource source : SOURCES) {
+			for(final Operation operation : OPERATIONS) {
+				slowMetricNames[source.ordinal() * OPERATIONS.length + operation.ordinal()] = source.getMetricName(operation) + TraceSampler.SLOW_METRIC_SUFFIX;
+			}
+		}
+	}
+
+	/**
+	 * Records the latency of an operation that started at the provided time.
+	 * @param source The layer at which the operation was measured.
+	 * @param operation The operation.
+	 * @param code The result code of the operation.  A {@code null} code is recorded as {@link Code#SYSTEMERROR}.
+	 * @param startNanos The time at which the operation started, as reported by {@link System#nanoTime()}.
+	 */
+	public void recordSince(final OperationSource source, final Operation operation, final Code code, final long startNanos) {
+		record(source, operation, code, System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Records the latency of an operation.
+	 * @param source The layer at which the operation was measured.
+	 * @param operation The operation.
+	 * @param code The result code of the operation.  A {@code null} code is recorded as {@link Code#SYSTEMERROR}.
+	 * @param nanos The latency of the operation in nanoseconds.
+	 * @return {@code true} if the latency was recorded or {@code false} if it was dropped because the buffer was full.
+	 */
+	public boolean record(final OperationSource source, final Operation operation, final Code code, final long nanos) {
+		return record(getIndex(source, operation, code == null ? Code.SYSTEMERROR : code), nanos, null);
+	}
+
+	/**
+	 * Records a slow call that was not traced as the {@code <source metric name>/slow} metric.
+	 * @param source The layer at which the call was measured.
+	 * @param operation The operation.
+	 * @param nanos The latency of the call in nanoseconds.
+	 * @return {@code true} if the call was recorded or {@code false} if it was dropped because the buffer was full.
+	 * @see TraceSampler#recordUntraced
+	 */
+	public boolean recordSlow(final OperationSource source, final Operation operation, final long nanos) {
+		return record(HISTOGRAM_COUNT + source.ordinal() * OPERATIONS.length + operation.ordinal(), nanos, null);
+	}
+
+	/**
+	 * Returns the histogram for the provided key, once the records written so far have been applied.
+	 * @param source The layer at which the operations were measured.
+	 * @param operation The operation.
+	 * @param code The result code.
+	 * @return The histogram or {@code null} if no operation has been recorded for the key.
+	 */
+	public LatencyHistogram getHistogram(final OperationSource source, final Operation operation, final Code code) {
+		drain();
+		final HistogramMetric metric = metrics.get(getIndex(source, operation, code));
+		return metric == null ? null : metric.getHistogram();
+	}
+
+	/**
+	 * Returns the number of slow calls that were not traced, once the records written so far have been applied.
+	 * @param source The layer at which the calls were measured.
+	 * @param operation The operation.
+	 * @return The number of slow calls that were not traced.
+	 */
+	public long getSlowCount(final OperationSource source, final Operation operation) {
+		drain();
+		return slowCounts.get(source.ordinal() * OPERATIONS.length + operation.ordinal());
+	}
+
+	/**
+	 * Returns the number of records dropped because the shared buffer was full.
+	 * @return The number of dropped records.
+	 */
+	public long getDroppedCount() {
+		return getExporterDroppedCount();
+	}
+
+	@Override
+	protected void apply(final int key, final long value, final Object attachment) {
+		if(key < HISTOGRAM_COUNT) {
+			HistogramMetric metric = metrics.get(key);
+			if(metric == null) {
+				final int code = key % CODES.length;
+				final int operation = key / CODES.length % OPERATIONS.length;
+				final int source = key / CODES.length / OPERATIONS.length;
+				metric = new HistogramMetric(SOURCES[source].getMetricName(OPERATIONS[operation]) + '/' + CODES[code].name());
+				metrics.set(key, metric);
+			}
+			metric.getHistogram().record(value);
+		} else {
+			slowCounts.incrementAndGet(key - HISTOGRAM_COUNT);
+			NewRelic.recordMetric(slowMetricNames[key - HISTOGRAM_COUNT], value / NANOS_PER_MILLISECOND);
+		}
+	}
+
+	@Override
+	protected void report() {
+		for(int index = 0; index < metrics.length(); index++) {
+			final HistogramMetric metric = metrics.get(index);
+			if(metric != null) {
+				metric.report(snapshot);
+			}
+		}
+		final long dropCount = getExporterDroppedCount();
+		if(dropCount > reportedDropCount) {
+			NewRelic.recordMetric(DROPPED_METRIC_NAME, dropCount - reportedDropCount);
+			reportedDropCount = dropCount;
+		}
+	}
+
+	/**
+	 * Computes the index of the histogram for the provided key.
+	 * @param source The layer at which the operation was measured.
+	 * @param operation The operation.
+	 * @param code The result code.
+	 * @return The index of the histogram.
+	 */
+	private static int getIndex(final OperationSource source, final Operation operation, final Code code) {
+		return (source.ordinal() * OPERATIONS.length + operation.ordinal()) * CODES.length + code.ordinal();
+	}
+
+	/**
+	 * Lazily creates the shared recorder.
+	 */
+	private static final class Holder {
+
+		/**
+		 * The shared recorder.
+		 */
+		private static final LatencyRecorder INSTANCE = new LatencyRecorder(getDefaultFlushIntervalMs());
+
+		static {
+			INSTANCE.start();
+		}
+	}
+}
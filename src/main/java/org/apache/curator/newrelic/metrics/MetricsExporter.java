@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.curator.newrelic.metrics.RecordRingBuffer.RecordHandler;
+import org.apache.curator.utils.ThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Carries the measurements of the {@link PeriodicReporter}s from the instrumented threads to a single
+ * background thread.  Recording a measurement only writes a fixed-size record to a bounded, lock-free
+ * {@link RecordRingBuffer} shared by all recorders, which never blocks the calling thread.  The background
+ * thread drains the buffer at a short interval, applies each record to the recorder that wrote it, and also
+ * runs the periodic flush of every started recorder, so that all recorders together use one thread.
+ * <p>
+ * The buffer is drained while holding the lock of the exporter, which guards nothing else, and the recorders
+ * drain it before they are flushed or read.  A flush or a read therefore observes the measurements recorded
+ * before it, except those queued behind a record that another thread has started but not finished writing,
+ * which are applied by the next drain.  The recorders report to New Relic without holding the lock, so a slow
+ * report never delays the draining of the buffer.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see PeriodicReporter
+ */
+final class MetricsExporter {
+
+	/**
+	 * Logger for failures of the periodic tasks.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(MetricsExporter.class);
+
+	/**
+	 * Buffer of the records that have not been applied yet.
+	 */
+	private final RecordRingBuffer buffer;
+
+	/**
+	 * The interval, in milliseconds, at which the buffer is drained.
+	 */
+	private final long exportIntervalMs;
+
+	/**
+	 * Guards the lifecycle of the background thread, independently of the draining of the buffer.
+	 */
+	private final Object executorLock = new Object();
+
+	/**
+	 * Executor of the background thread, or {@code null} if the exporter has not been started or has been closed.
+	 * Guarded by {@link #executorLock}.
+	 */
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Whether the exporter has been closed.  Guarded by {@link #executorLock}.
+	 */
+	private boolean closed;
+
+	/**
+	 * Returns the exporter shared by the recorders.  Its buffer holds the number of records set by the
+	 * {@value PeriodicReporter#EXPORT_BUFFER_SIZE_PROPERTY} system property and is drained at the interval set by
+	 * the {@value PeriodicReporter#EXPORT_INTERVAL_PROPERTY} system property.
+	 * @return The shared {@code MetricsExporter}.
+	 */
+	static MetricsExporter getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Creates a new {@code MetricsExporter}.  The background thread is created when the exporter is started.
+	 * @param bufferSize The number of records that the buffer holds.  It is rounded up to a power of two.
+	 * @param exportIntervalMs The interval, in milliseconds, at which the buffer is drained.  If the interval is
+	 * 	not positive, the buffer is only drained when a recorder is flushed or read.
+	 * @throws IllegalArgumentException if the buffer size is not positive.
+	 */
+	MetricsExporter(final int bufferSize, final long exportIntervalMs) {
+		this.buffer = new RecordRingBuffer(bufferSize);
+		this.exportIntervalMs = exportIntervalMs;
+	}
+
+	/**
+	 * Starts the background thread and the periodic draining of the buffer.  It has no effect if the exporter
+	 * has already been started or has been closed.
+	 */
+	void start() {
+		synchronized(executorLock) {
+			if(executor != null || closed) {
+				return;
+			}
+			executor = ThreadUtils.newSingleThreadScheduledExecutor("CuratorNewRelicExporter");
+			schedule(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			}, exportIntervalMs);
+		}
+	}
+
+	/**
+	 * Runs the provided task on the background thread, with a fixed delay between runs.  A run that throws is
+	 * logged and does not cancel the later runs.
+	 * @param task The task.
+	 * @param intervalMs The delay, in milliseconds, between the runs of the task.
+	 * @return The future of the task, or {@code null} if the interval is not positive or the exporter is not running.
+	 */
+	ScheduledFuture<?> schedule(final Runnable task, final long intervalMs) {
+		synchronized(executorLock) {
+			if(executor == null || intervalMs <= 0) {
+				return null;
+			}
+			return executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} catch(final RuntimeException e) {
+						logger.warn("Periodic export task failed.", e);
+					}
+				}
+			}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Writes a record to the buffer, unless it is full.
+	 * @param handler The handler that applies the record on the background thread.
+	 * @param key The key of the record.
+	 * @param value The value of the record.
+	 * @param attachment The attachment of the record, or {@code null}.
+	 * @return {@code true} if the record was written or {@code false} if it was dropped because the buffer was full.
+	 */
+	boolean offer(final RecordHandler handler, final int key, final long value, final Object attachment) {
+		return buffer.offer(handler, key, value, attachment);
+	}
+
+	/**
+	 * Applies the records written to the buffer to their recorders, in the order in which they were written.
+	 * Draining stops at the first record that a writer has claimed a slot for but not yet published, so the
+	 * records written after it, even before the call, are only applied by a later drain.
+	 * @return The number of applied records.
+	 */
+	synchronized int drain() {
+		return buffer.drain();
+	}
+
+	/**
+	 * Returns the number of records dropped because the buffer was full.
+	 * @return The number of dropped records.
+	 */
+	long getDroppedCount() {
+		return buffer.getDroppedCount();
+	}
+
+	/**
+	 * Stops the background thread.  Records that are written afterwards are only applied when a recorder
+	 * is flushed or read.
+	 */
+	void close() {
+		synchronized(executorLock) {
+			closed = true;
+			if(executor != null) {
+				executor.shutdownNow();
+				executor = null;
+			}
+		}
+	}
+
+	/**
+	 * Lazily creates the shared exporter.
+	 */
+	private static final class Holder {
+
+		/**
+		 * The shared exporter.
+		 */
+		private static final MetricsExporter INSTANCE = new MetricsExporter(
+			Integer.getInteger(PeriodicReporter.EXPORT_BUFFER_SIZE_PROPERTY, PeriodicReporter.DEFAULT_EXPORT_BUFFER_SIZE),
+			Long.getLong(PeriodicReporter.EXPORT_INTERVAL_PROPERTY, PeriodicReporter.DEFAULT_EXPORT_INTERVAL_MS));
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+/**
+ * The ZooKeeper operations that are instrumented for <a href="http://newrelic.com">New Relic</a>.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see OperationSource
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public enum Operation {
+
+	CREATE("create"),
+	DELETE("delete"),
+	EXISTS("exists"),
+	GET_DATA("getData"),
+	SET_DATA("setData"),
+	GET_CHILDREN("getChildren"),
+	GET_ACL("getACL"),
+	SET_ACL("setACL"),
+	MULTI("multi");
+
+	/**
+	 * The name of the operation as it appears in metric names.
+	 */
+	private final String operationName;
+
+	private Operation(final String operationName) {
+		this.operationName = operationName;
+	}
+
+	/**
+	 * Returns the name of the operation as it appears in metric names.
+	 * @return The name of the operation.
+	 */
+	public String getOperationName() {
+		return operationName;
+	}
+}
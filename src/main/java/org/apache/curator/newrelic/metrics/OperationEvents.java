@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.KeeperException.Code;
+
+/**
+ * Emits a JDK Flight Recorder event for each ZooKeeper operation whose latency reaches a threshold, so that latency
+ * spikes can be diagnosed after the fact alongside GC and safepoint pauses, whether or not the New Relic agent traced
+ * the operation.  Each event carries the source, operation, normalized path, latency, result code, session id and
+ * payload size of the operation.  The threshold is set by the {@value #THRESHOLD_PROPERTY} system property and
+ * defaults to {@value #DEFAULT_THRESHOLD_MS} milliseconds.
+ * <p>
+ * Callers check {@link #isEnabled(long)} before gathering the fields of an event, which costs a comparison when the
+ * latency is below the threshold and a read of the event type's state when no recording collects the events.
+ * <p>
+ * The event class extends {@code jdk.jfr.Event}, which the Java 8 class library does not declare, so it is compiled in
+ * the separate {@code jfr} source set and loaded reflectively, which keeps the rest of the library compatible with
+ * Java 8.  On JVMs without JDK Flight Recorder, or if the library was built without the {@code jfr} source set, the
+ * event class cannot be loaded and no event is ever emitted.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ */
+public final class OperationEvents {
+
+	/**
+	 * Name of the system property that controls the latency, in milliseconds, from which operations are emitted as events.
+	 */
+	public static final String THRESHOLD_PROPERTY = "curator-newrelic-jfr-threshold-ms";
+
+	/**
+	 * Name of the event type.
+	 */
+	public static final String EVENT_NAME = "org.apache.curator.newrelic.ZooKeeperOperation";
+
+	/**
+	 * Default latency, in milliseconds, from which operations are emitted as events.
+	 */
+	public static final long DEFAULT_THRESHOLD_MS = 20L;
+
+	/**
+	 * Size reported for operations that have no payload.
+	 */
+	public static final int NO_PAYLOAD = -1;
+
+	/**
+	 * Latency, in nanoseconds, from which operations are emitted as events.
+	 */
+	private static final long THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD_MS));
+
+	/**
+	 * Name of the class, compiled in the {@code jfr} source set, that emits the events.
+	 */
+	private static final String FLIGHT_RECORDER_SINK_CLASS = "org.apache.curator.newrelic.metrics.FlightRecorderSink";
+
+	/**
+	 * Sink that never emits an event, used when the running JVM does not support JDK Flight Recorder.
+	 */
+	private static final Sink NO_OP_SINK = new Sink() {
+
+		@Override
+		public boolean isEnabled() {
+			return false;
+		}
+
+		@Override
+		public void commit(final OperationSource source, final Operation operation, final String path, final String code, final long latencyNanos,
+				final long sessionId, final int payloadSize) {
+		}
+	};
+
+	/**
+	 * The sink that emits the events.
+	 */
+	private static final Sink SINK = loadSink();
+
+	/**
+	 * Receives the operations emitted as events.
+	 */
+	interface Sink {
+
+		/**
+		 * Determines whether or not a recording is collecting the events.
+		 * @return {@code true} if the events are enabled.
+		 */
+		boolean isEnabled();
+
+		/**
+		 * Commits an event.
+		 * @param source The layer at which the operation was measured.
+		 * @param operation The operation.
+		 * @param path The normalized path of the operation or {@code null}.
+		 * @param code The result code of the operation.
+		 * @param latencyNanos The latency of the operation in nanoseconds.
+		 * @param sessionId The ZooKeeper session that executed the operation, or {@code 0} if it is unknown.
+		 * @param payloadSize The size of the payload of the operation, or {@value OperationEvents#NO_PAYLOAD} if it has none.
+		 */
+		void commit(OperationSource source, Operation operation, String path, String code, long latencyNanos, long sessionId, int payloadSize);
+	}
+
+	/**
+	 * Prevents instantiation.
+	 */
+	private OperationEvents() {
+	}
+
+	/**
+	 * Determines whether or not an operation with the provided latency should be emitted as an event.
+	 * @param latencyNanos The latency of the operation in nanoseconds.
+	 * @return {@code true} if the latency reaches the threshold and a recording collects the events.
+	 */
+	public static boolean isEnabled(final long latencyNanos) {
+		return latencyNanos >= THRESHOLD_NANOS && SINK.isEnabled();
+	}
+
+	/**
+	 * Emits an operation as an event if {@link #isEnabled(long) enabled}.
+	 * @param source The layer at which the operation was measured.
+	 * @param operation The operation.
+	 * @param path The path of the operation or {@code null}.
+	 * @param code The result code of the operation.  A {@code null} code is emitted as {@link Code#SYSTEMERROR}.
+	 * @param latencyNanos The latency of the operation in nanoseconds.
+	 * @param sessionId The ZooKeeper session that executed the operation, or {@code 0} if it is unknown.
+	 * @param payloadSize The size of the payload of the operation, or {@value #NO_PAYLOAD} if it has none.
+	 */
+	public static void emit(final OperationSource source, final Operation operation, final String path, final Code code, final long latencyNanos,
+			final long sessionId, final int payloadSize) {
+		if(isEnabled(latencyNanos)) {
+			SINK.commit(source, operation, path == null ? null : PathNormalizer.getInstance().normalize(path),
+					(code == null ? Code.SYSTEMERROR : code).name(), latencyNanos, sessionId, payloadSize);
+		}
+	}
+
+	/**
+	 * Returns the size of a node's data.
+	 * @param data The data or {@code null}.
+	 * @return The size of the data in bytes.
+	 */
+	public static int getPayloadSize(final byte[] data) {
+		return data == null ? 0 : data.length;
+	}
+
+	/**
+	 * Returns the estimated serialized size of a listing of children.
+	 * @param children The names of the children or {@code null}, which is sized as empty.
+	 * @return The size of the listing in bytes.
+	 * @see PayloadRecorder#recordChildren(String, List)
+	 */
+	public static int getPayloadSize(final List<String> children) {
+		return PayloadRecorder.getListingSize(children);
+	}
+
+	/**
+	 * Loads the sink that emits the events as JDK Flight Recorder events, if the running JVM supports it.  The sink
+	 * is queried once, so that a failure to register the event type is caught here rather than on an instrumented call.
+	 * @return The JDK Flight Recorder sink, or a sink that never emits an event if it cannot be loaded.
+	 */
+	private static Sink loadSink() {
+		try {
+			final Sink sink = (Sink)Class.forName(FLIGHT_RECORDER_SINK_CLASS).getDeclaredConstructor().newInstance();
+			sink.isEnabled();
+			return sink;
+		} catch(final ReflectiveOperationException | LinkageError | RuntimeException e) {
+			return NO_OP_SINK;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+/**
+ * The layers at which ZooKeeper operations are measured.  Operations executed through the
+ * instrumented Curator framework are measured from the call to {@code forPath()} and include
+ * any retries, while operations executed directly against an instrumented ZooKeeper handle
+ * measure a single round-trip to the ensemble.  Asynchronous operations executed against an instrumented
+ * ZooKeeper handle are measured from the time they are enqueued until their callback is invoked.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ */
+public enum OperationSource {
+
+	FOREGROUND("Custom/Curator/Operation/", "/Foreground"),
+	BACKGROUND("Custom/Curator/Operation/", "/Background"),
+	ZOOKEEPER("Custom/ZooKeeper/Operation/", ""),
+	ZOOKEEPER_ASYNC("Custom/ZooKeeper/Operation/", "/Async");
+
+	/**
+	 * Prefix of the metric names of the operations measured at this layer.
+	 */
+	private final String metricPrefix;
+
+	/**
+	 * Suffix appended to the operation name in the metric names of the operations measured at this layer.
+	 */
+	private final String metricSuffix;
+
+	private OperationSource(final String metricPrefix, final String metricSuffix) {
+		this.metricPrefix = metricPrefix;
+		this.metricSuffix = metricSuffix;
+	}
+
+	/**
+	 * Returns the base name of the metrics reported for the provided operation at this layer.
+	 * @param operation The operation.
+	 * @return The base metric name.
+	 */
+	public String getMetricName(final Operation operation) {
+		return metricPrefix + operation.getOperationName() + metricSuffix;
+	}
+}
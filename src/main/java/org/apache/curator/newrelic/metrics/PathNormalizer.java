@@ -0,0 +1,520 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Normalizes ZooKeeper paths to path templates so that metrics recorded per path have a bounded number of
+ * names.  Each segment of a path is normalized as follows:
+ * <ul>
+ * 	<li>If a configured template has a wildcard at the position of the segment, the segment is replaced by
+ * 		the wildcard.  Templates are paths whose segments are either literal or wildcards, which are written
+ * 		as {@code *} or as a name in braces, such as {@code /services/{host}/status}.  A wildcard matches every
+ * 		segment at its position.</li>
+ * 	<li>Otherwise, a UUID within the segment is replaced by {@value #UUID_TOKEN}, and a trailing run of at least
+ * 		{@value #SEQUENCE_DIGITS} digits, as appended by the sequential create modes, or a segment consisting only
+ * 		of digits is replaced by {@value #SEQUENCE_TOKEN}.  For example, {@code /locks/lock-0000012345} is
+ * 		normalized to {@code /locks/lock-{seq}}.</li>
+ * 	<li>Once a node of the normalized path tree has {@value #MAX_CHILDREN} children, or the tree has reached
+ * 		its maximum number of nodes, further segments at that position are replaced by {@value #OVERFLOW_SEGMENT}.</li>
+ * </ul>
+ * The normalized paths are cached in a tree of normalized segments that is read without locks, and whose nodes are
+ * added with compare-and-set.  Normalizing a path whose normalized form is already cached does not allocate.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ */
+public final class PathNormalizer {
+
+	/**
+	 * Name of the system property that sets the comma-separated templates of the shared normalizer.
+	 */
+	public static final String TEMPLATES_PROPERTY = "curator-newrelic-path-templates";
+
+	/**
+	 * Replacement of sequence numbers.
+	 */
+	public static final String SEQUENCE_TOKEN = "{seq}";
+
+	/**
+	 * Replacement of UUIDs.
+	 */
+	public static final String UUID_TOKEN = "{uuid}";
+
+	/**
+	 * Replacement of segments that exceed the capacity of the tree.
+	 */
+	public static final String OVERFLOW_SEGMENT = "*";
+
+	/**
+	 * Minimum number of trailing digits that are treated as a sequence number.
+	 */
+	public static final int SEQUENCE_DIGITS = 10;
+
+	/**
+	 * Maximum number of distinct normalized segments beneath a node of the tree.
+	 */
+	public static final int MAX_CHILDREN = 256;
+
+	/**
+	 * Default maximum number of nodes of the tree.
+	 */
+	public static final int DEFAULT_MAX_NODES = 4096;
+
+	/**
+	 * Number of characters of a UUID.
+	 */
+	private static final int UUID_LENGTH = 36;
+
+	/**
+	 * Children of a node without children.
+	 */
+	private static final Node[] NO_CHILDREN = new Node[0];
+
+	/**
+	 * The root of the tree, whose normalized path is {@code /}.
+	 */
+	private final Node root = new Node("", "/");
+
+	/**
+	 * Maximum number of nodes of the tree.
+	 */
+	private final int maxNodes;
+
+	/**
+	 * Number of nodes of the tree.
+	 */
+	private final AtomicInteger nodeCount = new AtomicInteger();
+
+	/**
+	 * Returns the normalizer shared by the recorders.  Its templates are set by the
+	 * {@value #TEMPLATES_PROPERTY} system property.
+	 * @return The shared {@code PathNormalizer}.
+	 */
+	public static PathNormalizer getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Creates a new {@code PathNormalizer} without templates.
+	 */
+	public PathNormalizer() {
+		this(Collections.<String>emptyList(), DEFAULT_MAX_NODES);
+	}
+
+	/**
+	 * Creates a new {@code PathNormalizer}.
+	 * @param templates The templates.
+	 * @param maxNodes The maximum number of nodes of the tree of normalized paths.
+	 * @throws IllegalArgumentException if the templates are {@code null} or contain a template that is not
+	 * 	an absolute path, or if the maximum number of nodes is not positive.
+	 */
+	public PathNormalizer(final Collection<String> templates, final int maxNodes) {
+		if(templates == null) {
+			throw new IllegalArgumentException("The templates may not be null.");
+		}
+		if(maxNodes < 1) {
+			throw new IllegalArgumentException("The maximum number of nodes must be positive.");
+		}
+		this.maxNodes = maxNodes;
+		for(final String template : templates) {
+			addTemplate(template);
+		}
+	}
+
+	/**
+	 * Normalizes a path.
+	 * @param path The path.
+	 * @return The normalized path.
+	 * @throws IllegalArgumentException if the path is {@code null}.
+	 */
+	public String normalize(final String path) {
+		return normalize(path, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Normalizes the leading segments of a path.
+	 * @param path The path.
+	 * @param depth The maximum number of leading segments to normalize.
+	 * @return The normalized path of at most {@code depth} segments, or {@code /} if the depth is not positive.
+	 * @throws IllegalArgumentException if the path is {@code null}.
+	 */
+	public String normalize(final String path, final int depth) {
+		if(path == null) {
+			throw new IllegalArgumentException("The path may not be null.");
+		}
+		Node node = root;
+		int start = 0;
+		for(int segments = 0; segments < depth && start < path.length(); start++) {
+			int end = path.indexOf('/', start);
+			if(end < 0) {
+				end = path.length();
+			}
+			if(end > start) {
+				node = getChild(node, path, start, end);
+				segments++;
+			}
+			start = end;
+		}
+		return node.path;
+	}
+
+	/**
+	 * Returns the number of nodes of the tree of normalized paths.
+	 * @return The number of nodes.
+	 */
+	public int getNodeCount() {
+		return nodeCount.get();
+	}
+
+	/**
+	 * Adds a template to the tree.
+	 * @param template The template.
+	 * @throws IllegalArgumentException if the template is {@code null} or not an absolute path.
+	 */
+	private void addTemplate(final String template) {
+		if(template == null || !template.startsWith("/")) {
+			throw new IllegalArgumentException("The template " + template + " is not an absolute path.");
+		}
+		Node node = root;
+		for(final String segment : template.split("/")) {
+			if(segment.isEmpty()) {
+				continue;
+			}
+			if(OVERFLOW_SEGMENT.equals(segment) || segment.startsWith("{") && segment.endsWith("}")) {
+				if(node.wildcard == null) {
+					node.wildcard = new Node(segment, node.childPath(segment));
+					nodeCount.incrementAndGet();
+				}
+				node = node.wildcard;
+			} else {
+				node = getChild(node, segment, 0, segment.length(), -1, -1);
+			}
+		}
+	}
+
+	/**
+	 * Returns the child of a node for a segment of a path, adding it if the node has no such child.
+	 * @param parent The node.
+	 * @param path The path.
+	 * @param start The index of the first character of the segment.
+	 * @param end The index after the last character of the segment.
+	 * @return The child.
+	 */
+	private Node getChild(final Node parent, final String path, final int start, final int end) {
+		final Node wildcard = parent.wildcard;
+		if(wildcard != null) {
+			return wildcard;
+		}
+		final int uuidStart = findUuid(path, start, end);
+		final int sequenceStart = findSequence(path, uuidStart < 0 ? start : uuidStart + UUID_LENGTH, end);
+		return getChild(parent, path, start, end, uuidStart, sequenceStart);
+	}
+
+	/**
+	 * Returns the child of a node for a segment of a path, adding it if the node has no such child.
+	 * @param parent The node.
+	 * @param path The path.
+	 * @param start The index of the first character of the segment.
+	 * @param end The index after the last character of the segment.
+	 * @param uuidStart The index of the UUID within the segment or {@code -1}.
+	 * @param sequenceStart The index of the sequence number that ends the segment or {@code -1}.
+	 * @return The child.
+	 */
+	private Node getChild(final Node parent, final String path, final int start, final int end, final int uuidStart, final int sequenceStart) {
+		final int hash = hash(path, start, end, uuidStart, sequenceStart);
+		Node[] children = parent.children.get();
+		Node child = find(children, hash, path, start, end, uuidStart, sequenceStart);
+		while(child == null) {
+			if(children.length >= MAX_CHILDREN || nodeCount.get() >= maxNodes) {
+				return parent.getOverflow();
+			}
+			final String segment = normalizeSegment(path, start, end, uuidStart, sequenceStart);
+			final Node created = new Node(segment, parent.childPath(segment));
+			final Node[] updated = new Node[children.length + 1];
+			System.arraycopy(children, 0, updated, 0, children.length);
+			updated[children.length] = created;
+			if(parent.children.compareAndSet(children, updated)) {
+				nodeCount.incrementAndGet();
+				child = created;
+			} else {
+				children = parent.children.get();
+				child = find(children, hash, path, start, end, uuidStart, sequenceStart);
+			}
+		}
+		return child;
+	}
+
+	/**
+	 * Finds the node whose segment is the normalized form of a segment of a path.
+	 * @param children The nodes.
+	 * @param hash The hash code of the normalized segment.
+	 * @param path The path.
+	 * @param start The index of the first character of the segment.
+	 * @param end The index after the last character of the segment.
+	 * @param uuidStart The index of the UUID within the segment or {@code -1}.
+	 * @param sequenceStart The index of the sequence number that ends the segment or {@code -1}.
+	 * @return The node or {@code null} if no node matches.
+	 */
+	private static Node find(final Node[] children, final int hash, final String path, final int start, final int end, final int uuidStart, final int sequenceStart) {
+		for(final Node child : children) {
+			if(child.segment.hashCode() == hash && matches(child.segment, path, start, end, uuidStart, sequenceStart)) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Computes the hash code of the normalized form of a segment of a path without creating it.  The hash code
+	 * is equal to that of the {@link String} returned by {@link #normalizeSegment(String, int, int, int, int)}.
+	 * @param path The path.
+	 * @param start The index of the first character of the segment.
+	 * @param end The index after the last character of the segment.
+	 * @param uuidStart The index of the UUID within the segment or {@code -1}.
+	 * @param sequenceStart The index of the sequence number that ends the segment or {@code -1}.
+	 * @return The hash code.
+	 */
+	private static int hash(final String path, final int start, final int end, final int uuidStart, final int sequenceStart) {
+		final int literalEnd = sequenceStart < 0 ? end : sequenceStart;
+		int hash;
+		if(uuidStart < 0) {
+			hash = hash(0, path, start, literalEnd);
+		} else {
+			hash = hash(0, path, start, uuidStart);
+			hash = hash(hash, UUID_TOKEN, 0, UUID_TOKEN.length());
+			hash = hash(hash, path, uuidStart + UUID_LENGTH, literalEnd);
+		}
+		return sequenceStart < 0 ? hash : hash(hash, SEQUENCE_TOKEN, 0, SEQUENCE_TOKEN.length());
+	}
+
+	/**
+	 * Continues a {@link String} hash code over a range of characters.
+	 * @param hash The hash code of the preceding characters.
+	 * @param value The characters.
+	 * @param start The index of the first character of the range.
+	 * @param end The index after the last character of the range.
+	 * @return The hash code.
+	 */
+	private static int hash(final int hash, final String value, final int start, final int end) {
+		int result = hash;
+		for(int i = start; i < end; i++) {
+			result = 31 * result + value.charAt(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns whether a normalized segment is the normalized form of a segment of a path.
+	 * @param segment The normalized segment.
+	 * @param path The path.
+	 * @param start The index of the first character of the segment.
+	 * @param end The index after the last character of the segment.
+	 * @param uuidStart The index of the UUID within the segment or {@code -1}.
+	 * @param sequenceStart The index of the sequence number that ends the segment or {@code -1}.
+	 * @return {@code true} if the normalized segment matches.
+	 */
+	private static boolean matches(final String segment, final String path, final int start, final int end, final int uuidStart, final int sequenceStart) {
+		final int literalEnd = sequenceStart < 0 ? end : sequenceStart;
+		int offset = 0;
+		if(uuidStart < 0) {
+			if(!segment.regionMatches(offset, path, start, literalEnd - start)) {
+				return false;
+			}
+			offset += literalEnd - start;
+		} else {
+			final int uuidEnd = uuidStart + UUID_LENGTH;
+			if(!segment.regionMatches(offset, path, start, uuidStart - start)
+					|| !segment.regionMatches(offset + uuidStart - start, UUID_TOKEN, 0, UUID_TOKEN.length())
+					|| !segment.regionMatches(offset + uuidStart - start + UUID_TOKEN.length(), path, uuidEnd, literalEnd - uuidEnd)) {
+				return false;
+			}
+			offset += uuidStart - start + UUID_TOKEN.length() + literalEnd - uuidEnd;
+		}
+		if(sequenceStart >= 0) {
+			if(!segment.regionMatches(offset, SEQUENCE_TOKEN, 0, SEQUENCE_TOKEN.length())) {
+				return false;
+			}
+			offset += SEQUENCE_TOKEN.length();
+		}
+		return offset == segment.length();
+	}
+
+	/**
+	 * Creates the normalized form of a segment of a path.
+	 * @param path The path.
+	 * @param start The index of the first character of the segment.
+	 * @param end The index after the last character of the segment.
+	 * @param uuidStart The index of the UUID within the segment or {@code -1}.
+	 * @param sequenceStart The index of the sequence number that ends the segment or {@code -1}.
+	 * @return The normalized segment.
+	 */
+	private static String normalizeSegment(final String path, final int start, final int end, final int uuidStart, final int sequenceStart) {
+		final int literalEnd = sequenceStart < 0 ? end : sequenceStart;
+		final StringBuilder segment = new StringBuilder(end - start);
+		if(uuidStart < 0) {
+			segment.append(path, start, literalEnd);
+		} else {
+			segment.append(path, start, uuidStart).append(UUID_TOKEN).append(path, uuidStart + UUID_LENGTH, literalEnd);
+		}
+		if(sequenceStart >= 0) {
+			segment.append(SEQUENCE_TOKEN);
+		}
+		return segment.toString();
+	}
+
+	/**
+	 * Finds a UUID, in its canonical form of hexadecimal groups of 8, 4, 4, 4 and 12 digits, in a segment of a path.
+	 * @param path The path.
+	 * @param start The index of the first character of the segment.
+	 * @param end The index after the last character of the segment.
+	 * @return The index of the first UUID or {@code -1} if the segment contains none.
+	 */
+	static int findUuid(final String path, final int start, final int end) {
+		for(int i = start; i + UUID_LENGTH <= end; i++) {
+			if(path.charAt(i + 8) == '-' && path.charAt(i + 13) == '-' && path.charAt(i + 18) == '-' && path.charAt(i + 23) == '-' && isUuid(path, i)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns whether a UUID starts at an index of a path.
+	 * @param path The path.
+	 * @param start The index.
+	 * @return {@code true} if the characters at the index form a UUID.
+	 */
+	private static boolean isUuid(final String path, final int start) {
+		for(int i = 0; i < UUID_LENGTH; i++) {
+			final char c = path.charAt(start + i);
+			if(i == 8 || i == 13 || i == 18 || i == 23 ? c != '-' : Character.digit(c, 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Finds the sequence number that ends a segment of a path.  A sequence number is a trailing run of at least
+	 * {@value #SEQUENCE_DIGITS} digits or the whole segment if it consists only of digits.
+	 * @param path The path.
+	 * @param start The index from which to search for the sequence number.
+	 * @param end The index after the last character of the segment.
+	 * @return The index of the sequence number or {@code -1} if the segment does not end with one.
+	 */
+	static int findSequence(final String path, final int start, final int end) {
+		int sequenceStart = end;
+		while(sequenceStart > start && Character.isDigit(path.charAt(sequenceStart - 1))) {
+			sequenceStart--;
+		}
+		return sequenceStart < end && (sequenceStart == start || end - sequenceStart >= SEQUENCE_DIGITS) ? sequenceStart : -1;
+	}
+
+	/**
+	 * Returns the templates set by the {@value #TEMPLATES_PROPERTY} system property.
+	 * @return The templates.
+	 */
+	private static List<String> getDefaultTemplates() {
+		final List<String> templates = new ArrayList<String>();
+		for(final String template : System.getProperty(TEMPLATES_PROPERTY, "").split(",")) {
+			if(!template.trim().isEmpty()) {
+				templates.add(template.trim());
+			}
+		}
+		return templates;
+	}
+
+	/**
+	 * Node of the tree of normalized paths.
+	 */
+	private static final class Node {
+
+		/**
+		 * The normalized segment of the node.
+		 */
+		private final String segment;
+
+		/**
+		 * The normalized path of the node.
+		 */
+		private final String path;
+
+		/**
+		 * The children of the node, which are replaced with compare-and-set when a child is added.
+		 */
+		private final AtomicReference<Node[]> children = new AtomicReference<Node[]>(NO_CHILDREN);
+
+		/**
+		 * The child that replaces the segments that exceed the capacity of the tree.
+		 */
+		private final AtomicReference<Node> overflow = new AtomicReference<Node>();
+
+		/**
+		 * The child that replaces every segment by a template wildcard or {@code null}.
+		 */
+		private volatile Node wildcard;
+
+		/**
+		 * Creates a new {@code Node}.
+		 * @param segment The normalized segment of the node.
+		 * @param path The normalized path of the node.
+		 */
+		private Node(final String segment, final String path) {
+			this.segment = segment;
+			this.path = path;
+		}
+
+		/**
+		 * Returns the normalized path of a child of the node.
+		 * @param childSegment The normalized segment of the child.
+		 * @return The normalized path.
+		 */
+		private String childPath(final String childSegment) {
+			return path.endsWith("/") ? path + childSegment : path + '/' + childSegment;
+		}
+
+		/**
+		 * Returns the child that replaces the segments that exceed the capacity of the tree, creating it if needed.
+		 * @return The child.
+		 */
+		private Node getOverflow() {
+			Node child = overflow.get();
+			if(child == null) {
+				overflow.compareAndSet(null, new Node(OVERFLOW_SEGMENT, childPath(OVERFLOW_SEGMENT)));
+				child = overflow.get();
+			}
+			return child;
+		}
+	}
+
+	/**
+	 * Lazily creates the shared normalizer.
+	 */
+	private static final class Holder {
+
+		/**
+		 * The shared normalizer.
+		 */
+		private static final PathNormalizer INSTANCE = new PathNormalizer(getDefaultTemplates(), DEFAULT_MAX_NODES);
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free, open-addressed index of the path prefixes by which a recorder counts operations.  Prefixes are
+ * normalized by a {@link PathNormalizer}, which returns the same {@link String} instance for every path of the
+ * same prefix, so resolving a prefix that is already indexed neither allocates nor rehashes it.  At most a fixed
+ * number of prefixes is indexed; further prefixes resolve to {@link #getOtherIndex()}, whose prefix is
+ * {@link WatcherRecorder#OTHER_PATH_PREFIX}.  Indices are stable, so recorders may keep their counters
+ * in arrays of {@link #size()} elements.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ */
+final class PathPrefixIndex {
+
+	/**
+	 * The maximum number of indexed prefixes.
+	 */
+	private final int maxPrefixes;
+
+	/**
+	 * The indexed prefixes, by slot.  The last slot holds the prefix of the paths that could not be indexed.
+	 */
+	private final AtomicReferenceArray<String> prefixes;
+
+	/**
+	 * Mask applied to a hash to obtain a slot.
+	 */
+	private final int mask;
+
+	/**
+	 * The number of indexed prefixes.
+	 */
+	private final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * Creates a new {@code PathPrefixIndex}.
+	 * @param maxPrefixes The maximum number of indexed prefixes (must be positive).
+	 */
+	PathPrefixIndex(final int maxPrefixes) {
+		this.maxPrefixes = maxPrefixes;
+		final int capacity = Integer.highestOneBit(maxPrefixes * 2 - 1) << 1;
+		this.mask = capacity - 1;
+		this.prefixes = new AtomicReferenceArray<String>(capacity + 1);
+		prefixes.set(capacity, WatcherRecorder.OTHER_PATH_PREFIX);
+	}
+
+	/**
+	 * Returns the number of indices, which is one more than the highest index.
+	 * @return The number of indices.
+	 */
+	int size() {
+		return prefixes.length();
+	}
+
+	/**
+	 * Returns the index of the prefixes that could not be indexed.
+	 * @return The index.
+	 */
+	int getOtherIndex() {
+		return mask + 1;
+	}
+
+	/**
+	 * Returns the prefix at the provided index.
+	 * @param index The index.
+	 * @return The prefix or {@code null} if no prefix is indexed at the index.
+	 */
+	String getPrefix(final int index) {
+		return prefixes.get(index);
+	}
+
+	/**
+	 * Returns the index of the provided prefix, indexing the prefix if it is not indexed yet.
+	 * @param prefix The prefix or {@code null}.
+	 * @return The index of the prefix.
+	 */
+	int indexOf(final String prefix) {
+		if(prefix == null) {
+			return getOtherIndex();
+		}
+		final int hash = prefix.hashCode();
+		for(int probe = 0, slot = (hash ^ hash >>> 16) & mask; probe <= mask; probe++, slot = (slot + 1) & mask) {
+			final String indexed = prefixes.get(slot);
+			if(indexed == null) {
+				if(count.get() >= maxPrefixes) {
+					return getOtherIndex();
+				}
+				if(prefixes.compareAndSet(slot, null, prefix)) {
+					count.incrementAndGet();
+					return slot;
+				}
+			}
+			if(prefix.equals(prefixes.get(slot))) {
+				return slot;
+			}
+		}
+		return getOtherIndex();
+	}
+}
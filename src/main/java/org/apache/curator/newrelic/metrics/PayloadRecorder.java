@@ -0,0 +1,492 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.newrelic.api.agent.NewRelic;
+
+/**
+ * Records the size of the payloads that the instrumented ZooKeeper clients read and write and periodically
+ * reports them to <a href="http://newrelic.com">New Relic</a> as custom metrics.  Payloads are counted per
+ * direction ({@code Read} for {@code getData}, {@code Write} for {@code create} and {@code setData}, and
+ * {@code Children} for the child listings returned by {@code getChildren}) and path prefix.  The prefix consists of the leading segments of the path, one by default for the shared recorder or
+ * as many as set by the {@value #PATH_DEPTH_PROPERTY} system property, normalized by a {@link PathNormalizer}.  At most
+ * {@value WatcherRecorder#MAX_PATH_PREFIXES} prefixes are tracked; payloads of further prefixes are counted
+ * beneath {@value WatcherRecorder#OTHER_PATH_PREFIX}.  The following metrics are reported beneath
+ * {@value #METRIC_PREFIX}:
+ * <ul>
+ * 	<li>{@code (Read|Write|Children)/Bytes<path prefix>}: the number of payload bytes transferred.</li>
+ * 	<li>{@code (Read|Write|Children)/Size<path prefix>}: a histogram ({@code count}, {@code mean}, {@code p50},
+ * 		{@code p99} and {@code max}) of the size, in bytes, of each payload.  The size of a child listing is that
+ * 		of its serialized response.</li>
+ * 	<li>{@code (Read|Write|Children)/NearLimit<path prefix>}: the number of payloads whose size reached the alert
+ * 		threshold.  ZooKeeper rejects requests and responses that exceed its {@value #MAX_BUFFER_PROPERTY}
+ * 		limit, so an alert on this metric gives warning before writes and listings start to fail.</li>
+ * 	<li>{@code Children/Count<path prefix>}: a histogram of the number of children of each child listing.</li>
+ * </ul>
+ * The threshold defaults to {@value #DEFAULT_ALERT_RATIO} of the {@value #MAX_BUFFER_PROPERTY} system property
+ * (or of ZooKeeper's default of {@value #DEFAULT_MAX_BUFFER} bytes) and may be set with the
+ * {@value #ALERT_RATIO_PROPERTY} system property.  Payloads that reach it are also noted on the current
+ * transaction by the {@value #NEAR_LIMIT_PARAMETER} custom parameter.  Recording a payload does not allocate, as
+ * the path is only normalized once the record has reached the background thread of the recorders.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public final class PayloadRecorder extends PeriodicReporter {
+
+	/**
+	 * Name of the system property that controls the number of path segments by which payloads are counted.
+	 */
+	public static final String PATH_DEPTH_PROPERTY = "curator-newrelic-payload-path-depth";
+
+	/**
+	 * Name of the system property that controls the fraction of the maximum payload size at which payloads are counted as near the limit.
+	 */
+	public static final String ALERT_RATIO_PROPERTY = "curator-newrelic-payload-alert-ratio";
+
+	/**
+	 * Default fraction of the maximum payload size at which payloads are counted as near the limit.
+	 */
+	public static final String DEFAULT_ALERT_RATIO = "0.8";
+
+	/**
+	 * Name of the ZooKeeper system property that limits the size of requests and responses.
+	 */
+	public static final String MAX_BUFFER_PROPERTY = "jute.maxbuffer";
+
+	/**
+	 * ZooKeeper's default limit of the size of requests and responses, in bytes.
+	 */
+	public static final int DEFAULT_MAX_BUFFER = 0xfffff;
+
+	/**
+	 * Name of the custom parameter that notes a payload near the limit on the current transaction.
+	 */
+	public static final String NEAR_LIMIT_PARAMETER = "zookeeper.payloadNearLimit";
+
+	/**
+	 * Prefix of the metric names reported by the recorder.
+	 */
+	public static final String METRIC_PREFIX = "Custom/ZooKeeper/Payload/";
+
+	/**
+	 * Serialized size of the length of a list or string.
+	 */
+	private static final int INT_SIZE = 4;
+
+	/**
+	 * Key of the records of the number of children of a child listing.  The records of payloads are keyed by the
+	 * ordinal of their {@link Direction}.
+	 */
+	private static final int CHILD_COUNT_KEY = -1;
+
+	/**
+	 * The transfer directions of payloads.
+	 */
+	public enum Direction {
+
+		/**
+		 * Payloads returned by {@code getData}.
+		 */
+		READ("Read/"),
+
+		/**
+		 * Payloads sent by {@code create} and {@code setData}.
+		 */
+		WRITE("Write/"),
+
+		/**
+		 * Child listings returned by {@code getChildren}.
+		 */
+		CHILDREN("Children/");
+
+		/**
+		 * Segment of the metric names of the direction.
+		 */
+		private final String metricSegment;
+
+		/**
+		 * Creates a new {@code Direction}.
+		 * @param metricSegment Segment of the metric names of the direction.
+		 */
+		private Direction(final String metricSegment) {
+			this.metricSegment = metricSegment;
+		}
+	}
+
+	/**
+	 * The transfer directions, indexed by ordinal.
+	 */
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	/**
+	 * The tracked path prefixes.
+	 */
+	private final PathPrefixIndex prefixes = new PathPrefixIndex(WatcherRecorder.MAX_PATH_PREFIXES);
+
+	/**
+	 * Normalizes the path prefixes.
+	 */
+	private final PathNormalizer normalizer;
+
+	/**
+	 * Number of path segments by which payloads are counted.
+	 */
+	private final int pathDepth;
+
+	/**
+	 * Payload bytes, indexed by prefix index and direction.
+	 */
+	private final AtomicLongArray bytes;
+
+	/**
+	 * Payloads near the limit, indexed by prefix index and direction.
+	 */
+	private final AtomicLongArray nearLimit;
+
+	/**
+	 * Payload size histograms, indexed by prefix index and direction and created on first use.
+	 */
+	private final AtomicReferenceArray<HistogramMetric> sizeMetrics;
+
+	/**
+	 * Child count histograms, indexed by prefix index and created on first use.
+	 */
+	private final AtomicReferenceArray<HistogramMetric> childCountMetrics;
+
+	/**
+	 * Payload size, in bytes, at which payloads are counted as near the limit.
+	 */
+	private final long alertThreshold;
+
+	/**
+	 * Snapshot reused by each flush.
+	 */
+	private final LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+
+	/**
+	 * Returns the recorder shared by the instrumented clients.  It reports to New Relic at the interval
+	 * set by the {@value PeriodicReporter#FLUSH_INTERVAL_PROPERTY} system property and counts payloads by the
+	 * number of path segments set by the {@value #PATH_DEPTH_PROPERTY} system property.
+	 * @return The shared {@code PayloadRecorder}.
+	 */
+	public static PayloadRecorder getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Creates a new {@code PayloadRecorder} that normalizes path prefixes with the shared {@link PathNormalizer}.
+	 * @param flushIntervalMs The interval, in milliseconds, at which the recorder reports to New Relic.
+	 * 	If the interval is not positive, the recorder only reports when {@link #flush()} is called.
+	 * @param pathDepth The number of path segments by which payloads are counted.
+	 * @param alertThreshold The payload size, in bytes, at which payloads are counted as near the limit.
+	 * @throws IllegalArgumentException if the path depth is negative or the alert threshold is not positive.
+	 */
+	public PayloadRecorder(final long flushIntervalMs, final int pathDepth, final long alertThreshold) {
+		this(flushIntervalMs, PathNormalizer.getInstance(), pathDepth, alertThreshold);
+	}
+
+	/**
+	 * Creates a new {@code PayloadRecorder}.
+	 * @param flushIntervalMs The interval, in milliseconds, at which the recorder reports to New Relic.
+	 * 	If the interval is not positive, the recorder only reports when {@link #flush()} is called.
+	 * @param normalizer The {@link PathNormalizer} that normalizes path prefixes.
+	 * @param pathDepth The number of path segments by which payloads are counted.
+	 * @param alertThreshold The payload size, in bytes, at which payloads are counted as near the limit.
+	 * @throws IllegalArgumentException if the normalizer is {@code null}, the path depth is negative or the
+	 * 	alert threshold is not positive.
+	 */
+	public PayloadRecorder(final long flushIntervalMs, final PathNormalizer normalizer, final int pathDepth, final long alertThreshold) {
+		super(flushIntervalMs);
+		if(normalizer == null) {
+			throw new IllegalArgumentException("The path normalizer may not be null.");
+		}
+		if(pathDepth < 0) {
+			throw new IllegalArgumentException("The path depth may not be negative.");
+		}
+		if(alertThreshold < 1) {
+			throw new IllegalArgumentException("The alert threshold must be positive.");
+		}
+		this.normalizer = normalizer;
+		this.pathDepth = pathDepth;
+		this.bytes = new AtomicLongArray(prefixes.size() * DIRECTIONS.length);
+		this.nearLimit = new AtomicLongArray(prefixes.size() * DIRECTIONS.length);
+		this.sizeMetrics = new AtomicReferenceArray<HistogramMetric>(prefixes.size() * DIRECTIONS.length);
+		this.childCountMetrics = new AtomicReferenceArray<HistogramMetric>(prefixes.size());
+		this.alertThreshold = alertThreshold;
+	}
+
+	/**
+	 * Records the transfer of a payload.
+	 * @param direction The transfer direction.
+	 * @param path The path of the node.
+	 * @param data The payload or {@code null}, which is recorded as empty.
+	 */
+	public void record(final Direction direction, final String path, final byte[] data) {
+		record(direction, path, data == null ? 0 : data.length);
+	}
+
+	/**
+	 * Records the transfer of a payload.
+	 * @param direction The transfer direction.
+	 * @param path The path of the node.
+	 * @param size The size of the payload in bytes.
+	 */
+	public void record(final Direction direction, final String path, final int size) {
+		checkLimit(path, size);
+		record(direction.ordinal(), size, path);
+	}
+
+	/**
+	 * Records a child listing returned by {@code getChildren}.  The size of the listing is that of its serialized
+	 * response, which holds the length of the list followed by the length and the UTF-8 encoding of each child.
+	 * @param path The path of the parent node.
+	 * @param children The children or {@code null}, which is recorded as empty.
+	 */
+	public void recordChildren(final String path, final List<String> children) {
+		final int size = getListingSize(children);
+		checkLimit(path, size);
+		record(CHILD_COUNT_KEY, children == null ? 0 : children.size(), path);
+		record(Direction.CHILDREN.ordinal(), size, path);
+	}
+
+	/**
+	 * Computes the size of the serialized response of a child listing, which holds the length of the list
+	 * followed by the length and the UTF-8 encoding of each child.
+	 * @param children The children or {@code null}, which is sized as empty.
+	 * @return The size of the listing in bytes.
+	 */
+	static int getListingSize(final List<String> children) {
+		long size = INT_SIZE;
+		final int count = children == null ? 0 : children.size();
+		for(int i = 0; i < count; i++) {
+			size += INT_SIZE + getUtf8Length(children.get(i));
+		}
+		return (int)Math.min(size, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Notes a payload whose size reached the alert threshold on the current transaction.
+	 * @param path The path of the node.
+	 * @param size The size of the payload in bytes.
+	 */
+	private void checkLimit(final String path, final int size) {
+		if(size >= alertThreshold) {
+			NewRelic.addCustomParameter(NEAR_LIMIT_PARAMETER, path);
+		}
+	}
+
+	/**
+	 * Returns the payload size at which payloads are counted as near the limit.
+	 * @return The size in bytes.
+	 */
+	public long getAlertThreshold() {
+		return alertThreshold;
+	}
+
+	/**
+	 * Returns the number of payload bytes transferred since the previous flush for the provided direction and path prefix.
+	 * @param direction The transfer direction.
+	 * @param pathPrefix The path prefix.
+	 * @return The number of bytes.
+	 */
+	public long getByteCount(final Direction direction, final String pathPrefix) {
+		drain();
+		return bytes.get(indexOfPrefix(pathPrefix) * DIRECTIONS.length + direction.ordinal());
+	}
+
+	/**
+	 * Returns the number of payloads near the limit transferred since the previous flush for the provided direction and path prefix.
+	 * @param direction The transfer direction.
+	 * @param pathPrefix The path prefix.
+	 * @return The number of payloads.
+	 */
+	public long getNearLimitCount(final Direction direction, final String pathPrefix) {
+		drain();
+		return nearLimit.get(indexOfPrefix(pathPrefix) * DIRECTIONS.length + direction.ordinal());
+	}
+
+	/**
+	 * Returns the payload size histogram for the provided direction and path prefix.
+	 * @param direction The transfer direction.
+	 * @param pathPrefix The path prefix.
+	 * @return The histogram.
+	 */
+	public LatencyHistogram getSizeHistogram(final Direction direction, final String pathPrefix) {
+		drain();
+		final int prefixIndex = indexOfPrefix(pathPrefix);
+		return getSizeMetric(prefixIndex * DIRECTIONS.length + direction.ordinal(), prefixIndex, direction).getHistogram();
+	}
+
+	/**
+	 * Returns the child count histogram for the provided path prefix.
+	 * @param pathPrefix The path prefix.
+	 * @return The histogram.
+	 */
+	public LatencyHistogram getChildCountHistogram(final String pathPrefix) {
+		drain();
+		return getChildCountMetric(indexOfPrefix(pathPrefix)).getHistogram();
+	}
+
+	@Override
+	protected void apply(final int key, final long value, final Object attachment) {
+		final int prefixIndex = indexOfPath((String)attachment);
+		if(key == CHILD_COUNT_KEY) {
+			getChildCountMetric(prefixIndex).getHistogram().record(value);
+		} else {
+			final int index = prefixIndex * DIRECTIONS.length + key;
+			bytes.addAndGet(index, value);
+			getSizeMetric(index, prefixIndex, DIRECTIONS[key]).getHistogram().record(value);
+			if(value >= alertThreshold) {
+				nearLimit.incrementAndGet(index);
+			}
+		}
+	}
+
+	@Override
+	protected void report() {
+		for(int index = 0; index < sizeMetrics.length(); index++) {
+			final HistogramMetric metric = sizeMetrics.get(index);
+			if(metric != null) {
+				metric.report(snapshot);
+				final String suffix = prefixes.getPrefix(index / DIRECTIONS.length);
+				final Direction direction = DIRECTIONS[index % DIRECTIONS.length];
+				reportCount(METRIC_PREFIX + direction.metricSegment + "Bytes" + suffix, bytes.getAndSet(index, 0));
+				reportCount(METRIC_PREFIX + direction.metricSegment + "NearLimit" + suffix, nearLimit.getAndSet(index, 0));
+			}
+		}
+		for(int index = 0; index < childCountMetrics.length(); index++) {
+			final HistogramMetric metric = childCountMetrics.get(index);
+			if(metric != null) {
+				metric.report(snapshot);
+			}
+		}
+	}
+
+	/**
+	 * Reports a count to New Relic if it is positive.
+	 * @param metricName The name of the metric.
+	 * @param count The count.
+	 */
+	private static void reportCount(final String metricName, final long count) {
+		if(count > 0) {
+			NewRelic.recordMetric(metricName, count);
+		}
+	}
+
+	/**
+	 * Returns the index of the provided path prefix.
+	 * @param pathPrefix The path prefix, which may be {@value WatcherRecorder#OTHER_PATH_PREFIX}.
+	 * @return The index.
+	 */
+	private int indexOfPrefix(final String pathPrefix) {
+		return WatcherRecorder.OTHER_PATH_PREFIX.equals(pathPrefix) ? prefixes.getOtherIndex() : prefixes.indexOf(normalizer.normalize(pathPrefix, pathDepth));
+	}
+
+	/**
+	 * Returns the index of the normalized prefix of the provided path.
+	 * @param path The path or {@code null}.
+	 * @return The index.
+	 */
+	private int indexOfPath(final String path) {
+		return path == null ? prefixes.getOtherIndex() : prefixes.indexOf(normalizer.normalize(path, pathDepth));
+	}
+
+	/**
+	 * Returns the child count histogram of the path prefix at the provided index, creating it if needed.
+	 * @param prefixIndex The index of the path prefix.
+	 * @return The histogram.
+	 */
+	private HistogramMetric getChildCountMetric(final int prefixIndex) {
+		HistogramMetric metric = childCountMetrics.get(prefixIndex);
+		if(metric == null) {
+			final String metricName = METRIC_PREFIX + Direction.CHILDREN.metricSegment + "Count" + prefixes.getPrefix(prefixIndex);
+			childCountMetrics.compareAndSet(prefixIndex, null, new HistogramMetric(metricName, 1f));
+			metric = childCountMetrics.get(prefixIndex);
+		}
+		return metric;
+	}
+
+	/**
+	 * Returns the length of the UTF-8 encoding of a string without encoding it.
+	 * @param value The string.
+	 * @return The length in bytes.
+	 */
+	static int getUtf8Length(final String value) {
+		int length = value.length();
+		for(int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if(c >= 0x800) {
+				length += Character.isSurrogate(c) ? 1 : 2;
+			} else if(c >= 0x80) {
+				length++;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Returns the payload size histogram at the provided index, creating it if needed.
+	 * @param index The index of the histogram.
+	 * @param prefixIndex The index of the path prefix of the histogram.
+	 * @param direction The transfer direction of the histogram.
+	 * @return The histogram.
+	 */
+	private HistogramMetric getSizeMetric(final int index, final int prefixIndex, final Direction direction) {
+		HistogramMetric metric = sizeMetrics.get(index);
+		if(metric == null) {
+			final String metricName = METRIC_PREFIX + direction.metricSegment + "Size" + prefixes.getPrefix(prefixIndex);
+			sizeMetrics.compareAndSet(index, null, new HistogramMetric(metricName, 1f));
+			metric = sizeMetrics.get(index);
+		}
+		return metric;
+	}
+
+	/**
+	 * Returns the payload size at which the shared recorder counts payloads as near the limit.
+	 * @return The size in bytes.
+	 */
+	private static long getDefaultAlertThreshold() {
+		final int maxBuffer = Integer.getInteger(MAX_BUFFER_PROPERTY, DEFAULT_MAX_BUFFER);
+		double ratio;
+		try {
+			ratio = Double.parseDouble(System.getProperty(ALERT_RATIO_PROPERTY, DEFAULT_ALERT_RATIO));
+		} catch(final NumberFormatException e) {
+			ratio = Double.parseDouble(DEFAULT_ALERT_RATIO);
+		}
+		return Math.max(1, (long)(maxBuffer * ratio));
+	}
+
+	/**
+	 * Lazily creates the shared recorder.
+	 */
+	private static final class Holder {
+
+		/**
+		 * The shared recorder.
+		 */
+		private static final PayloadRecorder INSTANCE = new PayloadRecorder(getDefaultFlushIntervalMs(), Integer.getInteger(PATH_DEPTH_PROPERTY, 1), getDefaultAlertThreshold());
+
+		static {
+			INSTANCE.start();
+		}
+	}
+}
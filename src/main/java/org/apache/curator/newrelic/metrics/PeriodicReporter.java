@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import java.io.Closeable;
+import java.util.concurrent.ScheduledFuture;
+
+import org.apache.curator.newrelic.metrics.RecordRingBuffer.RecordHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class of the recorders that aggregate measurements in memory and periodically report them to
+ * <a href="http://newrelic.com">New Relic</a> from a background thread, keeping the calls to the
+ * New Relic API off the instrumented code paths.
+ * <p>
+ * Recording a measurement only writes a record to the buffer of a {@link MetricsExporter} shared by all
+ * recorders.  A single background thread applies the records to the recorders that wrote them and runs the
+ * periodic flush of every started recorder.  The recorders drain the buffer before they are flushed or read.
+ * When the buffer is full, records are dropped rather than blocking the caller.
+ * <p>
+ * Periodic reporting begins when {@link #start()} is called, once the recorder has been fully constructed,
+ * so that the background thread never observes a partially initialized subclass.  A flush or a record that
+ * fails is logged and does not cancel the later ones.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public abstract class PeriodicReporter implements Closeable {
+
+	/**
+	 * Name of the system property that controls the interval, in milliseconds, at which the shared
+	 * recorders report to New Relic.
+	 */
+	public static final String FLUSH_INTERVAL_PROPERTY = "curator-newrelic-flush-interval-ms";
+
+	/**
+	 * Default interval, in milliseconds, at which the shared recorders report to New Relic.  This
+	 * matches the interval at which the New Relic agent harvests metrics.
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL_MS = 60000L;
+
+	/**
+	 * Name of the system property that controls the number of records that the buffer shared by the recorders holds.
+	 */
+	public static final String EXPORT_BUFFER_SIZE_PROPERTY = "curator-newrelic-export-buffer-size";
+
+	/**
+	 * Name of the system property that controls the interval, in milliseconds, at which the buffer shared by the
+	 * recorders is drained.
+	 */
+	public static final String EXPORT_INTERVAL_PROPERTY = "curator-newrelic-export-interval-ms";
+
+	/**
+	 * Default number of records that the shared buffer holds.
+	 */
+	public static final int DEFAULT_EXPORT_BUFFER_SIZE = 16384;
+
+	/**
+	 * Default interval, in milliseconds, at which the shared buffer is drained.
+	 */
+	public static final long DEFAULT_EXPORT_INTERVAL_MS = 10L;
+
+	/**
+	 * Logger for failures to apply records.
+	 */
+	private static final Logger logger = LoggerFactory.getLogger(PeriodicReporter.class);
+
+	/**
+	 * The interval, in milliseconds, at which the recorder reports to New Relic.
+	 */
+	private final long flushIntervalMs;
+
+	/**
+	 * The exporter that carries the records of the recorder to the background thread.
+	 */
+	private final MetricsExporter exporter;
+
+	/**
+	 * Applies the records of the recorder on the thread that drains the buffer.
+	 */
+	private final RecordHandler handler = new RecordHandler() {
+
+		@Override
+		public void handle(final int key, final long value, final Object attachment) {
+			try {
+				apply(key, value, attachment);
+			} catch(final RuntimeException e) {
+				logger.warn("Unable to apply a record to {}.", PeriodicReporter.this, e);
+			}
+		}
+	};
+
+	/**
+	 * Guards the lifecycle of the periodic flush.
+	 */
+	private final Object lock = new Object();
+
+	/**
+	 * Serializes the reports of the recorder, without blocking the thread that applies the records.
+	 */
+	private final Object reportLock = new Object();
+
+	/**
+	 * Future of the periodic flush, or {@code null} if the recorder has not been started or is flushed manually.
+	 */
+	private ScheduledFuture<?> future;
+
+	/**
+	 * Whether the recorder has been started.
+	 */
+	private boolean started;
+
+	/**
+	 * Whether the recorder has been closed.
+	 */
+	private boolean closed;
+
+	/**
+	 * Creates a new {@code PeriodicReporter} that records through the shared {@link MetricsExporter}.  The
+	 * recorder does not report until {@link #start()} is called.
+	 * @param flushIntervalMs The interval, in milliseconds, at which the recorder reports to New Relic.
+	 * 	If the interval is not positive, the recorder only reports when {@link #flush()} is called.
+	 */
+	protected PeriodicReporter(final long flushIntervalMs) {
+		this(flushIntervalMs, MetricsExporter.getInstance());
+	}
+
+	/**
+	 * Creates a new {@code PeriodicReporter}.  The recorder does not report until {@link #start()} is called.
+	 * @param flushIntervalMs The interval, in milliseconds, at which the recorder reports to New Relic.
+	 * 	If the interval is not positive, the recorder only reports when {@link #flush()} is called.
+	 * @param exporter The exporter that carries the records of the recorder to the background thread.
+	 */
+	PeriodicReporter(final long flushIntervalMs, final MetricsExporter exporter) {
+		this.flushIntervalMs = flushIntervalMs;
+		this.exporter = exporter;
+	}
+
+	/**
+	 * Returns the interval at which the shared recorders report to New Relic, as set by the
+	 * {@value #FLUSH_INTERVAL_PROPERTY} system property.
+	 * @return The interval in milliseconds.
+	 */
+	protected static long getDefaultFlushIntervalMs() {
+		return Long.getLong(FLUSH_INTERVAL_PROPERTY, DEFAULT_FLUSH_INTERVAL_MS);
+	}
+
+	/**
+	 * Starts the background thread of the exporter, if needed, and reports to New Relic at the interval provided
+	 * to the constructor.  This method must be called after the recorder has been constructed.  It has no effect
+	 * if the recorder has already been started or has been closed.
+	 */
+	public final void start() {
+		synchronized(lock) {
+			if(started || closed) {
+				return;
+			}
+			started = true;
+			exporter.start();
+			future = exporter.schedule(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, flushIntervalMs);
+		}
+	}
+
+	/**
+	 * Writes a record to the buffer of the exporter.  The record is passed to {@link #apply} on the thread that
+	 * drains the buffer.  This method never blocks and does not allocate.
+	 * @param key The key of the record.
+	 * @param value The value of the record.
+	 * @param attachment The attachment of the record, or {@code null}.
+	 * @return {@code true} if the record was written or {@code false} if it was dropped because the buffer was full.
+	 */
+	protected final boolean record(final int key, final long value, final Object attachment) {
+		return exporter.offer(handler, key, value, attachment);
+	}
+
+	/**
+	 * Applies the records written to the buffer so far, so that they can be read.
+	 */
+	protected final void drain() {
+		exporter.drain();
+	}
+
+	/**
+	 * Returns the number of records that the exporter dropped because its buffer was full.
+	 * @return The number of dropped records.
+	 */
+	protected final long getExporterDroppedCount() {
+		return exporter.getDroppedCount();
+	}
+
+	/**
+	 * Applies a record written by {@link #record} to the measurements of the recorder.  Records are applied by
+	 * one thread at a time, in the order in which they were written.
+	 * @param key The key of the record.
+	 * @param value The value of the record.
+	 * @param attachment The attachment of the record, or {@code null}.
+	 */
+	protected abstract void apply(int key, long value, Object attachment);
+
+	/**
+	 * Reports the measurements recorded since the previous flush to New Relic and resets them.  Records may
+	 * be applied while the measurements are reported, so each measurement must be taken and reset atomically,
+	 * as by {@link LatencyHistogram#drainTo} or {@link java.util.concurrent.atomic.AtomicLong#getAndSet}, so that
+	 * each record is reported by exactly one flush.  Reports of the same recorder never run concurrently.
+	 */
+	protected abstract void report();
+
+	/**
+	 * Applies the outstanding records, then reports the measurements recorded since the previous flush to
+	 * New Relic and resets them.  The records are applied while holding the lock of the exporter, but the
+	 * measurements are reported after it has been released.
+	 */
+	public final void flush() {
+		exporter.drain();
+		synchronized(reportLock) {
+			report();
+		}
+	}
+
+	/**
+	 * Stops the periodic reporting, if any, and reports any outstanding measurements.
+	 */
+	@Override
+	public void close() {
+		synchronized(lock) {
+			closed = true;
+			if(future != null) {
+				future.cancel(false);
+				future = null;
+			}
+		}
+		flush();
+	}
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.newrelic.api.agent.NewRelic;
+
+/**
+ * Records the use of the instrumented Curator recipes and periodically reports it to
+ * <a href="http://newrelic.com">New Relic</a> as custom metrics.  Each measurement is kept per recipe path,
+ * normalized by a {@link PathNormalizer} so that, for example, the locks of individual entities share their
+ * metrics.  At most {@value WatcherRecorder#MAX_PATH_PREFIXES} paths are tracked per measurement; further paths
+ * are counted beneath {@value WatcherRecorder#OTHER_PATH_PREFIX}.  The following metrics are reported beneath
+ * {@value #METRIC_PREFIX}:
+ * <ul>
+ * 	<li>{@code Lock/Wait<path>}: a histogram ({@code count}, {@code mean}, {@code p50}, {@code p99} and
+ * 		{@code max}, in milliseconds) of the time spent acquiring a lock.</li>
+ * 	<li>{@code Lock/Hold<path>}: a histogram, in milliseconds, of the time for which a lock was held.</li>
+ * 	<li>{@code Lock/QueueDepth<path>}: a histogram of the number of participants queued under the lock node,
+ * 		including the holder, sampled after acquisitions.</li>
+ * 	<li>{@code Lock/Timeout<path>}: the number of acquisitions that timed out.</li>
+ * 	<li>{@code Leader/Await<path>}: a histogram, in milliseconds, of the time spent awaiting leadership.</li>
+ * 	<li>{@code Leader/Tenure<path>}: a histogram, in milliseconds, of the time for which leadership was held.</li>
+ * 	<li>{@code Leader/Gained<path>} and {@code Leader/Lost<path>}: the number of leadership changes.</li>
+ * 	<li>{@code Barrier/Wait<path>}: a histogram, in milliseconds, of the time spent waiting on a barrier.</li>
+ * 	<li>{@code Barrier/Timeout<path>}: the number of waits on a barrier that timed out.</li>
+ * </ul>
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public final class RecipeRecorder extends PeriodicReporter {
+
+	/**
+	 * Prefix of the metric names reported by the recorder.
+	 */
+	public static final String METRIC_PREFIX = "Custom/Curator/Recipes/";
+
+	/**
+	 * Distributions recorded per recipe path.
+	 */
+	public enum Measure {
+
+		/**
+		 * Time, in nanoseconds, spent acquiring a lock.
+		 */
+		LOCK_WAIT("Lock/Wait", 1000000f),
+
+		/**
+		 * Time, in nanoseconds, for which a lock was held.
+		 */
+		LOCK_HOLD("Lock/Hold", 1000000f),
+
+		/**
+		 * Number of participants queued under a lock node.
+		 */
+		LOCK_QUEUE_DEPTH("Lock/QueueDepth", 1f),
+
+		/**
+		 * Time, in nanoseconds, spent awaiting leadership.
+		 */
+		LEADER_AWAIT("Leader/Await", 1000000f),
+
+		/**
+		 * Time, in nanoseconds, for which leadership was held.
+		 */
+		LEADER_TENURE("Leader/Tenure", 1000000f),
+
+		/**
+		 * Time, in nanoseconds, spent waiting on a barrier.
+		 */
+		BARRIER_WAIT("Barrier/Wait", 1000000f);
+
+		/**
+		 * Segment of the metric names of the measure.
+		 */
+		private final String metricSegment;
+
+		/**
+		 * Divisor that converts the recorded values to the reported unit.
+		 */
+		private final float divisor;
+
+		/**
+		 * Creates a new {@code Measure}.
+		 * @param metricSegment Segment of the metric names of the measure.
+		 * @param divisor Divisor that converts the recorded values to the reported unit.
+		 */
+		private Measure(final String metricSegment, final float divisor) {
+			this.metricSegment = metricSegment;
+			this.divisor = divisor;
+		}
+	}
+
+	/**
+	 * Events counted per recipe path.
+	 */
+	public enum Event {
+
+		/**
+		 * An acquisition of a lock timed out.
+		 */
+		LOCK_TIMEOUT("Lock/Timeout"),
+
+		/**
+		 * Leadership was gained.
+		 */
+		LEADER_GAINED("Leader/Gained"),
+
+		/**
+		 * Leadership was lost.
+		 */
+		LEADER_LOST("Leader/Lost"),
+
+		/**
+		 * A wait on a barrier timed out.
+		 */
+		BARRIER_TIMEOUT("Barrier/Timeout");
+
+		/**
+		 * Segment of the metric names of the event.
+		 */
+		private final String metricSegment;
+
+		/**
+		 * Creates a new {@code Event}.
+		 * @param metricSegment Segment of the metric names of the event.
+		 */
+		private Event(final String metricSegment) {
+			this.metricSegment = metricSegment;
+		}
+	}
+
+	/**
+	 * The measures, indexed by ordinal.
+	 */
+	private static final Measure[] MEASURES = Measure.values();
+
+	/**
+	 * The events, indexed by ordinal.
+	 */
+	private static final Event[] EVENTS = Event.values();
+
+	/**
+	 * Key of the records of the first {@link Event}.  The records of measures are keyed by the ordinal of their
+	 * {@link Measure}, and the records of events by their ordinal offset by this key.
+	 */
+	private static final int EVENT_KEY_OFFSET = MEASURES.length;
+
+	/**
+	 * Histograms per normalized path, by measure.  The map is filled on construction and only read afterwards.
+	 */
+	private final Map<Measure, ConcurrentMap<String, HistogramMetric>> measures = new EnumMap<Measure, ConcurrentMap<String, HistogramMetric>>(Measure.class);
+
+	/**
+	 * Counts per normalized path, by event.  The map is filled on construction and only read afterwards.
+	 */
+	private final Map<Event, ConcurrentMap<String, AtomicLong>> events = new EnumMap<Event, ConcurrentMap<String, AtomicLong>>(Event.class);
+
+	/**
+	 * Normalizes the recipe paths.
+	 */
+	private final PathNormalizer normalizer;
+
+	/**
+	 * Snapshot reused by each flush.
+	 */
+	private final LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+
+	/**
+	 * Returns the recorder shared by the instrumented recipes.  It reports to New Relic at the interval
+	 * set by the {@value PeriodicReporter#FLUSH_INTERVAL_PROPERTY} system property and normalizes paths
+	 * with the shared {@link PathNormalizer}.
+	 * @return The shared {@code RecipeRecorder}.
+	 */
+	public static RecipeRecorder getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Creates a new {@code RecipeRecorder}.
+	 * @param flushIntervalMs The interval, in milliseconds, at which the recorder reports to New Relic.
+	 * 	If the interval is not positive, the recorder only reports when {@link #flush()} is called.
+	 * @param normalizer The {@link PathNormalizer} that normalizes the recipe paths.
+	 * @throws IllegalArgumentException if the normalizer is {@code null}.
+	 */
+	public RecipeRecorder(final long flushIntervalMs, final PathNormalizer normalizer) {
+		super(flushIntervalMs);
+		if(normalizer == null) {
+			throw new IllegalArgumentException("The path normalizer may not be null.");
+		}
+		this.normalizer = normalizer;
+		for(final Measure measure : MEASURES) {
+			measures.put(measure, new ConcurrentHashMap<String, HistogramMetric>());
+		}
+		for(final Event event : EVENTS) {
+			events.put(event, new ConcurrentHashMap<String, AtomicLong>());
+		}
+	}
+
+	/**
+	 * Records a value of a measure.
+	 * @param measure The measure.
+	 * @param path The path of the recipe.
+	 * @param value The value, in nanoseconds for durations.
+	 */
+	public void record(final Measure measure, final String path, final long value) {
+		record(measure.ordinal(), value, path);
+	}
+
+	/**
+	 * Records an event.
+	 * @param event The event.
+	 * @param path The path of the recipe.
+	 */
+	public void record(final Event event, final String path) {
+		record(EVENT_KEY_OFFSET + event.ordinal(), 1, path);
+	}
+
+	/**
+	 * Returns the histogram of a measure for the provided path.
+	 * @param measure The measure.
+	 * @param path The path of the recipe.
+	 * @return The histogram.
+	 */
+	public LatencyHistogram getHistogram(final Measure measure, final String path) {
+		drain();
+		return getHistogramMetric(measure, normalize(path)).getHistogram();
+	}
+
+	/**
+	 * Returns the number of events counted since the previous flush for the provided path.
+	 * @param event The event.
+	 * @param path The path of the recipe.
+	 * @return The number of events.
+	 */
+	public long getCount(final Event event, final String path) {
+		drain();
+		final AtomicLong counter = events.get(event).get(normalize(path));
+		return counter == null ? 0 : counter.get();
+	}
+
+	@Override
+	protected void apply(final int key, final long value, final Object attachment) {
+		final String path = normalize((String)attachment);
+		if(key < EVENT_KEY_OFFSET) {
+			getHistogramMetric(MEASURES[key], path).getHistogram().record(value);
+		} else {
+			getCounter(EVENTS[key - EVENT_KEY_OFFSET], path).incrementAndGet();
+		}
+	}
+
+	@Override
+	protected void report() {
+		for(final ConcurrentMap<String, HistogramMetric> histograms : measures.values()) {
+			for(final HistogramMetric metric : histograms.values()) {
+				metric.report(snapshot);
+			}
+		}
+		for(final Map.Entry<Event, ConcurrentMap<String, AtomicLong>> counters : events.entrySet()) {
+			for(final Map.Entry<String, AtomicLong> entry : counters.getValue().entrySet()) {
+				final long count = entry.getValue().getAndSet(0);
+				if(count > 0) {
+					NewRelic.recordMetric(METRIC_PREFIX + counters.getKey().metricSegment + entry.getKey(), count);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Normalizes a recipe path.
+	 * @param path The path or {@code null}.
+	 * @return The normalized path, or {@value WatcherRecorder#OTHER_PATH_PREFIX} if the path is {@code null}.
+	 */
+	private String normalize(final String path) {
+		return path == null ? WatcherRecorder.OTHER_PATH_PREFIX : normalizer.normalize(path);
+	}
+
+	/**
+	 * Returns the histogram of a measure for the provided normalized path, creating it if the number of tracked
+	 * paths allows, or returning that of {@value WatcherRecorder#OTHER_PATH_PREFIX} otherwise.
+	 * @param measure The measure.
+	 * @param path The normalized path.
+	 * @return The histogram.
+	 */
+	private HistogramMetric getHistogramMetric(final Measure measure, final String path) {
+		final ConcurrentMap<String, HistogramMetric> histograms = measures.get(measure);
+		HistogramMetric metric = histograms.get(path);
+		if(metric == null) {
+			final String key = histograms.size() < WatcherRecorder.MAX_PATH_PREFIXES ? path : WatcherRecorder.OTHER_PATH_PREFIX;
+			metric = histograms.get(key);
+			if(metric == null) {
+				final HistogramMetric created = new HistogramMetric(METRIC_PREFIX + measure.metricSegment + key, measure.divisor);
+				metric = histograms.putIfAbsent(key, created);
+				if(metric == null) {
+					metric = created;
+				}
+			}
+		}
+		return metric;
+	}
+
+	/**
+	 * Returns the counter of an event for the provided normalized path, creating it if the number of tracked
+	 * paths allows, or returning that of {@value WatcherRecorder#OTHER_PATH_PREFIX} otherwise.
+	 * @param event The event.
+	 * @param path The normalized path.
+	 * @return The counter.
+	 */
+	private AtomicLong getCounter(final Event event, final String path) {
+		final ConcurrentMap<String, AtomicLong> counters = events.get(event);
+		AtomicLong counter = counters.get(path);
+		if(counter == null) {
+			final String key = counters.size() < WatcherRecorder.MAX_PATH_PREFIXES ? path : WatcherRecorder.OTHER_PATH_PREFIX;
+			counter = counters.get(key);
+			if(counter == null) {
+				final AtomicLong created = new AtomicLong();
+				counter = counters.putIfAbsent(key, created);
+				if(counter == null) {
+					counter = created;
+				}
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Lazily creates the shared recorder.
+	 */
+	private static final class Holder {
+
+		/**
+		 * The shared recorder.
+		 */
+		private static final RecipeRecorder INSTANCE = new RecipeRecorder(getDefaultFlushIntervalMs(), PathNormalizer.getInstance());
+
+		static {
+			INSTANCE.start();
+		}
+	}
+}
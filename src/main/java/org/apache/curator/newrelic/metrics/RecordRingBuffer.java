@@ -0,0 +1,196 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free ring buffer of fixed-size records, each made of the {@link RecordHandler} that applies
+ * it, an {@code int} key, a {@code long} value and an optional attachment, that may be written by any number
+ * of threads and is drained by a single consumer.  Records are stored in pre-allocated arrays, so that writing
+ * a record does not allocate.  When the buffer is full, records are dropped and counted rather than blocking
+ * the writing thread.
+ * <p>
+ * Each slot carries a sequence number that tells writers when the slot is free and tells the consumer
+ * when the record that it holds has been published, so that a writer only ever contends with other
+ * writers on the compare-and-set that claims a slot.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ */
+final class RecordRingBuffer {
+
+	/**
+	 * Applies the records drained from a {@link RecordRingBuffer}.
+	 */
+	interface RecordHandler {
+
+		/**
+		 * Handles a record.
+		 * @param key The key of the record.
+		 * @param value The value of the record.
+		 * @param attachment The attachment of the record, or {@code null}.
+		 */
+		void handle(int key, long value, Object attachment);
+	}
+
+	/**
+	 * Number of slots, a power of two.
+	 */
+	private final int capacity;
+
+	/**
+	 * Mask that maps a position to the index of its slot.
+	 */
+	private final int mask;
+
+	/**
+	 * Handlers of the records, indexed by slot.
+	 */
+	private final RecordHandler[] handlers;
+
+	/**
+	 * Keys of the records, indexed by slot.
+	 */
+	private final int[] keys;
+
+	/**
+	 * Values of the records, indexed by slot.
+	 */
+	private final long[] values;
+
+	/**
+	 * Attachments of the records, indexed by slot.  Slots are cleared once drained, so that the buffer does not
+	 * retain the attachments.
+	 */
+	private final Object[] attachments;
+
+	/**
+	 * Sequence number of each slot.  A slot whose sequence equals a position is free for the writer of that
+	 * position, and a slot whose sequence is one past a position holds the published record of that position.
+	 */
+	private final AtomicLongArray sequences;
+
+	/**
+	 * Position of the next record to write.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Number of records dropped because the buffer was full.
+	 */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Position of the next record to drain.  Only accessed by the consumer.
+	 */
+	private long head;
+
+	/**
+	 * Creates a new {@code RecordRingBuffer}.
+	 * @param capacity The minimum number of records that the buffer holds.  It is rounded up to a power of two.
+	 * @throws IllegalArgumentException if the capacity is not positive or exceeds {@code 2^30}.
+	 */
+	RecordRingBuffer(final int capacity) {
+		if(capacity <= 0 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Capacity must be positive and at most 2^30.");
+		}
+		this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = this.capacity - 1;
+		this.handlers = new RecordHandler[this.capacity];
+		this.keys = new int[this.capacity];
+		this.values = new long[this.capacity];
+		this.attachments = new Object[this.capacity];
+		this.sequences = new AtomicLongArray(this.capacity);
+		for(int i = 0; i < this.capacity; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Writes a record to the buffer, unless it is full.
+	 * @param handler The handler that applies the record once it is drained.
+	 * @param key The key of the record.
+	 * @param value The value of the record.
+	 * @param attachment The attachment of the record, or {@code null}.
+	 * @return {@code true} if the record was written or {@code false} if it was dropped.
+	 */
+	boolean offer(final RecordHandler handler, final int key, final long value, final Object attachment) {
+		long position = tail.get();
+		while(true) {
+			final int index = (int)position & mask;
+			final long sequence = sequences.get(index);
+			if(sequence == position) {
+				if(tail.compareAndSet(position, position + 1)) {
+					handlers[index] = handler;
+					keys[index] = key;
+					values[index] = value;
+					attachments[index] = attachment;
+					sequences.lazySet(index, position + 1);
+					return true;
+				}
+			} else if(sequence < position) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			position = tail.get();
+		}
+	}
+
+	/**
+	 * Drains the published records to their handlers, in the order in which their slots were claimed.
+	 * At most one buffer's worth of records is drained per call, so that a consumer is not kept busy
+	 * indefinitely by writers.  This method must not be called concurrently.
+	 * @return The number of drained records.
+	 */
+	int drain() {
+		int drained = 0;
+		while(drained < capacity) {
+			final int index = (int)head & mask;
+			if(sequences.get(index) != head + 1) {
+				break;
+			}
+			final RecordHandler handler = handlers[index];
+			final int key = keys[index];
+			final long value = values[index];
+			final Object attachment = attachments[index];
+			handlers[index] = null;
+			attachments[index] = null;
+			sequences.lazySet(index, head + capacity);
+			head++;
+			drained++;
+			handler.handle(key, value, attachment);
+		}
+		return drained;
+	}
+
+	/**
+	 * Returns the number of slots of the buffer.
+	 * @return The capacity of the buffer.
+	 */
+	int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of records dropped because the buffer was full.
+	 * @return The number of dropped records.
+	 */
+	long getDroppedCount() {
+		return dropped.get();
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.zookeeper.KeeperException.Code;
+
+import com.newrelic.api.agent.NewRelic;
+
+/**
+ * Records the latency and result codes of ZooKeeper operations per ensemble server, and the number of times that
+ * the instrumented handles moved their connection to another server, and periodically reports them to
+ * <a href="http://newrelic.com">New Relic</a> as custom metrics.  The following metrics are reported beneath
+ * {@value #METRIC_PREFIX}:
+ * <ul>
+ * 	<li>{@code <server>/Latency}: a histogram ({@code count}, {@code mean}, {@code p50}, {@code p99} and {@code max},
+ * 		in milliseconds) of the latency of the operations sent to the server, so that a slow member of the ensemble
+ * 		can be told apart from the others.</li>
+ * 	<li>{@code <server>/Error/<result code>}: the number of operations sent to the server that did not succeed, per
+ * 		result {@link Code}.</li>
+ * 	<li>{@code Moves}: the number of times that a handle re-established its connection with a different server,
+ * 		after a failover or a rebalance of the ensemble.</li>
+ * </ul>
+ * Servers are identified by the {@code host:port} address that the handles are connected to.  The metrics of a
+ * server are created the first time that a handle connects to it and are kept for the life of the recorder, as
+ * the number of servers of an ensemble is small.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public final class ServerRecorder extends PeriodicReporter {
+
+	/**
+	 * Prefix of the metric names reported by the recorder.
+	 */
+	public static final String METRIC_PREFIX = "Custom/Curator/Server/";
+
+	/**
+	 * Name of the metric that reports the number of connection moves.
+	 */
+	public static final String MOVES_METRIC_NAME = METRIC_PREFIX + "Moves";
+
+	/**
+	 * The result codes, indexed by ordinal.
+	 */
+	private static final Code[] CODES = Code.values();
+
+	/**
+	 * Key of the records of connection moves.  The records of operations are keyed by the ordinal of their result
+	 * code and carry the {@link ServerMetrics} of their server.
+	 */
+	private static final int MOVE_KEY = -1;
+
+	/**
+	 * The metrics of each server, keyed by address.
+	 */
+	private final ConcurrentMap<String, ServerMetrics> servers = new ConcurrentHashMap<String, ServerMetrics>();
+
+	/**
+	 * Number of connection moves.
+	 */
+	private final AtomicLong moves = new AtomicLong();
+
+	/**
+	 * Snapshot reused by each flush.
+	 */
+	private final LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+
+	/**
+	 * Returns the recorder shared by the instrumented clients.  It reports to New Relic at the interval
+	 * set by the {@value PeriodicReporter#FLUSH_INTERVAL_PROPERTY} system property.
+	 * @return The shared {@code ServerRecorder}.
+	 */
+	public static ServerRecorder getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Creates a new {@code ServerRecorder}.
+	 * @param flushIntervalMs The interval, in milliseconds, at which the recorder reports to New Relic.
+	 * 	If the interval is not positive, the recorder only reports when {@link #flush()} is called.
+	 */
+	public ServerRecorder(final long flushIntervalMs) {
+		super(flushIntervalMs);
+	}
+
+	/**
+	 * Returns the metrics of the provided server, creating them if no handle has connected to the server before.
+	 * Handles are expected to look up the metrics of a server when they connect to it, rather than on each operation.
+	 * @param address The {@code host:port} address of the server.
+	 * @return The metrics of the server.
+	 * @throws IllegalArgumentException if the address is {@code null}.
+	 */
+	public ServerMetrics getServer(final String address) {
+		if(address == null) {
+			throw new IllegalArgumentException("Server address may not be null.");
+		}
+		ServerMetrics metrics = servers.get(address);
+		if(metrics == null) {
+			final ServerMetrics created = new ServerMetrics(this, address);
+			metrics = servers.putIfAbsent(address, created);
+			if(metrics == null) {
+				metrics = created;
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Records that a handle re-established its connection with a different server.
+	 */
+	public void recordMove() {
+		record(MOVE_KEY, 1, null);
+	}
+
+	/**
+	 * Returns the number of connection moves since the previous flush.
+	 * @return The number of connection moves.
+	 */
+	public long getMoveCount() {
+		drain();
+		return moves.get();
+	}
+
+	@Override
+	protected void apply(final int key, final long value, final Object attachment) {
+		if(key == MOVE_KEY) {
+			moves.incrementAndGet();
+		} else {
+			((ServerMetrics)attachment).apply(CODES[key], value);
+		}
+	}
+
+	@Override
+	protected void report() {
+		for(final ServerMetrics metrics : servers.values()) {
+			metrics.report(snapshot);
+		}
+		final long count = moves.getAndSet(0);
+		if(count > 0) {
+			NewRelic.recordMetric(MOVES_METRIC_NAME, count);
+		}
+	}
+
+	/**
+	 * The latency and result codes of the operations sent to one ensemble server.
+	 */
+	public static final class ServerMetrics {
+
+		/**
+		 * The recorder that owns the metrics.
+		 */
+		private final ServerRecorder recorder;
+
+		/**
+		 * The {@code host:port} address of the server.
+		 */
+		private final String address;
+
+		/**
+		 * Latency of the operations sent to the server.
+		 */
+		private final HistogramMetric latencyMetric;
+
+		/**
+		 * Number of operations that did not succeed, indexed by result code ordinal.
+		 */
+		private final AtomicLongArray errors = new AtomicLongArray(CODES.length);
+
+		/**
+		 * Names of the error metrics, indexed by result code ordinal.
+		 */
+		private final String[] errorMetricNames = new String[CODES.length];
+
+		/**
+		 * Creates a new {@code ServerMetrics}.
+		 * @param recorder The recorder that owns the metrics.
+		 * @param address The {@code host:port} address of the server.
+		 */
+		private ServerMetrics(final ServerRecorder recorder, final String address) {
+			this.recorder = recorder;
+			this.address = address;
+			this.latencyMetric = new HistogramMetric(METRIC_PREFIX + address + "/Latency");
+			for(final Code code : CODES) {
+				errorMetricNames[code.ordinal()] = METRIC_PREFIX + address + "/Error/" + code.name();
+			}
+		}
+
+		/**
+		 * Returns the address of the server.
+		 * @return The {@code host:port} address.
+		 */
+		public String getAddress() {
+			return address;
+		}
+
+		/**
+		 * Records the latency and result code of an operation sent to the server.
+		 * @param code The result code of the operation.  A {@code null} code is recorded as {@link Code#SYSTEMERROR}.
+		 * @param nanos The latency of the operation in nanoseconds.
+		 */
+		public void record(final Code code, final long nanos) {
+			recorder.record((code == null ? Code.SYSTEMERROR : code).ordinal(), nanos, this);
+		}
+
+		/**
+		 * Returns the histogram of the latency of the operations sent to the server.
+		 * @return The histogram.
+		 */
+		public LatencyHistogram getLatencyHistogram() {
+			recorder.drain();
+			return latencyMetric.getHistogram();
+		}
+
+		/**
+		 * Returns the number of operations sent to the server that completed with the provided result code
+		 * since the previous flush.
+		 * @param code The result code.
+		 * @return The number of operations, which is always {@code 0} for {@link Code#OK}.
+		 */
+		public long getErrorCount(final Code code) {
+			recorder.drain();
+			return errors.get(code.ordinal());
+		}
+
+		/**
+		 * Applies the latency and result code of an operation sent to the server.
+		 * @param code The result code of the operation.
+		 * @param nanos The latency of the operation in nanoseconds.
+		 */
+		private void apply(final Code code, final long nanos) {
+			latencyMetric.getHistogram().record(nanos);
+			if(code != Code.OK) {
+				errors.incrementAndGet(code.ordinal());
+			}
+		}
+
+		/**
+		 * Reports and resets the metrics of the server.
+		 * @param snapshot The snapshot into which the latency histogram is drained.
+		 */
+		private void report(final LatencyHistogram.Snapshot snapshot) {
+			latencyMetric.report(snapshot);
+			for(int i = 0; i < errorMetricNames.length; i++) {
+				final long count = errors.getAndSet(i, 0);
+				if(count > 0) {
+					NewRelic.recordMetric(errorMetricNames[i], count);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lazily creates the shared recorder.
+	 */
+	private static final class Holder {
+
+		/**
+		 * The shared recorder.
+		 */
+		private static final ServerRecorder INSTANCE = new ServerRecorder(getDefaultFlushIntervalMs());
+
+		static {
+			INSTANCE.start();
+		}
+	}
+}
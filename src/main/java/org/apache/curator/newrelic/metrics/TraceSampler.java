@@ -0,0 +1,360 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.zookeeper.KeeperException.Code;
+
+import com.newrelic.api.agent.NewRelic;
+
+/**
+ * Decides which calls to an instrumented client are recorded as <a href="http://newrelic.com">New Relic</a>
+ * transaction segments.  Tracing every call of a client that executes tens of thousands of operations per
+ * second adds measurable overhead to the application and to the agent, so a sampler may instead trace one
+ * call in every {@code N}, either for a fixed {@code N} or for an {@code N} that is adapted once per second
+ * so that a target number of calls is traced per second.  Every call, traced or not, is still counted and
+ * timed in the latency histograms of the {@link LatencyRecorder}.
+ * <p>
+ * A synchronous call must be sampled before it executes, so a call that is not sampled cannot be traced once it
+ * turns out to have failed or to have been slow.  Such calls are instead reported by {@link #recordUntraced}:
+ * failures are reported with {@link NewRelic#noticeError(String, Map)}, and calls that exceed the slow call
+ * threshold are recorded as the {@code <operation metric>/slow} metric, by the thread that reports the
+ * {@link LatencyRecorder}, and attached to the current transaction as the {@value #SLOW_CALL_PARAMETER}
+ * parameter.  Asynchronous callbacks are sampled once the result is known,
+ * and are therefore always traced when they fail or are slow.  Failures that are an expected outcome of an
+ * operation (e.g. {@link Code#NONODE}) are treated like successful calls.
+ * <p>
+ * A single call is seen by several instrumented layers on the same thread: a foreground call by the operation
+ * builder and then by the ZooKeeper client, and a callback by the ZooKeeper client and then by the Curator
+ * callback.  The outermost layer decides whether or not the call is traced with {@link #enter()} or
+ * {@link #enter(Code, long)}, and the decision applies to every layer that samples the call on the same thread
+ * until the outermost layer calls {@link #exit()}, so that each call is counted once and is traced either at
+ * every layer or at none.  Layers that do not call others sample with {@link #sample()} and
+ * {@link #shouldTrace(Code, long)}, which make a decision of their own when they are not called by another layer.
+ * <p>
+ * Sampling decisions only update a striped counter and a counter of the calling thread, so they may be made
+ * concurrently by any number of threads without contending on a shared counter.  Each thread traces one in
+ * every {@code interval} of its own calls.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see LatencyRecorder
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public final class TraceSampler {
+
+	/**
+	 * Name of the transaction parameter that describes the last slow call made by the transaction that was not traced.
+	 */
+	public static final String SLOW_CALL_PARAMETER = "zookeeper.slowCall";
+
+	/**
+	 * Suffix appended to the base metric name of an operation to name the metric that records slow calls that were not traced.
+	 */
+	static final String SLOW_METRIC_SUFFIX = "/slow";
+
+	/**
+	 * Length of the window over which the call rate is measured by an adaptive sampler.
+	 */
+	static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/**
+	 * Result codes that are an expected outcome of an operation rather than a failure.
+	 */
+	private static final Set<Code> EXPECTED_CODES = EnumSet.of(Code.OK, Code.NONODE, Code.NODEEXISTS, Code.BADVERSION, Code.NOTEMPTY);
+
+	/**
+	 * Number of nanoseconds in a millisecond.
+	 */
+	private static final float NANOS_PER_MILLISECOND = 1000000f;
+
+	/**
+	 * The decision made by the outermost layer of the call that each thread is making, if any.
+	 */
+	private static final ThreadLocal<Scope> scopes = ThreadLocal.withInitial(Scope::new);
+
+	/**
+	 * Sampler that traces every call.
+	 */
+	private static final TraceSampler ALWAYS = new TraceSampler(1, 0d, Long.MAX_VALUE);
+
+	/**
+	 * Target number of traced calls per second, or {@code 0} if the sampling interval is fixed.
+	 */
+	private final double targetTracesPerSecond;
+
+	/**
+	 * Latency in nanoseconds at or above which a call is considered slow.
+	 */
+	private final long slowThresholdNanos;
+
+	/**
+	 * Number of calls that have been sampled.
+	 */
+	private final LongAdder calls = new LongAdder();
+
+	/**
+	 * Number of calls that have been sampled by each thread, which decides which of the thread's calls are
+	 * traced without contending with other threads.
+	 */
+	private final ThreadLocal<long[]> threadCalls = ThreadLocal.withInitial(() -> new long[1]);
+
+	/**
+	 * Start of the current rate measurement window, as reported by {@link System#nanoTime()}.
+	 */
+	private final AtomicLong windowStartNanos = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Number of calls that had been sampled when the current rate measurement window started.
+	 */
+	private volatile long windowStartCalls;
+
+	/**
+	 * One call in every {@code interval} calls is traced.
+	 */
+	private volatile long interval;
+
+	private TraceSampler(final long interval, final double targetTracesPerSecond, final long slowThresholdNanos) {
+		this.interval = interval;
+		this.targetTracesPerSecond = targetTracesPerSecond;
+		this.slowThresholdNanos = slowThresholdNanos;
+	}
+
+	/**
+	 * Returns a sampler that traces every call.  This is the default sampler of instrumented clients.
+	 * @return A sampler that traces every call.
+	 */
+	public static TraceSampler always() {
+		return ALWAYS;
+	}
+
+	/**
+	 * Creates a sampler that traces one call in every {@code interval} calls, as well as every failed
+	 * call and every call that takes at least {@code slowThresholdMs} milliseconds.
+	 * @param interval The sampling interval (must be positive).
+	 * @param slowThresholdMs The latency in milliseconds at or above which a call is considered slow (may not be negative).
+	 * @return The sampler.
+	 * @throws IllegalArgumentException if the interval is not positive or the threshold is negative.
+	 */
+	public static TraceSampler oneIn(final long interval, final long slowThresholdMs) {
+		if(interval < 1) {
+			throw new IllegalArgumentException("Sampling interval must be positive.");
+		}
+		return new TraceSampler(interval, 0d, toThresholdNanos(slowThresholdMs));
+	}
+
+	/**
+	 * Creates a sampler that adapts its sampling interval once per second so that approximately
+	 * {@code tracesPerSecond} calls are traced per second, and that also traces every failed call and
+	 * every call that takes at least {@code slowThresholdMs} milliseconds.
+	 * @param tracesPerSecond The target number of traced calls per second (must be positive).
+	 * @param slowThresholdMs The latency in milliseconds at or above which a call is considered slow (may not be negative).
+	 * @return The sampler.
+	 * @throws IllegalArgumentException if the target rate is not positive or the threshold is negative.
+	 */
+	public static TraceSampler targetRate(final double tracesPerSecond, final long slowThresholdMs) {
+		if(!(tracesPerSecond > 0d) || Double.isInfinite(tracesPerSecond)) {
+			throw new IllegalArgumentException("Target number of traces per second must be positive.");
+		}
+		return new TraceSampler(1, tracesPerSecond, toThresholdNanos(slowThresholdMs));
+	}
+
+	/**
+	 * Decides whether or not the next call made by the calling thread should be traced.  A call made
+	 * between {@link #enter()} and {@link #exit()} reuses the decision of the outermost layer.
+	 * @return {@code true} if the call should be traced.
+	 */
+	public boolean sample() {
+		final Scope scope = scopes.get();
+		return scope.depth > 0 ? scope.traced : draw();
+	}
+
+	/**
+	 * Decides whether or not a call whose result is already known should be traced.  Failed and slow
+	 * calls are always traced, while other calls are sampled.
+	 * @param code The result code of the call.
+	 * @param latencyNanos The latency of the call in nanoseconds.
+	 * @return {@code true} if the call should be traced.
+	 */
+	public boolean shouldTrace(final Code code, final long latencyNanos) {
+		return isFailure(code) || isSlow(latencyNanos) || sample();
+	}
+
+	/**
+	 * Decides whether or not the call that the calling thread is about to make should be traced, and applies
+	 * the decision to the layers that sample the call until {@link #exit()} is called.  A layer called by
+	 * another that has already entered reuses its decision.
+	 * @return {@code true} if the call should be traced.
+	 */
+	public boolean enter() {
+		final Scope scope = scopes.get();
+		if(scope.depth++ == 0) {
+			scope.traced = draw();
+		}
+		return scope.traced;
+	}
+
+	/**
+	 * Decides whether or not a call whose result is already known should be traced, and applies the decision
+	 * to the layers that sample the call until {@link #exit()} is called.  Failed and slow calls are always
+	 * traced, while other calls are sampled.
+	 * @param code The result code of the call.
+	 * @param latencyNanos The latency of the call in nanoseconds.
+	 * @return {@code true} if the call should be traced.
+	 */
+	public boolean enter(final Code code, final long latencyNanos) {
+		final Scope scope = scopes.get();
+		if(scope.depth++ == 0) {
+			scope.traced = isFailure(code) || isSlow(latencyNanos) || draw();
+			return scope.traced;
+		}
+		return isFailure(code) || isSlow(latencyNanos) || scope.traced;
+	}
+
+	/**
+	 * Ends the call entered by the matching call to {@link #enter()} or {@link #enter(Code, long)}.
+	 */
+	public void exit() {
+		scopes.get().depth--;
+	}
+
+	/**
+	 * Counts a call and decides whether or not it should be traced.
+	 * @return {@code true} if the call should be traced.
+	 */
+	private boolean draw() {
+		if(this == ALWAYS) {
+			return true;
+		}
+		calls.increment();
+		if(targetTracesPerSecond > 0d) {
+			final long now = System.nanoTime();
+			if(now - windowStartNanos.get() >= WINDOW_NANOS) {
+				adapt(calls.sum(), now);
+			}
+		}
+		final long current = interval;
+		return current == 1 || ++threadCalls.get()[0] % current == 0;
+	}
+
+	/**
+	 * Reports a call that was not traced if it failed or was slow.  Other calls are ignored, as they
+	 * have already been recorded with the {@link LatencyRecorder}.
+	 * @param source The layer at which the call was measured.
+	 * @param operation The operation.
+	 * @param path The path of the operation or {@code null}.
+	 * @param code The result code of the call.
+	 * @param latencyNanos The latency of the call in nanoseconds.
+	 */
+	public void recordUntraced(final OperationSource source, final Operation operation, final String path, final Code code, final long latencyNanos) {
+		if(isFailure(code)) {
+			final Map<String, String> parameters = new HashMap<String, String>();
+			parameters.put("path", String.valueOf(path));
+			parameters.put("latencyMs", Float.toString(latencyNanos / NANOS_PER_MILLISECOND));
+			NewRelic.noticeError(operation.getOperationName() + " failed with " + code, parameters);
+		} else if(isSlow(latencyNanos)) {
+			final float latencyMs = latencyNanos / NANOS_PER_MILLISECOND;
+			LatencyRecorder.getInstance().recordSlow(source, operation, latencyNanos);
+			NewRelic.addCustomParameter(SLOW_CALL_PARAMETER, operation.getOperationName() + ' ' + path + ' ' + latencyMs + "ms");
+		}
+	}
+
+	/**
+	 * Returns the number of calls that have been sampled.  Samplers that trace every call do not count calls.
+	 * @return The number of sampled calls.
+	 */
+	public long getCallCount() {
+		return calls.sum();
+	}
+
+	/**
+	 * Returns the current sampling interval.
+	 * @return The number of calls of which one is traced.
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Determines whether or not the provided result code represents a failure.
+	 * @param code The result code.
+	 * @return {@code true} if the code is not an expected outcome of an operation.
+	 */
+	boolean isFailure(final Code code) {
+		return !EXPECTED_CODES.contains(code);
+	}
+
+	/**
+	 * Determines whether or not the provided latency exceeds the slow call threshold.
+	 * @param latencyNanos The latency in nanoseconds.
+	 * @return {@code true} if the call is slow.
+	 */
+	boolean isSlow(final long latencyNanos) {
+		return latencyNanos >= slowThresholdNanos;
+	}
+
+	/**
+	 * Adapts the sampling interval to the call rate measured over the last window once the window has
+	 * elapsed.  Exactly one thread, the one that moves the window forward, computes the new interval.
+	 * @param count The number of calls that have been sampled, including the current one.
+	 * @param now The current time, as reported by {@link System#nanoTime()}.
+	 */
+	void adapt(final long count, final long now) {
+		final long start = windowStartNanos.get();
+		final long elapsed = now - start;
+		if(elapsed >= WINDOW_NANOS && windowStartNanos.compareAndSet(start, now)) {
+			final double callsPerSecond = (count - windowStartCalls) * (double)TimeUnit.SECONDS.toNanos(1) / elapsed;
+			windowStartCalls = count;
+			interval = Math.max(1L, Math.round(callsPerSecond / targetTracesPerSecond));
+		}
+	}
+
+	/**
+	 * Converts the provided slow call threshold to nanoseconds.
+	 * @param slowThresholdMs The threshold in milliseconds.
+	 * @return The threshold in nanoseconds.
+	 * @throws IllegalArgumentException if the threshold is negative.
+	 */
+	private static long toThresholdNanos(final long slowThresholdMs) {
+		if(slowThresholdMs < 0) {
+			throw new IllegalArgumentException("Slow call threshold may not be negative.");
+		}
+		return TimeUnit.MILLISECONDS.toNanos(slowThresholdMs);
+	}
+
+	/**
+	 * The call that a thread is making through one or more instrumented layers.
+	 */
+	private static final class Scope {
+
+		/**
+		 * Number of layers of the call that have been entered and not yet exited.
+		 */
+		private int depth;
+
+		/**
+		 * Whether or not the outermost layer decided to trace the call.
+		 */
+		private boolean traced;
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+/**
+ * Source of the number of watches that a ZooKeeper handle has registered with the ensemble and
+ * that have not been triggered yet.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see WatcherRecorder
+ */
+public interface WatchCounter {
+
+	/**
+	 * Returns the number of outstanding data watches (set by {@code getData}).
+	 * @return The number of outstanding data watches.
+	 */
+	int getDataWatchCount();
+
+	/**
+	 * Returns the number of outstanding existence watches (set by {@code exists} on a node that does not exist).
+	 * @return The number of outstanding existence watches.
+	 */
+	int getExistWatchCount();
+
+	/**
+	 * Returns the number of outstanding child watches (set by {@code getChildren}).
+	 * @return The number of outstanding child watches.
+	 */
+	int getChildWatchCount();
+}
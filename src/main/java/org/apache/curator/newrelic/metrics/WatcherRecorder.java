@@ -0,0 +1,290 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.zookeeper.Watcher.Event.EventType;
+
+import com.newrelic.api.agent.NewRelic;
+
+/**
+ * Records the delivery of ZooKeeper watch events and periodically reports it to
+ * <a href="http://newrelic.com">New Relic</a> as custom metrics.  ZooKeeper delivers every watch
+ * event of a session on a single thread, so a slow watcher delays all other events.  The following
+ * metrics are reported:
+ * <ul>
+ * 	<li>{@code Custom/ZooKeeper/Watcher/Callback/<event type>}: a histogram ({@code count}, {@code mean},
+ * 		{@code p50}, {@code p99} and {@code max}, in milliseconds) of the time spent in watcher callbacks.</li>
+ * 	<li>{@code Custom/ZooKeeper/Watcher/Event/<event type><path prefix>}: the number of events delivered per
+ * 		event type and path prefix.  The prefix consists of the leading segments of the path, one by default
+ * 		for the shared recorder or as many as set by the {@value #PATH_DEPTH_PROPERTY} system property, normalized
+ * 		by a {@link PathNormalizer} so that sequence numbers and UUIDs do not create new prefixes.  At most {@value #MAX_PATH_PREFIXES} prefixes are tracked; events for further
+ * 		prefixes are counted beneath {@value #OTHER_PATH_PREFIX}.  Session events, which have no path, are counted
+ * 		beneath the event type alone.</li>
+ * 	<li>{@code Custom/ZooKeeper/Watcher/Outstanding/(data|exist|child)}: the number of watches that the
+ * 		registered {@link WatchCounter}s have set and that have not been triggered yet.</li>
+ * </ul>
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public final class WatcherRecorder extends PeriodicReporter {
+
+	/**
+	 * Name of the system property that controls the number of path segments by which events are counted.
+	 */
+	public static final String PATH_DEPTH_PROPERTY = "curator-newrelic-watcher-path-depth";
+
+	/**
+	 * Maximum number of path prefixes for which events are counted separately.
+	 */
+	public static final int MAX_PATH_PREFIXES = 256;
+
+	/**
+	 * Path prefix beneath which events are counted once {@link #MAX_PATH_PREFIXES} has been reached.
+	 */
+	public static final String OTHER_PATH_PREFIX = "/*";
+
+	/**
+	 * Prefix of the metric names reported by the recorder.
+	 */
+	private static final String METRIC_PREFIX = "Custom/ZooKeeper/Watcher/";
+
+	/**
+	 * The event types, indexed by ordinal.
+	 */
+	private static final EventType[] EVENT_TYPES = EventType.values();
+
+	/**
+	 * Callback duration histograms, indexed by event type.
+	 */
+	private final HistogramMetric[] callbackMetrics = new HistogramMetric[EVENT_TYPES.length];
+
+	/**
+	 * Event counts, indexed by event type, per path prefix.
+	 */
+	private final ConcurrentMap<String, AtomicLongArray> eventCounts = new ConcurrentHashMap<String, AtomicLongArray>();
+
+	/**
+	 * The registered sources of outstanding watch counts.
+	 */
+	private final Set<WatchCounter> watchCounters = Collections.newSetFromMap(new WeakHashMap<WatchCounter, Boolean>());
+
+	/**
+	 * Number of path segments by which events are counted.
+	 */
+	private final int pathDepth;
+
+	/**
+	 * Normalizes the path prefixes.
+	 */
+	private final PathNormalizer normalizer;
+
+	/**
+	 * Snapshot reused by each flush.
+	 */
+	private final LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot();
+
+	/**
+	 * Returns the recorder shared by the instrumented clients.  It reports to New Relic at the interval
+	 * set by the {@value PeriodicReporter#FLUSH_INTERVAL_PROPERTY} system property and counts events by the
+	 * number of path segments set by the {@value #PATH_DEPTH_PROPERTY} system property.
+	 * @return The shared {@code WatcherRecorder}.
+	 */
+	public static WatcherRecorder getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Creates a new {@code WatcherRecorder} that normalizes path prefixes with the shared {@link PathNormalizer}.
+	 * @param flushIntervalMs The interval, in milliseconds, at which the recorder reports to New Relic.
+	 * 	If the interval is not positive, the recorder only reports when {@link #flush()} is called.
+	 * @param pathDepth The number of path segments by which events are counted.
+	 * @throws IllegalArgumentException if the path depth is negative.
+	 */
+	public WatcherRecorder(final long flushIntervalMs, final int pathDepth) {
+		this(flushIntervalMs, PathNormalizer.getInstance(), pathDepth);
+	}
+
+	/**
+	 * Creates a new {@code WatcherRecorder}.
+	 * @param flushIntervalMs The interval, in milliseconds, at which the recorder reports to New Relic.
+	 * 	If the interval is not positive, the recorder only reports when {@link #flush()} is called.
+	 * @param normalizer The {@link PathNormalizer} that normalizes path prefixes.
+	 * @param pathDepth The number of path segments by which events are counted.
+	 * @throws IllegalArgumentException if the normalizer is {@code null} or the path depth is negative.
+	 */
+	public WatcherRecorder(final long flushIntervalMs, final PathNormalizer normalizer, final int pathDepth) {
+		super(flushIntervalMs);
+		if(normalizer == null) {
+			throw new IllegalArgumentException("The path normalizer may not be null.");
+		}
+		if(pathDepth < 0) {
+			throw new IllegalArgumentException("The path depth may not be negative.");
+		}
+		this.normalizer = normalizer;
+		this.pathDepth = pathDepth;
+		for(final EventType type : EVENT_TYPES) {
+			callbackMetrics[type.ordinal()] = new HistogramMetric(METRIC_PREFIX + "Callback/" + type.name());
+		}
+	}
+
+	/**
+	 * Records the delivery of a watch event.
+	 * @param type The type of the event.
+	 * @param path The path of the event or {@code null} for session events.
+	 * @param durationNanos The time spent in the watcher callback in nanoseconds.
+	 */
+	public void recordEvent(final EventType type, final String path, final long durationNanos) {
+		record(type.ordinal(), durationNanos, path);
+	}
+
+	/**
+	 * Registers a source of outstanding watch counts.  Sources are held weakly.
+	 * @param watchCounter The source.
+	 */
+	public void register(final WatchCounter watchCounter) {
+		synchronized(watchCounters) {
+			watchCounters.add(watchCounter);
+		}
+	}
+
+	/**
+	 * Unregisters a source of outstanding watch counts.
+	 * @param watchCounter The source.
+	 */
+	public void unregister(final WatchCounter watchCounter) {
+		synchronized(watchCounters) {
+			watchCounters.remove(watchCounter);
+		}
+	}
+
+	/**
+	 * Returns the callback duration histogram for the provided event type.
+	 * @param type The event type.
+	 * @return The histogram.
+	 */
+	public LatencyHistogram getCallbackHistogram(final EventType type) {
+		drain();
+		return callbackMetrics[type.ordinal()].getHistogram();
+	}
+
+	/**
+	 * Returns the number of events delivered since the previous flush for the provided event type and path prefix.
+	 * @param type The event type.
+	 * @param pathPrefix The path prefix.
+	 * @return The number of events.
+	 */
+	public long getEventCount(final EventType type, final String pathPrefix) {
+		drain();
+		final AtomicLongArray counts = eventCounts.get(pathPrefix);
+		return counts == null ? 0 : counts.get(type.ordinal());
+	}
+
+	@Override
+	protected void apply(final int key, final long value, final Object attachment) {
+		callbackMetrics[key].getHistogram().record(value);
+		getEventCounts(getPathPrefix((String)attachment)).incrementAndGet(key);
+	}
+
+	@Override
+	protected void report() {
+		for(final HistogramMetric metric : callbackMetrics) {
+			metric.report(snapshot);
+		}
+
+		for(final Map.Entry<String, AtomicLongArray> entry : eventCounts.entrySet()) {
+			for(final EventType type : EVENT_TYPES) {
+				final long count = entry.getValue().getAndSet(type.ordinal(), 0);
+				if(count > 0) {
+					NewRelic.recordMetric(METRIC_PREFIX + "Event/" + type.name() + entry.getKey(), count);
+				}
+			}
+		}
+
+		final List<WatchCounter> counters;
+		synchronized(watchCounters) {
+			counters = new ArrayList<WatchCounter>(watchCounters);
+		}
+		int dataWatches = 0;
+		int existWatches = 0;
+		int childWatches = 0;
+		for(final WatchCounter counter : counters) {
+			dataWatches += counter.getDataWatchCount();
+			existWatches += counter.getExistWatchCount();
+			childWatches += counter.getChildWatchCount();
+		}
+		NewRelic.recordMetric(METRIC_PREFIX + "Outstanding/data", dataWatches);
+		NewRelic.recordMetric(METRIC_PREFIX + "Outstanding/exist", existWatches);
+		NewRelic.recordMetric(METRIC_PREFIX + "Outstanding/child", childWatches);
+	}
+
+	/**
+	 * Returns the normalized prefix of the provided path by which events are counted.
+	 * @param path The path or {@code null}.
+	 * @return The path prefix, or the empty string if the path is {@code null}.
+	 */
+	String getPathPrefix(final String path) {
+		return path == null ? "" : normalizer.normalize(path, pathDepth);
+	}
+
+	/**
+	 * Returns the event counts of the provided path prefix, creating them if the number of tracked
+	 * prefixes allows it.
+	 * @param pathPrefix The path prefix.
+	 * @return The event counts, indexed by event type.
+	 */
+	private AtomicLongArray getEventCounts(final String pathPrefix) {
+		AtomicLongArray counts = eventCounts.get(pathPrefix);
+		if(counts == null) {
+			final String key = eventCounts.size() < MAX_PATH_PREFIXES ? pathPrefix : OTHER_PATH_PREFIX;
+			counts = eventCounts.get(key);
+			if(counts == null) {
+				final AtomicLongArray created = new AtomicLongArray(EVENT_TYPES.length);
+				counts = eventCounts.putIfAbsent(key, created);
+				if(counts == null) {
+					counts = created;
+				}
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Lazily creates the shared recorder.
+	 */
+	private static final class Holder {
+
+		/**
+		 * The shared recorder.
+		 */
+		private static final WatcherRecorder INSTANCE = new WatcherRecorder(getDefaultFlushIntervalMs(), Integer.getInteger(PATH_DEPTH_PROPERTY, 1));
+
+		static {
+			INSTANCE.start();
+		}
+	}
+}
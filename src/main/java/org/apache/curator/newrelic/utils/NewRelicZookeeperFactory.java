@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.utils;
+
+import org.apache.curator.newrelic.metrics.TraceSampler;
+import org.apache.curator.utils.ZookeeperFactory;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.newrelic.NewRelicWrappedZookeeper;
+
+/**
+ * {@link ZookeeperFactory} implementation that produces {@link ZooKeeper} instances that are
+ * instrumented to take part in <a href="http://newrelic.com">New Relic</a> transaction traces
+ * from the moment they are created.  Unlike wrapping an existing {@link ZooKeeper} handle, no
+ * additional connection is opened.
+ * <p>
+ * Applications that need a custom {@link ZookeeperFactory} may extend this class and call
+ * {@link #newZooKeeper(String, int, Watcher, boolean)} with their own arguments, so that the
+ * handles that they create remain instrumented.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see ZookeeperFactory
+ * @see NewRelicWrappedZookeeper
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+public class NewRelicZookeeperFactory implements ZookeeperFactory {
+
+	/**
+	 * The {@link TraceSampler} that decides which operations of the created instances are traced.
+	 */
+	private final TraceSampler sampler;
+
+	/**
+	 * Creates a new factory whose instances trace every operation.
+	 */
+	public NewRelicZookeeperFactory() {
+		this(TraceSampler.always());
+	}
+
+	/**
+	 * Creates a new factory whose instances trace their operations according to the provided {@link TraceSampler}.
+	 * @param sampler The {@link TraceSampler} shared by the created instances (may not be {@code null}).
+	 * @throws IllegalArgumentException if the sampler is {@code null}.
+	 */
+	public NewRelicZookeeperFactory(final TraceSampler sampler) {
+		if(sampler == null) {
+			throw new IllegalArgumentException("Trace sampler may not be null.");
+		}
+		this.sampler = sampler;
+	}
+
+	/**
+	 * Returns the {@link TraceSampler} that decides which operations of the created instances are traced.
+	 * @return The sampler shared by the created instances.
+	 */
+	public TraceSampler getSampler() {
+		return sampler;
+	}
+
+	@Override
+	public ZooKeeper newZooKeeper(final String connectString, final int sessionTimeout, final Watcher watcher, final boolean canBeReadOnly) throws Exception {
+		return new NewRelicWrappedZookeeper(connectString, sessionTimeout, watcher, canBeReadOnly, sampler);
+	}
+}
@@ -16,9 +16,22 @@
 package org.apache.zookeeper.newrelic;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.util.List;
-
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.curator.newrelic.metrics.LatencyRecorder;
+import org.apache.curator.newrelic.metrics.Operation;
+import org.apache.curator.newrelic.metrics.OperationEvents;
+import org.apache.curator.newrelic.metrics.OperationSource;
+import org.apache.curator.newrelic.metrics.PayloadRecorder;
+import org.apache.curator.newrelic.metrics.PayloadRecorder.Direction;
+import org.apache.curator.newrelic.metrics.ServerRecorder;
+import org.apache.curator.newrelic.metrics.ServerRecorder.ServerMetrics;
+import org.apache.curator.newrelic.metrics.TraceSampler;
+import org.apache.curator.newrelic.metrics.WatchCounter;
+import org.apache.curator.newrelic.metrics.WatcherRecorder;
 import org.apache.zookeeper.AsyncCallback.ACLCallback;
 import org.apache.zookeeper.AsyncCallback.Children2Callback;
 import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
@@ -26,9 +39,11 @@ import org.apache.zookeeper.AsyncCallback.DataCallback;
 import org.apache.zookeeper.AsyncCallback.StatCallback;
 import org.apache.zookeeper.AsyncCallback.StringCallback;
 import org.apache.zookeeper.AsyncCallback.VoidCallback;
-import org.apache.zookeeper.ClientCnxn;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.ACL;
@@ -38,235 +53,712 @@ import com.newrelic.api.agent.Trace;
 
 /**
  * Wrapped version of the {@link ZooKeeper} client.  The {@link ZooKeeper} instance
- * is instrumented to take part in <a href="http://newrelic.com">New Relic</a> transaction traces.
+ * is instrumented to take part in <a href="http://newrelic.com">New Relic</a> transaction traces,
+ * and records the latency and result code of each operation with the {@link LatencyRecorder}.  The
+ * callbacks of asynchronous operations are wrapped so that the time from enqueueing the operation until
+ * its callback is invoked is recorded, and so that the callback is traced.  The default {@link Watcher}
+ * and the {@link Watcher}s passed to {@code exists}, {@code getData} and {@code getChildren} are wrapped
+ * so that their delivery is recorded with the {@link WatcherRecorder}, to which the instance also reports
+ * its outstanding watches.  Synchronous operations and asynchronous callbacks are traced according to a
+ * {@link TraceSampler}, while every operation is recorded with the {@link LatencyRecorder}.  The size of
+ * the payloads read by {@code getData} and written by {@code create} and {@code setData}, and the size and child
+ * count of the listings returned by {@code getChildren} are recorded with the {@link PayloadRecorder}.  Operations
+ * whose latency reaches a threshold are also emitted as JDK Flight Recorder events by the {@link OperationEvents}.
+ * The instance tracks the ensemble server that it is connected to, records the latency and result code of each
+ * operation against that server with the {@link ServerRecorder}, and reports each move of its connection to
+ * another server.
  *
  * @author Jonathan Pearlin
  * @since 1.0.0
  * @see ZooKeeper
  * @see <a href="http://newrelic.com">New Relic</a>
  */
-public class NewRelicWrappedZookeeper extends ZooKeeper {
+public class NewRelicWrappedZookeeper extends ZooKeeper implements WatchCounter {
+
+	/**
+	 * The {@link TraceSampler} that decides which operations are traced.
+	 */
+	private final TraceSampler sampler;
+
+	/**
+	 * The metrics of the server that the instance is connected to, or {@code null} until the server is known.
+	 */
+	private final AtomicReference<ServerMetrics> server = new AtomicReference<ServerMetrics>();
+
+	/**
+	 * Resolves the server that the instance is connected to each time that the connection is established.
+	 */
+	private final Runnable serverTracker = new Runnable() {
+		@Override
+		public void run() {
+			updateServer();
+		}
+	};
+
+	/**
+	 * Creates a new {@code NewRelicWrappedZookeeper} instance that takes part in
+	 * <a href="http://newrelic.com">New Relic</a> transaction traces.  This is the
+	 * constructor used by {@link org.apache.curator.newrelic.utils.NewRelicZookeeperFactory}
+	 * and opens exactly one connection, just as the equivalent {@link ZooKeeper} constructor does.
+	 * @param connectString The ZooKeeper connection string.
+	 * @param sessionTimeout The session timeout in milliseconds.
+	 * @param watcher The default {@link Watcher} or {@code null}.
+	 * @param canBeReadOnly {@code true} to allow the client to enter read only mode in case of a network partition.
+	 * @throws IOException if unable to create the connection.
+	 * @see ZooKeeper#ZooKeeper(String, int, Watcher, boolean)
+	 */
+	public NewRelicWrappedZookeeper(final String connectString, final int sessionTimeout, final Watcher watcher, final boolean canBeReadOnly) throws IOException {
+		this(connectString, sessionTimeout, watcher, canBeReadOnly, TraceSampler.always());
+	}
+
+	/**
+	 * Creates a new {@code NewRelicWrappedZookeeper} instance that traces its operations
+	 * according to the provided {@link TraceSampler}.
+	 * @param connectString The ZooKeeper connection string.
+	 * @param sessionTimeout The session timeout in milliseconds.
+	 * @param watcher The default {@link Watcher} or {@code null}.
+	 * @param canBeReadOnly {@code true} to allow the client to enter read only mode in case of a network partition.
+	 * @param sampler The {@link TraceSampler} that decides which operations are traced (may not be {@code null}).
+	 * @throws IOException if unable to create the connection.
+	 * @throws IllegalArgumentException if the sampler is {@code null}.
+	 * @see #NewRelicWrappedZookeeper(String, int, Watcher, boolean)
+	 */
+	public NewRelicWrappedZookeeper(final String connectString, final int sessionTimeout, final Watcher watcher, final boolean canBeReadOnly, final TraceSampler sampler) throws IOException {
+		super(connectString, sessionTimeout, checkSampler(sampler, watcher), canBeReadOnly);
+		this.sampler = sampler;
+		super.register(TracedWatcher.wrap(watcher, serverTracker));
+		WatcherRecorder.getInstance().register(this);
+	}
 
 	/**
 	 * Creates a new, wrapped {@code NewRelicWrappedZookeeper} instance that takes part in
-	 * <a href="http://newrelic.com">New Relic</a> transaction traces.
+	 * <a href="http://newrelic.com">New Relic</a> transaction traces.  The new instance
+	 * opens its own connection and re-attaches to the delegate's session, after which the
+	 * delegate is disconnected.
 	 * @param delegate The delegate {@link ZooKeeper} instance that will be used to create
 	 * 	this wrapped instance.
 	 * @param connectionString The ZooKeeper connection string.
-	 * @throws NoSuchFieldException if unable to clone the delegate.
-	 * @throws SecurityException if unable to clone the delegate.
-	 * @throws IllegalArgumentException if unable to clone the delegate.
-	 * @throws IllegalAccessException if unable to clone the delegate.
 	 * @throws IOException if unable to clone the delegate.
-	 * @throws Exception if unable to clone the delegate.
+	 * @throws ExceptionInInitializerError if the ZooKeeper internals required to clone the
+	 * 	delegate cannot be resolved.
+	 * @deprecated Re-attaching to the delegate's session requires a second connection.  Create
+	 * 	instrumented handles up front with {@link org.apache.curator.newrelic.utils.NewRelicZookeeperFactory} instead.
 	 */
-	public NewRelicWrappedZookeeper(final ZooKeeper delegate, final String connectionString) throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException, IOException, Exception {
-		super(connectionString, delegate.getSessionTimeout(), getWatcherFromDelegate(delegate),
-				delegate.getSessionId(), delegate.getSessionPasswd(), getCanBeReadOnlyFromDelegate(delegate));
-
-		// Close the delegate so that we do not have a duplicate connection.
-		delegate.close();
+	@Deprecated
+	public NewRelicWrappedZookeeper(final ZooKeeper delegate, final String connectionString) throws IOException {
+		super(connectionString, delegate.getSessionTimeout(), ZookeeperInternals.getWatcher(delegate),
+				delegate.getSessionId(), delegate.getSessionPasswd(), ZookeeperInternals.getCanBeReadOnly(delegate));
+
+		// Disconnect the delegate so that we do not have a duplicate connection.  The delegate is
+		// not closed, as closing it would also close the session that this instance has re-attached to.
+		ZookeeperInternals.getClientCnxn(delegate).disconnect();
+		this.sampler = TraceSampler.always();
+		super.register(TracedWatcher.wrap(ZookeeperInternals.getWatcher(delegate), serverTracker));
+		WatcherRecorder.getInstance().register(this);
 	}
 
 	/**
-	 * Retrieves the {@link Watcher} instance from the provided delegate {@link ZooKeeper} instance using
-	 * reflection.  This is necessary because the fields that are needed to clone the delegate {@link ZooKeeper}
-	 * instance is not accessible from outside of the {@link ZooKeeper} class.
-	 * @param delegate The delegate {@link ZooKeeper} instance.
-	 * @return The {@link Watcher} extracted from the delegate {@link ZooKeeper} instance.
-	 * @throws NoSuchFieldException if unable to extract the watcher from the delegate.
-	 * @throws SecurityException if unable to extract the watcher from the delegate.
-	 * @throws IllegalArgumentException if unable to extract the watcher from the delegate.
-	 * @throws IllegalAccessException if unable to extract the watcher from the delegate.
+	 * Validates the {@link TraceSampler} before the {@link ZooKeeper} constructor opens the connection.
+	 * @param sampler The {@link TraceSampler}.
+	 * @param watcher The default {@link Watcher}, which is handed to the {@link ZooKeeper} constructor as-is and is
+	 * 	wrapped once the instance is initialized.
+	 * @return The default {@link Watcher}.
+	 * @throws IllegalArgumentException if the sampler is {@code null}.
 	 */
-	private static Watcher getWatcherFromDelegate(final ZooKeeper delegate) throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
-		final Field watchManager = ZooKeeper.class.getDeclaredField("watchManager");
-		watchManager.setAccessible(true);
-		final Object zkWatchManager = watchManager.get(delegate);
-		final Field defaultWatcher = zkWatchManager.getClass().getDeclaredField("defaultWatcher");
-		defaultWatcher.setAccessible(true);
-		return (Watcher)defaultWatcher.get(zkWatchManager);
+	private static Watcher checkSampler(final TraceSampler sampler, final Watcher watcher) {
+		if(sampler == null) {
+			throw new IllegalArgumentException("Trace sampler may not be null.");
+		}
+		return watcher;
+	}
+
+	@Override
+	@Trace
+	public synchronized void close() throws InterruptedException {
+		try {
+			super.close();
+		} finally {
+			WatcherRecorder.getInstance().unregister(this);
+		}
+	}
+
+	@Override
+	public synchronized void register(final Watcher watcher) {
+		super.register(TracedWatcher.wrap(watcher, serverTracker));
 	}
 
 	/**
-	 * Retrieves the read only boolean flag from the provided delegate {@link ZooKeeper} instance using
-	 * reflection.  This is necessary because the fields that are needed to clone the delegate {@link ZooKeeper}
-	 * instance is not accessible from outside of the {@link ZooKeeper} class.
-	 * @param delegate The delegate {@link ZooKeeper} instance.
-	 * @return The read only boolean flag extracted from the delegate {@link ZooKeeper} instance.
-	 * @throws NoSuchFieldException if unable to extract the read only flag from the delegate.
-	 * @throws SecurityException if unable to extract the read only flag from the delegate.
-	 * @throws IllegalArgumentException if unable to extract the read only flag from the delegate.
-	 * @throws IllegalAccessException if unable to extract the read only flag from the delegate.
+	 * Returns the address of the ensemble server that the instance is connected to.
+	 * @return The {@code host:port} address of the server, or {@code null} if the instance has not connected yet.
+	 * 	After a disconnection, the address of the last server is returned until the connection is re-established.
 	 */
-	private static boolean getCanBeReadOnlyFromDelegate(final ZooKeeper delegate) throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
-		final Field cnxn = ZooKeeper.class.getDeclaredField("cnxn");
-		cnxn.setAccessible(true);
-		final ClientCnxn clientCnxn = (ClientCnxn)cnxn.get(delegate);
-		final Field readOnly = ClientCnxn.class.getDeclaredField("readOnly");
-		readOnly.setAccessible(true);
-		return (Boolean)readOnly.get(clientCnxn);
+	public String getConnectedServer() {
+		final ServerMetrics metrics = getServer();
+		return metrics == null ? null : metrics.getAddress();
 	}
 
 	@Override
-	@Trace
-	public synchronized void close() throws InterruptedException {
-		super.close();
+	public int getDataWatchCount() {
+		return ZookeeperInternals.getDataWatchCount(this);
+	}
+
+	@Override
+	public int getExistWatchCount() {
+		return ZookeeperInternals.getExistWatchCount(this);
+	}
+
+	@Override
+	public int getChildWatchCount() {
+		return ZookeeperInternals.getChildWatchCount(this);
 	}
 
 	@Override
-	@Trace
 	public String create(final String path, final byte[] data, final List<ACL> acl, final CreateMode createMode) throws KeeperException, InterruptedException {
-		return super.create(path, data, acl, createMode);
+		return sampler.sample() ? traceCreate(path, data, acl, createMode) : doCreate(path, data, acl, createMode, false);
+	}
+
+	@Trace(metricName="ZooKeeper/create")
+	private String traceCreate(final String path, final byte[] data, final List<ACL> acl, final CreateMode createMode) throws KeeperException, InterruptedException {
+		return doCreate(path, data, acl, createMode, true);
+	}
+
+	/**
+	 * Executes {@code create} and records its latency, result code and payload size.
+	 * @param path The path of the node.
+	 * @param data The data of the node.
+	 * @param acl The ACL of the node.
+	 * @param createMode The {@link CreateMode} of the node.
+	 * @param traced Whether or not the call is traced.
+	 * @return The result of {@code create}.
+	 * @throws KeeperException if the server returns an error.
+	 * @throws InterruptedException if the call is interrupted.
+	 */
+	private String doCreate(final String path, final byte[] data, final List<ACL> acl, final CreateMode createMode, final boolean traced) throws KeeperException, InterruptedException {
+		PayloadRecorder.getInstance().record(Direction.WRITE, path, data);
+		final long start = System.nanoTime();
+		Code code = Code.SYSTEMERROR;
+		try {
+			final String createdPath = super.create(path, data, acl, createMode);
+			code = Code.OK;
+			return createdPath;
+		} catch(final KeeperException e) {
+			code = e.code();
+			throw e;
+		} finally {
+			record(Operation.CREATE, path, code, start, traced, data);
+		}
 	}
 
 	@Override
-	@Trace
 	public void create(final String path, final byte[] data, final List<ACL> acl, final CreateMode createMode, final StringCallback cb, final Object ctx) {
-		super.create(path, data, acl, createMode, cb, ctx);
+		PayloadRecorder.getInstance().record(Direction.WRITE, path, data);
+		super.create(path, data, acl, createMode, TracedCallback.wrapString(Operation.CREATE, cb, sampler, getSessionId(), getServer()), ctx);
 	}
 
 	@Override
-	@Trace
 	public void delete(final String path, final int version) throws InterruptedException, KeeperException {
-		super.delete(path, version);
+		if(sampler.sample()) {
+			traceDelete(path, version);
+		} else {
+			doDelete(path, version, false);
+		}
+	}
+
+	@Trace(metricName="ZooKeeper/delete")
+	private void traceDelete(final String path, final int version) throws InterruptedException, KeeperException {
+		doDelete(path, version, true);
+	}
+
+	/**
+	 * Executes {@code delete} and records its latency and result code.
+	 * @param path The path of the node.
+	 * @param version The expected version of the node.
+	 * @param traced Whether or not the call is traced.
+	 * @throws KeeperException if the server returns an error.
+	 * @throws InterruptedException if the call is interrupted.
+	 */
+	private void doDelete(final String path, final int version, final boolean traced) throws InterruptedException, KeeperException {
+		final long start = System.nanoTime();
+		Code code = Code.SYSTEMERROR;
+		try {
+			super.delete(path, version);
+			code = Code.OK;
+		} catch(final KeeperException e) {
+			code = e.code();
+			throw e;
+		} finally {
+			record(Operation.DELETE, path, code, start, traced);
+		}
 	}
 
 	@Override
-	@Trace
 	public void delete(final String path, final int version, final VoidCallback cb, final Object ctx) {
-		super.delete(path, version, cb, ctx);
+		super.delete(path, version, TracedCallback.wrapVoid(Operation.DELETE, cb, sampler, getSessionId(), getServer()), ctx);
 	}
 
 	@Override
-	@Trace
 	public Stat exists(final String path, final Watcher watcher) throws KeeperException, InterruptedException {
-		return super.exists(path, watcher);
+		return sampler.sample() ? traceExists(path, watcher) : doExists(path, watcher, false);
+	}
+
+	@Trace(metricName="ZooKeeper/exists")
+	private Stat traceExists(final String path, final Watcher watcher) throws KeeperException, InterruptedException {
+		return doExists(path, watcher, true);
+	}
+
+	/**
+	 * Executes {@code exists} and records its latency and result code.
+	 * @param path The path of the node.
+	 * @param watcher The {@link Watcher} to set or {@code null}.
+	 * @param traced Whether or not the call is traced.
+	 * @return The result of {@code exists}.
+	 * @throws KeeperException if the server returns an error.
+	 * @throws InterruptedException if the call is interrupted.
+	 */
+	private Stat doExists(final String path, final Watcher watcher, final boolean traced) throws KeeperException, InterruptedException {
+		final long start = System.nanoTime();
+		Code code = Code.SYSTEMERROR;
+		try {
+			final Stat stat = super.exists(path, TracedWatcher.wrap(watcher));
+			code = Code.OK;
+			return stat;
+		} catch(final KeeperException e) {
+			code = e.code();
+			throw e;
+		} finally {
+			record(Operation.EXISTS, path, code, start, traced);
+		}
 	}
 
 	@Override
-	@Trace
 	public Stat exists(final String path, final boolean watch) throws KeeperException, InterruptedException {
 		return super.exists(path, watch);
 	}
 
 	@Override
-	@Trace
 	public void exists(final String path, final Watcher watcher, final StatCallback cb, final Object ctx) {
-		super.exists(path, watcher, cb, ctx);
+		super.exists(path, TracedWatcher.wrap(watcher), TracedCallback.wrapStat(Operation.EXISTS, cb, sampler, getSessionId(), getServer()), ctx);
 	}
 
 	@Override
-	@Trace
 	public void exists(final String path, final boolean watch, final StatCallback cb, final Object ctx) {
 		super.exists(path, watch, cb, ctx);
 	}
 
 	@Override
-	@Trace
 	public byte[] getData(final String path, final Watcher watcher, final Stat stat) throws KeeperException, InterruptedException {
-		return super.getData(path, watcher, stat);
+		return sampler.sample() ? traceGetData(path, watcher, stat) : doGetData(path, watcher, stat, false);
+	}
+
+	@Trace(metricName="ZooKeeper/getData")
+	private byte[] traceGetData(final String path, final Watcher watcher, final Stat stat) throws KeeperException, InterruptedException {
+		return doGetData(path, watcher, stat, true);
+	}
+
+	/**
+	 * Executes {@code getData} and records its latency, result code and payload size.
+	 * @param path The path of the node.
+	 * @param watcher The {@link Watcher} to set or {@code null}.
+	 * @param stat The {@link Stat} to populate or {@code null}.
+	 * @param traced Whether or not the call is traced.
+	 * @return The result of {@code getData}.
+	 * @throws KeeperException if the server returns an error.
+	 * @throws InterruptedException if the call is interrupted.
+	 */
+	private byte[] doGetData(final String path, final Watcher watcher, final Stat stat, final boolean traced) throws KeeperException, InterruptedException {
+		final long start = System.nanoTime();
+		Code code = Code.SYSTEMERROR;
+		byte[] data = null;
+		try {
+			data = super.getData(path, TracedWatcher.wrap(watcher), stat);
+			code = Code.OK;
+			PayloadRecorder.getInstance().record(Direction.READ, path, data);
+			return data;
+		} catch(final KeeperException e) {
+			code = e.code();
+			throw e;
+		} finally {
+			record(Operation.GET_DATA, path, code, start, traced, data);
+		}
 	}
 
 	@Override
-	@Trace
 	public byte[] getData(final String path, final boolean watch, final Stat stat) throws KeeperException, InterruptedException {
 		return super.getData(path, watch, stat);
 	}
 
 	@Override
-	@Trace
 	public void getData(final String path, final Watcher watcher, final DataCallback cb, final Object ctx) {
-		super.getData(path, watcher, cb, ctx);
+		super.getData(path, TracedWatcher.wrap(watcher), TracedCallback.wrapData(Operation.GET_DATA, cb, sampler, getSessionId(), getServer()), ctx);
 	}
 
 	@Override
-	@Trace
 	public void getData(final String path, final boolean watch, final DataCallback cb, final Object ctx) {
 		super.getData(path, watch, cb, ctx);
 	}
 
 	@Override
-	@Trace
 	public Stat setData(final String path, final byte[] data, final int version) throws KeeperException, InterruptedException {
-		return super.setData(path, data, version);
+		return sampler.sample() ? traceSetData(path, data, version) : doSetData(path, data, version, false);
+	}
+
+	@Trace(metricName="ZooKeeper/setData")
+	private Stat traceSetData(final String path, final byte[] data, final int version) throws KeeperException, InterruptedException {
+		return doSetData(path, data, version, true);
+	}
+
+	/**
+	 * Executes {@code setData} and records its latency, result code and payload size.
+	 * @param path The path of the node.
+	 * @param data The data of the node.
+	 * @param version The expected version of the node.
+	 * @param traced Whether or not the call is traced.
+	 * @return The result of {@code setData}.
+	 * @throws KeeperException if the server returns an error.
+	 * @throws InterruptedException if the call is interrupted.
+	 */
+	private Stat doSetData(final String path, final byte[] data, final int version, final boolean traced) throws KeeperException, InterruptedException {
+		PayloadRecorder.getInstance().record(Direction.WRITE, path, data);
+		final long start = System.nanoTime();
+		Code code = Code.SYSTEMERROR;
+		try {
+			final Stat stat = super.setData(path, data, version);
+			code = Code.OK;
+			return stat;
+		} catch(final KeeperException e) {
+			code = e.code();
+			throw e;
+		} finally {
+			record(Operation.SET_DATA, path, code, start, traced, data);
+		}
 	}
 
 	@Override
-	@Trace
 	public void setData(final String path, final byte[] data, final int version, final StatCallback cb, final Object ctx) {
-		super.setData(path, data, version, cb, ctx);
+		PayloadRecorder.getInstance().record(Direction.WRITE, path, data);
+		super.setData(path, data, version, TracedCallback.wrapStat(Operation.SET_DATA, cb, sampler, getSessionId(), getServer()), ctx);
 	}
 
 	@Override
-	@Trace
 	public List<ACL> getACL(final String path, final Stat stat) throws KeeperException, InterruptedException {
-		return super.getACL(path, stat);
+		return sampler.sample() ? traceGetACL(path, stat) : doGetACL(path, stat, false);
+	}
+
+	@Trace(metricName="ZooKeeper/getACL")
+	private List<ACL> traceGetACL(final String path, final Stat stat) throws KeeperException, InterruptedException {
+		return doGetACL(path, stat, true);
+	}
+
+	/**
+	 * Executes {@code getACL} and records its latency and result code.
+	 * @param path The path of the node.
+	 * @param stat The {@link Stat} to populate or {@code null}.
+	 * @param traced Whether or not the call is traced.
+	 * @return The result of {@code getACL}.
+	 * @throws KeeperException if the server returns an error.
+	 * @throws InterruptedException if the call is interrupted.
+	 */
+	private List<ACL> doGetACL(final String path, final Stat stat, final boolean traced) throws KeeperException, InterruptedException {
+		final long start = System.nanoTime();
+		Code code = Code.SYSTEMERROR;
+		try {
+			final List<ACL> acl = super.getACL(path, stat);
+			code = Code.OK;
+			return acl;
+		} catch(final KeeperException e) {
+			code = e.code();
+			throw e;
+		} finally {
+			record(Operation.GET_ACL, path, code, start, traced);
+		}
 	}
 
 	@Override
-	@Trace
 	public void getACL(final String path, final Stat stat, final ACLCallback cb, final Object ctx) {
-		super.getACL(path, stat, cb, ctx);
+		super.getACL(path, stat, TracedCallback.wrapACL(Operation.GET_ACL, cb, sampler, getSessionId(), getServer()), ctx);
 	}
 
 	@Override
-	@Trace
 	public Stat setACL(final String path, final List<ACL> acl, final int version) throws KeeperException, InterruptedException {
-		return super.setACL(path, acl, version);
+		return sampler.sample() ? traceSetACL(path, acl, version) : doSetACL(path, acl, version, false);
+	}
+
+	@Trace(metricName="ZooKeeper/setACL")
+	private Stat traceSetACL(final String path, final List<ACL> acl, final int version) throws KeeperException, InterruptedException {
+		return doSetACL(path, acl, version, true);
+	}
+
+	/**
+	 * Executes {@code setACL} and records its latency and result code.
+	 * @param path The path of the node.
+	 * @param acl The ACL of the node.
+	 * @param version The expected version of the node.
+	 * @param traced Whether or not the call is traced.
+	 * @return The result of {@code setACL}.
+	 * @throws KeeperException if the server returns an error.
+	 * @throws InterruptedException if the call is interrupted.
+	 */
+	private Stat doSetACL(final String path, final List<ACL> acl, final int version, final boolean traced) throws KeeperException, InterruptedException {
+		final long start = System.nanoTime();
+		Code code = Code.SYSTEMERROR;
+		try {
+			final Stat stat = super.setACL(path, acl, version);
+			code = Code.OK;
+			return stat;
+		} catch(final KeeperException e) {
+			code = e.code();
+			throw e;
+		} finally {
+			record(Operation.SET_ACL, path, code, start, traced);
+		}
 	}
 
 	@Override
-	@Trace
 	public void setACL(final String path, final List<ACL> acl, final int version, final StatCallback cb, final Object ctx) {
-		super.setACL(path, acl, version, cb, ctx);
+		super.setACL(path, acl, version, TracedCallback.wrapStat(Operation.SET_ACL, cb, sampler, getSessionId(), getServer()), ctx);
 	}
 
 	@Override
-	@Trace
 	public List<String> getChildren(final String path, final Watcher watcher) throws KeeperException, InterruptedException {
-		return super.getChildren(path, watcher);
+		return sampler.sample() ? traceGetChildren(path, watcher) : doGetChildren(path, watcher, false);
+	}
+
+	@Trace(metricName="ZooKeeper/getChildren")
+	private List<String> traceGetChildren(final String path, final Watcher watcher) throws KeeperException, InterruptedException {
+		return doGetChildren(path, watcher, true);
+	}
+
+	/**
+	 * Executes {@code getChildren} and records its latency, result code and the size of the listing.
+	 * @param path The path of the node.
+	 * @param watcher The {@link Watcher} to set or {@code null}.
+	 * @param traced Whether or not the call is traced.
+	 * @return The result of {@code getChildren}.
+	 * @throws KeeperException if the server returns an error.
+	 * @throws InterruptedException if the call is interrupted.
+	 */
+	private List<String> doGetChildren(final String path, final Watcher watcher, final boolean traced) throws KeeperException, InterruptedException {
+		final long start = System.nanoTime();
+		Code code = Code.SYSTEMERROR;
+		List<String> children = null;
+		try {
+			children = super.getChildren(path, TracedWatcher.wrap(watcher));
+			code = Code.OK;
+			PayloadRecorder.getInstance().recordChildren(path, children);
+			return children;
+		} catch(final KeeperException e) {
+			code = e.code();
+			throw e;
+		} finally {
+			record(Operation.GET_CHILDREN, path, code, start, traced, children);
+		}
 	}
 
 	@Override
-	@Trace
 	public List<String> getChildren(final String path, final boolean watch) throws KeeperException, InterruptedException {
 		return super.getChildren(path, watch);
 	}
 
 	@Override
-	@Trace
 	public void getChildren(final String path, final Watcher watcher, final ChildrenCallback cb, final Object ctx) {
-		super.getChildren(path, watcher, cb, ctx);
+		super.getChildren(path, TracedWatcher.wrap(watcher), TracedCallback.wrapChildren(Operation.GET_CHILDREN, cb, sampler, getSessionId(), getServer()), ctx);
 	}
 
 	@Override
-	@Trace
 	public void getChildren(final String path, final boolean watch, final ChildrenCallback cb, final Object ctx) {
 		super.getChildren(path, watch, cb, ctx);
 	}
 
 	@Override
-	@Trace
 	public List<String> getChildren(final String path, final Watcher watcher, final Stat stat) throws KeeperException, InterruptedException {
-		return super.getChildren(path, watcher, stat);
+		return sampler.sample() ? traceGetChildren(path, watcher, stat) : doGetChildren(path, watcher, stat, false);
+	}
+
+	@Trace(metricName="ZooKeeper/getChildren")
+	private List<String> traceGetChildren(final String path, final Watcher watcher, final Stat stat) throws KeeperException, InterruptedException {
+		return doGetChildren(path, watcher, stat, true);
+	}
+
+	/**
+	 * Executes {@code getChildren} and records its latency, result code and the size of the listing.
+	 * @param path The path of the node.
+	 * @param watcher The {@link Watcher} to set or {@code null}.
+	 * @param stat The {@link Stat} to populate or {@code null}.
+	 * @param traced Whether or not the call is traced.
+	 * @return The result of {@code getChildren}.
+	 * @throws KeeperException if the server returns an error.
+	 * @throws InterruptedException if the call is interrupted.
+	 */
+	private List<String> doGetChildren(final String path, final Watcher watcher, final Stat stat, final boolean traced) throws KeeperException, InterruptedException {
+		final long start = System.nanoTime();
+		Code code = Code.SYSTEMERROR;
+		List<String> children = null;
+		try {
+			children = super.getChildren(path, TracedWatcher.wrap(watcher), stat);
+			code = Code.OK;
+			PayloadRecorder.getInstance().recordChildren(path, children);
+			return children;
+		} catch(final KeeperException e) {
+			code = e.code();
+			throw e;
+		} finally {
+			record(Operation.GET_CHILDREN, path, code, start, traced, children);
+		}
 	}
 
 	@Override
-	@Trace
 	public List<String> getChildren(final String path, final boolean watch, final Stat stat) throws KeeperException, InterruptedException {
 		return super.getChildren(path, watch, stat);
 	}
 
 	@Override
-	@Trace
 	public void getChildren(final String path, final Watcher watcher, final Children2Callback cb, final Object ctx) {
-		super.getChildren(path, watcher, cb, ctx);
+		super.getChildren(path, TracedWatcher.wrap(watcher), TracedCallback.wrapChildren2(Operation.GET_CHILDREN, cb, sampler, getSessionId(), getServer()), ctx);
 	}
 
 	@Override
-	@Trace
 	public void getChildren(final String path, final boolean watch, final Children2Callback cb, final Object ctx) {
 		super.getChildren(path, watch, cb, ctx);
 	}
-}
\ No newline at end of file
+
+	@Override
+	public List<OpResult> multi(final Iterable<Op> ops) throws InterruptedException, KeeperException {
+		return sampler.sample() ? traceMulti(ops) : doMulti(ops, false);
+	}
+
+	@Trace(metricName="ZooKeeper/multi")
+	private List<OpResult> traceMulti(final Iterable<Op> ops) throws InterruptedException, KeeperException {
+		return doMulti(ops, true);
+	}
+
+	/**
+	 * Executes {@code multi} and records its latency and result code.
+	 * @param ops The operations to execute atomically.
+	 * @param traced Whether or not the call is traced.
+	 * @return The results of the operations.
+	 * @throws KeeperException if the server returns an error.
+	 * @throws InterruptedException if the call is interrupted.
+	 */
+	private List<OpResult> doMulti(final Iterable<Op> ops, final boolean traced) throws InterruptedException, KeeperException {
+		final long start = System.nanoTime();
+		Code code = Code.SYSTEMERROR;
+		try {
+			final List<OpResult> results = super.multi(ops);
+			code = Code.OK;
+			return results;
+		} catch(final KeeperException e) {
+			code = e.code();
+			throw e;
+		} finally {
+			record(Operation.MULTI, null, code, start, traced);
+		}
+	}
+
+	/**
+	 * Records the latency and result code of an operation executed by this handle with the {@link LatencyRecorder},
+	 * and reports the operation to the {@link TraceSampler} if it was not traced and to the {@link OperationEvents}.
+	 * The {@code boolean} watch variants of the read operations delegate to their {@link Watcher} variants and are
+	 * therefore sampled and recorded by the latter.
+	 * @param operation The operation.
+	 * @param path The path of the operation.
+	 * @param code The result code of the operation.
+	 * @param start The time at which the operation started, as reported by {@link System#nanoTime()}.
+	 * @param traced Whether or not the operation was traced.
+	 */
+	private void record(final Operation operation, final String path, final Code code, final long start, final boolean traced) {
+		final long latencyNanos = recordLatency(operation, path, code, start, traced);
+		if(OperationEvents.isEnabled(latencyNanos)) {
+			OperationEvents.emit(OperationSource.ZOOKEEPER, operation, path, code, latencyNanos, getSessionId(), OperationEvents.NO_PAYLOAD);
+		}
+	}
+
+	/**
+	 * Records an operation that reads or writes the data of a node.
+	 * @param operation The operation.
+	 * @param path The path of the operation.
+	 * @param code The result code of the operation.
+	 * @param start The time at which the operation started, as reported by {@link System#nanoTime()}.
+	 * @param traced Whether or not the operation was traced.
+	 * @param data The data written or read by the operation, or {@code null} if none.
+	 * @see #record(Operation, String, Code, long, boolean)
+	 */
+	private void record(final Operation operation, final String path, final Code code, final long start, final boolean traced, final byte[] data) {
+		final long latencyNanos = recordLatency(operation, path, code, start, traced);
+		if(OperationEvents.isEnabled(latencyNanos)) {
+			OperationEvents.emit(OperationSource.ZOOKEEPER, operation, path, code, latencyNanos, getSessionId(), OperationEvents.getPayloadSize(data));
+		}
+	}
+
+	/**
+	 * Records an operation that lists the children of a node.
+	 * @param operation The operation.
+	 * @param path The path of the operation.
+	 * @param code The result code of the operation.
+	 * @param start The time at which the operation started, as reported by {@link System#nanoTime()}.
+	 * @param traced Whether or not the operation was traced.
+	 * @param children The children listed by the operation, or {@code null} if none.
+	 * @see #record(Operation, String, Code, long, boolean)
+	 */
+	private void record(final Operation operation, final String path, final Code code, final long start, final boolean traced, final List<String> children) {
+		final long latencyNanos = recordLatency(operation, path, code, start, traced);
+		if(OperationEvents.isEnabled(latencyNanos)) {
+			OperationEvents.emit(OperationSource.ZOOKEEPER, operation, path, code, latencyNanos, getSessionId(), OperationEvents.getPayloadSize(children));
+		}
+	}
+
+	/**
+	 * Records the latency and result code of an operation with the {@link LatencyRecorder}, and reports the
+	 * operation to the {@link TraceSampler} if it was not traced.
+	 * @param operation The operation.
+	 * @param path The path of the operation.
+	 * @param code The result code of the operation.
+	 * @param start The time at which the operation started, as reported by {@link System#nanoTime()}.
+	 * @param traced Whether or not the operation was traced.
+	 * @return The latency of the operation in nanoseconds.
+	 */
+	private long recordLatency(final Operation operation, final String path, final Code code, final long start, final boolean traced) {
+		final long latencyNanos = System.nanoTime() - start;
+		LatencyRecorder.getInstance().record(OperationSource.ZOOKEEPER, operation, code, latencyNanos);
+		final ServerMetrics metrics = getServer();
+		if(metrics != null) {
+			metrics.record(code, latencyNanos);
+		}
+		if(!traced) {
+			sampler.recordUntraced(OperationSource.ZOOKEEPER, operation, path, code, latencyNanos);
+		}
+		return latencyNanos;
+	}
+
+	/**
+	 * Returns the metrics of the server that the instance is connected to, resolving the server if it is not known yet.
+	 * The server is otherwise resolved when the connection is established, rather than on each operation.
+	 * @return The metrics of the server, or {@code null} if the instance has not connected yet.
+	 */
+	private ServerMetrics getServer() {
+		final ServerMetrics metrics = server.get();
+		return metrics == null ? updateServer() : metrics;
+	}
+
+	/**
+	 * Resolves the server that the instance is connected to, and records a connection move if the instance was
+	 * previously connected to a different server.
+	 * @return The metrics of the server, or the metrics of the previous server if the instance is not connected.
+	 */
+	private ServerMetrics updateServer() {
+		final ServerMetrics current = server.get();
+		final SocketAddress address = testableRemoteSocketAddress();
+		if(!(address instanceof InetSocketAddress)) {
+			return current;
+		}
+		final InetSocketAddress inetAddress = (InetSocketAddress)address;
+		final String name = inetAddress.getHostString() + ":" + inetAddress.getPort();
+		if(current != null && current.getAddress().equals(name)) {
+			return current;
+		}
+		final ServerMetrics metrics = ServerRecorder.getInstance().getServer(name);
+		if(server.compareAndSet(current, metrics) && current != null) {
+			ServerRecorder.getInstance().recordMove();
+		}
+		return server.get();
+	}
+}
@@ -0,0 +1,713 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.newrelic;
+
+import java.util.List;
+
+import org.apache.curator.newrelic.metrics.LatencyRecorder;
+import org.apache.curator.newrelic.metrics.Operation;
+import org.apache.curator.newrelic.metrics.OperationEvents;
+import org.apache.curator.newrelic.metrics.OperationSource;
+import org.apache.curator.newrelic.metrics.ServerRecorder.ServerMetrics;
+import org.apache.curator.newrelic.metrics.PayloadRecorder;
+import org.apache.curator.newrelic.metrics.PayloadRecorder.Direction;
+import org.apache.curator.newrelic.metrics.TraceSampler;
+import org.apache.zookeeper.AsyncCallback.ACLCallback;
+import org.apache.zookeeper.AsyncCallback.Children2Callback;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+import com.newrelic.api.agent.NewRelic;
+import com.newrelic.api.agent.Trace;
+
+/**
+ * Base class of the wrappers of the asynchronous ZooKeeper callbacks passed to {@link NewRelicWrappedZookeeper}.
+ * Each wrapper is created when the request is enqueued.  When ZooKeeper delivers the result on its event
+ * thread, the wrapper records the enqueue-to-callback latency and result code with the {@link LatencyRecorder}
+ * and invokes the delegate callback inside a <a href="http://newrelic.com">New Relic</a> transaction named after
+ * the operation, to which the latency is attached as the {@value #LATENCY_PARAMETER} parameter.  The version
+ * of the New Relic API in use has no means of linking work on another thread to the caller's transaction, so
+ * the callback is traced as a transaction of its own.  Callbacks are traced according to a {@link TraceSampler},
+ * which traces every failed or slow callback.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+abstract class TracedCallback {
+
+	/**
+	 * Name of the transaction parameter that holds the enqueue-to-callback latency in milliseconds.
+	 */
+	static final String LATENCY_PARAMETER = "zookeeper.callbackLatencyMs";
+
+	/**
+	 * Number of nanoseconds in a millisecond.
+	 */
+	private static final float NANOS_PER_MILLISECOND = 1000000f;
+
+	/**
+	 * The operation that was enqueued.
+	 */
+	private final Operation operation;
+
+	/**
+	 * The time at which the operation was enqueued, as reported by {@link System#nanoTime()}.
+	 */
+	private final long startNanos;
+
+	/**
+	 * The {@link TraceSampler} that decides whether or not the callback is traced.
+	 */
+	private final TraceSampler sampler;
+
+	/**
+	 * The ZooKeeper session that enqueued the operation.
+	 */
+	private final long sessionId;
+
+	/**
+	 * The metrics of the server that the operation was sent to, or {@code null} if the server is not known.
+	 */
+	private final ServerMetrics server;
+
+	/**
+	 * Creates a new {@code TracedCallback}, marking the time at which the operation is enqueued.
+	 * @param operation The operation that is enqueued.
+	 * @param sampler The {@link TraceSampler} that decides whether or not the callback is traced.
+	 * @param sessionId The ZooKeeper session that enqueued the operation.
+	 * @param server The metrics of the server that the operation was sent to, or {@code null} if the server is not known.
+	 */
+	protected TracedCallback(final Operation operation, final TraceSampler sampler, final long sessionId, final ServerMetrics server) {
+		this.operation = operation;
+		this.sampler = sampler;
+		this.sessionId = sessionId;
+		this.server = server;
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Wraps the provided callback.
+	 * @param operation The operation that is enqueued.
+	 * @param callback The callback (may be {@code null}).
+	 * @param sampler The {@link TraceSampler} that decides whether or not the callback is traced.
+	 * @param sessionId The ZooKeeper session that enqueued the operation.
+	 * @param server The metrics of the server that the operation was sent to, or {@code null} if the server is not known.
+	 * @return The wrapped callback or {@code null} if the callback is {@code null}.
+	 */
+	static StringCallback wrapString(final Operation operation, final StringCallback callback, final TraceSampler sampler, final long sessionId, final ServerMetrics server) {
+		return callback == null ? null : new TracedStringCallback(operation, sampler, sessionId, server, callback);
+	}
+
+	/**
+	 * Wraps the provided callback.
+	 * @param operation The operation that is enqueued.
+	 * @param callback The callback (may be {@code null}).
+	 * @param sampler The {@link TraceSampler} that decides whether or not the callback is traced.
+	 * @param sessionId The ZooKeeper session that enqueued the operation.
+	 * @param server The metrics of the server that the operation was sent to, or {@code null} if the server is not known.
+	 * @return The wrapped callback or {@code null} if the callback is {@code null}.
+	 */
+	static VoidCallback wrapVoid(final Operation operation, final VoidCallback callback, final TraceSampler sampler, final long sessionId, final ServerMetrics server) {
+		return callback == null ? null : new TracedVoidCallback(operation, sampler, sessionId, server, callback);
+	}
+
+	/**
+	 * Wraps the provided callback.
+	 * @param operation The operation that is enqueued.
+	 * @param callback The callback (may be {@code null}).
+	 * @param sampler The {@link TraceSampler} that decides whether or not the callback is traced.
+	 * @param sessionId The ZooKeeper session that enqueued the operation.
+	 * @param server The metrics of the server that the operation was sent to, or {@code null} if the server is not known.
+	 * @return The wrapped callback or {@code null} if the callback is {@code null}.
+	 */
+	static StatCallback wrapStat(final Operation operation, final StatCallback callback, final TraceSampler sampler, final long sessionId, final ServerMetrics server) {
+		return callback == null ? null : new TracedStatCallback(operation, sampler, sessionId, server, callback);
+	}
+
+	/**
+	 * Wraps the provided callback.
+	 * @param operation The operation that is enqueued.
+	 * @param callback The callback (may be {@code null}).
+	 * @param sampler The {@link TraceSampler} that decides whether or not the callback is traced.
+	 * @param sessionId The ZooKeeper session that enqueued the operation.
+	 * @param server The metrics of the server that the operation was sent to, or {@code null} if the server is not known.
+	 * @return The wrapped callback or {@code null} if the callback is {@code null}.
+	 */
+	static DataCallback wrapData(final Operation operation, final DataCallback callback, final TraceSampler sampler, final long sessionId, final ServerMetrics server) {
+		return callback == null ? null : new TracedDataCallback(operation, sampler, sessionId, server, callback);
+	}
+
+	/**
+	 * Wraps the provided callback.
+	 * @param operation The operation that is enqueued.
+	 * @param callback The callback (may be {@code null}).
+	 * @param sampler The {@link TraceSampler} that decides whether or not the callback is traced.
+	 * @param sessionId The ZooKeeper session that enqueued the operation.
+	 * @param server The metrics of the server that the operation was sent to, or {@code null} if the server is not known.
+	 * @return The wrapped callback or {@code null} if the callback is {@code null}.
+	 */
+	static ACLCallback wrapACL(final Operation operation, final ACLCallback callback, final TraceSampler sampler, final long sessionId, final ServerMetrics server) {
+		return callback == null ? null : new TracedACLCallback(operation, sampler, sessionId, server, callback);
+	}
+
+	/**
+	 * Wraps the provided callback.
+	 * @param operation The operation that is enqueued.
+	 * @param callback The callback (may be {@code null}).
+	 * @param sampler The {@link TraceSampler} that decides whether or not the callback is traced.
+	 * @param sessionId The ZooKeeper session that enqueued the operation.
+	 * @param server The metrics of the server that the operation was sent to, or {@code null} if the server is not known.
+	 * @return The wrapped callback or {@code null} if the callback is {@code null}.
+	 */
+	static ChildrenCallback wrapChildren(final Operation operation, final ChildrenCallback callback, final TraceSampler sampler, final long sessionId, final ServerMetrics server) {
+		return callback == null ? null : new TracedChildrenCallback(operation, sampler, sessionId, server, callback);
+	}
+
+	/**
+	 * Wraps the provided callback.
+	 * @param operation The operation that is enqueued.
+	 * @param callback The callback (may be {@code null}).
+	 * @param sampler The {@link TraceSampler} that decides whether or not the callback is traced.
+	 * @param sessionId The ZooKeeper session that enqueued the operation.
+	 * @param server The metrics of the server that the operation was sent to, or {@code null} if the server is not known.
+	 * @return The wrapped callback or {@code null} if the callback is {@code null}.
+	 */
+	static Children2Callback wrapChildren2(final Operation operation, final Children2Callback callback, final TraceSampler sampler, final long sessionId, final ServerMetrics server) {
+		return callback == null ? null : new TracedChildren2Callback(operation, sampler, sessionId, server, callback);
+	}
+
+	/**
+	 * Records the latency and result code of the operation, also against the server that it was sent to, and invokes the delegate callback, within
+	 * a transaction named after the operation if the {@link TraceSampler} decides to trace the callback.  The decision
+	 * also applies to the Curator callback that the delegate callback invokes.
+	 * Subclasses must store the result of the operation before calling this method so that {@link #deliver()}
+	 * can hand it to the delegate callback.  Callbacks whose latency reaches the threshold of the {@link OperationEvents}
+	 * are also emitted as JDK Flight Recorder events.
+	 * @param rc The result code of the operation.
+	 * @param path The path of the operation.
+	 */
+	protected final void complete(final int rc, final String path) {
+		final long latencyNanos = System.nanoTime() - startNanos;
+		final Code code = Code.get(rc);
+		LatencyRecorder.getInstance().record(OperationSource.ZOOKEEPER_ASYNC, operation, code, latencyNanos);
+		if(server != null) {
+			server.record(code, latencyNanos);
+		}
+		if(OperationEvents.isEnabled(latencyNanos)) {
+			OperationEvents.emit(OperationSource.ZOOKEEPER_ASYNC, operation, path, code, latencyNanos, sessionId, getPayloadSize());
+		}
+		final boolean traced = sampler.enter(code, latencyNanos);
+		try {
+			if(traced) {
+				trace(latencyNanos);
+			} else {
+				deliver();
+			}
+		} finally {
+			sampler.exit();
+		}
+	}
+
+	/**
+	 * Invokes the delegate callback within a transaction named after the operation.
+	 * @param latencyNanos The latency of the operation in nanoseconds.
+	 */
+	private void trace(final long latencyNanos) {
+		switch(operation) {
+			case CREATE:
+				traceCreate(latencyNanos);
+				break;
+			case DELETE:
+				traceDelete(latencyNanos);
+				break;
+			case EXISTS:
+				traceExists(latencyNanos);
+				break;
+			case GET_DATA:
+				traceGetData(latencyNanos);
+				break;
+			case SET_DATA:
+				traceSetData(latencyNanos);
+				break;
+			case GET_CHILDREN:
+				traceGetChildren(latencyNanos);
+				break;
+			case GET_ACL:
+				traceGetACL(latencyNanos);
+				break;
+			case SET_ACL:
+				traceSetACL(latencyNanos);
+				break;
+			default:
+				deliver();
+		}
+	}
+
+	/**
+	 * Hands the stored result of the operation to the delegate callback.
+	 */
+	protected abstract void deliver();
+
+	/**
+	 * Returns the size of the stored result of the operation.  Only called when the callback is emitted as an event.
+	 * @return The size of the result in bytes, or {@value OperationEvents#NO_PAYLOAD} if the operation returns no payload.
+	 */
+	protected int getPayloadSize() {
+		return OperationEvents.NO_PAYLOAD;
+	}
+
+	@Trace(dispatcher=true, metricName="ZooKeeper/Callback/create")
+	private void traceCreate(final long latencyNanos) {
+		traced(latencyNanos);
+	}
+
+	@Trace(dispatcher=true, metricName="ZooKeeper/Callback/delete")
+	private void traceDelete(final long latencyNanos) {
+		traced(latencyNanos);
+	}
+
+	@Trace(dispatcher=true, metricName="ZooKeeper/Callback/exists")
+	private void traceExists(final long latencyNanos) {
+		traced(latencyNanos);
+	}
+
+	@Trace(dispatcher=true, metricName="ZooKeeper/Callback/getData")
+	private void traceGetData(final long latencyNanos) {
+		traced(latencyNanos);
+	}
+
+	@Trace(dispatcher=true, metricName="ZooKeeper/Callback/setData")
+	private void traceSetData(final long latencyNanos) {
+		traced(latencyNanos);
+	}
+
+	@Trace(dispatcher=true, metricName="ZooKeeper/Callback/getChildren")
+	private void traceGetChildren(final long latencyNanos) {
+		traced(latencyNanos);
+	}
+
+	@Trace(dispatcher=true, metricName="ZooKeeper/Callback/getACL")
+	private void traceGetACL(final long latencyNanos) {
+		traced(latencyNanos);
+	}
+
+	@Trace(dispatcher=true, metricName="ZooKeeper/Callback/setACL")
+	private void traceSetACL(final long latencyNanos) {
+		traced(latencyNanos);
+	}
+
+	/**
+	 * Attaches the enqueue-to-callback latency to the current transaction and invokes the delegate callback.
+	 * @param latencyNanos The enqueue-to-callback latency in nanoseconds.
+	 */
+	private void traced(final long latencyNanos) {
+		NewRelic.addCustomParameter(LATENCY_PARAMETER, latencyNanos / NANOS_PER_MILLISECOND);
+		deliver();
+	}
+
+	/**
+	 * Traced {@link StringCallback}.
+	 */
+	private static final class TracedStringCallback extends TracedCallback implements StringCallback {
+
+		/**
+		 * The delegate callback.
+		 */
+		private final StringCallback delegate;
+
+		/**
+		 * The result code.
+		 */
+		private int rc;
+
+		/**
+		 * The requested path.
+		 */
+		private String path;
+
+		/**
+		 * The context passed with the request.
+		 */
+		private Object ctx;
+
+		/**
+		 * The name of the created node.
+		 */
+		private String name;
+
+		private TracedStringCallback(final Operation operation, final TraceSampler sampler, final long sessionId, final ServerMetrics server, final StringCallback delegate) {
+			super(operation, sampler, sessionId, server);
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void processResult(final int rc, final String path, final Object ctx, final String name) {
+			this.rc = rc;
+			this.path = path;
+			this.ctx = ctx;
+			this.name = name;
+			complete(rc, path);
+		}
+
+		@Override
+		protected void deliver() {
+			delegate.processResult(rc, path, ctx, name);
+		}
+	}
+
+	/**
+	 * Traced {@link VoidCallback}.
+	 */
+	private static final class TracedVoidCallback extends TracedCallback implements VoidCallback {
+
+		/**
+		 * The delegate callback.
+		 */
+		private final VoidCallback delegate;
+
+		/**
+		 * The result code.
+		 */
+		private int rc;
+
+		/**
+		 * The requested path.
+		 */
+		private String path;
+
+		/**
+		 * The context passed with the request.
+		 */
+		private Object ctx;
+
+		private TracedVoidCallback(final Operation operation, final TraceSampler sampler, final long sessionId, final ServerMetrics server, final VoidCallback delegate) {
+			super(operation, sampler, sessionId, server);
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void processResult(final int rc, final String path, final Object ctx) {
+			this.rc = rc;
+			this.path = path;
+			this.ctx = ctx;
+			complete(rc, path);
+		}
+
+		@Override
+		protected void deliver() {
+			delegate.processResult(rc, path, ctx);
+		}
+	}
+
+	/**
+	 * Traced {@link StatCallback}.
+	 */
+	private static final class TracedStatCallback extends TracedCallback implements StatCallback {
+
+		/**
+		 * The delegate callback.
+		 */
+		private final StatCallback delegate;
+
+		/**
+		 * The result code.
+		 */
+		private int rc;
+
+		/**
+		 * The requested path.
+		 */
+		private String path;
+
+		/**
+		 * The context passed with the request.
+		 */
+		private Object ctx;
+
+		/**
+		 * The {@link Stat} of the node.
+		 */
+		private Stat stat;
+
+		private TracedStatCallback(final Operation operation, final TraceSampler sampler, final long sessionId, final ServerMetrics server, final StatCallback delegate) {
+			super(operation, sampler, sessionId, server);
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void processResult(final int rc, final String path, final Object ctx, final Stat stat) {
+			this.rc = rc;
+			this.path = path;
+			this.ctx = ctx;
+			this.stat = stat;
+			complete(rc, path);
+		}
+
+		@Override
+		protected void deliver() {
+			delegate.processResult(rc, path, ctx, stat);
+		}
+	}
+
+	/**
+	 * Traced {@link DataCallback}.
+	 */
+	private static final class TracedDataCallback extends TracedCallback implements DataCallback {
+
+		/**
+		 * The delegate callback.
+		 */
+		private final DataCallback delegate;
+
+		/**
+		 * The result code.
+		 */
+		private int rc;
+
+		/**
+		 * The requested path.
+		 */
+		private String path;
+
+		/**
+		 * The context passed with the request.
+		 */
+		private Object ctx;
+
+		/**
+		 * The data of the node.
+		 */
+		private byte[] data;
+
+		/**
+		 * The {@link Stat} of the node.
+		 */
+		private Stat stat;
+
+		private TracedDataCallback(final Operation operation, final TraceSampler sampler, final long sessionId, final ServerMetrics server, final DataCallback delegate) {
+			super(operation, sampler, sessionId, server);
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void processResult(final int rc, final String path, final Object ctx, final byte[] data, final Stat stat) {
+			this.rc = rc;
+			this.path = path;
+			this.ctx = ctx;
+			this.data = data;
+			this.stat = stat;
+			if(rc == Code.OK.intValue()) {
+				PayloadRecorder.getInstance().record(Direction.READ, path, data);
+			}
+			complete(rc, path);
+		}
+
+		@Override
+		protected void deliver() {
+			delegate.processResult(rc, path, ctx, data, stat);
+		}
+
+		@Override
+		protected int getPayloadSize() {
+			return OperationEvents.getPayloadSize(data);
+		}
+	}
+
+	/**
+	 * Traced {@link ACLCallback}.
+	 */
+	private static final class TracedACLCallback extends TracedCallback implements ACLCallback {
+
+		/**
+		 * The delegate callback.
+		 */
+		private final ACLCallback delegate;
+
+		/**
+		 * The result code.
+		 */
+		private int rc;
+
+		/**
+		 * The requested path.
+		 */
+		private String path;
+
+		/**
+		 * The context passed with the request.
+		 */
+		private Object ctx;
+
+		/**
+		 * The ACL of the node.
+		 */
+		private List<ACL> acl;
+
+		/**
+		 * The {@link Stat} of the node.
+		 */
+		private Stat stat;
+
+		private TracedACLCallback(final Operation operation, final TraceSampler sampler, final long sessionId, final ServerMetrics server, final ACLCallback delegate) {
+			super(operation, sampler, sessionId, server);
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void processResult(final int rc, final String path, final Object ctx, final List<ACL> acl, final Stat stat) {
+			this.rc = rc;
+			this.path = path;
+			this.ctx = ctx;
+			this.acl = acl;
+			this.stat = stat;
+			complete(rc, path);
+		}
+
+		@Override
+		protected void deliver() {
+			delegate.processResult(rc, path, ctx, acl, stat);
+		}
+	}
+
+	/**
+	 * Traced {@link ChildrenCallback}.
+	 */
+	private static final class TracedChildrenCallback extends TracedCallback implements ChildrenCallback {
+
+		/**
+		 * The delegate callback.
+		 */
+		private final ChildrenCallback delegate;
+
+		/**
+		 * The result code.
+		 */
+		private int rc;
+
+		/**
+		 * The requested path.
+		 */
+		private String path;
+
+		/**
+		 * The context passed with the request.
+		 */
+		private Object ctx;
+
+		/**
+		 * The children of the node.
+		 */
+		private List<String> children;
+
+		private TracedChildrenCallback(final Operation operation, final TraceSampler sampler, final long sessionId, final ServerMetrics server, final ChildrenCallback delegate) {
+			super(operation, sampler, sessionId, server);
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void processResult(final int rc, final String path, final Object ctx, final List<String> children) {
+			this.rc = rc;
+			this.path = path;
+			this.ctx = ctx;
+			this.children = children;
+			if(rc == Code.OK.intValue()) {
+				PayloadRecorder.getInstance().recordChildren(path, children);
+			}
+			complete(rc, path);
+		}
+
+		@Override
+		protected void deliver() {
+			delegate.processResult(rc, path, ctx, children);
+		}
+
+		@Override
+		protected int getPayloadSize() {
+			return OperationEvents.getPayloadSize(children);
+		}
+	}
+
+	/**
+	 * Traced {@link Children2Callback}.
+	 */
+	private static final class TracedChildren2Callback extends TracedCallback implements Children2Callback {
+
+		/**
+		 * The delegate callback.
+		 */
+		private final Children2Callback delegate;
+
+		/**
+		 * The result code.
+		 */
+		private int rc;
+
+		/**
+		 * The requested path.
+		 */
+		private String path;
+
+		/**
+		 * The context passed with the request.
+		 */
+		private Object ctx;
+
+		/**
+		 * The children of the node.
+		 */
+		private List<String> children;
+
+		/**
+		 * The {@link Stat} of the node.
+		 */
+		private Stat stat;
+
+		private TracedChildren2Callback(final Operation operation, final TraceSampler sampler, final long sessionId, final ServerMetrics server, final Children2Callback delegate) {
+			super(operation, sampler, sessionId, server);
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void processResult(final int rc, final String path, final Object ctx, final List<String> children, final Stat stat) {
+			this.rc = rc;
+			this.path = path;
+			this.ctx = ctx;
+			this.children = children;
+			this.stat = stat;
+			if(rc == Code.OK.intValue()) {
+				PayloadRecorder.getInstance().recordChildren(path, children);
+			}
+			complete(rc, path);
+		}
+
+		@Override
+		protected void deliver() {
+			delegate.processResult(rc, path, ctx, children, stat);
+		}
+
+		@Override
+		protected int getPayloadSize() {
+			return OperationEvents.getPayloadSize(children);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.newrelic;
+
+import org.apache.curator.newrelic.metrics.WatcherRecorder;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+
+import com.newrelic.api.agent.NewRelic;
+import com.newrelic.api.agent.Trace;
+
+/**
+ * {@link Watcher} that records the time spent by the delegate {@link Watcher} processing each event
+ * with the {@link WatcherRecorder}, and processes each event inside a <a href="http://newrelic.com">New Relic</a>
+ * transaction to which the class of the delegate and the path of the event are attached, so that slow watchers
+ * can be identified.  ZooKeeper de-duplicates the watchers registered for a path by equality, so a
+ * {@code TracedWatcher} is equal to any other {@code TracedWatcher} that wraps an equal delegate.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see <a href="http://newrelic.com">New Relic</a>
+ */
+final class TracedWatcher implements Watcher {
+
+	/**
+	 * Name of the transaction parameter that holds the class of the delegate {@link Watcher}.
+	 */
+	static final String WATCHER_PARAMETER = "zookeeper.watcher";
+
+	/**
+	 * Name of the transaction parameter that holds the path of the event.
+	 */
+	static final String PATH_PARAMETER = "zookeeper.path";
+
+	/**
+	 * The delegate {@link Watcher}.
+	 */
+	private final Watcher delegate;
+
+	/**
+	 * Notified each time that the connection of a handle is established, or {@code null}.
+	 */
+	private final Runnable connectionListener;
+
+	private TracedWatcher(final Watcher delegate, final Runnable connectionListener) {
+		this.delegate = delegate;
+		this.connectionListener = connectionListener;
+	}
+
+	/**
+	 * Wraps the provided {@link Watcher}.
+	 * @param watcher The {@link Watcher} (may be {@code null}).
+	 * @return The wrapped {@link Watcher}, or the provided {@link Watcher} if it is {@code null} or already wrapped.
+	 */
+	static Watcher wrap(final Watcher watcher) {
+		return watcher == null || watcher instanceof TracedWatcher ? watcher : new TracedWatcher(watcher, null);
+	}
+
+	/**
+	 * Wraps the provided default {@link Watcher} of a handle so that the provided listener is notified each time
+	 * that the connection of the handle is established, before the {@link Watcher} receives the event.
+	 * @param watcher The default {@link Watcher} (may be {@code null}).
+	 * @param connectionListener The listener.
+	 * @return The wrapped {@link Watcher}, or {@code null} if the provided {@link Watcher} is {@code null}.  A
+	 * 	{@link Watcher} that is already wrapped is wrapped again with the listener.
+	 */
+	static Watcher wrap(final Watcher watcher, final Runnable connectionListener) {
+		if(watcher == null) {
+			return null;
+		}
+		return new TracedWatcher(watcher instanceof TracedWatcher ? ((TracedWatcher)watcher).delegate : watcher, connectionListener);
+	}
+
+	@Override
+	@Trace(dispatcher=true, metricName="ZooKeeper/Watcher/process")
+	public void process(final WatchedEvent event) {
+		NewRelic.addCustomParameter(WATCHER_PARAMETER, delegate.getClass().getName());
+		if(event.getPath() != null) {
+			NewRelic.addCustomParameter(PATH_PARAMETER, event.getPath());
+		}
+
+		if(connectionListener != null && event.getType() == EventType.None
+				&& (event.getState() == KeeperState.SyncConnected || event.getState() == KeeperState.ConnectedReadOnly)) {
+			connectionListener.run();
+		}
+
+		final long start = System.nanoTime();
+		try {
+			delegate.process(event);
+		} finally {
+			WatcherRecorder.getInstance().recordEvent(event.getType(), event.getPath(), System.nanoTime() - start);
+		}
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		return obj instanceof TracedWatcher && delegate.equals(((TracedWatcher)obj).delegate);
+	}
+
+	@Override
+	public int hashCode() {
+		return delegate.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "TracedWatcher[" + delegate + "]";
+	}
+}
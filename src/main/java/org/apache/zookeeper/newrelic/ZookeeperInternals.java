@@ -0,0 +1,226 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.newrelic;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.zookeeper.ClientCnxn;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+/**
+ * Accessors for the internal state of a {@link ZooKeeper} instance that is required in order to
+ * clone and instrument it, but which is not exposed outside of the {@link ZooKeeper} class.  The underlying fields
+ * are resolved exactly once, when this class is initialized, and are held in {@code static final}
+ * {@link MethodHandle}s.  If the fields cannot be resolved (for instance, because the ZooKeeper
+ * internals have changed), initialization of this class fails with an {@link IllegalStateException}
+ * that identifies the missing field.
+ *
+ * @author Jonathan Pearlin
+ * @since 1.0.0
+ * @see ZooKeeper
+ */
+final class ZookeeperInternals {
+
+	/**
+	 * Reads {@code ZooKeeper.cnxn}.
+	 */
+	private static final MethodHandle CLIENT_CNXN;
+
+	/**
+	 * Reads {@code ZooKeeper.watchManager.defaultWatcher}.
+	 */
+	private static final MethodHandle DEFAULT_WATCHER;
+
+	/**
+	 * Reads {@code ZooKeeper.cnxn.readOnly}.
+	 */
+	private static final MethodHandle CAN_BE_READ_ONLY;
+
+	/**
+	 * Reads {@code ZooKeeper.watchManager.dataWatches}.
+	 */
+	private static final MethodHandle DATA_WATCHES;
+
+	/**
+	 * Reads {@code ZooKeeper.watchManager.existWatches}.
+	 */
+	private static final MethodHandle EXIST_WATCHES;
+
+	/**
+	 * Reads {@code ZooKeeper.watchManager.childWatches}.
+	 */
+	private static final MethodHandle CHILD_WATCHES;
+
+	static {
+		CLIENT_CNXN = getter(ZooKeeper.class, "cnxn");
+		final Class<?> watchManagerType = getType(ZooKeeper.class.getName() + "$ZKWatchManager");
+		final MethodHandle watchManager = getter(ZooKeeper.class, "watchManager");
+		DEFAULT_WATCHER = MethodHandles.filterReturnValue(watchManager, getter(watchManagerType, "defaultWatcher"))
+				.asType(MethodType.methodType(Watcher.class, ZooKeeper.class));
+		CAN_BE_READ_ONLY = MethodHandles.filterReturnValue(CLIENT_CNXN, getter(ClientCnxn.class, "readOnly"));
+		final MethodType watchesType = MethodType.methodType(Map.class, ZooKeeper.class);
+		DATA_WATCHES = MethodHandles.filterReturnValue(watchManager, getter(watchManagerType, "dataWatches")).asType(watchesType);
+		EXIST_WATCHES = MethodHandles.filterReturnValue(watchManager, getter(watchManagerType, "existWatches")).asType(watchesType);
+		CHILD_WATCHES = MethodHandles.filterReturnValue(watchManager, getter(watchManagerType, "childWatches")).asType(watchesType);
+	}
+
+	private ZookeeperInternals() {}
+
+	/**
+	 * Retrieves the {@link ClientCnxn} of the provided {@link ZooKeeper} instance.
+	 * @param zooKeeper The {@link ZooKeeper} instance.
+	 * @return The {@link ClientCnxn} of the instance.
+	 */
+	static ClientCnxn getClientCnxn(final ZooKeeper zooKeeper) {
+		try {
+			return (ClientCnxn)CLIENT_CNXN.invokeExact(zooKeeper);
+		} catch(final Throwable t) {
+			throw propagate(t);
+		}
+	}
+
+	/**
+	 * Retrieves the default {@link Watcher} of the provided {@link ZooKeeper} instance.
+	 * @param zooKeeper The {@link ZooKeeper} instance.
+	 * @return The default {@link Watcher} of the instance.
+	 */
+	static Watcher getWatcher(final ZooKeeper zooKeeper) {
+		try {
+			return (Watcher)DEFAULT_WATCHER.invokeExact(zooKeeper);
+		} catch(final Throwable t) {
+			throw propagate(t);
+		}
+	}
+
+	/**
+	 * Retrieves the read only flag of the provided {@link ZooKeeper} instance.
+	 * @param zooKeeper The {@link ZooKeeper} instance.
+	 * @return The read only flag of the instance.
+	 */
+	static boolean getCanBeReadOnly(final ZooKeeper zooKeeper) {
+		try {
+			return (boolean)CAN_BE_READ_ONLY.invokeExact(zooKeeper);
+		} catch(final Throwable t) {
+			throw propagate(t);
+		}
+	}
+
+	/**
+	 * Counts the outstanding data watches of the provided {@link ZooKeeper} instance.
+	 * @param zooKeeper The {@link ZooKeeper} instance.
+	 * @return The number of outstanding data watches.
+	 */
+	static int getDataWatchCount(final ZooKeeper zooKeeper) {
+		try {
+			return count((Map<?,?>)DATA_WATCHES.invokeExact(zooKeeper));
+		} catch(final Throwable t) {
+			throw propagate(t);
+		}
+	}
+
+	/**
+	 * Counts the outstanding existence watches of the provided {@link ZooKeeper} instance.
+	 * @param zooKeeper The {@link ZooKeeper} instance.
+	 * @return The number of outstanding existence watches.
+	 */
+	static int getExistWatchCount(final ZooKeeper zooKeeper) {
+		try {
+			return count((Map<?,?>)EXIST_WATCHES.invokeExact(zooKeeper));
+		} catch(final Throwable t) {
+			throw propagate(t);
+		}
+	}
+
+	/**
+	 * Counts the outstanding child watches of the provided {@link ZooKeeper} instance.
+	 * @param zooKeeper The {@link ZooKeeper} instance.
+	 * @return The number of outstanding child watches.
+	 */
+	static int getChildWatchCount(final ZooKeeper zooKeeper) {
+		try {
+			return count((Map<?,?>)CHILD_WATCHES.invokeExact(zooKeeper));
+		} catch(final Throwable t) {
+			throw propagate(t);
+		}
+	}
+
+	/**
+	 * Counts the watchers registered in one of the watch tables of a {@link ZooKeeper} instance.  The
+	 * table is locked while it is counted, just as ZooKeeper does when it registers or triggers watches.
+	 * @param watches The watch table, keyed by path.
+	 * @return The number of registered watchers.
+	 */
+	private static int count(final Map<?,?> watches) {
+		int count = 0;
+		synchronized(watches) {
+			for(final Object watchers : watches.values()) {
+				count += ((Set<?>)watchers).size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Resolves the named class.
+	 * @param name The fully qualified name of the class.
+	 * @return The resolved class.
+	 * @throws IllegalStateException if the class cannot be resolved.
+	 */
+	private static Class<?> getType(final String name) {
+		try {
+			return Class.forName(name, false, ZooKeeper.class.getClassLoader());
+		} catch(final ClassNotFoundException e) {
+			throw new IllegalStateException("Unable to resolve " + name + ".  The installed version of ZooKeeper is not supported by the New Relic instrumentation.", e);
+		}
+	}
+
+	/**
+	 * Resolves a getter {@link MethodHandle} for the named declared field of the provided class.
+	 * @param type The class that declares the field.
+	 * @param name The name of the field.
+	 * @return A {@link MethodHandle} that reads the field.
+	 * @throws IllegalStateException if the field cannot be resolved.
+	 */
+	private static MethodHandle getter(final Class<?> type, final String name) {
+		try {
+			final Field field = type.getDeclaredField(name);
+			field.setAccessible(true);
+			return MethodHandles.lookup().unreflectGetter(field);
+		} catch(final NoSuchFieldException | IllegalAccessException | SecurityException e) {
+			throw new IllegalStateException("Unable to resolve " + type.getName() + "." + name + ".  The installed version of ZooKeeper is not supported by the New Relic instrumentation.", e);
+		}
+	}
+
+	/**
+	 * Rethrows the provided {@link Throwable} raised by a {@link MethodHandle} invocation.
+	 * @param t The {@link Throwable} to rethrow.
+	 * @return Never returns normally; declared so that callers can {@code throw} the result.
+	 */
+	private static RuntimeException propagate(final Throwable t) {
+		if(t instanceof RuntimeException) {
+			throw (RuntimeException)t;
+		} else if(t instanceof Error) {
+			throw (Error)t;
+		}
+		throw new IllegalStateException(t);
+	}
+}
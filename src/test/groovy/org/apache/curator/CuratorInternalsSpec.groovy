@@ -0,0 +1,42 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator
+
+import org.apache.curator.ensemble.fixed.FixedEnsembleProvider
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.utils.ZookeeperFactory
+import org.apache.zookeeper.Watcher
+
+import spock.lang.Specification
+
+class CuratorInternalsSpec extends Specification {
+
+	def "test reading the internal state of a Curator ZooKeeper client"() {
+		setup:
+		ZookeeperFactory zookeeperFactory = Mock()
+		Watcher watcher = Mock()
+		def ensembleProvider = new FixedEnsembleProvider('localhost:2181')
+		def client = new CuratorZookeeperClient(zookeeperFactory, ensembleProvider, 1234, 5678, watcher, new RetryOneTime(0), true)
+		expect:
+		CuratorInternals.getConnectionState(client) != null
+		CuratorInternals.getHandleHolder(client) != null
+		CuratorInternals.getSessionTimeoutMs(client) == 1234
+		CuratorInternals.getEnsembleProvider(client).is(ensembleProvider)
+		CuratorInternals.getWatcher(client).is(watcher)
+		CuratorInternals.getZookeeperFactory(client).is(zookeeperFactory)
+		CuratorInternals.getCanBeReadOnly(client)
+	}
+}
@@ -15,10 +15,17 @@
  */
 package org.apache.curator
 
+import org.apache.curator.ensemble.fixed.FixedEnsembleProvider
 import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.CuratorFrameworkFactory
 import org.apache.curator.newrelic.framework.NewRelicClientFrameworkFactory
+import org.apache.curator.newrelic.utils.NewRelicZookeeperFactory
 import org.apache.curator.retry.RetryOneTime
 import org.apache.curator.test.TestingServer
+import org.apache.curator.utils.DefaultZookeeperFactory
+import org.apache.curator.utils.ZookeeperFactory
+import org.apache.zookeeper.Watcher
+import org.apache.zookeeper.ZooKeeper
 import org.apache.zookeeper.newrelic.NewRelicWrappedZookeeper
 
 import spock.lang.Shared
@@ -59,4 +66,100 @@ class NewRelicWrappedCuratorZookeeperClientSpec extends Specification {
 		wrappedZkClient != null
 		wrappedZkClient instanceof NewRelicWrappedZookeeper
 	}
+
+	def "test that closing a client created from a delegate leaves the delegate open"() {
+		setup:
+		client.start()
+		client.zookeeperClient.blockUntilConnectedOrTimedOut()
+		def wrappedClient = new NewRelicWrappedCuratorZookeeperClient(client.getZookeeperClient())
+		def zooKeeper = wrappedClient.getZooKeeper()
+		when:
+		wrappedClient.close()
+		then:
+		client.zookeeperClient.connected
+		zooKeeper.state == ZooKeeper.States.CONNECTED
+		client.checkExists().forPath('/') != null
+	}
+
+	def "test that the handle of a delegate that is not instrumented is returned as-is"() {
+		setup:
+		def framework = CuratorFrameworkFactory.newClient(server.connectString, new RetryOneTime(0))
+		framework.start()
+		def wrappedClient = new NewRelicWrappedCuratorZookeeperClient(framework.getZookeeperClient())
+		when:
+		def zooKeeper = wrappedClient.getZooKeeper()
+		then:
+		zooKeeper.is(framework.zookeeperClient.zooKeeper)
+		!(zooKeeper instanceof NewRelicWrappedZookeeper)
+		cleanup:
+		wrappedClient.close()
+		framework.close()
+	}
+
+	def "test that 10k operations through getZooKeeper() use exactly one instrumented connection for the session"() {
+		setup:
+		def created = []
+		ZookeeperFactory zookeeperFactory = new NewRelicZookeeperFactory() {
+			@Override
+			ZooKeeper newZooKeeper(String connectString, int sessionTimeout, Watcher watcher, boolean canBeReadOnly) {
+				def zooKeeper = super.newZooKeeper(connectString, sessionTimeout, watcher, canBeReadOnly)
+				created << zooKeeper
+				return zooKeeper
+			}
+		}
+		def wrappedClient = new NewRelicWrappedCuratorZookeeperClient(zookeeperFactory, new FixedEnsembleProvider(server.connectString), 10000, 10000, null, new RetryOneTime(0), false)
+		wrappedClient.start()
+		wrappedClient.blockUntilConnectedOrTimedOut()
+		when:
+		def handles = (1..10000).collect {
+			def zooKeeper = wrappedClient.getZooKeeper()
+			zooKeeper.exists('/', false)
+			zooKeeper
+		}.unique(false) { System.identityHashCode(it) }
+		then:
+		created.size() == 1
+		handles.size() == 1
+		handles[0].is(created[0])
+		handles[0] instanceof NewRelicWrappedZookeeper
+		created[0].state == ZooKeeper.States.CONNECTED
+		cleanup:
+		wrappedClient.close()
+	}
+
+	def "test that the default ZookeeperFactory is replaced by an instrumenting factory"() {
+		setup:
+		def wrappedClient = new NewRelicWrappedCuratorZookeeperClient(new DefaultZookeeperFactory(), new FixedEnsembleProvider(server.connectString), 10000, 10000, null, new RetryOneTime(0), false)
+		wrappedClient.start()
+		wrappedClient.blockUntilConnectedOrTimedOut()
+		when:
+		def zooKeeper = wrappedClient.getZooKeeper()
+		then:
+		zooKeeper instanceof NewRelicWrappedZookeeper
+		zooKeeper.exists('/', false) != null
+		cleanup:
+		wrappedClient.close()
+	}
+
+	def "test that the handles of a custom ZookeeperFactory are used as-is without opening a second connection"() {
+		setup:
+		def created = []
+		ZookeeperFactory zookeeperFactory = { connectString, sessionTimeout, watcher, canBeReadOnly ->
+			def zooKeeper = new ZooKeeper(connectString, sessionTimeout, watcher, canBeReadOnly)
+			created << zooKeeper
+			zooKeeper
+		} as ZookeeperFactory
+		def wrappedClient = new NewRelicWrappedCuratorZookeeperClient(zookeeperFactory, new FixedEnsembleProvider(server.connectString), 10000, 10000, null, new RetryOneTime(0), false)
+		wrappedClient.start()
+		wrappedClient.blockUntilConnectedOrTimedOut()
+		when:
+		def zooKeeper = wrappedClient.getZooKeeper()
+		zooKeeper.exists('/', false)
+		then:
+		created.size() == 1
+		zooKeeper.is(created[0])
+		created[0].state == ZooKeeper.States.CONNECTED
+		wrappedClient.getZooKeeper().sessionId == created[0].sessionId
+		cleanup:
+		wrappedClient.close()
+	}
 }
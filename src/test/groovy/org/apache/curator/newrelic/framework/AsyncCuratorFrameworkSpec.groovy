@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+import org.apache.curator.newrelic.metrics.LatencyHistogram
+import org.apache.curator.newrelic.metrics.LatencyRecorder
+import org.apache.curator.newrelic.metrics.Operation
+import org.apache.curator.newrelic.metrics.OperationSource
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.test.TestingServer
+import org.apache.zookeeper.CreateMode
+import org.apache.zookeeper.KeeperException
+import org.apache.zookeeper.KeeperException.Code
+import org.apache.zookeeper.Watcher
+
+import spock.lang.Shared
+import spock.lang.Specification
+
+class AsyncCuratorFrameworkSpec extends Specification {
+
+	@Shared
+	TestingServer server
+
+	def client
+
+	def setupSpec() {
+		server = new TestingServer()
+	}
+
+	def cleanupSpec() {
+		server.stop()
+	}
+
+	def setup() {
+		client = NewRelicClientFrameworkFactory.newClient(server.connectString, new RetryOneTime(0))
+		client.start()
+	}
+
+	def cleanup() {
+		client.close()
+	}
+
+	def "test the asynchronous operations"() {
+		setup:
+		def async = NewRelicClientFrameworkFactory.newAsyncFramework(client)
+		when:
+		def created = get(async.create('/async', 'data'.bytes))
+		def data = get(async.getData('/async'))
+		def stat = get(async.setData('/async', 'other'.bytes))
+		def exists = get(async.exists('/async'))
+		get(async.create('/async/child', null, CreateMode.EPHEMERAL))
+		def children = get(async.getChildren('/async'))
+		get(async.delete('/async/child'))
+		get(async.delete('/async', stat.version))
+		def missing = get(async.exists('/async'))
+		then:
+		created == '/async'
+		new String(data) == 'data'
+		stat.version == 1
+		exists.version == 1
+		children == ['child']
+		missing == null
+	}
+
+	def "test that a failed operation fails its stage with the matching KeeperException"() {
+		setup:
+		def async = NewRelicClientFrameworkFactory.newAsyncFramework(client)
+		when:
+		get(async.getData('/missing'))
+		then:
+		def e = thrown(ExecutionException)
+		e.cause instanceof KeeperException.NoNodeException
+		e.cause.path == '/missing'
+	}
+
+	def "test that stages are completed on the ZooKeeper event thread or on the provided executor"() {
+		setup:
+		def executor = Executors.newSingleThreadExecutor({ r -> new Thread(r, 'async-completion') })
+		// Blocks the event thread until the dependent stages are registered, so that they run on the completing thread.
+		def release = new CountDownLatch(1)
+		def blocked = new CountDownLatch(1)
+		client.checkExists().usingWatcher({ event -> blocked.countDown(); release.await() } as Watcher).forPath('/blocking')
+		client.create().forPath('/blocking')
+		blocked.await(10, TimeUnit.SECONDS)
+		when:
+		def eventThread = new AsyncCuratorFramework(client).exists('/').thenApply { Thread.currentThread().name }
+		def executorThread = new AsyncCuratorFramework(client, executor).exists('/').thenApply { Thread.currentThread().name }
+		release.countDown()
+		then:
+		get(eventThread).contains('EventThread')
+		get(executorThread) == 'async-completion'
+		cleanup:
+		release.countDown()
+		client.delete().forPath('/blocking')
+		executor.shutdownNow()
+	}
+
+	def "test that asynchronous operations are recorded as background operations"() {
+		setup:
+		def async = new AsyncCuratorFramework(client)
+		def snapshot = new LatencyHistogram.Snapshot()
+		LatencyRecorder.getInstance().getHistogram(OperationSource.BACKGROUND, Operation.EXISTS, Code.OK)?.drainTo(new LatencyHistogram.Snapshot())
+		when:
+		get(async.exists('/'))
+		LatencyRecorder.getInstance().getHistogram(OperationSource.BACKGROUND, Operation.EXISTS, Code.OK).drainTo(snapshot)
+		then:
+		snapshot.count == 1
+	}
+
+	def "test that the client may not be null"() {
+		when:
+		new AsyncCuratorFramework(null)
+		then:
+		thrown(IllegalArgumentException)
+	}
+
+	def get(stage) {
+		return stage.toCompletableFuture().get(10, TimeUnit.SECONDS)
+	}
+}
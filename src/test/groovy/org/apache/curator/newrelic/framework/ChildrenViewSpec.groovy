@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.newrelic.metrics.LatencyHistogram
+import org.apache.curator.newrelic.metrics.PayloadRecorder
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.test.TestingServer
+
+import spock.lang.Shared
+import spock.lang.Specification
+
+class ChildrenViewSpec extends Specification {
+
+	@Shared
+	TestingServer server
+
+	@Shared
+	CuratorFramework client
+
+	def setupSpec() {
+		server = new TestingServer()
+		client = NewRelicClientFrameworkFactory.newClient(server.connectString, new RetryOneTime(0))
+		client.start()
+	}
+
+	def cleanupSpec() {
+		client.close()
+		server.stop()
+	}
+
+	def "test that the view lists the children in order and follows changes"() {
+		setup:
+		client.create().forPath('/view')
+		['c', 'a', 'b'].each { client.create().forPath("/view/${it}") }
+		def view = new ChildrenView(client, '/view')
+		when:
+		view.start()
+		then:
+		view.children == ['a', 'b', 'c']
+		view.contains('b')
+		when:
+		client.create().forPath('/view/aa')
+		client.delete().forPath('/view/c')
+		then:
+		waitFor { view.children == ['a', 'aa', 'b'] }
+		!view.contains('c')
+		cleanup:
+		view.close()
+		client.getChildren().forPath('/view').each { client.delete().forPath("/view/${it}") }
+		client.delete().forPath('/view')
+	}
+
+	def "test that the view follows a node that is deleted and created again"() {
+		setup:
+		client.create().forPath('/recreated')
+		['a', 'b', 'c'].each { client.create().forPath("/recreated/${it}") }
+		def view = new ChildrenView(client, '/recreated')
+		view.start()
+		when:
+		// The node is recreated atomically, so the watch always finds the new node, whose child version starts again.
+		def transaction = client.inTransaction()
+		['a', 'b', 'c'].each { transaction = transaction.delete().forPath("/recreated/${it}").and() }
+		transaction = transaction.delete().forPath('/recreated').and()
+		transaction = transaction.create().forPath('/recreated').and()
+		transaction.create().forPath('/recreated/x').and().commit()
+		then:
+		waitFor { view.children == ['x'] }
+		when:
+		client.create().forPath('/recreated/y')
+		then:
+		waitFor { view.children == ['x', 'y'] }
+		cleanup:
+		view.close()
+		client.getChildren().forPath('/recreated').each { client.delete().forPath("/recreated/${it}") }
+		client.delete().forPath('/recreated')
+	}
+
+	def "test paging and chunking the children"() {
+		setup:
+		client.create().forPath('/paged')
+		(0..<10).each { client.create().forPath("/paged/node-${it}") }
+		def view = new ChildrenView(client, '/paged')
+		view.start()
+		when:
+		def first = view.page(null, 4)
+		def second = view.page(first.last(), 4)
+		def third = view.page(second.last(), 4)
+		then:
+		first == (0..<4).collect { "node-${it}".toString() }
+		second == (4..<8).collect { "node-${it}".toString() }
+		third == ['node-8', 'node-9']
+		view.page('node-9', 4).empty
+		view.page('node-35', 2) == ['node-4', 'node-5']
+		view.chunks(3).collect { it.size() } == [3, 3, 3, 1]
+		view.chunks(3).flatten() == view.children
+		cleanup:
+		view.close()
+		client.getChildren().forPath('/paged').each { client.delete().forPath("/paged/${it}") }
+		client.delete().forPath('/paged')
+	}
+
+	def "test that the view of a missing node is empty until the node is created"() {
+		setup:
+		def view = new ChildrenView(client, '/missing')
+		when:
+		view.start()
+		then:
+		view.size() == 0
+		when:
+		client.create().creatingParentsIfNeeded().forPath('/missing/child')
+		then:
+		waitFor { view.children == ['child'] }
+		cleanup:
+		view.close()
+		client.delete().forPath('/missing/child')
+		client.delete().forPath('/missing')
+	}
+
+	def "test that the listings are recorded"() {
+		setup:
+		def recorder = PayloadRecorder.getInstance()
+		def snapshot = new LatencyHistogram.Snapshot()
+		client.create().forPath('/listed')
+		client.create().forPath('/listed/abc')
+		recorder.flush()
+		def view = new ChildrenView(client, '/listed')
+		when:
+		view.start()
+		then:
+		recorder.getByteCount(PayloadRecorder.Direction.CHILDREN, '/listed') == 11
+		recorder.getChildCountHistogram('/listed').drainTo(snapshot) == null
+		snapshot.max == 1
+		cleanup:
+		view.close()
+		client.delete().forPath('/listed/abc')
+		client.delete().forPath('/listed')
+	}
+
+	def "test that invalid arguments are rejected"() {
+		when:
+		new ChildrenView(framework, path)
+		then:
+		thrown(IllegalArgumentException)
+		where:
+		framework              | path
+		null                   | '/path'
+		Mock(CuratorFramework) | null
+	}
+
+	def "test that invalid page and chunk sizes are rejected"() {
+		setup:
+		def view = new ChildrenView(Mock(CuratorFramework), '/path')
+		when:
+		view.page(null, 0)
+		then:
+		thrown(IllegalArgumentException)
+		when:
+		view.chunks(0)
+		then:
+		thrown(IllegalArgumentException)
+	}
+
+	private static boolean waitFor(Closure<Boolean> condition) {
+		def deadline = System.currentTimeMillis() + 10000
+		while(!condition() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10)
+		}
+		return condition()
+	}
+}
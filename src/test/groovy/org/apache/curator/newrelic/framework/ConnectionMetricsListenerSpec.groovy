@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.api.CuratorEvent
+import org.apache.curator.framework.api.CuratorEventType
+import org.apache.curator.framework.state.ConnectionState
+import org.apache.curator.newrelic.metrics.ConnectionRecorder
+import org.apache.curator.newrelic.metrics.LatencyHistogram
+import org.apache.zookeeper.WatchedEvent
+import org.apache.zookeeper.Watcher.Event.EventType
+import org.apache.zookeeper.Watcher.Event.KeeperState
+
+import spock.lang.Specification
+
+class ConnectionMetricsListenerSpec extends Specification {
+
+	ConnectionRecorder recorder = new ConnectionRecorder(0)
+
+	ConnectionMetricsListener listener = new ConnectionMetricsListener(recorder)
+
+	CuratorFramework client = Mock()
+
+	LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot()
+
+	def cleanup() {
+		recorder.close()
+	}
+
+	def "test that a suspension is recorded as a single outage"() {
+		when:
+		listener.stateChanged(client, ConnectionState.SUSPENDED)
+		listener.stateChanged(client, ConnectionState.SUSPENDED)
+		then:
+		recorder.getStateChangeCount(ConnectionState.SUSPENDED) == 2
+		recorder.disconnectedClientCount == 1
+		when:
+		listener.stateChanged(client, ConnectionState.RECONNECTED)
+		then:
+		recorder.disconnectedClientCount == 0
+		recorder.disconnectedHistogram.drainTo(snapshot) == null
+		snapshot.count == 1
+		recorder.reconnectHistogram.drainTo(snapshot) == null
+		snapshot.count == 0
+	}
+
+	def "test that the time to establish a new session after a lost session is recorded"() {
+		when:
+		listener.stateChanged(client, ConnectionState.SUSPENDED)
+		listener.stateChanged(client, ConnectionState.LOST)
+		listener.stateChanged(client, ConnectionState.RECONNECTED)
+		then:
+		recorder.getStateChangeCount(ConnectionState.LOST) == 1
+		recorder.disconnectedClientCount == 0
+		recorder.disconnectedHistogram.drainTo(snapshot) == null
+		snapshot.count == 1
+		recorder.reconnectHistogram.drainTo(snapshot) == null
+		snapshot.count == 1
+	}
+
+	def "test that session expirations are recorded"() {
+		setup:
+		CuratorEvent event = Mock()
+		event.getType() >> CuratorEventType.WATCHED
+		event.getWatchedEvent() >> new WatchedEvent(EventType.None, KeeperState.Expired, null)
+		when:
+		listener.eventReceived(client, event)
+		then:
+		recorder.sessionExpirationCount == 1
+	}
+
+	def "test that closing a disconnected client ends the outage"() {
+		setup:
+		CuratorEvent event = Mock()
+		event.getType() >> CuratorEventType.CLOSING
+		when:
+		listener.stateChanged(client, ConnectionState.SUSPENDED)
+		listener.eventReceived(client, event)
+		then:
+		recorder.disconnectedClientCount == 0
+		recorder.disconnectedHistogram.drainTo(snapshot) == null
+		snapshot.count == 0
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework
+
+import org.apache.curator.newrelic.metrics.TraceSampler
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class InstrumentationPolicySpec extends Specification {
+
+	def cleanup() {
+		System.clearProperty(FrameworkMethod.TRACE_MODE_PROPERTY_PREFIX + 'getState')
+	}
+
+	def "test that the default policy only traces lifecycle methods and sync"() {
+		when:
+		def policy = InstrumentationPolicy.defaultPolicy()
+		then:
+		policy.getTraceMode(FrameworkMethod.START) == TraceMode.DISPATCHER
+		policy.getTraceMode(FrameworkMethod.CLOSE) == TraceMode.DISPATCHER
+		policy.getTraceMode(FrameworkMethod.SYNC) == TraceMode.SEGMENT
+		policy.getTraceMode(FrameworkMethod.GET_STATE) == TraceMode.NONE
+		policy.getTraceMode(FrameworkMethod.IS_STARTED) == TraceMode.NONE
+		policy.getTraceMode(FrameworkMethod.GET_NAMESPACE) == TraceMode.NONE
+		policy.getTraceMode(FrameworkMethod.GET_CONNECTION_STATE_LISTENABLE) == TraceMode.NONE
+		policy.getTraceMode(FrameworkMethod.CREATE) == TraceMode.NONE
+	}
+
+	def "test configuring the trace mode of a single method"() {
+		when:
+		def policy = InstrumentationPolicy.builder().traceMode(FrameworkMethod.GET_STATE, TraceMode.SEGMENT).build()
+		then:
+		policy.getTraceMode(FrameworkMethod.GET_STATE) == TraceMode.SEGMENT
+		policy.getTraceMode(FrameworkMethod.START) == TraceMode.DISPATCHER
+	}
+
+	@Unroll
+	def "test configuring the trace mode of every method to #traceMode"() {
+		when:
+		def policy = InstrumentationPolicy.builder().traceAll(traceMode).build()
+		then:
+		FrameworkMethod.values().every { policy.getTraceMode(it) == traceMode }
+		where:
+		traceMode << TraceMode.values()
+	}
+
+	def "test overriding the default trace mode of a method with a system property"() {
+		setup:
+		System.setProperty(FrameworkMethod.TRACE_MODE_PROPERTY_PREFIX + 'getState', 'dispatcher')
+		when:
+		def policy = InstrumentationPolicy.defaultPolicy()
+		then:
+		policy.getTraceMode(FrameworkMethod.GET_STATE) == TraceMode.DISPATCHER
+	}
+
+	def "test that an invalid system property falls back to the default trace mode"() {
+		setup:
+		System.setProperty(FrameworkMethod.TRACE_MODE_PROPERTY_PREFIX + 'getState', 'sometimes')
+		when:
+		def policy = InstrumentationPolicy.defaultPolicy()
+		then:
+		policy.getTraceMode(FrameworkMethod.GET_STATE) == TraceMode.NONE
+		InstrumentationPolicy.defaultPolicy().getTraceMode(FrameworkMethod.GET_STATE) == TraceMode.NONE
+	}
+
+	def "test configuring a null trace mode"() {
+		when:
+		InstrumentationPolicy.builder().traceMode(FrameworkMethod.GET_STATE, null)
+		then:
+		thrown(IllegalArgumentException)
+	}
+
+	def "test configuring the trace sampler"() {
+		setup:
+		def sampler = TraceSampler.oneIn(10, 100)
+		expect:
+		InstrumentationPolicy.defaultPolicy().sampler == TraceSampler.always()
+		InstrumentationPolicy.builder().sampler(sampler).build().sampler == sampler
+	}
+
+	def "test configuring a null trace sampler"() {
+		when:
+		InstrumentationPolicy.builder().sampler(null)
+		then:
+		thrown(IllegalArgumentException)
+	}
+
+	def "test enabling the node cache"() {
+		when:
+		def policy = InstrumentationPolicy.builder().nodeCache(100, 4096).build()
+		then:
+		policy.nodeCacheMaxEntries == 100
+		policy.nodeCacheMaxBytes == 4096
+		InstrumentationPolicy.defaultPolicy().nodeCacheMaxEntries == 0
+	}
+
+	@Unroll
+	def "test enabling the node cache with invalid bounds #maxEntries and #maxBytes"() {
+		when:
+		InstrumentationPolicy.builder().nodeCache(maxEntries, maxBytes)
+		then:
+		thrown(IllegalArgumentException)
+		where:
+		maxEntries | maxBytes
+		0          | 1
+		1          | 0
+	}
+}
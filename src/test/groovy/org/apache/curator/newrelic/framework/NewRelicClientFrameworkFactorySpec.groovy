@@ -15,9 +15,27 @@
  */
 package org.apache.curator.newrelic.framework
 
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import org.apache.curator.framework.CuratorFrameworkFactory
+import org.apache.curator.framework.state.ConnectionState
+import org.apache.curator.framework.state.ConnectionStateListener
 import org.apache.curator.newrelic.framework.imps.NewRelicWrappedCuratorFrameworkImpl
+import org.apache.curator.newrelic.metrics.ConnectionRecorder
+import org.apache.curator.newrelic.metrics.LatencyHistogram
+import org.apache.curator.newrelic.metrics.LatencyRecorder
+import org.apache.curator.newrelic.metrics.Operation
+import org.apache.curator.newrelic.metrics.OperationSource
+import org.apache.curator.newrelic.metrics.TraceSampler
 import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.newrelic.utils.NewRelicZookeeperFactory
 import org.apache.curator.test.TestingServer
+import org.apache.curator.utils.DefaultZookeeperFactory
+import org.apache.curator.utils.ZookeeperFactory
+import org.apache.zookeeper.Watcher
+import org.apache.zookeeper.ZooKeeper
+import org.apache.zookeeper.newrelic.NewRelicWrappedZookeeper
 
 import spock.lang.Shared
 import spock.lang.Specification
@@ -54,4 +72,178 @@ class NewRelicClientFrameworkFactorySpec extends Specification {
 		cleanup:
 		client.close()
 	}
+
+	def "test that the NewRelic wrapped CuratorFramework client uses instrumented ZooKeeper handles from the start"() {
+		setup:
+		def client = NewRelicClientFrameworkFactory.newClient(server.connectString, new RetryOneTime(0))
+		client.start()
+		when:
+		def zk = client.delegate.zookeeperClient.zooKeeper
+		then:
+		zk instanceof NewRelicWrappedZookeeper
+		client.checkExists().forPath('/') != null
+		cleanup:
+		client.close()
+	}
+
+	def "test creating a NewRelic wrapped CuratorFramework client from a builder"() {
+		setup:
+		def builder = CuratorFrameworkFactory.builder()
+			.connectString(server.connectString)
+			.namespace('builder')
+			.canBeReadOnly(true)
+			.retryPolicy(new RetryOneTime(0))
+		def client = NewRelicClientFrameworkFactory.newClient(builder)
+		client.start()
+		when:
+		client.create().forPath('/node', 'data'.bytes)
+		then:
+		client instanceof NewRelicWrappedCuratorFrameworkImpl
+		client.namespace == 'builder'
+		client.delegate.zookeeperClient.zooKeeper instanceof NewRelicWrappedZookeeper
+		client.delegate.zookeeperClient.retryPolicy instanceof NewRelicWrappedRetryPolicy
+		client.zookeeperClient.zooKeeper.exists('/builder/node', false) != null
+		cleanup:
+		client.close()
+	}
+
+	def "test that a builder's custom NewRelicZookeeperFactory is kept"() {
+		setup:
+		def created = 0
+		def factory = new NewRelicZookeeperFactory() {
+			@Override
+			ZooKeeper newZooKeeper(String connectString, int sessionTimeout, Watcher watcher, boolean canBeReadOnly) {
+				created++
+				return super.newZooKeeper(connectString, sessionTimeout, watcher, canBeReadOnly)
+			}
+		}
+		def builder = CuratorFrameworkFactory.builder()
+			.connectString(server.connectString)
+			.retryPolicy(new RetryOneTime(0))
+			.zookeeperFactory(factory)
+		def client = NewRelicClientFrameworkFactory.newClient(builder)
+		client.start()
+		when:
+		def zk = client.delegate.zookeeperClient.zooKeeper
+		then:
+		created == 1
+		zk instanceof NewRelicWrappedZookeeper
+		cleanup:
+		client.close()
+	}
+
+	def "test that a builder reused with another policy traces with the sampler of that policy"() {
+		setup:
+		def first = InstrumentationPolicy.builder().sampler(TraceSampler.oneIn(10, 100)).build()
+		def second = InstrumentationPolicy.builder().sampler(TraceSampler.oneIn(100, 100)).build()
+		def builder = CuratorFrameworkFactory.builder()
+			.connectString(server.connectString)
+			.retryPolicy(new RetryOneTime(0))
+		def firstClient = NewRelicClientFrameworkFactory.newClient(builder, first)
+		def secondClient = NewRelicClientFrameworkFactory.newClient(builder, second)
+		firstClient.start()
+		secondClient.start()
+		when:
+		def firstZk = firstClient.delegate.zookeeperClient.zooKeeper
+		def secondZk = secondClient.delegate.zookeeperClient.zooKeeper
+		then:
+		firstZk.sampler.is(first.sampler)
+		secondZk.sampler.is(second.sampler)
+		builder.zookeeperFactory.sampler.is(second.sampler)
+		cleanup:
+		firstClient.close()
+		secondClient.close()
+	}
+
+	def "test that a sampled call is traced at both the builder and the ZooKeeper layer or at neither"() {
+		setup:
+		// Every call is slow, so each call that is not traced is counted as a slow call of its layer.
+		def policy = InstrumentationPolicy.builder().sampler(TraceSampler.oneIn(2, 0)).build()
+		def client = NewRelicClientFrameworkFactory.newClient(server.connectString, 10000, 10000, new RetryOneTime(0), policy)
+		def recorder = LatencyRecorder.getInstance()
+		client.start()
+		client.checkExists().forPath('/')
+		def foreground = recorder.getSlowCount(OperationSource.FOREGROUND, Operation.EXISTS)
+		def zookeeper = recorder.getSlowCount(OperationSource.ZOOKEEPER, Operation.EXISTS)
+		def calls = policy.sampler.callCount
+		when:
+		100.times { client.checkExists().forPath('/') }
+		then:
+		policy.sampler.callCount - calls == 100
+		recorder.getSlowCount(OperationSource.FOREGROUND, Operation.EXISTS) - foreground == 50
+		recorder.getSlowCount(OperationSource.ZOOKEEPER, Operation.EXISTS) - zookeeper == 50
+		cleanup:
+		client.close()
+	}
+
+	def "test that a builder's other custom ZookeeperFactory is used as-is"() {
+		setup:
+		def factory = new DefaultZookeeperFactory()
+		def custom = { String connectString, int sessionTimeout, Watcher watcher, boolean canBeReadOnly ->
+			factory.newZooKeeper(connectString, sessionTimeout, watcher, canBeReadOnly)
+		} as ZookeeperFactory
+		def builder = CuratorFrameworkFactory.builder()
+			.connectString(server.connectString)
+			.retryPolicy(new RetryOneTime(0))
+			.zookeeperFactory(custom)
+		def client = NewRelicClientFrameworkFactory.newClient(builder)
+		client.start()
+		when:
+		def zk = client.delegate.zookeeperClient.zooKeeper
+		then:
+		builder.zookeeperFactory.is(custom)
+		!(zk instanceof NewRelicWrappedZookeeper)
+		client.checkExists().forPath('/') != null
+		cleanup:
+		client.close()
+	}
+
+	def "test that creating a client from a null builder fails"() {
+		when:
+		NewRelicClientFrameworkFactory.newClient((CuratorFrameworkFactory.Builder)null)
+		then:
+		thrown(IllegalArgumentException)
+	}
+
+	def "test that the NewRelic wrapped CuratorFramework client records its connection health"() {
+		setup:
+		def outageServer = new TestingServer()
+		def port = outageServer.port
+		def directory = outageServer.tempDirectory
+		def client = NewRelicClientFrameworkFactory.newClient(outageServer.connectString, 60000, 1000, new RetryOneTime(0))
+		def suspended = new CountDownLatch(1)
+		def reconnected = new CountDownLatch(1)
+		client.connectionStateListenable.addListener({ c, state ->
+			if(state == ConnectionState.SUSPENDED) {
+				suspended.countDown()
+			} else if(state == ConnectionState.RECONNECTED) {
+				reconnected.countDown()
+			}
+		} as ConnectionStateListener)
+		def recorder = ConnectionRecorder.getInstance()
+		def snapshot = new LatencyHistogram.Snapshot()
+		client.start()
+		client.checkExists().forPath('/')
+		recorder.flush()
+		recorder.disconnectedHistogram.drainTo(new LatencyHistogram.Snapshot())
+		when:
+		outageServer.stop()
+		suspended.await(10, TimeUnit.SECONDS)
+		outageServer = new TestingServer(port, directory)
+		reconnected.await(10, TimeUnit.SECONDS)
+		// Listeners are not notified in a guaranteed order, so wait for the metrics listener as well.
+		def deadline = System.currentTimeMillis() + 10000
+		while(recorder.getStateChangeCount(ConnectionState.RECONNECTED) == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10)
+		}
+		then:
+		client.delegate.zookeeperClient.retryPolicy instanceof NewRelicWrappedRetryPolicy
+		recorder.getStateChangeCount(ConnectionState.SUSPENDED) >= 1
+		recorder.getStateChangeCount(ConnectionState.RECONNECTED) >= 1
+		recorder.disconnectedHistogram.drainTo(snapshot) == null
+		snapshot.count == 1
+		cleanup:
+		client.close()
+		outageServer.close()
+	}
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework
+
+import org.apache.curator.RetrySleeper
+import org.apache.curator.newrelic.metrics.ConnectionRecorder
+import org.apache.curator.retry.RetryNTimes
+
+import spock.lang.Specification
+
+class NewRelicWrappedRetryPolicySpec extends Specification {
+
+	def "test that retry decisions are delegated and recorded"() {
+		setup:
+		def policy = new NewRelicWrappedRetryPolicy(new RetryNTimes(1, 0))
+		def recorder = ConnectionRecorder.getInstance()
+		RetrySleeper sleeper = Mock()
+		recorder.flush()
+		when:
+		def first = policy.allowRetry(0, 0, sleeper)
+		def second = policy.allowRetry(1, 0, sleeper)
+		then:
+		first
+		!second
+		recorder.getRetryCount(true) == 1
+		recorder.getRetryCount(false) == 1
+	}
+
+	def "test that a null delegate is rejected"() {
+		when:
+		new NewRelicWrappedRetryPolicy(null)
+		then:
+		thrown(IllegalArgumentException)
+	}
+}
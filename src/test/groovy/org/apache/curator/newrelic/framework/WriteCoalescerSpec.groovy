@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework
+
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.CuratorFrameworkFactory
+import org.apache.curator.newrelic.metrics.CoalescerRecorder
+import org.apache.curator.newrelic.metrics.LatencyHistogram
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.test.TestingServer
+import org.apache.zookeeper.CreateMode
+import org.apache.zookeeper.KeeperException
+
+import spock.lang.Shared
+import spock.lang.Specification
+
+class WriteCoalescerSpec extends Specification {
+
+	@Shared
+	TestingServer server
+
+	@Shared
+	CuratorFramework client
+
+	def setupSpec() {
+		server = new TestingServer()
+		client = NewRelicClientFrameworkFactory.newClient(server.connectString, new RetryOneTime(0))
+		client.start()
+		client.create().forPath('/coalesced')
+	}
+
+	def cleanupSpec() {
+		client.close()
+		server.stop()
+	}
+
+	def setup() {
+		CoalescerRecorder.getInstance().flush()
+	}
+
+	def "test that concurrent writes are committed in batches"() {
+		setup:
+		def coalescer = new WriteCoalescer(client, 200, 100)
+		def snapshot = new LatencyHistogram.Snapshot()
+		when:
+		def futures = Collections.synchronizedList([])
+		def threads = (0..<4).collect { thread ->
+			Thread.start {
+				5.times { futures << coalescer.create("/coalesced/node-${thread}-${it}", new byte[0], CreateMode.PERSISTENT) }
+			}
+		}
+		threads*.join()
+		def paths = futures.collect { it.get(10, TimeUnit.SECONDS) }
+		then:
+		paths.size() == 20
+		client.getChildren().forPath('/coalesced').size() == 20
+		CoalescerRecorder.getInstance().batchSizeHistogram.drainTo(snapshot) == null
+		snapshot.count < 20
+		snapshot.max > 1
+		CoalescerRecorder.getInstance().waitHistogram.drainTo(snapshot) == null
+		snapshot.count == 20
+		cleanup:
+		coalescer.close()
+	}
+
+	def "test that batches are closed before they exceed the maximum number of bytes"() {
+		setup:
+		def coalescer = new WriteCoalescer(client, 200, 100, 2500)
+		def snapshot = new LatencyHistogram.Snapshot()
+		when:
+		def futures = (0..<6).collect { coalescer.create("/coalesced/large-${it}", new byte[1000], CreateMode.PERSISTENT) }
+		futures.each { it.get(10, TimeUnit.SECONDS) }
+		then:
+		client.getChildren().forPath('/coalesced').findAll { it.startsWith('large-') }.size() == 6
+		CoalescerRecorder.getInstance().batchSizeHistogram.drainTo(snapshot) == null
+		snapshot.count == 3
+		snapshot.max == 2
+		cleanup:
+		coalescer.close()
+	}
+
+	def "test that a failed write does not fail the other writes of its batch"() {
+		setup:
+		def coalescer = new WriteCoalescer(client, 200, 100)
+		when:
+		def created = coalescer.create('/coalesced/first', 'a'.bytes, CreateMode.PERSISTENT)
+		def duplicate = coalescer.create('/coalesced', new byte[0], CreateMode.PERSISTENT)
+		def updated = coalescer.setData('/coalesced/first', 'b'.bytes, 0)
+		def deleted = coalescer.delete('/coalesced/first', 1)
+		created.get(10, TimeUnit.SECONDS) == '/coalesced/first'
+		updated.get(10, TimeUnit.SECONDS).version == 1
+		deleted.get(10, TimeUnit.SECONDS) == null
+		duplicate.get(10, TimeUnit.SECONDS)
+		then:
+		ExecutionException e = thrown()
+		e.cause instanceof KeeperException.NodeExistsException
+		client.checkExists().forPath('/coalesced/first') == null
+		CoalescerRecorder.getInstance().resubmittedCount == 3
+		cleanup:
+		coalescer.close()
+	}
+
+	def "test that writes are rejected once the coalescer is closed"() {
+		setup:
+		def coalescer = new WriteCoalescer(client, 0, 1)
+		def pending = coalescer.create('/coalesced/closing', new byte[0], CreateMode.EPHEMERAL)
+		when:
+		coalescer.close()
+		coalescer.delete('/coalesced/closing', -1)
+		then:
+		thrown(IllegalStateException)
+		pending.get(10, TimeUnit.SECONDS) == '/coalesced/closing'
+	}
+
+	def "test creating a coalescer with invalid arguments"() {
+		when:
+		new WriteCoalescer(framework, windowMs, maxBatchSize, maxBatchBytes)
+		then:
+		thrown(IllegalArgumentException)
+		where:
+		framework | windowMs | maxBatchSize | maxBatchBytes
+		null      | 0        | 1            | 1
+		client    | -1       | 1            | 1
+		client    | 0        | 0            | 1
+		client    | 0        | 1            | 0
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.impls
+
+import java.lang.reflect.Proxy
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import org.apache.curator.framework.CuratorFrameworkFactory
+import org.apache.curator.framework.api.BackgroundCallback
+import org.apache.curator.framework.api.CuratorEvent
+import org.apache.curator.newrelic.framework.InstrumentationPolicy
+import org.apache.curator.newrelic.framework.imps.NewRelicWrappedCuratorFrameworkImpl
+import org.apache.curator.newrelic.metrics.LatencyHistogram
+import org.apache.curator.newrelic.metrics.LatencyRecorder
+import org.apache.curator.newrelic.metrics.Operation
+import org.apache.curator.newrelic.metrics.OperationSource
+import org.apache.curator.newrelic.metrics.TraceSampler
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.test.TestingServer
+import org.apache.zookeeper.CreateMode
+import org.apache.zookeeper.KeeperException
+
+import spock.lang.Shared
+import spock.lang.Specification
+
+class NewRelicWrappedBuilderSpec extends Specification {
+
+    @Shared
+    TestingServer server
+
+    @Shared
+    NewRelicWrappedCuratorFrameworkImpl client
+
+    def setupSpec() {
+        server = new TestingServer()
+        client = new NewRelicWrappedCuratorFrameworkImpl(CuratorFrameworkFactory.newClient(server.connectString, new RetryOneTime(0)))
+        client.start()
+    }
+
+    def cleanupSpec() {
+        client.close()
+        server.stop()
+    }
+
+    def "test that the operation builders are instrumented"() {
+        expect:
+            Proxy.isProxyClass(client.create().getClass())
+            Proxy.isProxyClass(client.delete().getClass())
+            Proxy.isProxyClass(client.checkExists().getClass())
+            Proxy.isProxyClass(client.getData().getClass())
+            Proxy.isProxyClass(client.setData().getClass())
+            Proxy.isProxyClass(client.getChildren().getClass())
+            Proxy.isProxyClass(client.getACL().getClass())
+            Proxy.isProxyClass(client.setACL().getClass())
+    }
+
+    def "test that each step of an instrumented builder chain remains instrumented"() {
+        expect:
+            Proxy.isProxyClass(client.create().creatingParentsIfNeeded().getClass())
+            Proxy.isProxyClass(client.create().creatingParentsIfNeeded().withMode(CreateMode.PERSISTENT).getClass())
+            Proxy.isProxyClass(client.setData().withVersion(0).getClass())
+            Proxy.isProxyClass(client.getData().watched().getClass())
+    }
+
+    def "test executing operations through the instrumented builders"() {
+        when:
+            def created = client.create().creatingParentsIfNeeded().withMode(CreateMode.PERSISTENT).forPath('/builders/node', 'one'.bytes)
+            def stat = client.setData().withVersion(0).forPath('/builders/node', 'two'.bytes)
+            def data = client.getData().watched().forPath('/builders/node')
+            def children = client.getChildren().forPath('/builders')
+            def acl = client.getACL().forPath('/builders/node')
+            client.delete().forPath('/builders/node')
+        then:
+            created == '/builders/node'
+            stat.version == 1
+            new String(data) == 'two'
+            children == ['node']
+            !acl.isEmpty()
+            client.checkExists().forPath('/builders/node') == null
+    }
+
+    def "test that failures are propagated unchanged from the instrumented builders"() {
+        setup:
+            def snapshot = new LatencyHistogram.Snapshot()
+            LatencyRecorder.getInstance().flush()
+        when:
+            client.getData().forPath('/builders/missing')
+        then:
+            thrown(KeeperException.NoNodeException)
+            LatencyRecorder.getInstance().getHistogram(OperationSource.FOREGROUND, Operation.GET_DATA, KeeperException.Code.NONODE).drainTo(snapshot) == null
+            snapshot.count == 1
+    }
+
+    def "test executing an operation in the background through the instrumented builders"() {
+        setup:
+            def latch = new CountDownLatch(1)
+            CuratorEvent result = null
+            BackgroundCallback callback = { framework, event ->
+                result = event
+                latch.countDown()
+            } as BackgroundCallback
+        when:
+            client.create().creatingParentsIfNeeded().inBackground(callback).forPath('/builders/background')
+        then:
+            latch.await(10, TimeUnit.SECONDS)
+            result.resultCode == KeeperException.Code.OK.intValue()
+            result.path == '/builders/background'
+    }
+
+    def "test that a background operation that fails to submit is recorded"() {
+        setup:
+            def snapshot = new LatencyHistogram.Snapshot()
+            def invoked = false
+            LatencyRecorder.getInstance().flush()
+        when:
+            client.create().withProtection().inBackground({ framework, event -> invoked = true } as BackgroundCallback).forPath('invalid')
+        then:
+            thrown(IllegalArgumentException)
+            !invoked
+            LatencyRecorder.getInstance().getHistogram(OperationSource.BACKGROUND, Operation.CREATE, KeeperException.Code.SYSTEMERROR).drainTo(snapshot) == null
+            snapshot.count == 1
+    }
+
+    def "test that the completion of a background operation is recorded"() {
+        setup:
+            def latch = new CountDownLatch(1)
+            def snapshot = new LatencyHistogram.Snapshot()
+            LatencyRecorder.getInstance().flush()
+        when:
+            client.checkExists().inBackground({ framework, event -> latch.countDown() } as BackgroundCallback).forPath('/builders')
+        then:
+            latch.await(10, TimeUnit.SECONDS)
+            LatencyRecorder.getInstance().getHistogram(OperationSource.BACKGROUND, Operation.EXISTS, KeeperException.Code.OK).drainTo(snapshot) == null
+            snapshot.count == 1
+    }
+
+    def "test that steps returning the same delegate builder reuse the instrumented builder"() {
+        setup:
+            def builder = client.getData()
+        expect:
+            builder.watched().is(builder)
+            builder.watched().inBackground().is(builder)
+    }
+
+    def "test that every operation executed through a sampled framework is recorded"() {
+        setup:
+            def sampler = TraceSampler.oneIn(2, 1000)
+            def sampled = new NewRelicWrappedCuratorFrameworkImpl(CuratorFrameworkFactory.newClient(server.connectString, new RetryOneTime(0)),
+                InstrumentationPolicy.builder().sampler(sampler).build())
+            sampled.start()
+            def snapshot = new LatencyHistogram.Snapshot()
+            LatencyRecorder.getInstance().flush()
+        when:
+            4.times { sampled.checkExists().forPath('/') }
+        then:
+            sampler.callCount == 4
+            LatencyRecorder.getInstance().getHistogram(OperationSource.FOREGROUND, Operation.EXISTS, KeeperException.Code.OK).drainTo(snapshot) == null
+            snapshot.count == 4
+        cleanup:
+            sampled.close()
+    }
+
+    def "test that transactions are instrumented and their commit is recorded"() {
+        setup:
+            def snapshot = new LatencyHistogram.Snapshot()
+            def zookeeperSnapshot = new LatencyHistogram.Snapshot()
+            LatencyRecorder.getInstance().flush()
+        when:
+            def transaction = client.inTransaction()
+            def results = transaction.create().forPath('/builders/transaction').and().setData().forPath('/builders/transaction', 'data'.bytes).and().commit()
+        then:
+            Proxy.isProxyClass(transaction.getClass())
+            results.size() == 2
+            client.getData().forPath('/builders/transaction') == 'data'.bytes
+            LatencyRecorder.getInstance().getHistogram(OperationSource.FOREGROUND, Operation.MULTI, KeeperException.Code.OK).drainTo(snapshot) == null
+            snapshot.count == 1
+            LatencyRecorder.getInstance().getHistogram(OperationSource.ZOOKEEPER, Operation.MULTI, KeeperException.Code.OK)?.drainTo(zookeeperSnapshot) == null
+            zookeeperSnapshot.count == 0
+    }
+}
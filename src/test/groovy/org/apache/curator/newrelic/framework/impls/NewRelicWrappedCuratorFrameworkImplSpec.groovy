@@ -15,16 +15,30 @@
  */
 package org.apache.curator.newrelic.framework.impls
 
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+
 import org.apache.curator.NewRelicWrappedCuratorZookeeperClient;
 import org.apache.curator.framework.CuratorFramework
 import org.apache.curator.framework.CuratorFrameworkFactory
 import org.apache.curator.framework.imps.CuratorFrameworkImpl
+import org.apache.curator.framework.imps.CuratorFrameworkState
+import org.apache.curator.newrelic.framework.InstrumentationPolicy
+import org.apache.curator.newrelic.framework.NewRelicClientFrameworkFactory
+import org.apache.curator.newrelic.framework.TraceMode
 import org.apache.curator.newrelic.framework.imps.NewRelicWrappedCuratorFrameworkImpl
+import org.apache.curator.newrelic.metrics.LatencyHistogram
+import org.apache.curator.newrelic.metrics.LatencyRecorder
+import org.apache.curator.newrelic.metrics.Operation
+import org.apache.curator.newrelic.metrics.OperationSource
 import org.apache.curator.retry.RetryOneTime
 import org.apache.curator.test.TestingServer
+import org.apache.zookeeper.KeeperException.Code
 
 import spock.lang.Shared
 import spock.lang.Specification
+import spock.lang.Unroll
 
 class NewRelicWrappedCuratorFrameworkImplSpec extends Specification {
 
@@ -71,6 +85,37 @@ class NewRelicWrappedCuratorFrameworkImplSpec extends Specification {
             client.close()
     }
 
+    def "test that concurrent calls to getZookeeperClient() create one wrapped client and never close the connection"() {
+        setup:
+            def delegate = CuratorFrameworkFactory.newClient(server.connectString, new RetryOneTime(0))
+            def client = new NewRelicWrappedCuratorFrameworkImpl(delegate)
+            client.start()
+            delegate.zookeeperClient.blockUntilConnectedOrTimedOut()
+            def handle = delegate.zookeeperClient.zooKeeper
+            def threads = 16
+            def executor = Executors.newFixedThreadPool(threads)
+            def startGate = new CountDownLatch(1)
+        when:
+            def futures = (1..threads).collect {
+                executor.submit({
+                    startGate.await()
+                    (1..1000).collect { client.getZookeeperClient() }
+                } as Callable)
+            }
+            startGate.countDown()
+            def zkClients = futures.collectMany { it.get() }.unique(false) { System.identityHashCode(it) }
+        then:
+            zkClients.size() == 1
+            zkClients[0] instanceof NewRelicWrappedCuratorZookeeperClient
+            zkClients[0].isConnected()
+            delegate.zookeeperClient.isConnected()
+            delegate.zookeeperClient.zooKeeper.is(handle)
+            client.checkExists().forPath('/') != null
+        cleanup:
+            executor.shutdownNow()
+            client.close()
+    }
+
     def "test retrieving the NewRelic wrapped ZooKeeper client when an exception occurs"() {
         setup:
             CuratorFramework delegate = Mock() {
@@ -83,6 +128,33 @@ class NewRelicWrappedCuratorFrameworkImplSpec extends Specification {
             thrown IllegalArgumentException
     }
 
+    def "test creating a NewRelic wrapped CuratorFramework client with a null instrumentation policy"() {
+        when:
+            new NewRelicWrappedCuratorFrameworkImpl(Mock(CuratorFramework), null)
+        then:
+            thrown(IllegalArgumentException)
+    }
+
+    @Unroll
+    def "test that calls invoke the underlying delegate when every method uses the #traceMode trace mode"() {
+        setup:
+            CuratorFramework delegate = Mock()
+            def client = new NewRelicWrappedCuratorFrameworkImpl(delegate, InstrumentationPolicy.builder().traceAll(traceMode).build())
+        when:
+            client.start()
+            def state = client.getState()
+            client.sync('path', null)
+            client.close()
+        then:
+            1 * delegate.start()
+            1 * delegate.getState() >> CuratorFrameworkState.STARTED
+            1 * delegate.sync('path', null)
+            1 * delegate.close()
+            state == CuratorFrameworkState.STARTED
+        where:
+            traceMode << TraceMode.values()
+    }
+
     def "test that calls to start() invoke the underlying delegate"() {
         setup:
             CuratorFramework delegate = Mock() {
@@ -301,26 +373,65 @@ class NewRelicWrappedCuratorFrameworkImplSpec extends Specification {
 
     def "test that calls to nonNamespaceView() invoke the underlying delegate"() {
         setup:
-            CuratorFramework delegate = Mock() {
-                nonNamespaceView() >> { null }
-            }
+            CuratorFramework view = Mock()
+            CuratorFramework delegate = Mock()
             def client = new NewRelicWrappedCuratorFrameworkImpl(delegate)
         when:
-            client.nonNamespaceView()
+            def result = client.nonNamespaceView()
         then:
-            1 * delegate.nonNamespaceView()
+            1 * delegate.nonNamespaceView() >> view
+            result instanceof NewRelicWrappedCuratorFrameworkImpl
+            result.delegate.is(view)
     }
 
     def "test that calls to usingNamespace(String) invoke the underlying delegate"() {
+        setup:
+            CuratorFramework view = Mock()
+            CuratorFramework delegate = Mock()
+            def client = new NewRelicWrappedCuratorFrameworkImpl(delegate)
+        when:
+            def result = client.usingNamespace('namespace')
+        then:
+            1 * delegate.usingNamespace('namespace') >> view
+            result instanceof NewRelicWrappedCuratorFrameworkImpl
+            result.delegate.is(view)
+    }
+
+    def "test that namespace views are cached per namespace and shared with the views"() {
         setup:
             CuratorFramework delegate = Mock() {
-                usingNamespace(_) >> { null }
+                usingNamespace(_) >> { Mock(CuratorFramework) }
+                nonNamespaceView() >> { Mock(CuratorFramework) }
             }
             def client = new NewRelicWrappedCuratorFrameworkImpl(delegate)
         when:
-            client.usingNamespace('namespace')
+            def first = client.usingNamespace('first')
+            def second = client.usingNamespace('second')
+            def nonNamespaced = client.nonNamespaceView()
+        then:
+            !first.is(second)
+            client.usingNamespace('first').is(first)
+            first.usingNamespace('second').is(second)
+            second.nonNamespaceView().is(nonNamespaced)
+            client.usingNamespace(null).is(nonNamespaced)
+    }
+
+    def "test that operations through a namespace view are instrumented"() {
+        setup:
+            def client = NewRelicClientFrameworkFactory.newClient(server.connectString, new RetryOneTime(0))
+            client.start()
+            def snapshot = new LatencyHistogram.Snapshot()
+        when:
+            def view = client.usingNamespace('view')
+            LatencyRecorder.getInstance().getHistogram(OperationSource.FOREGROUND, Operation.CREATE, Code.OK)?.drainTo(new LatencyHistogram.Snapshot())
+            view.create().forPath('/node', 'data'.bytes)
+            LatencyRecorder.getInstance().getHistogram(OperationSource.FOREGROUND, Operation.CREATE, Code.OK).drainTo(snapshot)
         then:
-            1 * delegate.usingNamespace(_)
+            snapshot.count == 1
+            client.checkExists().forPath('/view/node') != null
+            view.zookeeperClient.is(client.zookeeperClient)
+        cleanup:
+            client.close()
     }
 
     def "test that calls to getNamespace() invoke the underlying delegate"() {
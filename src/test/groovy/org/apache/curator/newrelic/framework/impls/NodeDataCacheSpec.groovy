@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.impls
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.framework.CuratorFrameworkFactory
+import org.apache.curator.newrelic.framework.InstrumentationPolicy
+import org.apache.curator.newrelic.framework.imps.NewRelicWrappedCuratorFrameworkImpl
+import org.apache.curator.newrelic.metrics.CacheRecorder
+import org.apache.curator.newrelic.metrics.CacheRecorder.Invalidation
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.test.TestingServer
+import org.apache.zookeeper.data.Stat
+
+import spock.lang.Shared
+import spock.lang.Specification
+
+class NodeDataCacheSpec extends Specification {
+
+    @Shared
+    TestingServer server
+
+    @Shared
+    CuratorFramework writer
+
+    NewRelicWrappedCuratorFrameworkImpl client
+
+    def setupSpec() {
+        server = new TestingServer()
+        writer = CuratorFrameworkFactory.newClient(server.connectString, new RetryOneTime(0))
+        writer.start()
+        writer.create().creatingParentsIfNeeded().forPath('/cache/a', 'a'.bytes)
+        writer.create().forPath('/cache/b', 'b'.bytes)
+        writer.create().forPath('/cache/c', 'c'.bytes)
+    }
+
+    def cleanupSpec() {
+        writer.close()
+        server.stop()
+    }
+
+    def setup() {
+        client = new NewRelicWrappedCuratorFrameworkImpl(CuratorFrameworkFactory.newClient(server.connectString, new RetryOneTime(0)),
+            InstrumentationPolicy.builder().nodeCache(2, 1024).build())
+        client.start()
+        CacheRecorder.getInstance().flush()
+    }
+
+    def cleanup() {
+        client.close()
+    }
+
+    def "test that repeated reads are served from the cache"() {
+        setup:
+            def stat = new Stat()
+        when:
+            def first = client.getData().forPath('/cache/a')
+            def second = client.getData().storingStatIn(stat).forPath('/cache/a')
+        then:
+            new String(first) == 'a'
+            second.is(first)
+            stat.dataLength == 1
+            stat.mzxid == writer.checkExists().forPath('/cache/a').mzxid
+            CacheRecorder.getInstance().missCount == 1
+            CacheRecorder.getInstance().hitCount == 1
+    }
+
+    def "test that reads that set a watch are not served from the cache"() {
+        when:
+            client.getData().forPath('/cache/a')
+            client.getData().watched().forPath('/cache/a')
+        then:
+            CacheRecorder.getInstance().hitCount == 0
+            CacheRecorder.getInstance().missCount == 1
+    }
+
+    def "test that a change on the ensemble invalidates the cached node"() {
+        setup:
+            client.getData().forPath('/cache/b')
+        when:
+            writer.setData().forPath('/cache/b', 'changed'.bytes)
+            def deadline = System.currentTimeMillis() + 10000
+            while(CacheRecorder.getInstance().getInvalidationCount(Invalidation.WATCH) == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10)
+            }
+        then:
+            CacheRecorder.getInstance().getInvalidationCount(Invalidation.WATCH) == 1
+            new String(client.getData().forPath('/cache/b')) == 'changed'
+        cleanup:
+            writer.setData().forPath('/cache/b', 'b'.bytes)
+    }
+
+    def "test that a write through the same client invalidates the cached node"() {
+        setup:
+            client.getData().forPath('/cache/c')
+        when:
+            client.setData().forPath('/cache/c', 'written'.bytes)
+        then:
+            // The watch event may be processed before the write returns, in which case it invalidates the node first.
+            CacheRecorder.getInstance().getInvalidationCount(Invalidation.WRITE) + CacheRecorder.getInstance().getInvalidationCount(Invalidation.WATCH) == 1
+            new String(client.getData().forPath('/cache/c')) == 'written'
+        cleanup:
+            writer.setData().forPath('/cache/c', 'c'.bytes)
+    }
+
+    def "test that namespace views share the cache of their framework"() {
+        setup:
+            def view = client.usingNamespace('cache')
+        when:
+            def first = view.getData().forPath('/a')
+            def second = client.getData().forPath('/cache/a')
+        then:
+            second.is(first)
+            CacheRecorder.getInstance().missCount == 1
+            CacheRecorder.getInstance().hitCount == 1
+            CacheRecorder.getInstance().entryCount == 1
+        when:
+            client.setData().forPath('/cache/a', 'written'.bytes)
+        then:
+            // The watch event may be processed before the write returns, in which case it invalidates the node first.
+            CacheRecorder.getInstance().getInvalidationCount(Invalidation.WRITE) + CacheRecorder.getInstance().getInvalidationCount(Invalidation.WATCH) == 1
+            new String(view.getData().forPath('/a')) == 'written'
+        cleanup:
+            writer.setData().forPath('/cache/a', 'a'.bytes)
+    }
+
+    def "test that the cache is bounded"() {
+        when:
+            ['/cache/a', '/cache/b', '/cache/c'].each { client.getData().forPath(it) }
+        then:
+            CacheRecorder.getInstance().evictionCount == 1
+            CacheRecorder.getInstance().missCount == 3
+        when:
+            client.close()
+        then:
+            CacheRecorder.getInstance().entryCount == 0
+            CacheRecorder.getInstance().byteCount == 0
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.impls
+
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+import org.apache.curator.framework.CuratorFrameworkFactory
+import org.apache.curator.framework.api.CuratorEvent
+import org.apache.curator.framework.api.CuratorEventType
+import org.apache.curator.framework.api.CuratorListener
+import org.apache.curator.framework.imps.CuratorFrameworkState
+import org.apache.curator.framework.state.ConnectionStateListener
+import org.apache.curator.newrelic.framework.InstrumentationPolicy
+import org.apache.curator.newrelic.framework.NewRelicClientFrameworkFactory
+import org.apache.curator.newrelic.framework.imps.SharedCuratorFrameworkImpl
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.test.TestingServer
+import org.apache.zookeeper.Watcher
+import org.apache.zookeeper.newrelic.NewRelicWrappedZookeeper
+
+import spock.lang.Shared
+import spock.lang.Specification
+
+class SharedCuratorFrameworkImplSpec extends Specification {
+
+    @Shared
+    TestingServer server
+
+    def setupSpec() {
+        server = new TestingServer()
+    }
+
+    def cleanupSpec() {
+        server.stop()
+    }
+
+    def "test that shared clients of a connect string share one instrumented session"() {
+        setup:
+            def first = NewRelicClientFrameworkFactory.newSharedClient(server.connectString, 'first', new RetryOneTime(0))
+            def second = NewRelicClientFrameworkFactory.newSharedClient(server.connectString, 'second', new RetryOneTime(0))
+            first.start()
+            second.start()
+        when:
+            def zk = first.zookeeperClient.zooKeeper
+        then:
+            first instanceof SharedCuratorFrameworkImpl
+            SharedCuratorFrameworkImpl.getClientCount(server.connectString) == 2
+            zk instanceof NewRelicWrappedZookeeper
+            zk.is(second.zookeeperClient.zooKeeper)
+        cleanup:
+            first.close()
+            second.close()
+    }
+
+    def "test that shared clients operate within their own namespaces"() {
+        setup:
+            def first = NewRelicClientFrameworkFactory.newSharedClient(server.connectString, 'first', new RetryOneTime(0))
+            def second = NewRelicClientFrameworkFactory.newSharedClient(server.connectString, 'second', new RetryOneTime(0))
+            first.start()
+            second.start()
+        when:
+            first.create().forPath('/isolated', 'first'.bytes)
+            second.create().forPath('/isolated', 'second'.bytes)
+        then:
+            first.namespace == 'first'
+            second.namespace == 'second'
+            new String(first.data.forPath('/isolated')) == 'first'
+            new String(second.data.forPath('/isolated')) == 'second'
+            first.zookeeperClient.zooKeeper.exists('/first/isolated', false) != null
+        cleanup:
+            first.close()
+            second.close()
+    }
+
+    def "test that the shared session is closed when the last client is closed"() {
+        setup:
+            def first = NewRelicClientFrameworkFactory.newSharedClient(server.connectString, 'first', new RetryOneTime(0))
+            def second = NewRelicClientFrameworkFactory.newSharedClient(server.connectString, 'second', new RetryOneTime(0))
+            first.start()
+            second.start()
+        when:
+            first.close()
+        then:
+            first.state == CuratorFrameworkState.STOPPED
+            second.state == CuratorFrameworkState.STARTED
+            SharedCuratorFrameworkImpl.getClientCount(server.connectString) == 1
+            second.checkExists().forPath('/isolated') != null
+        when:
+            first.close()
+        then:
+            SharedCuratorFrameworkImpl.getClientCount(server.connectString) == 1
+        when:
+            second.close()
+        then:
+            SharedCuratorFrameworkImpl.getClientCount(server.connectString) == 0
+    }
+
+    def "test that a shared client cannot be started more than once"() {
+        setup:
+            def client = NewRelicClientFrameworkFactory.newSharedClient(server.connectString, 'first', new RetryOneTime(0))
+            client.start()
+        when:
+            client.start()
+        then:
+            thrown(IllegalStateException)
+        cleanup:
+            client.close()
+    }
+
+    def "test that a shared client only holds the shared session while it is started"() {
+        setup:
+            def client = NewRelicClientFrameworkFactory.newSharedClient(server.connectString, 'first', new RetryOneTime(0))
+            def unused = NewRelicClientFrameworkFactory.newSharedClient(server.connectString, 'second', new RetryOneTime(0))
+        when:
+            def before = SharedCuratorFrameworkImpl.getClientCount(server.connectString)
+            client.start()
+        then:
+            before == 0
+            SharedCuratorFrameworkImpl.getClientCount(server.connectString) == 1
+        when:
+            unused.close()
+            client.close()
+        then:
+            unused.state == CuratorFrameworkState.STOPPED
+            SharedCuratorFrameworkImpl.getClientCount(server.connectString) == 0
+    }
+
+    def "test that a shared client cannot be used before it is started"() {
+        setup:
+            def client = NewRelicClientFrameworkFactory.newSharedClient(server.connectString, 'first', new RetryOneTime(0))
+        when:
+            client.checkExists().forPath('/isolated')
+        then:
+            thrown(IllegalStateException)
+        cleanup:
+            client.close()
+    }
+
+    def "test that the curator listeners of a shared client only receive the events of its own operations"() {
+        setup:
+            def first = NewRelicClientFrameworkFactory.newSharedClient(server.connectString, 'first', new RetryOneTime(0))
+            def second = NewRelicClientFrameworkFactory.newSharedClient(server.connectString, 'second', new RetryOneTime(0))
+            def firstEvents = new LinkedBlockingQueue<CuratorEvent>()
+            def secondEvents = new LinkedBlockingQueue<CuratorEvent>()
+            first.curatorListenable.addListener({ client, event -> firstEvents.add(event) } as CuratorListener)
+            second.curatorListenable.addListener({ client, event -> secondEvents.add(event) } as CuratorListener)
+            first.start()
+            second.start()
+        when:
+            first.create().inBackground('context').forPath('/events')
+            def created = firstEvents.poll(5, TimeUnit.SECONDS)
+            first.checkExists().watched().forPath('/events')
+            first.delete().forPath('/events')
+            def watched = firstEvents.poll(5, TimeUnit.SECONDS)
+            first.close()
+            def closing = firstEvents.poll(5, TimeUnit.SECONDS)
+        then:
+            created.type == CuratorEventType.CREATE
+            created.path == '/events'
+            created.context == 'context'
+            watched.type == CuratorEventType.WATCHED
+            watched.watchedEvent.type == Watcher.Event.EventType.NodeDeleted
+            closing.type == CuratorEventType.CLOSING
+            secondEvents.empty
+        cleanup:
+            first.close()
+            second.close()
+    }
+
+    def "test that the listeners of a shared client are removed when it is closed"() {
+        setup:
+            def session = CuratorFrameworkFactory.newClient(server.connectString, new RetryOneTime(0))
+            def client = new SharedCuratorFrameworkImpl(server.connectString, 'first', InstrumentationPolicy.defaultPolicy(), { session })
+            def other = new SharedCuratorFrameworkImpl(server.connectString, 'second', InstrumentationPolicy.defaultPolicy(), { session })
+            def listener = Mock(ConnectionStateListener)
+            client.connectionStateListenable.addListener(listener)
+            client.start()
+            other.start()
+            other.connectionStateListenable.addListener(Mock(ConnectionStateListener))
+        when:
+            def before = session.connectionStateListenable.size()
+            client.close()
+        then:
+            before == 2
+            session.connectionStateListenable.size() == 1
+            session.state == CuratorFrameworkState.STARTED
+        when:
+            other.close()
+        then:
+            session.state == CuratorFrameworkState.STOPPED
+    }
+
+    def "test that an invalid namespace does not acquire the shared session"() {
+        when:
+            NewRelicClientFrameworkFactory.newSharedClient(server.connectString, 'invalid/', new RetryOneTime(0))
+        then:
+            thrown(IllegalArgumentException)
+            SharedCuratorFrameworkImpl.getClientCount(server.connectString) == 0
+    }
+
+    def "test creating a shared client without a connect string"() {
+        when:
+            new SharedCuratorFrameworkImpl(null, 'first', InstrumentationPolicy.defaultPolicy(), { null })
+        then:
+            thrown(IllegalArgumentException)
+    }
+
+    def "test creating a shared client without a policy"() {
+        when:
+            new SharedCuratorFrameworkImpl(server.connectString, 'first', null, { CuratorFrameworkFactory.newClient(server.connectString, new RetryOneTime(0)) })
+        then:
+            thrown(IllegalArgumentException)
+            SharedCuratorFrameworkImpl.getClientCount(server.connectString) == 0
+    }
+}
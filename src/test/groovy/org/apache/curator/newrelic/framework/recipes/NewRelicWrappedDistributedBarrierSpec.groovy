@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.recipes
+
+import java.util.concurrent.TimeUnit
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.newrelic.framework.NewRelicClientFrameworkFactory
+import org.apache.curator.newrelic.metrics.LatencyHistogram
+import org.apache.curator.newrelic.metrics.PathNormalizer
+import org.apache.curator.newrelic.metrics.RecipeRecorder
+import org.apache.curator.newrelic.metrics.RecipeRecorder.Event
+import org.apache.curator.newrelic.metrics.RecipeRecorder.Measure
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.test.TestingServer
+
+import spock.lang.Shared
+import spock.lang.Specification
+
+class NewRelicWrappedDistributedBarrierSpec extends Specification {
+
+	@Shared
+	TestingServer server
+
+	@Shared
+	CuratorFramework client
+
+	def setupSpec() {
+		server = new TestingServer()
+		client = NewRelicClientFrameworkFactory.newClient(server.connectString, new RetryOneTime(0))
+		client.start()
+	}
+
+	def cleanupSpec() {
+		client.close()
+		server.stop()
+	}
+
+	def "test that waits on the barrier and timeouts are recorded"() {
+		setup:
+		def recorder = new RecipeRecorder(0, new PathNormalizer())
+		def barrier = new NewRelicWrappedDistributedBarrier(client, '/barrier', recorder)
+		def snapshot = new LatencyHistogram.Snapshot()
+		when:
+		barrier.setBarrier()
+		def released = barrier.waitOnBarrier(50, TimeUnit.MILLISECONDS)
+		then:
+		!released
+		recorder.getCount(Event.BARRIER_TIMEOUT, '/barrier') == 1
+		when:
+		barrier.removeBarrier()
+		released = barrier.waitOnBarrier(10, TimeUnit.SECONDS)
+		then:
+		released
+		recorder.getCount(Event.BARRIER_TIMEOUT, '/barrier') == 1
+		recorder.getHistogram(Measure.BARRIER_WAIT, '/barrier').drainTo(snapshot) == null
+		snapshot.count == 2
+		snapshot.max >= TimeUnit.MILLISECONDS.toNanos(50)
+	}
+
+	def "test creating the barrier through the factory"() {
+		expect:
+		NewRelicClientFrameworkFactory.newDistributedBarrier(client, '/barrier') instanceof NewRelicWrappedDistributedBarrier
+	}
+
+	def "test that a null recorder is rejected"() {
+		when:
+		new NewRelicWrappedDistributedBarrier(client, '/barrier', null)
+		then:
+		thrown(IllegalArgumentException)
+	}
+}
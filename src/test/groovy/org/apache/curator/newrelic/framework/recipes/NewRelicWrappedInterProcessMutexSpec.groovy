@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.recipes
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.newrelic.framework.NewRelicClientFrameworkFactory
+import org.apache.curator.newrelic.metrics.LatencyHistogram
+import org.apache.curator.newrelic.metrics.PathNormalizer
+import org.apache.curator.newrelic.metrics.RecipeRecorder
+import org.apache.curator.newrelic.metrics.RecipeRecorder.Event
+import org.apache.curator.newrelic.metrics.RecipeRecorder.Measure
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.test.TestingServer
+
+import spock.lang.Shared
+import spock.lang.Specification
+
+class NewRelicWrappedInterProcessMutexSpec extends Specification {
+
+	@Shared
+	TestingServer server
+
+	@Shared
+	CuratorFramework client
+
+	def setupSpec() {
+		server = new TestingServer()
+		client = NewRelicClientFrameworkFactory.newClient(server.connectString, new RetryOneTime(0))
+		client.start()
+	}
+
+	def cleanupSpec() {
+		client.close()
+		server.stop()
+	}
+
+	def "test that acquisitions, holds and the queue depth are recorded"() {
+		setup:
+		def recorder = new RecipeRecorder(0, new PathNormalizer())
+		def lock = new NewRelicWrappedInterProcessMutex(client, '/locks/order-0000000001', recorder)
+		def snapshot = new LatencyHistogram.Snapshot()
+		when:
+		lock.acquire()
+		lock.acquire()
+		Thread.sleep(20)
+		lock.release()
+		lock.release()
+		then:
+		recorder.getHistogram(Measure.LOCK_WAIT, '/locks/order-{seq}').drainTo(snapshot) == null
+		snapshot.count == 2
+		recorder.getHistogram(Measure.LOCK_HOLD, '/locks/order-0000000002').drainTo(snapshot) == null
+		snapshot.count == 1
+		snapshot.max >= TimeUnit.MILLISECONDS.toNanos(20)
+		recorder.getHistogram(Measure.LOCK_QUEUE_DEPTH, '/locks/order-{seq}').drainTo(snapshot) == null
+		snapshot.count == 1
+		snapshot.max == 1
+		!lock.isAcquiredInThisProcess()
+	}
+
+	def "test that contended acquisitions time out and are counted"() {
+		setup:
+		def recorder = new RecipeRecorder(0, new PathNormalizer())
+		def holder = new NewRelicWrappedInterProcessMutex(client, '/locks/contended', recorder)
+		def acquired = new CountDownLatch(1)
+		def done = new CountDownLatch(1)
+		def thread = Thread.start {
+			holder.acquire()
+			acquired.countDown()
+			done.await(10, TimeUnit.SECONDS)
+			holder.release()
+		}
+		acquired.await(10, TimeUnit.SECONDS)
+		def lock = new NewRelicWrappedInterProcessMutex(client, '/locks/contended', recorder)
+		when:
+		def result = lock.acquire(50, TimeUnit.MILLISECONDS)
+		then:
+		!result
+		recorder.getCount(Event.LOCK_TIMEOUT, '/locks/contended') == 1
+		cleanup:
+		done.countDown()
+		thread.join()
+	}
+
+	def "test creating the lock through the factory"() {
+		expect:
+		NewRelicClientFrameworkFactory.newInterProcessMutex(client, '/locks/factory') instanceof NewRelicWrappedInterProcessMutex
+	}
+
+	def "test that a null recorder is rejected"() {
+		when:
+		new NewRelicWrappedInterProcessMutex(client, '/locks/invalid', null)
+		then:
+		thrown(IllegalArgumentException)
+	}
+}
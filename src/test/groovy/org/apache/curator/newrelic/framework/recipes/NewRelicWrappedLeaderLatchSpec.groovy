@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.framework.recipes
+
+import java.util.concurrent.TimeUnit
+
+import org.apache.curator.framework.CuratorFramework
+import org.apache.curator.newrelic.framework.NewRelicClientFrameworkFactory
+import org.apache.curator.newrelic.metrics.LatencyHistogram
+import org.apache.curator.newrelic.metrics.PathNormalizer
+import org.apache.curator.newrelic.metrics.RecipeRecorder
+import org.apache.curator.newrelic.metrics.RecipeRecorder.Event
+import org.apache.curator.newrelic.metrics.RecipeRecorder.Measure
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.test.TestingServer
+
+import spock.lang.Shared
+import spock.lang.Specification
+
+class NewRelicWrappedLeaderLatchSpec extends Specification {
+
+	@Shared
+	TestingServer server
+
+	@Shared
+	CuratorFramework client
+
+	def setupSpec() {
+		server = new TestingServer()
+		client = NewRelicClientFrameworkFactory.newClient(server.connectString, new RetryOneTime(0))
+		client.start()
+	}
+
+	def cleanupSpec() {
+		client.close()
+		server.stop()
+	}
+
+	def "test that leadership changes, tenure and waits are recorded"() {
+		setup:
+		def recorder = new RecipeRecorder(0, new PathNormalizer())
+		def latch = new NewRelicWrappedLeaderLatch(client, '/leader', 'first', recorder)
+		def snapshot = new LatencyHistogram.Snapshot()
+		when:
+		latch.start()
+		def leader = latch.await(10, TimeUnit.SECONDS)
+		then:
+		leader
+		recorder.getCount(Event.LEADER_GAINED, '/leader') == 1
+		recorder.getHistogram(Measure.LEADER_AWAIT, '/leader').drainTo(snapshot) == null
+		snapshot.count == 1
+		when:
+		latch.close()
+		then:
+		recorder.getCount(Event.LEADER_LOST, '/leader') == 1
+		recorder.getHistogram(Measure.LEADER_TENURE, '/leader').drainTo(snapshot) == null
+		snapshot.count == 1
+	}
+
+	def "test creating the latch through the factory"() {
+		expect:
+		NewRelicClientFrameworkFactory.newLeaderLatch(client, '/leader', 'id') instanceof NewRelicWrappedLeaderLatch
+	}
+
+	def "test that a null recorder is rejected"() {
+		when:
+		new NewRelicWrappedLeaderLatch(client, '/leader', 'id', null)
+		then:
+		thrown(IllegalArgumentException)
+	}
+}
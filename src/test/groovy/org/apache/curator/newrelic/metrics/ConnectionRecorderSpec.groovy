@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics
+
+import org.apache.curator.framework.state.ConnectionState
+
+import spock.lang.Specification
+
+class ConnectionRecorderSpec extends Specification {
+
+    def "test recording connection health"() {
+        setup:
+            def recorder = new ConnectionRecorder(0)
+            def snapshot = new LatencyHistogram.Snapshot()
+        when:
+            recorder.recordStateChange(ConnectionState.SUSPENDED)
+            recorder.recordStateChange(ConnectionState.SUSPENDED)
+            recorder.recordStateChange(ConnectionState.RECONNECTED)
+            recorder.recordDisconnect()
+            recorder.recordDisconnect()
+            recorder.recordReconnect(1000L)
+            recorder.recordNewSession(2000L)
+            recorder.recordSessionExpiration()
+            recorder.recordRetry(true)
+            recorder.recordRetry(true)
+            recorder.recordRetry(false)
+        then:
+            recorder.getStateChangeCount(ConnectionState.SUSPENDED) == 2
+            recorder.getStateChangeCount(ConnectionState.RECONNECTED) == 1
+            recorder.getStateChangeCount(ConnectionState.LOST) == 0
+            recorder.disconnectedClientCount == 1
+            recorder.sessionExpirationCount == 1
+            recorder.getRetryCount(true) == 2
+            recorder.getRetryCount(false) == 1
+            recorder.disconnectedHistogram.drainTo(snapshot) == null
+            snapshot.count == 1
+            recorder.reconnectHistogram.drainTo(snapshot) == null
+            snapshot.max == 2000L
+        when:
+            recorder.recordReconnect(-1)
+            recorder.flush()
+        then:
+            recorder.getStateChangeCount(ConnectionState.SUSPENDED) == 0
+            recorder.disconnectedClientCount == 0
+            recorder.sessionExpirationCount == 0
+            recorder.getRetryCount(true) == 0
+            recorder.disconnectedHistogram.drainTo(snapshot) == null
+            snapshot.count == 0
+        cleanup:
+            recorder.close()
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class LatencyHistogramSpec extends Specification {
+
+    @Unroll
+    def "test that the bucket of #value holds values within 12.5% of it"() {
+        when:
+            def index = LatencyHistogram.getBucketIndex(value)
+            def bucketValue = LatencyHistogram.getBucketValue(index)
+        then:
+            index >= 0
+            index < LatencyHistogram.BUCKET_COUNT
+            Math.abs(bucketValue - value) <= value * 0.125
+        where:
+            value << [0L, 1L, 7L, 8L, 15L, 16L, 1000L, 123456L, 10000000L, 999999999L, LatencyHistogram.MAX_TRACKABLE_NANOS]
+    }
+
+    def "test that bucket indexes increase with the value"() {
+        expect:
+            (1..100000).collect { LatencyHistogram.getBucketIndex(it * 997L) } == (1..100000).collect { LatencyHistogram.getBucketIndex(it * 997L) }.sort()
+    }
+
+    def "test draining the recorded latencies"() {
+        setup:
+            def histogram = new LatencyHistogram()
+            def snapshot = new LatencyHistogram.Snapshot()
+        when:
+            (1..100).each { histogram.record(TimeUnit.MILLISECONDS.toNanos(it)) }
+            histogram.drainTo(snapshot)
+        then:
+            snapshot.count == 100
+            snapshot.max == TimeUnit.MILLISECONDS.toNanos(100)
+            snapshot.mean == TimeUnit.MILLISECONDS.toNanos(50) + TimeUnit.MICROSECONDS.toNanos(500)
+            Math.abs(snapshot.getValueAtPercentile(50) - TimeUnit.MILLISECONDS.toNanos(50)) <= TimeUnit.MILLISECONDS.toNanos(50) * 0.125
+            Math.abs(snapshot.getValueAtPercentile(99) - TimeUnit.MILLISECONDS.toNanos(99)) <= TimeUnit.MILLISECONDS.toNanos(99) * 0.125
+            snapshot.getValueAtPercentile(100) <= snapshot.max
+        when:
+            histogram.drainTo(snapshot)
+        then:
+            snapshot.count == 0
+            snapshot.mean == 0
+            snapshot.max == 0
+            snapshot.getValueAtPercentile(99) == 0
+    }
+
+    def "test that values out of range are clamped"() {
+        setup:
+            def histogram = new LatencyHistogram()
+            def snapshot = new LatencyHistogram.Snapshot()
+        when:
+            histogram.record(-5L)
+            histogram.record(Long.MAX_VALUE)
+            histogram.drainTo(snapshot)
+        then:
+            snapshot.count == 2
+            snapshot.max == Long.MAX_VALUE
+            snapshot.getValueAtPercentile(0) == 0
+            snapshot.getValueAtPercentile(100) >= LatencyHistogram.MAX_TRACKABLE_NANOS * 0.875
+    }
+
+    def "test recording from many threads"() {
+        setup:
+            def histogram = new LatencyHistogram()
+            def snapshot = new LatencyHistogram.Snapshot()
+            def executor = Executors.newFixedThreadPool(16)
+            def latch = new CountDownLatch(16)
+        when:
+            16.times {
+                executor.submit {
+                    10000.times { value -> histogram.record(value) }
+                    latch.countDown()
+                }
+            }
+            latch.await(30, TimeUnit.SECONDS)
+            histogram.drainTo(snapshot)
+        then:
+            snapshot.count == 160000
+            snapshot.max == 9999
+        cleanup:
+            executor.shutdownNow()
+    }
+
+    def "test invalid arguments"() {
+        when:
+            new LatencyHistogram().drainTo(null)
+        then:
+            thrown(IllegalArgumentException)
+        when:
+            new LatencyHistogram.Snapshot().getValueAtPercentile(101)
+        then:
+            thrown(IllegalArgumentException)
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics
+
+import org.apache.zookeeper.KeeperException.Code
+
+import spock.lang.Specification
+
+class LatencyRecorderSpec extends Specification {
+
+    def "test recording latencies by source, operation and result code"() {
+        setup:
+            def recorder = new LatencyRecorder(0)
+            def snapshot = new LatencyHistogram.Snapshot()
+        when:
+            recorder.record(OperationSource.FOREGROUND, Operation.GET_DATA, Code.OK, 1000L)
+            recorder.record(OperationSource.FOREGROUND, Operation.GET_DATA, Code.OK, 2000L)
+            recorder.record(OperationSource.FOREGROUND, Operation.GET_DATA, Code.NONODE, 3000L)
+            recorder.record(OperationSource.ZOOKEEPER, Operation.GET_DATA, null, 4000L)
+        then:
+            recorder.getHistogram(OperationSource.FOREGROUND, Operation.GET_DATA, Code.OK).drainTo(snapshot) == null
+            snapshot.count == 2
+            recorder.getHistogram(OperationSource.FOREGROUND, Operation.GET_DATA, Code.NONODE).drainTo(snapshot) == null
+            snapshot.count == 1
+            recorder.getHistogram(OperationSource.ZOOKEEPER, Operation.GET_DATA, Code.SYSTEMERROR).drainTo(snapshot) == null
+            snapshot.count == 1
+            recorder.getHistogram(OperationSource.BACKGROUND, Operation.GET_DATA, Code.OK) == null
+        cleanup:
+            recorder.close()
+    }
+
+    def "test that flushing resets the histograms"() {
+        setup:
+            def recorder = new LatencyRecorder(0)
+            def snapshot = new LatencyHistogram.Snapshot()
+        when:
+            recorder.recordSince(OperationSource.BACKGROUND, Operation.CREATE, Code.NODEEXISTS, System.nanoTime())
+            recorder.flush()
+            recorder.getHistogram(OperationSource.BACKGROUND, Operation.CREATE, Code.NODEEXISTS).drainTo(snapshot)
+        then:
+            snapshot.count == 0
+        cleanup:
+            recorder.close()
+    }
+
+    def "test periodic flushing"() {
+        setup:
+            def recorder = new LatencyRecorder(10)
+            def snapshot = new LatencyHistogram.Snapshot()
+        when:
+            recorder.start()
+            recorder.record(OperationSource.FOREGROUND, Operation.DELETE, Code.OK, 1000L)
+            Thread.sleep(200)
+            recorder.getHistogram(OperationSource.FOREGROUND, Operation.DELETE, Code.OK).drainTo(snapshot)
+        then:
+            snapshot.count == 0
+        cleanup:
+            recorder.close()
+    }
+
+    def "test that records are dropped when the buffer is full"() {
+        setup:
+            def exporter = new MetricsExporter(2, 0)
+            def recorder = new LatencyRecorder(0, exporter)
+            def snapshot = new LatencyHistogram.Snapshot()
+        when:
+            def results = (1..3).collect { recorder.record(OperationSource.FOREGROUND, Operation.EXISTS, Code.OK, 1000L) }
+            recorder.getHistogram(OperationSource.FOREGROUND, Operation.EXISTS, Code.OK).drainTo(snapshot)
+        then:
+            results == [true, true, false]
+            recorder.droppedCount == 1
+            snapshot.count == 2
+        cleanup:
+            recorder.close()
+    }
+
+    def "test that slow calls are not recorded in the histograms"() {
+        setup:
+            def exporter = new MetricsExporter(16, 0)
+            def recorder = new LatencyRecorder(0, exporter)
+        when:
+            recorder.recordSlow(OperationSource.ZOOKEEPER, Operation.SET_DATA, 5000000000L)
+        then:
+            exporter.drain() == 1
+            recorder.getHistogram(OperationSource.ZOOKEEPER, Operation.SET_DATA, Code.OK) == null
+        cleanup:
+            recorder.close()
+    }
+
+    def "test that the buffer is drained in the background"() {
+        setup:
+            def exporter = new MetricsExporter(16, 5)
+            def recorder = new LatencyRecorder(60000, exporter)
+        when:
+            recorder.start()
+            recorder.record(OperationSource.BACKGROUND, Operation.DELETE, Code.OK, 1000L)
+            def index = LatencyRecorder.getIndex(OperationSource.BACKGROUND, Operation.DELETE, Code.OK)
+            for(int i = 0; i < 100 && recorder.metrics.get(index) == null; i++) {
+                Thread.sleep(10)
+            }
+        then:
+            recorder.metrics.get(index) != null
+        cleanup:
+            recorder.close()
+            exporter.close()
+    }
+
+    def "test the metric names of each source"() {
+        expect:
+            OperationSource.FOREGROUND.getMetricName(Operation.GET_DATA) == 'Custom/Curator/Operation/getData/Foreground'
+            OperationSource.BACKGROUND.getMetricName(Operation.SET_DATA) == 'Custom/Curator/Operation/setData/Background'
+            OperationSource.ZOOKEEPER.getMetricName(Operation.GET_CHILDREN) == 'Custom/ZooKeeper/Operation/getChildren'
+    }
+}
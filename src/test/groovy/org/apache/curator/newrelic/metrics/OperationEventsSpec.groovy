@@ -0,0 +1,71 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics
+
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+
+import jdk.jfr.Recording
+import jdk.jfr.consumer.RecordingFile
+
+import org.apache.zookeeper.KeeperException.Code
+
+import spock.lang.Specification
+
+class OperationEventsSpec extends Specification {
+
+    def "test that operations are only emitted while a recording collects the events"() {
+        expect:
+            !OperationEvents.isEnabled(TimeUnit.SECONDS.toNanos(1))
+    }
+
+    def "test that operations reaching the threshold are emitted with their fields"() {
+        setup:
+            def recording = new Recording()
+            recording.enable(OperationEvents.EVENT_NAME)
+            def file = Files.createTempFile('operations', '.jfr')
+        when:
+            recording.start()
+            def enabled = OperationEvents.isEnabled(TimeUnit.MILLISECONDS.toNanos(OperationEvents.DEFAULT_THRESHOLD_MS))
+            OperationEvents.emit(OperationSource.ZOOKEEPER, Operation.GET_DATA, '/services/123e4567-e89b-12d3-a456-426614174000', Code.OK,
+                TimeUnit.MILLISECONDS.toNanos(50), 42L, 128)
+            OperationEvents.emit(OperationSource.FOREGROUND, Operation.DELETE, null, null, TimeUnit.MILLISECONDS.toNanos(1), 0L, OperationEvents.NO_PAYLOAD)
+            recording.stop()
+            recording.dump(file)
+            def events = RecordingFile.readAllEvents(file).findAll { it.eventType.name == OperationEvents.EVENT_NAME }
+        then:
+            enabled
+            events.size() == 1
+            events[0].getString('source') == 'ZOOKEEPER'
+            events[0].getString('operation') == 'getData'
+            events[0].getString('path') == '/services/{uuid}'
+            events[0].getLong('latency') == TimeUnit.MILLISECONDS.toNanos(50)
+            events[0].getString('resultCode') == 'OK'
+            events[0].getLong('sessionId') == 42L
+            events[0].getInt('payloadSize') == 128
+        cleanup:
+            recording.close()
+            Files.deleteIfExists(file)
+    }
+
+    def "test the payload sizes"() {
+        expect:
+            OperationEvents.getPayloadSize(new byte[0]) == 0
+            OperationEvents.getPayloadSize(new byte[10]) == 10
+            OperationEvents.getPayloadSize((List<String>)null) == 4
+            OperationEvents.getPayloadSize(['a', 'bc']) == 4 + 5 + 6
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class PathNormalizerSpec extends Specification {
+
+    @Unroll
+    def "test that #path is normalized to #normalized"() {
+        setup:
+            def normalizer = new PathNormalizer(['/hosts/{host}/status', '/tenants/*'], 64)
+        expect:
+            normalizer.normalize(path) == normalized
+        where:
+            path                                                        || normalized
+            '/'                                                         || '/'
+            '/a/b'                                                      || '/a/b'
+            '/locks/lock-0000012345'                                    || '/locks/lock-{seq}'
+            '/locks/lock-12345'                                         || '/locks/lock-12345'
+            '/users/42/profile'                                         || '/users/{seq}/profile'
+            '/sessions/3f2504e0-4f89-11d3-9a0c-0305e82c3301'            || '/sessions/{uuid}'
+            '/locks/_c_3f2504e0-4f89-11d3-9a0c-0305e82c3301-lock-0000000001' || '/locks/_c_{uuid}-lock-{seq}'
+            '/hosts/zk1.example.com/status'                             || '/hosts/{host}/status'
+            '/tenants/acme/config'                                      || '/tenants/*/config'
+    }
+
+    @Unroll
+    def "test that #path at depth #depth is normalized to #normalized"() {
+        setup:
+            def normalizer = new PathNormalizer()
+        expect:
+            normalizer.normalize(path, depth) == normalized
+        where:
+            path                        | depth || normalized
+            '/a/b/c'                    | 0     || '/'
+            '/a/b/c'                    | 1     || '/a'
+            '/a/b/c'                    | 2     || '/a/b'
+            '/a/b/c'                    | 5     || '/a/b/c'
+            '/queue/item-0000000007/x'  | 2     || '/queue/item-{seq}'
+    }
+
+    def "test that paths of the same template share the normalized path"() {
+        setup:
+            def normalizer = new PathNormalizer()
+        when:
+            def first = normalizer.normalize('/locks/lock-0000000001')
+            def second = normalizer.normalize('/locks/lock-0000000002')
+        then:
+            first.is(second)
+            normalizer.nodeCount == 2
+    }
+
+    def "test that the number of children of a node is bounded"() {
+        setup:
+            def normalizer = new PathNormalizer()
+        when:
+            (PathNormalizer.MAX_CHILDREN + 10).times { normalizer.normalize("/node-${it}".toString()) }
+        then:
+            normalizer.normalize('/node-0') == '/node-0'
+            normalizer.normalize("/node-${PathNormalizer.MAX_CHILDREN}".toString()) == '/' + PathNormalizer.OVERFLOW_SEGMENT
+            normalizer.nodeCount == PathNormalizer.MAX_CHILDREN
+    }
+
+    def "test that the number of nodes is bounded"() {
+        setup:
+            def normalizer = new PathNormalizer([], 2)
+        expect:
+            normalizer.normalize('/a/b') == '/a/b'
+            normalizer.normalize('/a/c') == '/a/*'
+            normalizer.normalize('/d/e') == '/*/*'
+    }
+
+    @Unroll
+    def "test that the normalizer rejects #description"() {
+        when:
+            new PathNormalizer(templates, maxNodes)
+        then:
+            thrown(IllegalArgumentException)
+        where:
+            description                 | templates     | maxNodes
+            'null templates'            | null          | 1
+            'relative templates'        | ['a/b']       | 1
+            'a non-positive node limit' | []            | 0
+    }
+
+    def "test that a null path is rejected"() {
+        when:
+            new PathNormalizer().normalize(null)
+        then:
+            thrown(IllegalArgumentException)
+    }
+}
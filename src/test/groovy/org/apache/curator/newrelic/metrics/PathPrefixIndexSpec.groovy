@@ -0,0 +1,51 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics
+
+import spock.lang.Specification
+
+class PathPrefixIndexSpec extends Specification {
+
+    def "test that equal prefixes share an index"() {
+        setup:
+            def index = new PathPrefixIndex(16)
+        expect:
+            index.indexOf('/a') == index.indexOf(new String('/a'))
+            index.indexOf('/a') != index.indexOf('/ab')
+            index.indexOf('/a') != index.getOtherIndex()
+            index.getPrefix(index.indexOf('/a')) == '/a'
+    }
+
+    def "test that a null prefix resolves to the other index"() {
+        setup:
+            def index = new PathPrefixIndex(16)
+        expect:
+            index.indexOf(null) == index.getOtherIndex()
+            index.getPrefix(index.getOtherIndex()) == WatcherRecorder.OTHER_PATH_PREFIX
+    }
+
+    def "test that the number of indexed prefixes is bounded"() {
+        setup:
+            def index = new PathPrefixIndex(4)
+        when:
+            def indices = (0..<6).collect { index.indexOf("/node-${it}".toString()) }
+        then:
+            indices.take(4).every { it != index.getOtherIndex() }
+            indices.drop(4).every { it == index.getOtherIndex() }
+            index.indexOf('/node-0') == indices[0]
+            indices.every { it < index.size() }
+    }
+}
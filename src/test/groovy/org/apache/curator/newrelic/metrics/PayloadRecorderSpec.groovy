@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics
+
+import org.apache.curator.newrelic.metrics.PayloadRecorder.Direction
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class PayloadRecorderSpec extends Specification {
+
+    def "test recording payloads"() {
+        setup:
+            def recorder = new PayloadRecorder(0, 1, 100)
+            def snapshot = new LatencyHistogram.Snapshot()
+        when:
+            recorder.record(Direction.WRITE, '/a/1', new byte[10])
+            recorder.record(Direction.WRITE, '/a/2', new byte[30])
+            recorder.record(Direction.READ, '/a/1', (byte[])null)
+            recorder.record(Direction.READ, '/b', new byte[5])
+        then:
+            recorder.getByteCount(Direction.WRITE, '/a') == 40
+            recorder.getByteCount(Direction.READ, '/a') == 0
+            recorder.getByteCount(Direction.READ, '/b') == 5
+            recorder.getSizeHistogram(Direction.WRITE, '/a').drainTo(snapshot) == null
+            snapshot.count == 2
+            snapshot.max == 30
+        when:
+            recorder.flush()
+        then:
+            recorder.getByteCount(Direction.WRITE, '/a') == 0
+        cleanup:
+            recorder.close()
+    }
+
+    def "test that payloads are counted by normalized path prefix"() {
+        setup:
+            def recorder = new PayloadRecorder(0, new PathNormalizer(['/hosts/{host}'], 16), 2, 100)
+        when:
+            recorder.record(Direction.WRITE, '/hosts/a.example.com/status', 1)
+            recorder.record(Direction.WRITE, '/hosts/b.example.com/status', 2)
+        then:
+            recorder.getByteCount(Direction.WRITE, '/hosts/{host}') == 3
+        cleanup:
+            recorder.close()
+    }
+
+    def "test recording child listings"() {
+        setup:
+            def recorder = new PayloadRecorder(0, 1, 100)
+            def snapshot = new LatencyHistogram.Snapshot()
+        when:
+            recorder.recordChildren('/queue', ['a', 'bc'])
+            recorder.recordChildren('/queue/x', null)
+        then:
+            recorder.getByteCount(Direction.CHILDREN, '/queue') == 4 + 5 + 6 + 4
+            recorder.getChildCountHistogram('/queue').drainTo(snapshot) == null
+            snapshot.count == 2
+            snapshot.max == 2
+        cleanup:
+            recorder.close()
+    }
+
+    @Unroll
+    def "test that the UTF-8 length of '#value' is #length"() {
+        expect:
+            PayloadRecorder.getUtf8Length(value) == length
+        where:
+            value           || length
+            ''              || 0
+            'abc'           || 3
+            '\u00e9'        || 2
+            '\u20ac'        || 3
+            '\ud83d\ude00'  || 4
+    }
+
+    def "test that payloads near the limit are counted"() {
+        setup:
+            def recorder = new PayloadRecorder(0, 2, 100)
+        when:
+            recorder.record(Direction.WRITE, '/a/b/c', 99)
+            recorder.record(Direction.WRITE, '/a/b/d', 100)
+            recorder.record(Direction.READ, '/a/b/d', 1000)
+        then:
+            recorder.getNearLimitCount(Direction.WRITE, '/a/b') == 1
+            recorder.getNearLimitCount(Direction.READ, '/a/b') == 1
+        cleanup:
+            recorder.close()
+    }
+
+    def "test that the number of tracked path prefixes is bounded"() {
+        setup:
+            def recorder = new PayloadRecorder(0, new PathNormalizer(), 1, 100)
+        when:
+            (WatcherRecorder.MAX_PATH_PREFIXES + 10).times { recorder.record(Direction.WRITE, "/node-${it}/child", 1) }
+        then:
+            recorder.getByteCount(Direction.WRITE, '/node-0') == 1
+            recorder.getByteCount(Direction.WRITE, WatcherRecorder.OTHER_PATH_PREFIX) == 10
+        cleanup:
+            recorder.close()
+    }
+
+    def "test that invalid arguments are rejected"() {
+        when:
+            new PayloadRecorder(0, depth, threshold)
+        then:
+            thrown(IllegalArgumentException)
+        where:
+            depth | threshold
+            -1    | 100
+            1     | 0
+    }
+
+    def "test that a null path normalizer is rejected"() {
+        when:
+            new PayloadRecorder(0, null, 1, 100)
+        then:
+            thrown(IllegalArgumentException)
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+import spock.lang.Specification
+
+class PeriodicReporterSpec extends Specification {
+
+    def "test that the recorder does not report until it is started"() {
+        setup:
+            def exporter = new MetricsExporter(16, 5)
+            def reports = new AtomicInteger()
+            def reporter = new CountingReporter(5, exporter, reports)
+        when:
+            Thread.sleep(100)
+        then:
+            reports.get() == 0
+        when:
+            reporter.start()
+            reporter.start()
+            for(int i = 0; i < 100 && reports.get() == 0; i++) {
+                Thread.sleep(10)
+            }
+        then:
+            reports.get() > 0
+        cleanup:
+            reporter.close()
+            exporter.close()
+    }
+
+    def "test that a failing flush does not cancel the periodic reporting"() {
+        setup:
+            def exporter = new MetricsExporter(16, 5)
+            def reports = new AtomicInteger()
+            def reporter = new CountingReporter(5, exporter, reports) {
+                @Override
+                protected void report() {
+                    if(reports.incrementAndGet() < 3) {
+                        throw new IllegalStateException('Flush failed.')
+                    }
+                }
+            }
+        when:
+            reporter.start()
+            for(int i = 0; i < 100 && reports.get() < 3; i++) {
+                Thread.sleep(10)
+            }
+        then:
+            reports.get() >= 3
+        cleanup:
+            reporter.close()
+            exporter.close()
+    }
+
+    def "test that a closed recorder cannot be started"() {
+        setup:
+            def exporter = new MetricsExporter(16, 5)
+            def reports = new AtomicInteger()
+            def reporter = new CountingReporter(5, exporter, reports)
+        when:
+            reporter.close()
+            reporter.start()
+            Thread.sleep(100)
+        then:
+            reports.get() == 1
+        cleanup:
+            exporter.close()
+    }
+
+    def "test that the records of every recorder are applied on the thread of the exporter"() {
+        setup:
+            def exporter = new MetricsExporter(16, 5)
+            def threads = new ConcurrentHashMap<String, String>()
+            def reporters = (1..3).collect { new CountingReporter(60000, exporter, new AtomicInteger(), threads) }
+        when:
+            reporters*.start()
+            reporters.eachWithIndex { reporter, i -> reporter.record(i, 1, "reporter-$i".toString()) }
+            for(int i = 0; i < 100 && threads.size() < 3; i++) {
+                Thread.sleep(10)
+            }
+        then:
+            threads.keySet() == ['reporter-0', 'reporter-1', 'reporter-2'] as Set
+            (threads.values() as Set).size() == 1
+            threads.values().every { it.startsWith('CuratorNewRelicExporter') }
+        cleanup:
+            reporters*.close()
+            exporter.close()
+    }
+
+    def "test that a failing record does not prevent the others from being applied"() {
+        setup:
+            def exporter = new MetricsExporter(16, 0)
+            def threads = new ConcurrentHashMap<String, String>()
+            def reporter = new CountingReporter(0, exporter, new AtomicInteger(), threads)
+        when:
+            reporter.record(0, 1, null)
+            reporter.record(1, 1, 'applied')
+        then:
+            exporter.drain() == 2
+            threads.keySet() == ['applied'] as Set
+    }
+
+    /**
+     * Counts its reports and notes the thread on which each record is applied.
+     */
+    static class CountingReporter extends PeriodicReporter {
+
+        final AtomicInteger reports
+
+        final Map<String, String> threads
+
+        CountingReporter(long flushIntervalMs, MetricsExporter exporter, AtomicInteger reports, Map<String, String> threads = [:]) {
+            super(flushIntervalMs, exporter)
+            this.reports = reports
+            this.threads = threads
+        }
+
+        @Override
+        protected void apply(int key, long value, Object attachment) {
+            threads.put((String)attachment, Thread.currentThread().name)
+        }
+
+        @Override
+        protected void report() {
+            reports.incrementAndGet()
+        }
+    }
+}
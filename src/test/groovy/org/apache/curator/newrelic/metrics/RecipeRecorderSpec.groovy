@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics
+
+import org.apache.curator.newrelic.metrics.RecipeRecorder.Event
+import org.apache.curator.newrelic.metrics.RecipeRecorder.Measure
+
+import spock.lang.Specification
+
+class RecipeRecorderSpec extends Specification {
+
+    def "test recording measures and events by normalized path"() {
+        setup:
+            def recorder = new RecipeRecorder(0, new PathNormalizer())
+            def snapshot = new LatencyHistogram.Snapshot()
+        when:
+            recorder.record(Measure.LOCK_WAIT, '/locks/lock-0000000001', 1000L)
+            recorder.record(Measure.LOCK_WAIT, '/locks/lock-0000000002', 3000L)
+            recorder.record(Event.LEADER_GAINED, '/leader')
+            recorder.record(Event.LEADER_GAINED, null)
+        then:
+            recorder.getHistogram(Measure.LOCK_WAIT, '/locks/lock-{seq}').drainTo(snapshot) == null
+            snapshot.count == 2
+            snapshot.max == 3000L
+            recorder.getCount(Event.LEADER_GAINED, '/leader') == 1
+            recorder.getCount(Event.LEADER_GAINED, null) == 1
+            recorder.getCount(Event.LEADER_LOST, '/leader') == 0
+        when:
+            recorder.flush()
+        then:
+            recorder.getCount(Event.LEADER_GAINED, '/leader') == 0
+        cleanup:
+            recorder.close()
+    }
+
+    def "test that the number of tracked paths is bounded"() {
+        setup:
+            def recorder = new RecipeRecorder(0, new PathNormalizer())
+        when:
+            (WatcherRecorder.MAX_PATH_PREFIXES + 10).times { recorder.record(Event.LOCK_TIMEOUT, "/lock-${it}".toString()) }
+        then:
+            recorder.getCount(Event.LOCK_TIMEOUT, WatcherRecorder.OTHER_PATH_PREFIX) == 10
+        cleanup:
+            recorder.close()
+    }
+
+    def "test that a null path normalizer is rejected"() {
+        when:
+            new RecipeRecorder(0, null)
+        then:
+            thrown(IllegalArgumentException)
+    }
+}
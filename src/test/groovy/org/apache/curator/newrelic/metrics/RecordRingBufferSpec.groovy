@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics
+
+import java.util.concurrent.CountDownLatch
+
+import spock.lang.Specification
+
+class RecordRingBufferSpec extends Specification {
+
+    def "test that records are drained in the order in which they were written"() {
+        setup:
+            def buffer = new RecordRingBuffer(4)
+            def keys = []
+            def values = []
+            def attachments = []
+            def handler = { int key, long value, Object attachment -> keys << key; values << value; attachments << attachment } as RecordRingBuffer.RecordHandler
+        when:
+            buffer.offer(handler, 1, 10L, null)
+            buffer.offer(handler, 2, 20L, 'two')
+            buffer.offer(handler, 3, 30L, null)
+        then:
+            buffer.drain() == 3
+            keys == [1, 2, 3]
+            values == [10L, 20L, 30L]
+            attachments == [null, 'two', null]
+            buffer.attachments.every { it == null }
+            buffer.drain() == 0
+    }
+
+    def "test that records are dropped and counted when the buffer is full"() {
+        setup:
+            def buffer = new RecordRingBuffer(2)
+            def keys = []
+            def handler = { int key, long value, Object attachment -> keys << key } as RecordRingBuffer.RecordHandler
+        when:
+            def results = (1..4).collect { buffer.offer(handler, it, it, null) }
+        then:
+            results == [true, true, false, false]
+            buffer.droppedCount == 2
+        when:
+            buffer.drain()
+            buffer.offer(handler, 5, 5L, null)
+            buffer.drain()
+        then:
+            keys == [1, 2, 5]
+            buffer.droppedCount == 2
+    }
+
+    def "test that the capacity is rounded up to a power of two"() {
+        expect:
+            new RecordRingBuffer(capacity).capacity == expected
+        where:
+            capacity | expected
+            1        | 1
+            2        | 2
+            3        | 4
+            1000     | 1024
+            1024     | 1024
+    }
+
+    def "test that the capacity must be positive"() {
+        when:
+            new RecordRingBuffer(0)
+        then:
+            thrown(IllegalArgumentException)
+    }
+
+    def "test that every record written concurrently is either drained or dropped"() {
+        setup:
+            def buffer = new RecordRingBuffer(64)
+            def writers = 4
+            def recordsPerWriter = 10000
+            def start = new CountDownLatch(1)
+            def sum = 0L
+            def count = 0L
+            def handler = { int key, long value, Object attachment -> sum += value; count++ } as RecordRingBuffer.RecordHandler
+            def threads = (1..writers).collect {
+                Thread.start {
+                    start.await()
+                    recordsPerWriter.times { buffer.offer(handler, 0, 1L, null) }
+                }
+            }
+        when:
+            start.countDown()
+            while(threads.any { it.alive }) {
+                buffer.drain()
+            }
+            buffer.drain()
+        then:
+            count + buffer.droppedCount == writers * recordsPerWriter
+            sum == count
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics
+
+import org.apache.zookeeper.KeeperException.Code
+
+import spock.lang.Specification
+
+class ServerRecorderSpec extends Specification {
+
+    def "test recording operations per server"() {
+        setup:
+            def recorder = new ServerRecorder(0)
+            def snapshot = new LatencyHistogram.Snapshot()
+            def first = recorder.getServer('zk1:2181')
+            def second = recorder.getServer('zk2:2181')
+        when:
+            first.record(Code.OK, 1000L)
+            first.record(Code.CONNECTIONLOSS, 2000L)
+            first.record(null, 3000L)
+            second.record(Code.OK, 4000L)
+        then:
+            recorder.getServer('zk1:2181').is(first)
+            first.address == 'zk1:2181'
+            first.getErrorCount(Code.OK) == 0
+            first.getErrorCount(Code.CONNECTIONLOSS) == 1
+            first.getErrorCount(Code.SYSTEMERROR) == 1
+            second.getErrorCount(Code.CONNECTIONLOSS) == 0
+            first.latencyHistogram.drainTo(snapshot) == null
+            snapshot.count == 3
+            second.latencyHistogram.drainTo(snapshot) == null
+            snapshot.count == 1
+    }
+
+    def "test recording connection moves"() {
+        setup:
+            def recorder = new ServerRecorder(0)
+        when:
+            recorder.recordMove()
+            recorder.recordMove()
+        then:
+            recorder.moveCount == 2
+    }
+
+    def "test that flushing resets the metrics"() {
+        setup:
+            def recorder = new ServerRecorder(0)
+            def snapshot = new LatencyHistogram.Snapshot()
+            def server = recorder.getServer('zk1:2181')
+            server.record(Code.OPERATIONTIMEOUT, 1000L)
+            recorder.recordMove()
+        when:
+            recorder.flush()
+        then:
+            server.getErrorCount(Code.OPERATIONTIMEOUT) == 0
+            recorder.moveCount == 0
+            server.latencyHistogram.drainTo(snapshot) == null
+            snapshot.count == 0
+    }
+
+    def "test getting the metrics of a null server"() {
+        setup:
+            def recorder = new ServerRecorder(0)
+        when:
+            recorder.getServer(null)
+        then:
+            thrown(IllegalArgumentException)
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+import org.apache.zookeeper.KeeperException.Code
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class TraceSamplerSpec extends Specification {
+
+    def "test that the default sampler traces every call without counting"() {
+        setup:
+            def sampler = TraceSampler.always()
+        expect:
+            (1..10).every { sampler.sample() }
+            sampler.callCount == 0
+            !sampler.isSlow(TimeUnit.DAYS.toNanos(1))
+    }
+
+    def "test sampling one call in every N"() {
+        setup:
+            def sampler = TraceSampler.oneIn(4, 1000)
+        when:
+            def sampled = (1..12).collect { sampler.sample() }
+        then:
+            sampled.count(true) == 3
+            sampled[3] && sampled[7] && sampled[11]
+            sampler.callCount == 12
+            sampler.interval == 4
+    }
+
+    def "test that each thread traces one call in every N of its own calls"() {
+        setup:
+            def sampler = TraceSampler.oneIn(10, 1000)
+            def traced = new AtomicInteger()
+            def threads = (1..4).collect {
+                Thread.start {
+                    1000.times {
+                        if(sampler.sample()) {
+                            traced.incrementAndGet()
+                        }
+                    }
+                }
+            }
+        when:
+            threads*.join()
+        then:
+            sampler.callCount == 4000
+            traced.get() == 400
+    }
+
+    def "test that layers called by an entered layer reuse its decision"() {
+        setup:
+            def sampler = TraceSampler.oneIn(2, 1000)
+        when:
+            def decisions = (1..10).collect {
+                def outer = sampler.enter()
+                try {
+                    [outer, sampler.sample(), sampler.shouldTrace(Code.OK, 0)]
+                } finally {
+                    sampler.exit()
+                }
+            }
+        then:
+            decisions.every { it[0] == it[1] && it[0] == it[2] }
+            decisions.count { it[0] } == 5
+            sampler.callCount == 10
+        when:
+            def outer = sampler.enter(Code.CONNECTIONLOSS, 0)
+            def inner = sampler.sample()
+            sampler.exit()
+        then:
+            outer
+            inner
+            sampler.callCount == 10
+    }
+
+    def "test that failed and slow calls are always traced"() {
+        setup:
+            def sampler = TraceSampler.oneIn(1000000, 100)
+            sampler.sample()
+        expect:
+            sampler.shouldTrace(Code.CONNECTIONLOSS, 0)
+            sampler.shouldTrace(null, 0)
+            sampler.shouldTrace(Code.OK, TimeUnit.MILLISECONDS.toNanos(100))
+            !sampler.shouldTrace(Code.OK, TimeUnit.MILLISECONDS.toNanos(99))
+            !sampler.shouldTrace(Code.NONODE, 0)
+    }
+
+    def "test adapting the sampling interval to a target rate"() {
+        setup:
+            def sampler = TraceSampler.targetRate(10, 1000)
+            def start = System.nanoTime()
+        when:
+            sampler.adapt(1000, start + TraceSampler.WINDOW_NANOS * 2)
+        then:
+            sampler.interval >= 50
+            sampler.interval <= 100
+        when:
+            sampler.adapt(1001, start + TraceSampler.WINDOW_NANOS * 4)
+        then:
+            sampler.interval == 1
+    }
+
+    def "test that reporting untraced calls does not fail without an agent"() {
+        setup:
+            def sampler = TraceSampler.oneIn(10, 0)
+        when:
+            sampler.recordUntraced(OperationSource.ZOOKEEPER, Operation.GET_DATA, '/path', Code.CONNECTIONLOSS, 1000)
+            sampler.recordUntraced(OperationSource.FOREGROUND, Operation.GET_DATA, null, Code.OK, 1000)
+        then:
+            notThrown(Exception)
+    }
+
+    @Unroll
+    def "test creating a sampler with invalid arguments #interval, #rate, #threshold"() {
+        when:
+            rate == null ? TraceSampler.oneIn(interval, threshold) : TraceSampler.targetRate(rate, threshold)
+        then:
+            thrown(IllegalArgumentException)
+        where:
+            interval | rate                     | threshold
+            0        | null                     | 0
+            1        | null                     | -1
+            null     | 0d                       | 0
+            null     | Double.NaN               | 0
+            null     | Double.POSITIVE_INFINITY | 0
+            null     | 1d                       | -1
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.curator.newrelic.metrics
+
+import org.apache.zookeeper.Watcher.Event.EventType
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+class WatcherRecorderSpec extends Specification {
+
+    @Unroll
+    def "test that the prefix of #path at depth #depth is #prefix"() {
+        setup:
+            def recorder = new WatcherRecorder(0, depth)
+        expect:
+            recorder.getPathPrefix(path) == prefix
+        cleanup:
+            recorder.close()
+        where:
+            path        | depth || prefix
+            null        | 1     || ''
+            '/'         | 1     || '/'
+            '/a'        | 1     || '/a'
+            '/a/b/c'    | 1     || '/a'
+            '/a/b/c'    | 2     || '/a/b'
+            '/a/b/c'    | 5     || '/a/b/c'
+            '/a/b/c'    | 0     || '/'
+    }
+
+    def "test recording events"() {
+        setup:
+            def recorder = new WatcherRecorder(0, 1)
+            def snapshot = new LatencyHistogram.Snapshot()
+        when:
+            recorder.recordEvent(EventType.NodeCreated, '/a/1', 1000L)
+            recorder.recordEvent(EventType.NodeCreated, '/a/2', 2000L)
+            recorder.recordEvent(EventType.NodeDeleted, '/b/1', 3000L)
+            recorder.recordEvent(EventType.None, null, 4000L)
+        then:
+            recorder.getEventCount(EventType.NodeCreated, '/a') == 2
+            recorder.getEventCount(EventType.NodeDeleted, '/b') == 1
+            recorder.getEventCount(EventType.None, '') == 1
+            recorder.getEventCount(EventType.NodeDeleted, '/a') == 0
+            recorder.getCallbackHistogram(EventType.NodeCreated).drainTo(snapshot) == null
+            snapshot.count == 2
+            snapshot.max == 2000L
+        when:
+            recorder.flush()
+        then:
+            recorder.getEventCount(EventType.NodeCreated, '/a') == 0
+        cleanup:
+            recorder.close()
+    }
+
+    def "test that the number of tracked path prefixes is bounded"() {
+        setup:
+            def recorder = new WatcherRecorder(0, new PathNormalizer(), 1)
+        when:
+            (WatcherRecorder.MAX_PATH_PREFIXES + 10).times { recorder.recordEvent(EventType.NodeCreated, "/node-${it}/child", 0L) }
+        then:
+            recorder.getEventCount(EventType.NodeCreated, WatcherRecorder.OTHER_PATH_PREFIX) == 10
+        cleanup:
+            recorder.close()
+    }
+
+    def "test that events are counted by normalized path prefix"() {
+        setup:
+            def recorder = new WatcherRecorder(0, new PathNormalizer(), 2)
+        when:
+            recorder.recordEvent(EventType.NodeDeleted, '/locks/lock-0000000001/child', 0L)
+            recorder.recordEvent(EventType.NodeDeleted, '/locks/lock-0000000002', 0L)
+        then:
+            recorder.getEventCount(EventType.NodeDeleted, '/locks/lock-{seq}') == 2
+        cleanup:
+            recorder.close()
+    }
+
+    def "test reporting outstanding watches"() {
+        setup:
+            def recorder = new WatcherRecorder(0, 1)
+            WatchCounter counter = Mock()
+        when:
+            recorder.register(counter)
+            recorder.flush()
+        then:
+            1 * counter.getDataWatchCount() >> 1
+            1 * counter.getExistWatchCount() >> 2
+            1 * counter.getChildWatchCount() >> 3
+        when:
+            recorder.unregister(counter)
+            recorder.flush()
+        then:
+            0 * counter._
+        cleanup:
+            recorder.close()
+    }
+
+    def "test that a negative path depth is rejected"() {
+        when:
+            new WatcherRecorder(0, -1)
+        then:
+            thrown(IllegalArgumentException)
+    }
+
+    def "test that a null path normalizer is rejected"() {
+        when:
+            new WatcherRecorder(0, null, 1)
+        then:
+            thrown(IllegalArgumentException)
+    }
+}
@@ -15,9 +15,28 @@
  */
 package org.apache.zookeeper.newrelic
 
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import org.apache.curator.newrelic.metrics.LatencyHistogram
+import org.apache.curator.newrelic.metrics.LatencyRecorder
+import org.apache.curator.newrelic.metrics.Operation
+import org.apache.curator.newrelic.metrics.OperationSource
+import org.apache.curator.newrelic.metrics.PayloadRecorder
+import org.apache.curator.newrelic.metrics.PayloadRecorder.Direction
+import org.apache.curator.newrelic.metrics.ServerRecorder
+import org.apache.curator.newrelic.metrics.TraceSampler
+import org.apache.curator.test.TestingCluster
 import org.apache.curator.test.TestingServer
+import org.apache.zookeeper.AsyncCallback.DataCallback
+import org.apache.zookeeper.CreateMode
+import org.apache.zookeeper.KeeperException
+import org.apache.zookeeper.KeeperException.Code
+import org.apache.zookeeper.Op
 import org.apache.zookeeper.Watcher
+import org.apache.zookeeper.Watcher.Event.KeeperState
 import org.apache.zookeeper.ZooKeeper
+import org.apache.zookeeper.ZooDefs.Ids
 
 import spock.lang.Shared
 import spock.lang.Specification
@@ -47,4 +66,160 @@ class NewRelicWrappedZookeeperSpec extends Specification {
         cleanup:
             wrappedZk.close()
     }
+
+    def "test creating the NewRelic wrapped ZooKeeper client directly"() {
+        setup:
+            Watcher watcher = Mock()
+        when:
+            def wrappedZk = new NewRelicWrappedZookeeper(server.connectString, 10000, watcher, false)
+        then:
+            wrappedZk != null
+            wrappedZk.exists('/', false) != null
+        cleanup:
+            wrappedZk.close()
+    }
+
+    def "test that operations are recorded by result code"() {
+        setup:
+            Watcher watcher = Mock()
+            def wrappedZk = new NewRelicWrappedZookeeper(server.connectString, 10000, watcher, false)
+            def snapshot = new LatencyHistogram.Snapshot()
+            def recorder = LatencyRecorder.getInstance()
+            recorder.flush()
+        when:
+            wrappedZk.create('/recorded', new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT)
+            wrappedZk.getData('/recorded', false, null)
+            wrappedZk.getData('/recorded', null, null)
+            wrappedZk.delete('/recorded', -1)
+            wrappedZk.getData('/recorded', false, null)
+        then:
+            thrown(KeeperException.NoNodeException)
+            recorder.getHistogram(OperationSource.ZOOKEEPER, Operation.CREATE, Code.OK).drainTo(snapshot) == null
+            snapshot.count == 1
+            recorder.getHistogram(OperationSource.ZOOKEEPER, Operation.GET_DATA, Code.OK).drainTo(snapshot) == null
+            snapshot.count == 2
+            recorder.getHistogram(OperationSource.ZOOKEEPER, Operation.DELETE, Code.OK).drainTo(snapshot) == null
+            snapshot.count == 1
+            recorder.getHistogram(OperationSource.ZOOKEEPER, Operation.GET_DATA, Code.NONODE).drainTo(snapshot) == null
+            snapshot.count == 1
+        cleanup:
+            wrappedZk.close()
+    }
+
+    def "test that every operation is recorded when operations are sampled"() {
+        setup:
+            Watcher watcher = Mock()
+            def sampler = TraceSampler.oneIn(3, 1000)
+            def wrappedZk = new NewRelicWrappedZookeeper(server.connectString, 10000, watcher, false, sampler)
+            def snapshot = new LatencyHistogram.Snapshot()
+            def recorder = LatencyRecorder.getInstance()
+            recorder.flush()
+        when:
+            5.times { wrappedZk.exists('/', false) }
+        then:
+            sampler.callCount == 5
+            recorder.getHistogram(OperationSource.ZOOKEEPER, Operation.EXISTS, Code.OK).drainTo(snapshot) == null
+            snapshot.count == 5
+        cleanup:
+            wrappedZk.close()
+    }
+
+    def "test creating the NewRelic wrapped ZooKeeper client without a sampler"() {
+        when:
+            new NewRelicWrappedZookeeper(server.connectString, 10000, Mock(Watcher), false, null)
+        then:
+            thrown(IllegalArgumentException)
+    }
+
+    def "test that multi is recorded"() {
+        setup:
+            Watcher watcher = Mock()
+            def wrappedZk = new NewRelicWrappedZookeeper(server.connectString, 10000, watcher, false)
+            def snapshot = new LatencyHistogram.Snapshot()
+            def recorder = LatencyRecorder.getInstance()
+            recorder.flush()
+        when:
+            def results = wrappedZk.multi([Op.create('/multi', new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT), Op.delete('/multi', -1)])
+        then:
+            results.size() == 2
+            recorder.getHistogram(OperationSource.ZOOKEEPER, Operation.MULTI, Code.OK).drainTo(snapshot) == null
+            snapshot.count == 1
+        cleanup:
+            wrappedZk.close()
+    }
+
+    def "test that payload sizes are recorded"() {
+        setup:
+            Watcher watcher = Mock()
+            def wrappedZk = new NewRelicWrappedZookeeper(server.connectString, 10000, watcher, false)
+            def recorder = PayloadRecorder.getInstance()
+            def latch = new CountDownLatch(1)
+            recorder.flush()
+        when:
+            wrappedZk.create('/payload', new byte[3], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT)
+            wrappedZk.setData('/payload', new byte[5], -1)
+            wrappedZk.getData('/payload', false, null)
+            wrappedZk.getData('/payload', false, { rc, path, ctx, data, stat -> latch.countDown() } as DataCallback, null)
+        then:
+            latch.await(10, TimeUnit.SECONDS)
+            recorder.getByteCount(Direction.WRITE, '/payload') == 8
+            recorder.getByteCount(Direction.READ, '/payload') == 10
+            recorder.getNearLimitCount(Direction.WRITE, '/payload') == 0
+        cleanup:
+            wrappedZk.delete('/payload', -1)
+            wrappedZk.close()
+    }
+
+    def "test that operations are recorded against the connected server"() {
+        setup:
+            Watcher watcher = Mock()
+            def wrappedZk = new NewRelicWrappedZookeeper(server.connectString, 10000, watcher, false)
+            def snapshot = new LatencyHistogram.Snapshot()
+            def latch = new CountDownLatch(1)
+            wrappedZk.exists('/', false)
+            def metrics = ServerRecorder.getInstance().getServer(wrappedZk.connectedServer)
+            ServerRecorder.getInstance().flush()
+        when:
+            wrappedZk.exists('/', false)
+            try {
+                wrappedZk.getData('/missing', false, null)
+            } catch(KeeperException.NoNodeException e) {
+            }
+            wrappedZk.getData('/missing', false, { rc, path, ctx, data, stat -> latch.countDown() } as DataCallback, null)
+        then:
+            latch.await(10, TimeUnit.SECONDS)
+            wrappedZk.connectedServer.endsWith(':' + server.port)
+            metrics.getErrorCount(Code.NONODE) == 2
+            metrics.latencyHistogram.drainTo(snapshot) == null
+            snapshot.count == 3
+        cleanup:
+            wrappedZk.close()
+    }
+
+    def "test that moving the connection to another server is recorded"() {
+        setup:
+            def cluster = new TestingCluster(3)
+            cluster.start()
+            def connected = new CountDownLatch(1)
+            def reconnected = new CountDownLatch(2)
+            def watcher = { event ->
+                if(event.state == KeeperState.SyncConnected) {
+                    connected.countDown()
+                    reconnected.countDown()
+                }
+            } as Watcher
+            def wrappedZk = new NewRelicWrappedZookeeper(cluster.connectString, 10000, watcher, false)
+            connected.await(10, TimeUnit.SECONDS)
+            def first = wrappedZk.connectedServer
+            def moves = ServerRecorder.getInstance().moveCount
+        when:
+            cluster.killServer(cluster.instances.find { first.endsWith(':' + it.port) })
+        then:
+            reconnected.await(30, TimeUnit.SECONDS)
+            wrappedZk.connectedServer != first
+            ServerRecorder.getInstance().moveCount == moves + 1
+        cleanup:
+            wrappedZk.close()
+            cluster.close()
+    }
 }
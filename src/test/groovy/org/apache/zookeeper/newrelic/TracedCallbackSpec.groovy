@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.newrelic
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import org.apache.curator.newrelic.metrics.LatencyHistogram
+import org.apache.curator.newrelic.metrics.LatencyRecorder
+import org.apache.curator.newrelic.metrics.Operation
+import org.apache.curator.newrelic.metrics.OperationSource
+import org.apache.curator.newrelic.metrics.TraceSampler
+import org.apache.curator.test.TestingServer
+import org.apache.zookeeper.AsyncCallback.Children2Callback
+import org.apache.zookeeper.AsyncCallback.DataCallback
+import org.apache.zookeeper.AsyncCallback.StatCallback
+import org.apache.zookeeper.AsyncCallback.StringCallback
+import org.apache.zookeeper.AsyncCallback.VoidCallback
+import org.apache.zookeeper.CreateMode
+import org.apache.zookeeper.KeeperException.Code
+import org.apache.zookeeper.Watcher
+import org.apache.zookeeper.ZooDefs.Ids
+
+import spock.lang.Shared
+import spock.lang.Specification
+
+class TracedCallbackSpec extends Specification {
+
+    @Shared
+    TestingServer server
+
+    @Shared
+    NewRelicWrappedZookeeper zooKeeper
+
+    def setupSpec() {
+        server = new TestingServer()
+        zooKeeper = new NewRelicWrappedZookeeper(server.connectString, 10000, { event -> } as Watcher, false)
+    }
+
+    def cleanupSpec() {
+        zooKeeper.close()
+        server.stop()
+    }
+
+    def "test wrapping callbacks"() {
+        setup:
+            DataCallback callback = Mock()
+        when:
+            def wrapped = TracedCallback.wrapData(Operation.GET_DATA, callback, TraceSampler.always(), 0L, null)
+            wrapped.processResult(Code.OK.intValue(), '/path', 'ctx', new byte[1], null)
+        then:
+            wrapped instanceof TracedCallback
+            1 * callback.processResult(Code.OK.intValue(), '/path', 'ctx', _, null)
+    }
+
+    def "test that the results of asynchronous operations are delivered to the wrapped callbacks"() {
+        setup:
+            def latch = new CountDownLatch(5)
+            def results = [:]
+            def context = new Object()
+        when:
+            zooKeeper.create('/async', 'data'.bytes, Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, { rc, path, ctx, name ->
+                results.create = [rc, path, ctx, name]
+                latch.countDown()
+            } as StringCallback, context)
+            zooKeeper.getData('/async', false, { rc, path, ctx, data, stat ->
+                results.getData = [rc, path, ctx, new String(data), stat]
+                latch.countDown()
+            } as DataCallback, context)
+            zooKeeper.exists('/async', false, { rc, path, ctx, stat ->
+                results.exists = [rc, path, ctx, stat]
+                latch.countDown()
+            } as StatCallback, context)
+            zooKeeper.getChildren('/', false, { rc, path, ctx, children, stat ->
+                results.getChildren = [rc, path, ctx, children, stat]
+                latch.countDown()
+            } as Children2Callback, context)
+            zooKeeper.delete('/async', -1, { rc, path, ctx ->
+                results.delete = [rc, path, ctx]
+                latch.countDown()
+            } as VoidCallback, context)
+        then:
+            latch.await(10, TimeUnit.SECONDS)
+            results.create == [Code.OK.intValue(), '/async', context, '/async']
+            results.getData[0..3] == [Code.OK.intValue(), '/async', context, 'data']
+            results.exists[0..2] == [Code.OK.intValue(), '/async', context]
+            results.exists[3] != null
+            results.getChildren[3].contains('async')
+            results.delete == [Code.OK.intValue(), '/async', context]
+    }
+
+    def "test that the enqueue-to-callback latency is recorded by result code"() {
+        setup:
+            def latch = new CountDownLatch(1)
+            def snapshot = new LatencyHistogram.Snapshot()
+            def recorder = LatencyRecorder.getInstance()
+            recorder.flush()
+        when:
+            zooKeeper.getData('/missing', false, { rc, path, ctx, data, stat -> latch.countDown() } as DataCallback, null)
+        then:
+            latch.await(10, TimeUnit.SECONDS)
+            recorder.getHistogram(OperationSource.ZOOKEEPER_ASYNC, Operation.GET_DATA, Code.NONODE).drainTo(snapshot) == null
+            snapshot.count == 1
+            snapshot.max > 0
+    }
+}
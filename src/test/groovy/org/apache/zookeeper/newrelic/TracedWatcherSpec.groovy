@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.newrelic
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import org.apache.curator.newrelic.metrics.LatencyHistogram
+import org.apache.curator.newrelic.metrics.WatcherRecorder
+import org.apache.curator.test.TestingServer
+import org.apache.zookeeper.CreateMode
+import org.apache.zookeeper.WatchedEvent
+import org.apache.zookeeper.Watcher
+import org.apache.zookeeper.Watcher.Event.EventType
+import org.apache.zookeeper.Watcher.Event.KeeperState
+import org.apache.zookeeper.ZooDefs.Ids
+
+import spock.lang.Shared
+import spock.lang.Specification
+
+class TracedWatcherSpec extends Specification {
+
+    @Shared
+    TestingServer server
+
+    def setupSpec() {
+        server = new TestingServer()
+    }
+
+    def cleanupSpec() {
+        server.stop()
+    }
+
+    def "test wrapping watchers"() {
+        setup:
+            Watcher watcher = Mock()
+        when:
+            def wrapped = TracedWatcher.wrap(watcher)
+        then:
+            wrapped instanceof TracedWatcher
+            TracedWatcher.wrap(wrapped).is(wrapped)
+            TracedWatcher.wrap(null) == null
+            wrapped == TracedWatcher.wrap(watcher)
+            wrapped.hashCode() == TracedWatcher.wrap(watcher).hashCode()
+    }
+
+    def "test that events are delivered to the delegate and recorded"() {
+        setup:
+            Watcher watcher = Mock()
+            def event = new WatchedEvent(EventType.NodeDataChanged, KeeperState.SyncConnected, '/watched/node')
+            def recorder = WatcherRecorder.getInstance()
+            def snapshot = new LatencyHistogram.Snapshot()
+            recorder.flush()
+        when:
+            TracedWatcher.wrap(watcher).process(event)
+        then:
+            1 * watcher.process(event)
+            recorder.getEventCount(EventType.NodeDataChanged, '/watched') == 1
+            recorder.getCallbackHistogram(EventType.NodeDataChanged).drainTo(snapshot) == null
+            snapshot.count == 1
+    }
+
+    def "test that per-call and default watchers of an instrumented handle are wrapped"() {
+        setup:
+            def connected = new CountDownLatch(1)
+            def changed = new CountDownLatch(2)
+            Watcher defaultWatcher = { event ->
+                if(event.state == KeeperState.SyncConnected && event.type == EventType.None) {
+                    connected.countDown()
+                } else if(event.type == EventType.NodeDataChanged) {
+                    changed.countDown()
+                }
+            } as Watcher
+            Watcher watcher = { event -> changed.countDown() } as Watcher
+            def zk = new NewRelicWrappedZookeeper(server.connectString, 10000, defaultWatcher, false)
+            connected.await(10, TimeUnit.SECONDS)
+            zk.create('/traced', new byte[0], Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT)
+            def recorder = WatcherRecorder.getInstance()
+            recorder.flush()
+        when:
+            zk.getData('/traced', watcher, null)
+            zk.getData('/traced', watcher, null)
+            zk.getData('/traced', true, null)
+            zk.exists('/traced/missing', watcher)
+            zk.getChildren('/traced', watcher)
+        then:
+            ZookeeperInternals.getWatcher(zk) instanceof TracedWatcher
+            ZookeeperInternals.getWatcher(zk).delegate.is(defaultWatcher)
+            zk.dataWatchCount == 2
+            zk.existWatchCount == 1
+            zk.childWatchCount == 1
+        when:
+            zk.setData('/traced', new byte[1], -1)
+            changed.await(10, TimeUnit.SECONDS)
+            // Events are recorded once the watcher returns, so wait for the second event to be recorded as well.
+            def deadline = System.currentTimeMillis() + 10000
+            while(recorder.getEventCount(EventType.NodeDataChanged, '/traced') < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10)
+            }
+        then:
+            recorder.getEventCount(EventType.NodeDataChanged, '/traced') == 2
+            zk.dataWatchCount == 0
+        cleanup:
+            zk.close()
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.zookeeper.newrelic
+
+import org.apache.zookeeper.Watcher
+import org.apache.zookeeper.ZooKeeper
+
+import spock.lang.Specification
+
+class ZookeeperInternalsSpec extends Specification {
+
+    def "test reading the internal state of a ZooKeeper client"() {
+        setup:
+            Watcher watcher = Mock()
+            ZooKeeper zk = new ZooKeeper('localhost:2181', 10000, watcher, true)
+        expect:
+            ZookeeperInternals.getClientCnxn(zk) != null
+            ZookeeperInternals.getWatcher(zk).is(watcher)
+            ZookeeperInternals.getCanBeReadOnly(zk)
+            ZookeeperInternals.getDataWatchCount(zk) == 0
+            ZookeeperInternals.getExistWatchCount(zk) == 0
+            ZookeeperInternals.getChildWatchCount(zk) == 0
+        cleanup:
+            zk.close()
+    }
+}